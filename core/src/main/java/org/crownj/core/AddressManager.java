@@ -0,0 +1,666 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import net.jcip.annotations.GuardedBy;
+import org.crownj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, so that a {@link PeerGroup} can reconnect to the network
+ * without asking DNS seeds or other discovery sources first. It follows the design of the address manager of the
+ * reference client: addresses we merely heard about go into the "new" table, and addresses we successfully connected
+ * to are moved to the "tried" table. Both tables consist of fixed size buckets, and which buckets an address can land
+ * in is determined by a secret key and its network group (e.g. the /16 of an IPv4 address), so that a single peer or
+ * network can't flood the tables with addresses it controls.</p>
+ *
+ * <p>{@link #select(int, Collection)} picks addresses from both tables at random, preferring addresses that worked in
+ * the past and that haven't failed recently or stalled the chain download or sent invalid data, see
+ * {@link #markMisbehavior(PeerAddress, int, int)}. The tables can be saved to and loaded from a compact file, in which
+ * every address is encoded as in {@link AddressV1Message} or {@link AddressV2Message}.</p>
+ *
+ * <p>Instances of this class are thread safe.</p>
+ */
+public class AddressManager {
+    private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
+
+    /** Number of buckets of the table of addresses we heard about but never connected to. */
+    public static final int NEW_BUCKET_COUNT = 256;
+    /** Number of buckets of the table of addresses we successfully connected to. */
+    public static final int TRIED_BUCKET_COUNT = 64;
+    /** Number of addresses a bucket can hold. */
+    public static final int BUCKET_SIZE = 64;
+    // How many new buckets the addresses of one network group can spread over, if learned from the same source group.
+    private static final int NEW_BUCKETS_PER_SOURCE_GROUP = 16;
+    // How many tried buckets the addresses of one network group can spread over.
+    private static final int TRIED_BUCKETS_PER_GROUP = 8;
+
+    // When an address is considered terrible and may be replaced by another, see isTerrible().
+    private static final long HORIZON_SECS = 30 * 24 * 60 * 60;
+    private static final int RETRIES = 3;
+    private static final int MAX_FAILURES = 10;
+    private static final long MIN_FAIL_SECS = 7 * 24 * 60 * 60;
+    // Addresses we tried to connect to this recently are much less likely to be selected again.
+    private static final long RECENT_TRY_SECS = 10 * 60;
+
+    private static final byte[] FILE_MAGIC = "addrman".getBytes(StandardCharsets.US_ASCII);
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Threading.lock(AddressManager.class);
+    private final Random random = new SecureRandom();
+
+    @GuardedBy("lock") private byte[] key;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    @GuardedBy("lock") private final Entry[][] newTable = new Entry[NEW_BUCKET_COUNT][BUCKET_SIZE];
+    @GuardedBy("lock") private final Entry[][] triedTable = new Entry[TRIED_BUCKET_COUNT][BUCKET_SIZE];
+    // The entries of each table again, for picking one at random.
+    @GuardedBy("lock") private final List<Entry> newEntries = new ArrayList<>();
+    @GuardedBy("lock") private final List<Entry> triedEntries = new ArrayList<>();
+
+    private static class Entry {
+        final InetSocketAddress socketAddress;
+        @Nullable final InetAddress addr;
+        @Nullable final String hostname;
+        final int port;
+        final byte[] sourceGroup;
+        BigInteger services;
+        // All times are in seconds since the epoch.
+        long lastSeen, lastTry, lastSuccess;
+        // Failed attempts since the last success, and total successes.
+        int attempts, successes;
+        // Stalls and invalid data of all connections, see PeerScore. Not saved to the address file.
+        int stalls, invalidData;
+        boolean tried;
+        int bucket, position, index;
+
+        Entry(PeerAddress address, byte[] sourceGroup) {
+            this.addr = address.getAddr();
+            this.hostname = address.getHostname();
+            this.port = address.getPort();
+            this.socketAddress = address.toSocketAddress();
+            this.sourceGroup = sourceGroup;
+            this.services = address.getServices();
+        }
+
+        byte[] keyBytes() {
+            byte[] bytes = addr != null ? addr.getAddress() : hostname.getBytes(StandardCharsets.US_ASCII);
+            byte[] result = Arrays.copyOf(bytes, bytes.length + 2);
+            result[bytes.length] = (byte) (port >> 8);
+            result[bytes.length + 1] = (byte) port;
+            return result;
+        }
+    }
+
+    public AddressManager(NetworkParameters params) {
+        this.params = params;
+        this.key = new byte[32];
+        random.nextBytes(key);
+    }
+
+    /**
+     * Adds an address to the new table, unless it is already known. All addresses of one network group learned from
+     * the same source share a bucket, and all addresses learned from the same source can only occupy a limited number
+     * of buckets, so an address may be dropped if its slot is taken by an address that is still good.
+     *
+     * @param address the address to add
+     * @param source the peer that told us about the address, or null if it came from a discovery source
+     * @return true if the address was added
+     */
+    public boolean add(PeerAddress address, @Nullable PeerAddress source) {
+        if (address.getAddr() == null && address.getHostname() == null)
+            return false; // An addrv2 network we don't know.
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry != null) {
+                entry.lastSeen = Math.max(entry.lastSeen, sanitizeTime(address.getTime(), now));
+                entry.services = entry.services.or(address.getServices());
+                return false;
+            }
+            // Addresses from discovery sources are spread as if each told us about itself.
+            entry = new Entry(address, groupOf(source != null ? source : address));
+            entry.lastSeen = sanitizeTime(address.getTime(), now);
+            return placeInNewTable(entry, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds all given addresses, see {@link #add(PeerAddress, PeerAddress)}. Returns how many were added. */
+    public int addAll(Collection<PeerAddress> addresses, @Nullable PeerAddress source) {
+        int added = 0;
+        for (PeerAddress address : addresses)
+            if (add(address, source))
+                added++;
+        return added;
+    }
+
+    /** Records that we are trying to connect to the given address. */
+    public void markAttempt(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entry.lastTry = Utils.currentTimeSeconds();
+            entry.attempts++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that we successfully connected to the given address, moving it to the tried table. An address that is
+     * not known yet is added first.
+     */
+    public void markGood(PeerAddress address) {
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null) {
+                add(address, null);
+                entry = entries.get(address.toSocketAddress());
+                if (entry == null)
+                    return; // Its bucket is full.
+            }
+            entry.lastSeen = entry.lastTry = entry.lastSuccess = now;
+            entry.attempts = 0;
+            entry.successes++;
+            if (entry.tried)
+                return;
+            removeFromTable(entry);
+            placeInTriedTable(entry, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the stalls and invalid data of a connection to the given address, as counted by its {@link PeerScore}.
+     * They make the address less likely to be selected, and count against the next connection to it. Unknown
+     * addresses are ignored.
+     */
+    public void markMisbehavior(PeerAddress address, int stalls, int invalidData) {
+        checkArgument(stalls >= 0 && invalidData >= 0, "Negative misbehavior: %s, %s", stalls, invalidData);
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entry.stalls += stalls;
+            entry.invalidData += invalidData;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how often connections to the given address stalled the chain download, see {@link PeerScore}. */
+    public int getStallCount(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry != null ? entry.stalls : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how often the given address sent us data that failed verification, see {@link PeerScore}. */
+    public int getInvalidDataCount(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry != null ? entry.invalidData : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks up to the given number of distinct addresses at random. Addresses from the tried table are as likely to be
+     * picked as addresses from the new table, even though there are usually far fewer of them. Addresses that failed,
+     * misbehaved or were tried recently are less likely to be picked, tried addresses that worked several times are
+     * more likely.
+     *
+     * @param count the maximum number of addresses to return
+     * @param exclude addresses that must not be returned, for example because we are already connected to them
+     */
+    public List<PeerAddress> select(int count, Collection<InetSocketAddress> exclude) {
+        long now = Utils.currentTimeSeconds();
+        List<PeerAddress> result = new ArrayList<>();
+        lock.lock();
+        try {
+            Set<InetSocketAddress> excluded = new HashSet<>(exclude);
+            int available = 0;
+            for (InetSocketAddress socketAddress : entries.keySet())
+                if (!excluded.contains(socketAddress))
+                    available++;
+            count = Math.min(count, available);
+            while (result.size() < count) {
+                Entry entry = selectEntry(now);
+                if (excluded.add(entry.socketAddress))
+                    result.add(toPeerAddress(entry, params.getDefaultSerializer().withProtocolVersion(2)));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Entry selectEntry(long now) {
+        // Keep lowering the bar until an entry is accepted, so this always terminates.
+        double chanceFactor = 1.0;
+        while (true) {
+            boolean fromTried = newEntries.isEmpty() || (!triedEntries.isEmpty() && random.nextBoolean());
+            List<Entry> table = fromTried ? triedEntries : newEntries;
+            Entry entry = table.get(random.nextInt(table.size()));
+            if (random.nextDouble() < chanceFactor * getChance(entry, now))
+                return entry;
+            chanceFactor *= 1.2;
+        }
+    }
+
+    /** Relative chance that an entry is picked when selected at random, between 0 and 1. */
+    private static double getChance(Entry entry, long now) {
+        double chance = 1.0;
+        if (now - entry.lastTry < RECENT_TRY_SECS)
+            chance *= 0.01;
+        chance *= Math.pow(0.66, Math.min(entry.attempts, 8));
+        if (entry.tried)
+            chance *= (1 + Math.min(entry.successes, 3)) / 4.0;
+        chance *= Math.pow(0.5, Math.min(entry.stalls + 2 * entry.invalidData, 8));
+        return chance;
+    }
+
+    /**
+     * Returns true if an address is so unlikely to work that it should be replaced if another address wants its
+     * slot: it hasn't been seen in a month, or it failed several times in a row without ever working recently.
+     */
+    private static boolean isTerrible(Entry entry, long now) {
+        if (entry.lastTry > 0 && now - entry.lastTry < 60)
+            return false; // Never remove addresses we're trying right now.
+        if (entry.lastSeen > now + 10 * 60)
+            return true; // From the future.
+        if (now - entry.lastSeen > HORIZON_SECS)
+            return true; // Not seen recently.
+        if (entry.lastSuccess == 0 && entry.attempts >= RETRIES)
+            return true; // Tried several times and never worked.
+        if (now - entry.lastSuccess > MIN_FAIL_SECS && entry.attempts >= MAX_FAILURES)
+            return true; // Failed too often recently.
+        return false;
+    }
+
+    // Timestamps from the network may be missing or absurd. Treat those as last seen five days ago.
+    private static long sanitizeTime(long time, long now) {
+        if (time <= 100000000 || time > now + 10 * 60)
+            return now - 5 * 24 * 60 * 60;
+        return time;
+    }
+
+    @GuardedBy("lock")
+    private boolean placeInNewTable(Entry entry, long now) {
+        byte[] group = groupOf(entry);
+        long bucketInGroup = hash(group, entry.sourceGroup) % NEW_BUCKETS_PER_SOURCE_GROUP;
+        int bucket = (int) (hash(entry.sourceGroup, new byte[] { (byte) bucketInGroup }) % NEW_BUCKET_COUNT);
+        int position = position(false, bucket, entry);
+        Entry existing = newTable[bucket][position];
+        if (existing != null) {
+            if (!isTerrible(existing, now))
+                return false;
+            remove(existing);
+        }
+        entry.tried = false;
+        place(entry, newTable, newEntries, bucket, position);
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void placeInTriedTable(Entry entry, long now) {
+        long bucketInGroup = hash(entry.keyBytes()) % TRIED_BUCKETS_PER_GROUP;
+        int bucket = (int) (hash(groupOf(entry), new byte[] { (byte) bucketInGroup }) % TRIED_BUCKET_COUNT);
+        int position = position(true, bucket, entry);
+        Entry existing = triedTable[bucket][position];
+        if (existing != null) {
+            // Make room by moving the current occupant back to the new table.
+            removeFromTable(existing);
+            if (!placeInNewTable(existing, now))
+                entries.remove(existing.socketAddress);
+        }
+        entry.tried = true;
+        place(entry, triedTable, triedEntries, bucket, position);
+    }
+
+    @GuardedBy("lock")
+    private void place(Entry entry, Entry[][] table, List<Entry> list, int bucket, int position) {
+        entry.bucket = bucket;
+        entry.position = position;
+        entry.index = list.size();
+        table[bucket][position] = entry;
+        list.add(entry);
+        entries.put(entry.socketAddress, entry);
+    }
+
+    @GuardedBy("lock")
+    private void remove(Entry entry) {
+        removeFromTable(entry);
+        entries.remove(entry.socketAddress);
+    }
+
+    @GuardedBy("lock")
+    private void removeFromTable(Entry entry) {
+        Entry[][] table = entry.tried ? triedTable : newTable;
+        List<Entry> list = entry.tried ? triedEntries : newEntries;
+        table[entry.bucket][entry.position] = null;
+        // Swap with the last element, so removal is O(1).
+        Entry last = list.remove(list.size() - 1);
+        if (last != entry) {
+            list.set(entry.index, last);
+            last.index = entry.index;
+        }
+    }
+
+    @GuardedBy("lock")
+    private int position(boolean tried, int bucket, Entry entry) {
+        byte[] tableAndBucket = new byte[] { (byte) (tried ? 1 : 0), (byte) (bucket >> 8), (byte) bucket };
+        return (int) (hash(tableAndBucket, entry.keyBytes()) % BUCKET_SIZE);
+    }
+
+    /** Keyed hash of the given byte arrays, as a non-negative number. */
+    @GuardedBy("lock")
+    private long hash(byte[]... parts) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(key, 0, key.length);
+        for (byte[] part : parts) {
+            bos.write(part.length);
+            bos.write(part, 0, part.length);
+        }
+        return Utils.readInt64(Sha256Hash.hashTwice(bos.toByteArray()), 0) & Long.MAX_VALUE;
+    }
+
+    private static byte[] groupOf(Entry entry) {
+        return groupOf(entry.addr, entry.hostname);
+    }
+
+    private static byte[] groupOf(PeerAddress address) {
+        return groupOf(address.getAddr(), address.getHostname());
+    }
+
+    /**
+     * Returns the network group of an address: the /16 of IPv4 addresses, the /32 of IPv6 addresses and the first
+     * characters of onion addresses. Local addresses all share one group.
+     */
+    private static byte[] groupOf(@Nullable InetAddress addr, @Nullable String hostname) {
+        if (addr == null)
+            return hostname == null ? new byte[0] :
+                    ("onion" + hostname.substring(0, Math.min(2, hostname.length()))).getBytes(StandardCharsets.US_ASCII);
+        if (addr.isLoopbackAddress() || addr.isSiteLocalAddress() || addr.isLinkLocalAddress())
+            return new byte[] { 0 };
+        byte[] bytes = addr.getAddress();
+        if (addr instanceof Inet4Address)
+            return new byte[] { 1, bytes[0], bytes[1] };
+        return new byte[] { 2, bytes[0], bytes[1], bytes[2], bytes[3] };
+    }
+
+    private PeerAddress toPeerAddress(Entry entry, MessageSerializer serializer) {
+        PeerAddress address;
+        if (entry.addr != null) {
+            address = new PeerAddress(params, entry.addr, entry.port, entry.services, serializer);
+        } else {
+            address = new PeerAddress(params, entry.hostname, entry.port);
+            address.setSerializer(serializer);
+        }
+        address.setTime(entry.lastSeen);
+        return address;
+    }
+
+    /** Returns the number of known addresses. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses in the new table. */
+    public int getNewCount() {
+        lock.lock();
+        try {
+            return newEntries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses in the tried table. */
+    public int getTriedCount() {
+        lock.lock();
+        try {
+            return triedEntries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if we successfully connected to the given address and it is in the tried table. */
+    public boolean isTried(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry != null && entry.tried;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Writes all addresses and their connection history to the given stream. The format is compact: after a
+     * header, every address is written in the encoding used by address messages of the given protocol variant,
+     * followed by a few bytes of history.</p>
+     *
+     * @param protocolVariant 1 for the encoding of {@link AddressV1Message}, which can't represent TORv3 addresses
+     *                        and skips them, or 2 for the encoding of {@link AddressV2Message}
+     */
+    public void write(OutputStream stream, int protocolVariant) throws IOException {
+        checkArgument(protocolVariant == 1 || protocolVariant == 2, "Unknown protocol variant: %s", protocolVariant);
+        MessageSerializer serializer = params.getDefaultSerializer().withProtocolVersion(protocolVariant);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int count = 0;
+        lock.lock();
+        try {
+            for (List<Entry> list : Arrays.asList(triedEntries, newEntries)) {
+                for (Entry entry : list) {
+                    if (protocolVariant == 1 && entry.addr == null)
+                        continue;
+                    bos.write(toPeerAddress(entry, serializer).crownSerialize());
+                    Utils.uint32ToByteStreamLE(entry.lastTry, bos);
+                    Utils.uint32ToByteStreamLE(entry.lastSuccess, bos);
+                    bos.write(new VarInt(entry.attempts).encode());
+                    bos.write(new VarInt(entry.successes).encode());
+                    bos.write(entry.tried ? 1 : 0);
+                    bos.write(new VarInt(entry.sourceGroup.length).encode());
+                    bos.write(entry.sourceGroup);
+                    count++;
+                }
+            }
+            stream.write(FILE_MAGIC);
+            stream.write(protocolVariant);
+            stream.write(key);
+        } finally {
+            lock.unlock();
+        }
+        stream.write(new VarInt(count).encode());
+        bos.writeTo(stream);
+    }
+
+    /**
+     * Replaces all addresses with the ones read from the given stream, as written by
+     * {@link #write(OutputStream, int)}.
+     *
+     * @throws IOException if reading fails or the data is not in the expected format
+     */
+    public void read(InputStream stream) throws IOException {
+        byte[] bytes = ByteStreams.toByteArray(stream);
+        try {
+            if (bytes.length < FILE_MAGIC.length + 1 + 32
+                    || !Arrays.equals(FILE_MAGIC, Arrays.copyOf(bytes, FILE_MAGIC.length)))
+                throw new IOException("Not an address file");
+            int cursor = FILE_MAGIC.length;
+            int protocolVariant = bytes[cursor++];
+            if (protocolVariant != 1 && protocolVariant != 2)
+                throw new IOException("Unknown protocol variant: " + protocolVariant);
+            MessageSerializer serializer = params.getDefaultSerializer().withProtocolVersion(protocolVariant);
+            byte[] newKey = Arrays.copyOfRange(bytes, cursor, cursor + 32);
+            cursor += 32;
+            VarInt count = new VarInt(bytes, cursor);
+            cursor += count.getOriginalSizeInBytes();
+            if (count.longValue() < 0 || count.longValue() > bytes.length - cursor)
+                throw new ProtocolException("Address count too large: " + count.longValue());
+            List<Entry> loaded = new ArrayList<>();
+            for (long i = 0; i < count.longValue(); i++) {
+                PeerAddress address = new PeerAddress(params, bytes, cursor, null, serializer);
+                cursor += address.getMessageSize();
+                long lastTry = Utils.readUint32(bytes, cursor);
+                long lastSuccess = Utils.readUint32(bytes, cursor + 4);
+                cursor += 8;
+                VarInt attempts = new VarInt(bytes, cursor);
+                cursor += attempts.getOriginalSizeInBytes();
+                VarInt successes = new VarInt(bytes, cursor);
+                cursor += successes.getOriginalSizeInBytes();
+                boolean tried = bytes[cursor++] != 0;
+                VarInt sourceGroupLength = new VarInt(bytes, cursor);
+                cursor += sourceGroupLength.getOriginalSizeInBytes();
+                if (sourceGroupLength.longValue() < 0 || sourceGroupLength.longValue() > bytes.length - cursor)
+                    throw new ProtocolException("Source group too long: " + sourceGroupLength.longValue());
+                byte[] sourceGroup = Arrays.copyOfRange(bytes, cursor, cursor + sourceGroupLength.intValue());
+                cursor += sourceGroup.length;
+                if (address.getAddr() == null && address.getHostname() == null)
+                    continue;
+                Entry entry = new Entry(address, sourceGroup);
+                entry.lastSeen = address.getTime();
+                entry.lastTry = lastTry;
+                entry.lastSuccess = lastSuccess;
+                entry.attempts = attempts.intValue();
+                entry.successes = successes.intValue();
+                entry.tried = tried;
+                loaded.add(entry);
+            }
+            long now = Utils.currentTimeSeconds();
+            lock.lock();
+            try {
+                key = newKey;
+                entries.clear();
+                newEntries.clear();
+                triedEntries.clear();
+                for (Entry[] bucket : newTable)
+                    Arrays.fill(bucket, null);
+                for (Entry[] bucket : triedTable)
+                    Arrays.fill(bucket, null);
+                // Tried entries come first in the file, so they never get pushed out by new ones.
+                for (Entry entry : loaded) {
+                    if (entries.containsKey(entry.socketAddress))
+                        continue;
+                    if (entry.tried)
+                        placeInTriedTable(entry, now);
+                    else
+                        placeInNewTable(entry, now);
+                }
+                log.info("Read {} addresses, {} tried and {} new", entries.size(), triedEntries.size(),
+                        newEntries.size());
+            } finally {
+                lock.unlock();
+            }
+        } catch (RuntimeException e) {
+            // Whatever the data claims, a corrupt file must not stop the peer group from starting.
+            throw new IOException("Corrupt address file", e);
+        }
+    }
+
+    /**
+     * Saves all addresses to the given file in the encoding of {@link AddressV2Message}. Writes to a temporary file
+     * in the same directory first and then renames it.
+     */
+    public void saveToFile(File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            write(stream, 2);
+            stream.flush();
+            stream.getFD().sync();
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = file.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            file = canonical;
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+
+    /** Replaces all addresses with the ones saved in the given file, see {@link #read(InputStream)}. */
+    public void loadFromFile(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            read(stream);
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format(Locale.US, "AddressManager{%d tried, %d new}", triedEntries.size(),
+                    newEntries.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
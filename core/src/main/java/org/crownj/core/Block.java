@@ -27,6 +27,7 @@ import org.slf4j.*;
 import javax.annotation.*;
 import java.io.*;
 import java.math.*;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -106,6 +107,13 @@ public class Block extends Message {
     @VisibleForTesting
     @Nullable List<Transaction> transactions;
 
+    // In lazy mode (see isLazy()) the transactions list above stays null until it is asked for. Instead we remember
+    // where each transaction starts in the payload, with one extra entry marking the end of the last one, and where
+    // its witness data starts or -1 if it has none. That is enough to hash transactions without parsing them.
+    @Nullable private int[] lazyTxOffsets;
+    @Nullable private int[] lazyWitnessOffsets;
+    @Nullable private Transaction[] lazyTxCache;
+
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private Sha256Hash hash;
 
@@ -226,6 +234,10 @@ public class Block extends Message {
         VarInt numTransactionsVarInt = readVarInt();
         optimalEncodingMessageSize += numTransactionsVarInt.getSizeInBytes();
         int numTransactions = numTransactionsVarInt.intValue();
+        if (serializer.isLazyTransactionMode() && serializer.isParseRetainMode()) {
+            parseTransactionOffsets(numTransactions);
+            return;
+        }
         transactions = new ArrayList<>(Math.min(numTransactions, Utils.MAX_INITIAL_ARRAY_LENGTH));
         for (int i = 0; i < numTransactions; i++) {
             Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH, null);
@@ -238,6 +250,97 @@ public class Block extends Message {
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
+    /**
+     * Records the position of each transaction in the payload without creating any objects for them. Used instead
+     * of parsing the transactions if the serializer is in lazy mode.
+     */
+    private void parseTransactionOffsets(int numTransactions) throws ProtocolException {
+        if (numTransactions < 0 || numTransactions > payload.length - cursor)
+            throw new ProtocolException("Implausible number of transactions: " + numTransactions);
+        boolean allowWitness = Transaction.allowWitness(serializer);
+        lazyTxOffsets = new int[numTransactions + 1];
+        lazyWitnessOffsets = new int[numTransactions];
+        lazyTxCache = new Transaction[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            lazyTxOffsets[i] = cursor;
+            lazyWitnessOffsets[i] = skipTransaction(allowWitness);
+        }
+        lazyTxOffsets[numTransactions] = cursor;
+        transactionBytesValid = true;
+    }
+
+    /**
+     * Moves the cursor past one serialized transaction, following the same rules as {@link Transaction#parse()}.
+     *
+     * @return offset of the witness data of the transaction, or -1 if it doesn't have any
+     */
+    private int skipTransaction(boolean allowWitness) throws ProtocolException {
+        final int start = cursor;
+        skipBytes(4); // version
+        int flags = 0;
+        long numInputs = skipVarInt();
+        if (numInputs == 0 && allowWitness) {
+            // We read a dummy or an empty input
+            flags = readByte();
+            if (flags != 0) {
+                numInputs = skipVarInt();
+                skipInputs(numInputs);
+                skipOutputs();
+            }
+        } else {
+            skipInputs(numInputs);
+            skipOutputs();
+        }
+        int witnessOffset = -1;
+        if (((flags & 1) != 0) && allowWitness) {
+            flags ^= 1;
+            witnessOffset = cursor;
+            boolean hasWitnesses = false;
+            for (long i = 0; i < numInputs; i++) {
+                long pushCount = skipVarInt();
+                hasWitnesses |= pushCount != 0;
+                for (long y = 0; y < pushCount; y++)
+                    skipBytes(skipVarInt());
+            }
+            if (!hasWitnesses)
+                throw new ProtocolException("Superfluous witness record");
+        }
+        if (flags != 0)
+            throw new ProtocolException("Unknown transaction optional data");
+        skipBytes(4); // lock_time
+        optimalEncodingMessageSize += cursor - start;
+        return witnessOffset;
+    }
+
+    private void skipInputs(long numInputs) throws ProtocolException {
+        for (long i = 0; i < numInputs; i++) {
+            skipBytes(TransactionOutPoint.MESSAGE_LENGTH);
+            skipBytes(skipVarInt()); // script
+            skipBytes(4); // sequence
+        }
+    }
+
+    private void skipOutputs() throws ProtocolException {
+        long numOutputs = skipVarInt();
+        for (long i = 0; i < numOutputs; i++) {
+            skipBytes(8); // value
+            skipBytes(skipVarInt()); // script
+        }
+    }
+
+    private long skipVarInt() throws ProtocolException {
+        VarInt varInt = readVarInt();
+        // Non-canonical encodings don't count towards the optimal size, see optimalEncodingMessageSize.
+        optimalEncodingMessageSize -= varInt.getOriginalSizeInBytes() - varInt.getSizeInBytes();
+        return varInt.longValue();
+    }
+
+    private void skipBytes(long numBytes) throws ProtocolException {
+        if (numBytes < 0 || numBytes > payload.length - cursor)
+            throw new ProtocolException("Claimed value length too large: " + numBytes);
+        cursor += (int) numBytes;
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         // header
@@ -315,7 +418,7 @@ public class Block extends Message {
     private void writeTransactions(OutputStream stream) throws IOException {
         // check for no transaction conditions first
         // must be a more efficient way to do this but I'm tired atm.
-        if (transactions == null) {
+        if (transactions == null && lazyTxOffsets == null) {
             return;
         }
 
@@ -325,6 +428,7 @@ public class Block extends Message {
             return;
         }
 
+        maybeMaterializeTransactions();
         stream.write(new VarInt(transactions.size()).encode());
         for (Transaction tx : transactions) {
             tx.crownSerialize(stream);
@@ -380,6 +484,7 @@ public class Block extends Message {
     private int guessTransactionsLength() {
         if (transactionBytesValid)
             return payload.length - HEADER_SIZE;
+        maybeMaterializeTransactions();
         if (transactions == null)
             return 0;
         int len = VarInt.sizeOf(transactions.size());
@@ -405,6 +510,8 @@ public class Block extends Message {
     }
 
     private void unCacheTransactions() {
+        // Lazy transactions live in the payload, so they have to be parsed before it goes away.
+        maybeMaterializeTransactions();
         transactionBytesValid = false;
         if (!headerBytesValid)
             payload = null;
@@ -504,6 +611,7 @@ public class Block extends Message {
         s.append("   time: ").append(time).append(" (").append(Utils.dateTimeFormat(time * 1000)).append(")\n");
         s.append("   difficulty target (nBits): ").append(difficultyTarget).append("\n");
         s.append("   nonce: ").append(nonce).append("\n");
+        maybeMaterializeTransactions();
         if (transactions != null && transactions.size() > 0) {
             s.append("   merkle root: ").append(getMerkleRoot()).append("\n");
             s.append("   witness root: ").append(getWitnessRoot()).append("\n");
@@ -584,6 +692,7 @@ public class Block extends Message {
     private void checkSigOps() throws VerificationException {
         // Check there aren't too many signature verifications in the block. This is an anti-DoS measure, see the
         // comments for MAX_BLOCK_SIGOPS.
+        maybeMaterializeTransactions();
         int sigOps = 0;
         for (Transaction tx : transactions) {
             sigOps += tx.getSigOpCount();
@@ -602,6 +711,7 @@ public class Block extends Message {
 
     @VisibleForTesting
     void checkWitnessRoot() throws VerificationException {
+        maybeMaterializeTransactions();
         Transaction coinbase = transactions.get(0);
         checkState(coinbase.isCoinBase());
         Sha256Hash witnessCommitment = coinbase.findWitnessCommitment();
@@ -667,19 +777,23 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>(transactions.size());
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
+        final int numTransactions = getTransactionCount();
+        ArrayList<byte[]> tree = new ArrayList<>(numTransactions);
+        // Start by adding all the hashes of the transactions as leaves of the tree. In lazy mode they are
+        // calculated straight from the payload.
+        for (int i = 0; i < numTransactions; i++) {
             final Sha256Hash id;
-            if (useWTxId && tx.isCoinBase())
+            if (lazyTxOffsets != null && lazyTxCache[i] == null && !(useWTxId && i == 0))
+                id = hashLazyTransaction(i, useWTxId);
+            else if (useWTxId && transactionAt(i).isCoinBase())
                 id = Sha256Hash.ZERO_HASH;
             else
-                id = useWTxId ? tx.getWTxId() : tx.getTxId();
+                id = useWTxId ? transactionAt(i).getWTxId() : transactionAt(i).getTxId();
             tree.add(id.getBytes());
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+        for (int levelSize = numTransactions; levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
             for (int left = 0; left < levelSize; left += 2) {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
@@ -704,6 +818,7 @@ public class Block extends Message {
      */
     private void checkTransactions(final int height, final EnumSet<VerifyFlag> flags)
             throws VerificationException {
+        maybeMaterializeTransactions();
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
             throw new VerificationException("First tx is not coinbase");
@@ -749,7 +864,7 @@ public class Block extends Message {
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
         // transactions that reference spent or non-existent inputs.
-        if (transactions.isEmpty())
+        if (getTransactionCount() == 0)
             throw new VerificationException("Block had no transactions");
         if (this.getOptimalEncodingMessageSize() > MAX_BLOCK_SIZE)
             throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
@@ -760,6 +875,19 @@ public class Block extends Message {
             transaction.verify();
         }
 
+    /**
+     * Checks that the transactions of this block hash to the merkle root in its header. Unlike
+     * {@link #verifyTransactions(int, EnumSet)} this doesn't look into the transactions themselves, so for a lazy
+     * block (see {@link #isLazy()}) none of them have to be parsed.
+     *
+     * @throws VerificationException if the block has no transactions or the merkle root doesn't match.
+     */
+    public void verifyMerkleRoot() throws VerificationException {
+        if (getTransactionCount() == 0)
+            throw new VerificationException("Block had no transactions");
+        checkMerkleRoot();
+    }
+
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
      *
@@ -918,9 +1046,101 @@ public class Block extends Message {
     /** Returns an immutable list of transactions held in this block, or null if this object represents just a header. */
     @Nullable
     public List<Transaction> getTransactions() {
+        maybeMaterializeTransactions();
         return transactions == null ? null : ImmutableList.copyOf(transactions);
     }
 
+    /**
+     * <p>Returns true if this block was parsed by a serializer in lazy transaction mode (see
+     * {@link MessageSerializer#isLazyTransactionMode()}) and its transactions have not all been parsed yet.</p>
+     *
+     * <p>A lazy block only records where each transaction is located in the raw bytes. Single transactions are
+     * parsed on first access via {@link #getTransaction(int)}, and txids as well as the merkle root are calculated
+     * directly from the raw bytes. Anything that needs the whole list, like {@link #getTransactions()},
+     * {@link #verifyTransactions(int, EnumSet)} or changing the block, parses all remaining transactions.</p>
+     */
+    public boolean isLazy() {
+        return lazyTxOffsets != null;
+    }
+
+    /**
+     * Returns the number of transactions in this block, or 0 if this object represents just a header. This doesn't
+     * parse any transactions.
+     */
+    public int getTransactionCount() {
+        if (lazyTxOffsets != null)
+            return lazyTxCache.length;
+        return transactions == null ? 0 : transactions.size();
+    }
+
+    /**
+     * Returns the transaction at the given index. If this block is lazy, only that transaction is parsed.
+     *
+     * @throws IndexOutOfBoundsException if there is no such transaction
+     */
+    public Transaction getTransaction(int index) {
+        if (lazyTxOffsets == null && transactions == null)
+            throw new IndexOutOfBoundsException("Block has no transactions");
+        return transactionAt(index);
+    }
+
+    /**
+     * Returns the id of the transaction at the given index. If this block is lazy and the transaction has not been
+     * parsed yet, the id is hashed directly from the raw bytes.
+     *
+     * @throws IndexOutOfBoundsException if there is no such transaction
+     */
+    public Sha256Hash getTransactionId(int index) {
+        if (lazyTxOffsets != null && lazyTxCache[index] == null)
+            return hashLazyTransaction(index, false);
+        return getTransaction(index).getTxId();
+    }
+
+    private Transaction transactionAt(int index) {
+        if (lazyTxOffsets == null)
+            return transactions.get(index);
+        Transaction tx = lazyTxCache[index];
+        if (tx == null) {
+            int start = lazyTxOffsets[index];
+            tx = new Transaction(params, payload, start, this, serializer, lazyTxOffsets[index + 1] - start, null);
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            lazyTxCache[index] = tx;
+        }
+        return tx;
+    }
+
+    /** Parses all transactions of a lazy block that haven't been parsed yet, and leaves lazy mode. */
+    private void maybeMaterializeTransactions() {
+        if (lazyTxOffsets == null)
+            return;
+        int numTransactions = lazyTxCache.length;
+        List<Transaction> materialized = new ArrayList<>(numTransactions);
+        for (int i = 0; i < numTransactions; i++)
+            materialized.add(transactionAt(i));
+        transactions = materialized;
+        lazyTxOffsets = null;
+        lazyWitnessOffsets = null;
+        lazyTxCache = null;
+    }
+
+    /**
+     * Calculates the txid or wtxid of a lazy transaction from the raw bytes. The txid leaves out the segwit marker,
+     * flag and witnesses, so for witness transactions only the version, inputs/outputs and lock time are hashed.
+     */
+    private Sha256Hash hashLazyTransaction(int index, boolean useWTxId) {
+        int start = lazyTxOffsets[index];
+        int end = lazyTxOffsets[index + 1];
+        int witnessOffset = lazyWitnessOffsets[index];
+        if (useWTxId || witnessOffset < 0)
+            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, start, end - start));
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload, start, 4);
+        digest.update(payload, start + 6, witnessOffset - start - 6);
+        digest.update(payload, end - 4, 4);
+        return Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+    }
+
     // ///////////////////////////////////////////////////////////////////////////////////////////////
     // Unit testing related methods.
 
@@ -1073,7 +1293,7 @@ public class Block extends Message {
      * purely a header).
      */
     public boolean hasTransactions() {
-        return (this.transactions != null) && !this.transactions.isEmpty();
+        return getTransactionCount() > 0;
     }
 
     /**
@@ -0,0 +1,175 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.script.Script;
+import org.crownj.script.ScriptOpCodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A compact block filter as specified in BIP158. The basic filter of a block contains every output script of
+ * the block and every script spent by its inputs, except for empty and OP_RETURN scripts. A light client downloads
+ * the filters of new blocks (see {@link CFilterMessage}), tests its own scripts against them locally and only
+ * downloads the blocks that match. Unlike a {@link BloomFilter}, nothing about the wallet is revealed to the peer,
+ * and the peer doesn't have to scan blocks on our behalf.</p>
+ *
+ * <p>The filters of consecutive blocks are committed to by a chain of filter headers, see
+ * {@link #computeHeader(Sha256Hash)} and {@link CFHeadersMessage}.</p>
+ *
+ * <p>Instances of this class are immutable and can be used by multiple threads.</p>
+ */
+public class BlockFilter {
+    /** The filter type of the basic filter. */
+    public static final int TYPE_BASIC = 0;
+    /** Golomb-Rice coding parameter of the basic filter. */
+    public static final int BASIC_P = 19;
+    /** Inverse false positive rate of the basic filter. */
+    public static final long BASIC_M = 784931;
+
+    private final int type;
+    private final Sha256Hash blockHash;
+    private final GolombCodedSet set;
+
+    /**
+     * Wraps an encoded filter of the given block.
+     *
+     * @throws ProtocolException if the filter can't be decoded
+     */
+    public BlockFilter(int type, Sha256Hash blockHash, byte[] filter) throws ProtocolException {
+        checkArgument(type == TYPE_BASIC, "Unsupported filter type: %s", type);
+        this.type = type;
+        this.blockHash = blockHash;
+        this.set = new GolombCodedSet(keyOf(blockHash), BASIC_P, BASIC_M, filter);
+    }
+
+    private BlockFilter(Sha256Hash blockHash, GolombCodedSet set) {
+        this.type = TYPE_BASIC;
+        this.blockHash = blockHash;
+        this.set = set;
+    }
+
+    /**
+     * Builds the basic filter of a block. The scripts spent by the inputs of the block aren't part of the block
+     * itself, so they have to be provided by the caller, usually from the UTXO set.
+     *
+     * @param block the full block
+     * @param spentScripts the program bytes of the scripts spent by the inputs of the block, excluding the coinbase
+     */
+    public static BlockFilter buildBasic(Block block, Collection<byte[]> spentScripts) {
+        Set<ByteArray> elements = new LinkedHashSet<>();
+        for (Transaction tx : block.getTransactions()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                byte[] script = output.getScriptBytes();
+                if (script.length == 0 || (script[0] & 0xff) == ScriptOpCodes.OP_RETURN)
+                    continue;
+                elements.add(new ByteArray(script));
+            }
+        }
+        for (byte[] script : spentScripts)
+            if (script.length > 0)
+                elements.add(new ByteArray(script));
+        List<byte[]> bytes = new ArrayList<>(elements.size());
+        for (ByteArray element : elements)
+            bytes.add(element.bytes);
+        Sha256Hash blockHash = block.getHash();
+        return new BlockFilter(blockHash, GolombCodedSet.build(keyOf(blockHash), BASIC_P, BASIC_M, bytes));
+    }
+
+    /** The SipHash key of a block's filter is the first 16 bytes of its hash, in wire byte order. */
+    private static byte[] keyOf(Sha256Hash blockHash) {
+        return Arrays.copyOf(blockHash.getReversedBytes(), 16);
+    }
+
+    /** Returns true if the given script probably appears in the block, either as an output or as a spent output. */
+    public boolean matches(Script script) {
+        return set.match(script.getProgram());
+    }
+
+    /**
+     * Returns true if any of the given scripts (as program bytes) probably appears in the block. This is much faster
+     * than calling {@link #matches(Script)} for each of them.
+     */
+    public boolean matchesAny(Collection<byte[]> scripts) {
+        return set.matchAny(scripts);
+    }
+
+    /** Returns the double SHA-256 of the encoded filter, as committed to by the filter header chain. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(set.getEncoded()));
+    }
+
+    /** Returns the filter header of this filter, given the filter header of the previous block. */
+    public Sha256Hash computeHeader(Sha256Hash previousHeader) {
+        return computeHeader(getFilterHash(), previousHeader);
+    }
+
+    /** Returns the filter header for the given filter hash, given the filter header of the previous block. */
+    public static Sha256Hash computeHeader(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        return Sha256Hash.wrapReversed(
+                Sha256Hash.hashTwice(filterHash.getReversedBytes(), previousHeader.getReversedBytes()));
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the encoded filter, as sent on the wire. */
+    public byte[] getFilterBytes() {
+        return set.getEncoded();
+    }
+
+    /** Returns the number of elements in the filter. */
+    public int size() {
+        return set.size();
+    }
+
+    @Override
+    public String toString() {
+        return "BlockFilter{type=" + type + ", block=" + blockHash + ", " + set.size() + " elements}";
+    }
+
+    /** Gives byte arrays value semantics so they can be de-duplicated in a set. */
+    private static class ByteArray {
+        final byte[] bytes;
+
+        ByteArray(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArray && Arrays.equals(bytes, ((ByteArray) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+}
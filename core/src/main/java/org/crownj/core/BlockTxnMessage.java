@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents a "blocktxn" message on the P2P network, the answer to a {@link GetBlockTxnMessage}. It carries
+ * the requested transactions of a block in the order they were asked for.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private List<Transaction> transactions;
+
+    public BlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = new ArrayList<>(transactions);
+    }
+
+    public BlockTxnMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numTransactions = readVarInt().longValue();
+        if (numTransactions < 0 || numTransactions > payload.length - cursor)
+            throw new ProtocolException("Too many transactions: " + numTransactions);
+        transactions = new ArrayList<>((int) numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params, payload, cursor, null, serializer, UNKNOWN_LENGTH, null);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            transactions.add(tx);
+            cursor += tx.getMessageSize();
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            stream.write(tx.crownSerialize());
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the transactions, in the order they were requested. */
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(transactions);
+    }
+
+    @Override
+    public String toString() {
+        return "blocktxn: " + blockHash + ", " + transactions.size() + " transactions";
+    }
+}
@@ -172,7 +172,13 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int h1 = murmurHash3((int)(hashNum * 0xFBA4C795L + nTweak), object);
+        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    /** Applies the MurmurHash3 (x86_32) algorithm to the given object with the given seed, see above. */
+    static int murmurHash3(int seed, byte[] object) {
+        int h1 = seed;
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
@@ -218,8 +224,7 @@ public class BloomFilter extends Message {
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return h1;
     }
     
     /**
@@ -338,7 +343,7 @@ public class BloomFilter extends Message {
         for (TransactionOutput output : tx.getOutputs()) {
             Script script = output.getScriptPubKey();
             for (ScriptChunk chunk : script.getChunks()) {
-                if (!chunk.isPushData())
+                if (!chunk.isPushData() || chunk.data == null)
                     continue;
                 if (contains(chunk.data)) {
                     boolean isSendingToPubKeys = ScriptPattern.isP2PK(script) || ScriptPattern.isSentToMultisig(script);
@@ -354,7 +359,7 @@ public class BloomFilter extends Message {
                 return true;
             }
             for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
+                if (chunk.isPushData() && chunk.data != null && contains(chunk.data))
                     return true;
             }
         }
@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents a "cfheaders" message on the P2P network, the answer to a {@link GetCFHeadersMessage}. It carries
+ * the filter header of the block before the requested range, followed by the filter hashes of the blocks in the
+ * range. From those the filter header of every block in the range can be computed with
+ * {@link BlockFilter#computeHeader(Sha256Hash, Sha256Hash)}, and each filter received later can be checked against
+ * its hash.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = new ArrayList<>(filterHashes);
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long numHashes = readVarInt().longValue();
+        if (numHashes < 0 || numHashes > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + numHashes);
+        filterHashes = new ArrayList<>((int) numHashes);
+        for (int i = 0; i < numHashes; i++)
+            filterHashes.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    /** Returns the filter type, see {@link BlockFilter#TYPE_BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the hash of the last block of the range. */
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter header of the block before the first block of the range. */
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    /** Returns the filter hashes of the blocks in the range, in ascending height order. */
+    public List<Sha256Hash> getFilterHashes() {
+        return Collections.unmodifiableList(filterHashes);
+    }
+
+    /** Returns the filter headers of the blocks in the range, computed from the filter hashes. */
+    public List<Sha256Hash> getFilterHeaders() {
+        List<Sha256Hash> headers = new ArrayList<>(filterHashes.size());
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = BlockFilter.computeHeader(filterHash, header);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: type=" + filterType + " stop=" + stopHash + ", " + filterHashes.size() + " hashes";
+    }
+}
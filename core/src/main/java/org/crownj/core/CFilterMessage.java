@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents a "cfilter" message on the P2P network, which carries the compact filter of one block in answer to
+ * a {@link GetCFiltersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    private int filterType;
+    private Sha256Hash blockHash;
+    private byte[] filterBytes;
+
+    public CFilterMessage(NetworkParameters params, BlockFilter filter) {
+        super(params);
+        this.filterType = filter.getType();
+        this.blockHash = filter.getBlockHash();
+        this.filterBytes = filter.getFilterBytes();
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        blockHash = readHash();
+        filterBytes = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filterBytes.length).encode());
+        stream.write(filterBytes);
+    }
+
+    /** Returns the filter type, see {@link BlockFilter#TYPE_BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /**
+     * Decodes the filter.
+     *
+     * @throws ProtocolException if the filter type is unknown or the filter can't be decoded
+     */
+    public BlockFilter getFilter() throws ProtocolException {
+        if (filterType != BlockFilter.TYPE_BASIC)
+            throw new ProtocolException("Unsupported filter type: " + filterType);
+        return new BlockFilter(filterType, blockHash, filterBytes);
+    }
+
+    /** Returns the double SHA-256 of the encoded filter, to be checked against a {@link CFHeadersMessage}. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterBytes));
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: type=" + filterType + " block=" + blockHash + ", " + filterBytes.length + " bytes";
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.crypto.SipHash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Represents a "cmpctblock" message on the P2P network. A compact block consists of the block header, a nonce,
+ * a 6 byte short ID for most of the transactions and a few transactions that are sent in full (at least the
+ * coinbase). The receiver is expected to already have most transactions in its memory pool, so it can rebuild the
+ * block from the short IDs and only request the few that are missing with a {@link GetBlockTxnMessage}. See
+ * {@link CompactBlockReconstructor}.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CmpctBlockMessage extends Message {
+    /** Length in bytes of a short transaction ID. */
+    public static final int SHORT_ID_LENGTH = 6;
+    private static final long SHORT_ID_MASK = 0xffffffffffffL;
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    private int[] prefilledIndexes;
+    private List<Transaction> prefilledTransactions;
+
+    // Derived from the header and nonce on first use.
+    private long shortIdKey0, shortIdKey1;
+    private boolean shortIdKeysValid;
+
+    /**
+     * Creates a compact block message.
+     *
+     * @param header the header of the block, without transactions
+     * @param nonce the nonce that salts the short IDs
+     * @param shortIds the short IDs of the transactions not sent in full, in block order
+     * @param prefilledIndexes the absolute positions in the block of the transactions sent in full, ascending
+     * @param prefilledTransactions the transactions sent in full, in the same order as the indexes
+     */
+    public CmpctBlockMessage(NetworkParameters params, Block header, long nonce, long[] shortIds,
+                             int[] prefilledIndexes, List<Transaction> prefilledTransactions) {
+        super(params);
+        checkArgument(prefilledIndexes.length == prefilledTransactions.size());
+        this.header = header.cloneAsHeader();
+        this.nonce = nonce;
+        this.shortIds = shortIds.clone();
+        this.prefilledIndexes = prefilledIndexes.clone();
+        this.prefilledTransactions = new ArrayList<>(prefilledTransactions);
+    }
+
+    public CmpctBlockMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    /**
+     * Creates a compact block for the given block, prefilling only the coinbase transaction as recommended by
+     * BIP152.
+     *
+     * @param useWtxid true for compact block version 2, where short IDs are derived from witness transaction IDs
+     */
+    public static CmpctBlockMessage fromBlock(Block block, long nonce, boolean useWtxid) {
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        CmpctBlockMessage message = new CmpctBlockMessage(block.getParams(), block, nonce, new long[0],
+                new int[] { 0 }, Collections.singletonList(transactions.get(0)));
+        long[] shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            shortIds[i - 1] = message.shortIdOf(useWtxid ? tx.getWTxId() : tx.getTxId());
+        }
+        message.shortIds = shortIds;
+        return message;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        header = serializer.makeBlock(readBytes(Block.HEADER_SIZE));
+        nonce = readInt64();
+
+        long numShortIds = readVarInt().longValue();
+        if (numShortIds < 0 || numShortIds > (payload.length - cursor) / SHORT_ID_LENGTH)
+            throw new ProtocolException("Too many short IDs: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < shortIds.length; i++) {
+            byte[] bytes = readBytes(SHORT_ID_LENGTH);
+            long id = 0;
+            for (int j = SHORT_ID_LENGTH - 1; j >= 0; j--)
+                id = (id << 8) | (bytes[j] & 0xff);
+            shortIds[i] = id;
+        }
+
+        long numPrefilled = readVarInt().longValue();
+        if (numPrefilled < 0 || numPrefilled > payload.length - cursor)
+            throw new ProtocolException("Too many prefilled transactions: " + numPrefilled);
+        prefilledIndexes = new int[(int) numPrefilled];
+        prefilledTransactions = new ArrayList<>((int) numPrefilled);
+        long lastIndex = -1;
+        for (int i = 0; i < prefilledIndexes.length; i++) {
+            // Indexes are differentially encoded, and must fit in 16 bits like in the reference implementation.
+            long index = lastIndex + 1 + readVarInt().longValue();
+            if (index > 0xffff || index < 0)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            prefilledIndexes[i] = (int) index;
+            lastIndex = index;
+            Transaction tx = new Transaction(params, payload, cursor, null, serializer, UNKNOWN_LENGTH, null);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            prefilledTransactions.add(tx);
+            cursor += tx.getMessageSize();
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        header.writeHeader(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long id : shortIds)
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                stream.write((int) (0xff & (id >> (8 * j))));
+        stream.write(new VarInt(prefilledIndexes.length).encode());
+        int lastIndex = -1;
+        for (int i = 0; i < prefilledIndexes.length; i++) {
+            stream.write(new VarInt(prefilledIndexes[i] - lastIndex - 1).encode());
+            lastIndex = prefilledIndexes[i];
+            stream.write(prefilledTransactions.get(i).crownSerialize());
+        }
+    }
+
+    /**
+     * Computes the short ID of the given transaction ID (or witness transaction ID, for compact block version 2)
+     * under the keys of this compact block.
+     */
+    public long shortIdOf(Sha256Hash id) {
+        if (!shortIdKeysValid) {
+            // The keys are the first two little endian 64 bit integers of SHA256(header || nonce).
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Block.HEADER_SIZE + 8);
+            try {
+                header.writeHeader(bos);
+                Utils.int64ToByteStreamLE(nonce, bos);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
+            byte[] keyHash = Sha256Hash.hash(bos.toByteArray());
+            shortIdKey0 = Utils.readInt64(keyHash, 0);
+            shortIdKey1 = Utils.readInt64(keyHash, 8);
+            shortIdKeysValid = true;
+        }
+        return SipHash.hash(shortIdKey0, shortIdKey1, id.getReversedBytes()) & SHORT_ID_MASK;
+    }
+
+    /** Returns the header of the block, without any transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return header.getHash();
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short IDs of the transactions that weren't sent in full, in block order. */
+    public long[] getShortIds() {
+        return shortIds.clone();
+    }
+
+    /** Returns the absolute positions in the block of the transactions sent in full, in ascending order. */
+    public int[] getPrefilledIndexes() {
+        return prefilledIndexes.clone();
+    }
+
+    /** Returns the transactions sent in full, in the same order as {@link #getPrefilledIndexes()}. */
+    public List<Transaction> getPrefilledTransactions() {
+        return Collections.unmodifiableList(prefilledTransactions);
+    }
+
+    /** Returns the total number of transactions in the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledIndexes.length;
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + header.getHashAsString() + ", " + shortIds.length + " short IDs, "
+                + prefilledIndexes.length + " prefilled";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Rebuilds a full {@link Block} from a {@link CmpctBlockMessage}. The prefilled transactions are put into place
+ * first, then the short IDs are matched against transactions we already know about, typically from a
+ * {@link RecentTransactionPool}. Whatever couldn't be matched has to be requested from the peer with
+ * {@link #createRequest()}, and the answer is fed back in via {@link #fill(BlockTxnMessage)}.</p>
+ *
+ * <p>Short IDs are only 48 bits, so a match may in rare cases be the wrong transaction. If two candidates map to
+ * the same short ID the slot is left empty and requested from the peer. If a wrong transaction slips through
+ * anyway, the merkle root check in {@link #build()} fails and the caller should fall back to downloading the
+ * full block.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactBlockReconstructor {
+    private final CmpctBlockMessage message;
+    private final boolean useWtxid;
+    private final Transaction[] slots;
+    // Slots that were matched by at least one candidate, so that a second match can be detected as a collision.
+    private final boolean[] matched;
+    private final Map<Long, Integer> shortIdToSlot;
+
+    /**
+     * Places the prefilled transactions of the given compact block.
+     *
+     * @param useWtxid true if the block was sent with compact block version 2
+     * @throws VerificationException if the compact block is malformed, or two of its short IDs are the same in
+     * which case it can't be reconstructed and the full block has to be downloaded instead
+     */
+    public CompactBlockReconstructor(CmpctBlockMessage message, boolean useWtxid) throws VerificationException {
+        this.message = message;
+        this.useWtxid = useWtxid;
+        int count = message.getTransactionCount();
+        if (count == 0)
+            throw new VerificationException("Compact block has no transactions");
+        this.slots = new Transaction[count];
+        this.matched = new boolean[count];
+
+        int[] prefilledIndexes = message.getPrefilledIndexes();
+        List<Transaction> prefilled = message.getPrefilledTransactions();
+        for (int i = 0; i < prefilledIndexes.length; i++) {
+            if (prefilledIndexes[i] >= count)
+                throw new VerificationException("Prefilled transaction index out of range: " + prefilledIndexes[i]);
+            slots[prefilledIndexes[i]] = prefilled.get(i);
+        }
+
+        long[] shortIds = message.getShortIds();
+        shortIdToSlot = new HashMap<>(shortIds.length * 2);
+        int slot = 0;
+        for (long shortId : shortIds) {
+            while (slots[slot] != null)
+                slot++;
+            if (shortIdToSlot.put(shortId, slot) != null)
+                throw new VerificationException("Duplicate short ID in compact block " + message.getBlockHash());
+            slot++;
+        }
+    }
+
+    /**
+     * Matches the given candidate transactions against the short IDs of the block.
+     *
+     * @return number of slots that are still missing
+     */
+    public int fillFromPool(Iterable<Transaction> candidates) {
+        if (!shortIdToSlot.isEmpty()) {
+            for (Transaction tx : candidates) {
+                Sha256Hash id = useWtxid ? tx.getWTxId() : tx.getTxId();
+                Integer slot = shortIdToSlot.get(message.shortIdOf(id));
+                if (slot == null)
+                    continue;
+                if (!matched[slot]) {
+                    matched[slot] = true;
+                    slots[slot] = tx;
+                } else if (slots[slot] != null && !slots[slot].getTxId().equals(tx.getTxId())) {
+                    // Two different transactions share this short ID, so we can't tell which one is in the block.
+                    slots[slot] = null;
+                }
+            }
+        }
+        return getMissingIndexes().length;
+    }
+
+    /** Returns the positions in the block of the transactions that are still missing, in ascending order. */
+    public int[] getMissingIndexes() {
+        int[] missing = new int[slots.length];
+        int n = 0;
+        for (int i = 0; i < slots.length; i++)
+            if (slots[i] == null)
+                missing[n++] = i;
+        return Arrays.copyOf(missing, n);
+    }
+
+    /** Returns true if all transactions are in place and {@link #build()} can be called. */
+    public boolean isComplete() {
+        for (Transaction tx : slots)
+            if (tx == null)
+                return false;
+        return true;
+    }
+
+    /** Creates the message to request the missing transactions from the peer. */
+    public GetBlockTxnMessage createRequest() {
+        return new GetBlockTxnMessage(message.getParams(), message.getBlockHash(), getMissingIndexes());
+    }
+
+    /**
+     * Puts the transactions sent by the peer in answer to {@link #createRequest()} into place.
+     *
+     * @throws VerificationException if the answer doesn't match the request
+     */
+    public void fill(BlockTxnMessage blockTxn) throws VerificationException {
+        if (!blockTxn.getBlockHash().equals(message.getBlockHash()))
+            throw new VerificationException("blocktxn for wrong block " + blockTxn.getBlockHash());
+        int[] missing = getMissingIndexes();
+        List<Transaction> transactions = blockTxn.getTransactions();
+        if (transactions.size() != missing.length)
+            throw new VerificationException("blocktxn has " + transactions.size() + " transactions, expected "
+                    + missing.length);
+        for (int i = 0; i < missing.length; i++)
+            slots[missing[i]] = transactions.get(i);
+    }
+
+    /**
+     * Assembles the block and checks it against the merkle root in the header.
+     *
+     * @throws VerificationException if the merkle root doesn't match, which means a short ID was matched to the
+     * wrong transaction or the peer sent bad data
+     */
+    public Block build() throws VerificationException {
+        checkState(isComplete(), "Block is still missing transactions");
+        Block header = message.getHeader();
+        List<Transaction> transactions = new ArrayList<>(Arrays.asList(slots));
+        Block block = new Block(message.getParams(), header.getVersion(), header.getPrevBlockHash(),
+                header.getMerkleRoot(), header.getTimeSeconds(), header.getDifficultyTarget(), header.getNonce(),
+                transactions);
+        block.verifyMerkleRoot();
+        return block;
+    }
+
+    /** Returns the hash of the block being reconstructed. */
+    public Sha256Hash getBlockHash() {
+        return message.getBlockHash();
+    }
+}
@@ -20,6 +20,7 @@ package org.crownj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -50,6 +51,7 @@ public class crownSerializer extends MessageSerializer {
     private final NetworkParameters params;
     private final int protocolVersion;
     private final boolean parseRetain;
+    private final boolean lazyTransactions;
 
     private static final Map<Class<? extends Message>, String> names = new HashMap<>();
 
@@ -70,6 +72,8 @@ public class crownSerializer extends MessageSerializer {
         names.put(SendAddrV2Message.class, "sendaddrv2");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
+        names.put(FilterClearMessage.class, "filterclear");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -78,6 +82,14 @@ public class crownSerializer extends MessageSerializer {
         names.put(UTXOsMessage.class, "utxos");
         names.put(SendHeadersMessage.class, "sendheaders");
         names.put(FeeFilterMessage.class, "feefilter");
+        names.put(SendCmpctMessage.class, "sendcmpct");
+        names.put(CmpctBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTxnMessage.class, "getblocktxn");
+        names.put(BlockTxnMessage.class, "blocktxn");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
     }
 
     /**
@@ -98,15 +110,39 @@ public class crownSerializer extends MessageSerializer {
      * @param parseRetain      retain the backing byte array of a message for fast reserialization.
      */
     public crownSerializer(NetworkParameters params, int protocolVersion, boolean parseRetain) {
+        this(params, protocolVersion, parseRetain, false);
+    }
+
+    /**
+     * Constructs a crownSerializer with the given behavior.
+     *
+     * @param params           networkParams used to create Messages instances and determining packetMagic
+     * @param protocolVersion  the protocol version to use
+     * @param parseRetain      retain the backing byte array of a message for fast reserialization.
+     * @param lazyTransactions only record the position of each transaction when parsing a block, and parse them on
+     *                         first access. The raw block bytes have to be kept for this, so it implies parseRetain.
+     */
+    public crownSerializer(NetworkParameters params, int protocolVersion, boolean parseRetain,
+                           boolean lazyTransactions) {
         this.params = params;
         this.protocolVersion = protocolVersion;
-        this.parseRetain = parseRetain;
+        this.parseRetain = parseRetain || lazyTransactions;
+        this.lazyTransactions = lazyTransactions;
     }
 
     @Override
     public crownSerializer withProtocolVersion(int protocolVersion) {
         return protocolVersion == this.protocolVersion ?
-                this : new crownSerializer(params, protocolVersion, parseRetain);
+                this : new crownSerializer(params, protocolVersion, parseRetain, lazyTransactions);
+    }
+
+    /**
+     * Returns a serializer that behaves like this one, except that blocks are parsed with or without lazy
+     * transactions. See {@link Block#isLazy()}.
+     */
+    public crownSerializer withLazyTransactions(boolean lazyTransactions) {
+        return lazyTransactions == this.lazyTransactions ?
+                this : new crownSerializer(params, protocolVersion, parseRetain, lazyTransactions);
     }
 
     @Override
@@ -114,6 +150,15 @@ public class crownSerializer extends MessageSerializer {
         return protocolVersion;
     }
 
+    /**
+     * Returns the command name of the given message class on the wire, for example "inv", or null if this serializer
+     * doesn't know the class.
+     */
+    @Nullable
+    public static String getCommandName(Class<? extends Message> messageClass) {
+        return names.get(messageClass);
+    }
+
     /**
      * Writes message to to the output stream.
      */
@@ -250,6 +295,10 @@ public class crownSerializer extends MessageSerializer {
             return new HeadersMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes, this, length);
+        } else if (command.equals("filterclear")) {
+            return new FilterClearMessage();
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -264,6 +313,22 @@ public class crownSerializer extends MessageSerializer {
             return new SendHeadersMessage(params, payloadBytes);
         } else if (command.equals("feefilter")) {
             return new FeeFilterMessage(params, payloadBytes, this, length);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCmpctMessage(params, payloadBytes, this, length);
+        } else if (command.equals("cmpctblock")) {
+            return new CmpctBlockMessage(params, payloadBytes, this, length);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTxnMessage(params, payloadBytes, this, length);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTxnMessage(params, payloadBytes, this, length);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes, this, length);
+        } else if (command.equals("cfilter")) {
+            return new CFilterMessage(params, payloadBytes, this, length);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes, this, length);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes, this, length);
         } else {
             return new UnknownMessage(params, command, payloadBytes);
         }
@@ -370,6 +435,14 @@ public class crownSerializer extends MessageSerializer {
         return parseRetain;
     }
 
+    /**
+     * Whether the serializer will produce blocks that parse their transactions on first access
+     */
+    @Override
+    public boolean isLazyTransactionMode() {
+        return lazyTransactions;
+    }
+
 
     public static class crownPacketHeader {
         /** The largest number of bytes that a header can represent */
@@ -415,11 +488,12 @@ public class crownSerializer extends MessageSerializer {
         crownSerializer other = (crownSerializer) o;
         return Objects.equals(params, other.params) &&
                 protocolVersion == other.protocolVersion &&
-                parseRetain == other.parseRetain;
+                parseRetain == other.parseRetain &&
+                lazyTransactions == other.lazyTransactions;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(params, protocolVersion, parseRetain);
+        return Objects.hash(params, protocolVersion, parseRetain, lazyTransactions);
     }
 }
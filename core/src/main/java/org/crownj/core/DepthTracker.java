@@ -0,0 +1,163 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Tracks the height of the best chain as seen by one {@link org.crownj.wallet.Wallet}. The depth of the confirmed
+ * transactions of the wallet is derived from it, so nothing has to be updated per transaction when a block arrives.
+ * Every wallet has its own tracker, because wallets that share a {@link Context} can be at different heights.</p>
+ *
+ * <p>Confidence objects that have listeners waiting for a depth, see
+ * {@link TransactionConfidence#addDepthThreshold(int)}, are indexed by the height at which they reach it, so only they
+ * are told about a new best block.</p>
+ */
+public class DepthTracker {
+    /**
+     * Depth targets are kept this many blocks after they were reached, so they are reached again if a re-org takes the
+     * best chain back below them.
+     */
+    private static final int TARGET_RETENTION = 100;
+
+    private final ReentrantLock lock = Threading.lock(DepthTracker.class);
+
+    private volatile int height = -1;
+
+    // The confidence objects by the heights at which they reach one of their depth thresholds.
+    @GuardedBy("lock") private final TreeMap<Integer, Set<TransactionConfidence>> targets = new TreeMap<>();
+    // The heights in targets of each confidence object, and the version of the confidence they came from.
+    @GuardedBy("lock") private final Map<TransactionConfidence, Registration> registrations = new HashMap<>();
+
+    private static class Registration {
+        final long version;
+        final Set<Integer> heights;
+
+        Registration(long version, Set<Integer> heights) {
+            this.version = version;
+            this.heights = heights;
+        }
+    }
+
+    /** Returns the height of the best chain, or -1 if it isn't known yet. */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Called when the wallet has seen a new best block. The confidence objects that have reached a depth threshold run
+     * their listeners with {@link TransactionConfidence.Listener.ChangeReason#DEPTH}. The first height only counts as
+     * one new block. Heights that are not above the current one are ignored, as they come from blocks that are replayed
+     * to the wallet: only {@link #reorganize(int)} takes the height back.
+     */
+    public void advance(int height) {
+        List<TransactionConfidence> reached = new ArrayList<>();
+        lock.lock();
+        try {
+            int previous = this.height;
+            if (height <= previous)
+                return;
+            this.height = height;
+            int from = previous < 0 ? height - 1 : previous;
+            for (Set<TransactionConfidence> confidences : targets.subMap(from, false, height, true).values())
+                reached.addAll(confidences);
+            prune(height - TARGET_RETENTION);
+        } finally {
+            lock.unlock();
+        }
+        for (TransactionConfidence confidence : reached)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+    }
+
+    /**
+     * Called when a re-org takes the best chain back to the split point. The depth thresholds are reached again as the
+     * blocks of the new chain arrive.
+     */
+    public void reorganize(int splitHeight) {
+        lock.lock();
+        try {
+            if (splitHeight < height)
+                height = splitHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets the height, for a wallet that is going to be replayed from the start of the chain. */
+    public void reset() {
+        lock.lock();
+        try {
+            height = -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void prune(int maxHeight) {
+        SortedMap<Integer, Set<TransactionConfidence>> pruned = targets.headMap(maxHeight, true);
+        for (Map.Entry<Integer, Set<TransactionConfidence>> entry : pruned.entrySet()) {
+            for (TransactionConfidence confidence : entry.getValue()) {
+                Registration registration = registrations.get(confidence);
+                registration.heights.remove(entry.getKey());
+                if (registration.heights.isEmpty())
+                    registrations.remove(confidence);
+            }
+        }
+        pruned.clear();
+    }
+
+    /**
+     * Replaces the heights at which the given confidence reaches its depth thresholds. Confidence objects compute their
+     * heights while holding their own monitor and call this after releasing it, so updates can arrive out of order:
+     * the version tells which one is the latest. Objects without targets aren't remembered, so an old update that
+     * arrives after the one that removed all targets adds them back, which only makes listeners run once for nothing.
+     */
+    void setTargets(TransactionConfidence confidence, long version, Set<Integer> heights) {
+        lock.lock();
+        try {
+            Registration registration = registrations.get(confidence);
+            if (registration != null) {
+                if (registration.version >= version)
+                    return;
+                for (int height : registration.heights) {
+                    Set<TransactionConfidence> confidences = targets.get(height);
+                    if (confidences.remove(confidence) && confidences.isEmpty())
+                        targets.remove(height);
+                }
+                registrations.remove(confidence);
+            }
+            if (heights.isEmpty())
+                return;
+            for (int height : heights) {
+                Set<TransactionConfidence> confidences = targets.get(height);
+                if (confidences == null) {
+                    confidences = new HashSet<>();
+                    targets.put(height, confidences);
+                }
+                confidences.add(confidence);
+            }
+            registrations.put(confidence, new Registration(version, new HashSet<>(heights)));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
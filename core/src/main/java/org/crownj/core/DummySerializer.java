@@ -63,6 +63,11 @@ class DummySerializer extends MessageSerializer {
         return false;
     }
 
+    @Override
+    public boolean isLazyTransactionMode() {
+        return false;
+    }
+
     @Override
     public AddressV1Message makeAddressV1Message(byte[] payloadBytes, int length) throws UnsupportedOperationException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
@@ -21,8 +21,11 @@ import org.crownj.params.AbstractcrownNetParams;
 import org.crownj.script.Script;
 import org.crownj.script.Script.VerifyFlag;
 import org.crownj.script.ScriptPattern;
+import org.crownj.store.AddressIndex;
 import org.crownj.store.BlockStoreException;
+import org.crownj.store.ChainIndex;
 import org.crownj.store.FullPrunedBlockStore;
+import org.crownj.store.TransactionIndex;
 import org.crownj.utils.*;
 import org.crownj.wallet.Wallet;
 import org.crownj.wallet.WalletExtension;
@@ -32,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -59,6 +63,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Optionally kept up to date with the verified chain, in the same batches as the block store.
+    @Nullable private volatile TransactionIndex transactionIndex;
+    @Nullable private volatile AddressIndex addressIndex;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -147,6 +155,59 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
+    /**
+     * Sets an index of the transactions of the verified chain, which is updated as blocks are connected and
+     * disconnected, and committed together with the block store. The index must be at the verified chain head already,
+     * so it has to be attached before the chain is synced, or be rebuilt from an empty one by replaying the chain.
+     * Pass null to stop updating it.
+     */
+    public void setTransactionIndex(@Nullable TransactionIndex index) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkIndexAtChainHead(index);
+            this.transactionIndex = index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the index set by {@link #setTransactionIndex(TransactionIndex)}, or null. */
+    @Nullable
+    public TransactionIndex getTransactionIndex() {
+        return transactionIndex;
+    }
+
+    /**
+     * Sets an index of the outputs of the verified chain by script, which is updated like the transaction index, see
+     * {@link #setTransactionIndex(TransactionIndex)}. Pass null to stop updating it.
+     */
+    public void setAddressIndex(@Nullable AddressIndex index) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkIndexAtChainHead(index);
+            this.addressIndex = index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the index set by {@link #setAddressIndex(AddressIndex)}, or null. */
+    @Nullable
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
+
+    private void checkIndexAtChainHead(@Nullable ChainIndex index) throws BlockStoreException {
+        if (index == null)
+            return;
+        StoredBlock head = blockStore.getVerifiedChainHead();
+        int height = head.getHeight();
+        if (index.getBestHeight() != height
+                || (height > 0 && !head.getHeader().getHash().equals(index.getBlockHash(height))))
+            throw new BlockStoreException("Index at height " + index.getBestHeight()
+                    + " does not match the verified chain head at height " + height);
+    }
+
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
     // TODO: execute in order of largest transaction (by input count) first
@@ -320,6 +381,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
+            TransactionIndex index = transactionIndex;
+            if (index != null)
+                index.connectBlock(block.getHash(), height, getTxIds(block.getTransactions()));
+            AddressIndex addresses = addressIndex;
+            if (addresses != null)
+                addresses.connectBlock(block.getHash(), height, getTxIds(block.getTransactions()), txOutsCreated,
+                        txOutsSpent, getSpenders(block.getTransactions()));
             for (Future<VerificationException> future : listScriptVerificationResults) {
                 VerificationException e;
                 try {
@@ -335,7 +403,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
         } catch (VerificationException | BlockStoreException e) {
             scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
@@ -355,7 +423,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
             // We're trying to re-org too deep and the data needed has been deleted.
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
@@ -474,9 +542,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 for (UTXO out : txOutChanges.txOutsSpent)
                     blockStore.removeUnspentTransactionOutput(out);
             }
+            TransactionIndex index = transactionIndex;
+            if (index != null)
+                index.connectBlock(newBlock.getHeader().getHash(), newBlock.getHeight(), getTxIds(block));
+            AddressIndex addresses = addressIndex;
+            if (addresses != null)
+                addresses.connectBlock(newBlock.getHeader().getHash(), newBlock.getHeight(), getTxIds(block),
+                        txOutChanges.txOutsCreated, txOutChanges.txOutsSpent,
+                        block.getTransactions() != null ? getSpenders(block.getTransactions()) : null);
         } catch (VerificationException | BlockStoreException e) {
             scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw e;
         }
         return txOutChanges;
@@ -498,8 +574,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 blockStore.addUnspentTransactionOutput(out);
             for (UTXO out : txOutChanges.txOutsCreated)
                 blockStore.removeUnspentTransactionOutput(out);
+            TransactionIndex index = transactionIndex;
+            if (index != null)
+                index.disconnectBlock(oldBlock.getHeader().getHash(), oldBlock.getHeight(), getTxIds(undoBlock));
+            AddressIndex addresses = addressIndex;
+            if (addresses != null)
+                addresses.disconnectBlock(oldBlock.getHeader().getHash(), oldBlock.getHeight(),
+                        txOutChanges.txOutsCreated, txOutChanges.txOutsSpent);
         } catch (PrunedException | BlockStoreException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw e;
         }
     }
@@ -509,13 +592,62 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        TransactionIndex index = transactionIndex;
+        if (index != null)
+            index.commitBatchWrite();
+        AddressIndex addresses = addressIndex;
+        if (addresses != null)
+            addresses.commitBatchWrite();
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
+        abortDatabaseBatchWrite();
+    }
+
+    private void abortDatabaseBatchWrite() throws BlockStoreException {
+        TransactionIndex index = transactionIndex;
+        if (index != null)
+            index.abortBatchWrite();
+        AddressIndex addresses = addressIndex;
+        if (addresses != null)
+            addresses.abortBatchWrite();
         blockStore.abortDatabaseBatchWrite();
     }
 
+    private static List<Sha256Hash> getTxIds(List<Transaction> transactions) {
+        List<Sha256Hash> txIds = new ArrayList<>(transactions.size());
+        for (Transaction tx : transactions)
+            txIds.add(tx.getTxId());
+        return txIds;
+    }
+
+    /** Returns the position of the spending transaction for each output spent by the given transactions, in order. */
+    private static List<Integer> getSpenders(List<Transaction> transactions) {
+        List<Integer> spenders = new ArrayList<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            if (tx.isCoinBase())
+                continue;
+            for (int j = 0; j < tx.getInputs().size(); j++)
+                spenders.add(i);
+        }
+        return spenders;
+    }
+
+    /**
+     * Returns the IDs of the transactions of a block, in order. Blocks that were stored without their transactions
+     * only know the transactions that created outputs, which are all of them but for degenerate ones.
+     */
+    private static List<Sha256Hash> getTxIds(StoredUndoableBlock block) {
+        if (block.getTransactions() != null)
+            return getTxIds(block.getTransactions());
+        Set<Sha256Hash> txIds = new LinkedHashSet<>();
+        for (UTXO out : block.getTxOutChanges().txOutsCreated)
+            txIds.add(out.getHash());
+        return new ArrayList<>(txIds);
+    }
+
     @Override
     protected StoredBlock getStoredBlockInCurrentScope(Sha256Hash hash) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * <p>Represents a "getblocktxn" message on the P2P network, which asks a peer for the transactions at the given
+ * positions of a block it announced with a {@link CmpctBlockMessage}. The peer answers with a
+ * {@link BlockTxnMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private int[] indexes;
+
+    /**
+     * @param blockHash hash of the block the transactions are requested from
+     * @param indexes positions of the requested transactions in the block, in ascending order
+     */
+    public GetBlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, int[] indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = indexes.clone();
+    }
+
+    public GetBlockTxnMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numIndexes = readVarInt().longValue();
+        if (numIndexes < 0 || numIndexes > payload.length - cursor)
+            throw new ProtocolException("Too many indexes: " + numIndexes);
+        indexes = new int[(int) numIndexes];
+        long lastIndex = -1;
+        for (int i = 0; i < indexes.length; i++) {
+            // Indexes are differentially encoded, and must fit in 16 bits like in the reference implementation.
+            long index = lastIndex + 1 + readVarInt().longValue();
+            if (index > 0xffff || index < 0)
+                throw new ProtocolException("Transaction index out of range: " + index);
+            indexes[i] = (int) index;
+            lastIndex = index;
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.length).encode());
+        int lastIndex = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - lastIndex - 1).encode());
+            lastIndex = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the positions of the requested transactions in the block, in ascending order. */
+    public int[] getIndexes() {
+        return indexes.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetBlockTxnMessage other = (GetBlockTxnMessage) o;
+        return blockHash.equals(other.blockHash) && Arrays.equals(indexes, other.indexes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(blockHash, Arrays.hashCode(indexes));
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn: " + blockHash + ", " + indexes.length + " transactions";
+    }
+}
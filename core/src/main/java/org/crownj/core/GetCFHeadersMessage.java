@@ -0,0 +1,99 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * <p>Represents a "getcfheaders" message on the P2P network, which requests the filter hashes of a range of blocks,
+ * from the given start height up to and including the block with the given stop hash. At most {@link #MAX_HEADERS}
+ * can be requested at once. The peer answers with a single {@link CFHeadersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFHeadersMessage extends Message {
+    /** The maximum number of filter hashes a peer will send in answer to one request. */
+    public static final int MAX_HEADERS = 2000;
+
+    private int filterType;
+    private long startHeight;
+    private Sha256Hash stopHash;
+
+    public GetCFHeadersMessage(NetworkParameters params, int filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    public GetCFHeadersMessage(NetworkParameters params, byte[] payloadBytes, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    /** Returns the filter type, see {@link BlockFilter#TYPE_BASIC}. */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the height of the first block of the requested range. */
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    /** Returns the hash of the last block of the requested range. */
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFHeadersMessage other = (GetCFHeadersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(filterType, startHeight, stopHash);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: type=" + filterType + " start=" + startHeight + " stop=" + stopHash;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.crypto.SipHash;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A Golomb-coded set (GCS) as specified in BIP158: a compact, probabilistic set of byte strings with a false
+ * positive rate of about 1/M. Each element is hashed with SipHash into the range [0, N * M), the hashes are sorted
+ * and the differences between them are stored with Golomb-Rice coding using parameter P.</p>
+ *
+ * <p>The set can only be read sequentially, so testing a single element costs a full pass. To test many elements
+ * at once, use {@link #matchAny(Collection)}, which sorts the query and walks the set only once.</p>
+ *
+ * <p>Instances of this class are immutable and can be used by multiple threads.</p>
+ */
+public class GolombCodedSet {
+    private final int p;
+    private final long m;
+    private final long k0, k1;
+    private final int n;
+    // The encoded set, including the leading element count, as sent on the wire.
+    private final byte[] encoded;
+    // Offset in the encoded bytes where the bit stream starts.
+    private final int dataOffset;
+
+    /**
+     * Wraps an encoded set.
+     *
+     * @param key 16 byte SipHash key the set was built with
+     * @param p Golomb-Rice coding parameter
+     * @param m inverse false positive rate
+     * @param encoded the element count as a {@link VarInt} followed by the Golomb-Rice coded bit stream
+     * @throws ProtocolException if the element count can't be read
+     */
+    public GolombCodedSet(byte[] key, int p, long m, byte[] encoded) throws ProtocolException {
+        checkArgument(key.length == 16, "key must be 16 bytes");
+        checkArgument(p > 0 && p < 32, "p out of range: %s", p);
+        this.p = p;
+        this.m = m;
+        this.k0 = Utils.readInt64(key, 0);
+        this.k1 = Utils.readInt64(key, 8);
+        this.encoded = encoded;
+        try {
+            VarInt count = new VarInt(encoded, 0);
+            if (count.longValue() < 0 || count.longValue() > Integer.MAX_VALUE)
+                throw new ProtocolException("Invalid element count: " + count.longValue());
+            this.n = count.intValue();
+            this.dataOffset = count.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    /**
+     * Builds a set from the given elements. Duplicates should be removed by the caller, as they count towards N.
+     *
+     * @param key 16 byte SipHash key
+     * @param p Golomb-Rice coding parameter
+     * @param m inverse false positive rate
+     */
+    public static GolombCodedSet build(byte[] key, int p, long m, Collection<byte[]> elements) {
+        checkArgument(key.length == 16, "key must be 16 bytes");
+        long k0 = Utils.readInt64(key, 0);
+        long k1 = Utils.readInt64(key, 8);
+        long range = elements.size() * m;
+        long[] hashes = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            hashes[i++] = hashToRange(k0, k1, range, element);
+        Arrays.sort(hashes);
+
+        BitWriter writer = new BitWriter();
+        long last = 0;
+        for (long hash : hashes) {
+            long delta = hash - last;
+            last = hash;
+            // Quotient in unary, then the remainder in P bits.
+            for (long q = delta >>> p; q > 0; q--)
+                writer.writeBit(1);
+            writer.writeBit(0);
+            writer.writeBits(delta, p);
+        }
+        byte[] data = writer.toByteArray();
+        byte[] count = new VarInt(hashes.length).encode();
+        byte[] encoded = new byte[count.length + data.length];
+        System.arraycopy(count, 0, encoded, 0, count.length);
+        System.arraycopy(data, 0, encoded, count.length, data.length);
+        try {
+            return new GolombCodedSet(key, p, m, encoded);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /** Returns true if the element is probably in the set. False positives occur at a rate of about 1/M. */
+    public boolean match(byte[] element) {
+        return matchAny(Arrays.asList(element));
+    }
+
+    /**
+     * Returns true if any of the elements is probably in the set. Costs one pass over the set no matter how many
+     * elements are queried.
+     */
+    public boolean matchAny(Collection<byte[]> elements) {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        long range = n * m;
+        long[] queries = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            queries[i++] = hashToRange(k0, k1, range, element);
+        Arrays.sort(queries);
+
+        BitReader reader = new BitReader(encoded, dataOffset);
+        int queryIndex = 0;
+        long value = 0;
+        for (int j = 0; j < n; j++) {
+            long q = 0;
+            while (reader.readBit() == 1)
+                q++;
+            value += (q << p) | reader.readBits(p);
+            while (queries[queryIndex] < value) {
+                if (++queryIndex == queries.length)
+                    return false;
+            }
+            if (queries[queryIndex] == value)
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the number of elements in the set. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns the encoded set, as sent on the wire. */
+    public byte[] getEncoded() {
+        return encoded.clone();
+    }
+
+    /** Maps an element into [0, range) without a division, as the high 64 bits of hash * range. */
+    private static long hashToRange(long k0, long k1, long range, byte[] element) {
+        return multiplyHighUnsigned(SipHash.hash(k0, k1, element), range);
+    }
+
+    /** Returns the high 64 bits of the unsigned 128 bit product of x and y. */
+    static long multiplyHighUnsigned(long x, long y) {
+        long x0 = x & 0xffffffffL, x1 = x >>> 32;
+        long y0 = y & 0xffffffffL, y1 = y >>> 32;
+        long w0 = x0 * y0;
+        long t = x1 * y0 + (w0 >>> 32);
+        long w1 = (t & 0xffffffffL) + x0 * y1;
+        return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+    }
+
+    /** Writes bits most significant first, as BIP158 requires. */
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int bitsInCurrent;
+
+        void writeBit(int bit) {
+            current = (current << 1) | bit;
+            if (++bitsInCurrent == 8) {
+                out.write(current);
+                current = 0;
+                bitsInCurrent = 0;
+            }
+        }
+
+        void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--)
+                writeBit((int) ((value >>> i) & 1));
+        }
+
+        byte[] toByteArray() {
+            if (bitsInCurrent > 0) {
+                out.write(current << (8 - bitsInCurrent));
+                current = 0;
+                bitsInCurrent = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private int bitPosition;
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.bitPosition = offset * 8;
+        }
+
+        int readBit() {
+            int byteIndex = bitPosition >>> 3;
+            if (byteIndex >= data.length)
+                throw new ProtocolException("Golomb-coded set is truncated");
+            int bit = (data[byteIndex] >>> (7 - (bitPosition & 7))) & 1;
+            bitPosition++;
+            return bit;
+        }
+
+        long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++)
+                value = (value << 1) | readBit();
+            return value;
+        }
+    }
+}
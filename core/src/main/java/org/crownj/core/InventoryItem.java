@@ -30,6 +30,8 @@ public class InventoryItem {
         ERROR(0x0), TRANSACTION(0x1), BLOCK(0x2),
         // BIP37 extension:
         FILTERED_BLOCK(0x3),
+        // BIP152 extension:
+        CMPCT_BLOCK(0x4),
         // BIP44 extensions:
         WITNESS_TRANSACTION(0x40000001), WITNESS_BLOCK(0x40000002), WITNESS_FILTERED_BLOCK(0x40000003);
 
@@ -0,0 +1,786 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.script.Script;
+import org.crownj.script.Script.VerifyFlag;
+import org.crownj.store.BlockStoreException;
+import org.crownj.store.FullPrunedBlockStore;
+import org.crownj.utils.Threading;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A pool of unconfirmed transactions that were validated against the set of unspent outputs of a
+ * {@link FullPrunedBlockStore}, like the mempool of the reference client. Transactions may spend outputs of other
+ * transactions in the pool, and for every transaction the pool keeps the size and fees of its in-pool ancestors and
+ * descendants, which are limited in number.</p>
+ *
+ * <p>The pool is bounded by an estimate of the memory its transactions take. When it is full, the package of a
+ * transaction and its descendants with the lowest fee rate is evicted, and from then on, until the next block, new
+ * transactions must pay more than that. Transactions whose inputs are unknown are kept as orphans, a bounded number of
+ * them, until their parents arrive.</p>
+ *
+ * <p>The pool doesn't follow the chain by itself. Whoever connects blocks to the block store must call
+ * {@link #removeForBlock(List)} for every connected block, and may {@link #add(Transaction)} the transactions of
+ * disconnected blocks again. This class is thread safe.</p>
+ */
+public class MemoryPool {
+    private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
+
+    /** Default bound of the estimated memory usage, in bytes. */
+    public static final long DEFAULT_MAX_MEMORY = 300 * 1000 * 1000;
+    /** Default number of orphan transactions kept. */
+    public static final int DEFAULT_MAX_ORPHANS = 100;
+    /** Default number of transactions a transaction and its in-pool ancestors, or descendants, may have. */
+    public static final int DEFAULT_PACKAGE_LIMIT = 25;
+    /** Script verification flags transactions must pass to enter the pool. */
+    public static final EnumSet<VerifyFlag> STANDARD_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH, VerifyFlag.STRICTENC,
+            VerifyFlag.DERSIG, VerifyFlag.NULLDUMMY, VerifyFlag.CHECKLOCKTIMEVERIFY);
+
+    // Parsed transactions take about this many times their serialized size on the heap, and each entry adds its
+    // object, its lists, map entries and a node of the eviction index.
+    private static final int MEMORY_PER_BYTE = 3;
+    private static final int MEMORY_PER_ENTRY = 400;
+    // How much more than an evicted package new transactions have to pay, in satoshis per kB.
+    private static final long INCREMENTAL_FEE_RATE = 1000;
+
+    /** The outcome of adding a transaction. Transactions that are rejected cause an exception instead. */
+    public enum Result {
+        /** The transaction was added to the pool. */
+        ACCEPTED,
+        /** Some inputs of the transaction are unknown, so it is kept as an orphan until they arrive. */
+        ORPHAN,
+        /** The transaction is in the pool or an orphan already. */
+        ALREADY_KNOWN
+    }
+
+    /** A transaction in the pool, with its in-pool ancestors and descendants. */
+    public static class Entry {
+        private final Transaction tx;
+        private final long fee;
+        private final int size;
+        private final int memory;
+        private final long time;
+        // Direct in-pool parents and children, usually none.
+        private List<Entry> parents = Collections.emptyList();
+        private List<Entry> children = Collections.emptyList();
+        // Including the entry itself.
+        private int ancestorCount, descendantCount;
+        private long ancestorSize, descendantSize;
+        private long ancestorFees, descendantFees;
+
+        private Entry(Transaction tx, long fee, long time) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = tx.getVsize();
+            this.memory = MEMORY_PER_ENTRY + MEMORY_PER_BYTE * tx.getMessageSize();
+            this.time = time;
+            this.ancestorCount = this.descendantCount = 1;
+            this.ancestorSize = this.descendantSize = size;
+            this.ancestorFees = this.descendantFees = fee;
+        }
+
+        public Transaction getTransaction() {
+            return tx;
+        }
+
+        public Coin getFee() {
+            return Coin.valueOf(fee);
+        }
+
+        /** Returns the virtual size of the transaction. */
+        public int getSize() {
+            return size;
+        }
+
+        /** Returns the fee rate of the transaction, per kB. */
+        public Coin getFeeRate() {
+            return feeRate(fee, size);
+        }
+
+        /** Returns when the transaction was added, in seconds since the epoch. */
+        public long getTime() {
+            return time;
+        }
+
+        /** Returns the number of in-pool ancestors, plus one for the transaction itself. */
+        public int getAncestorCount() {
+            return ancestorCount;
+        }
+
+        public long getAncestorSize() {
+            return ancestorSize;
+        }
+
+        public Coin getAncestorFees() {
+            return Coin.valueOf(ancestorFees);
+        }
+
+        /** Returns the fee rate of the transaction together with its in-pool ancestors, which a miner gets for it. */
+        public Coin getAncestorFeeRate() {
+            return feeRate(ancestorFees, ancestorSize);
+        }
+
+        /** Returns the number of in-pool descendants, plus one for the transaction itself. */
+        public int getDescendantCount() {
+            return descendantCount;
+        }
+
+        public long getDescendantSize() {
+            return descendantSize;
+        }
+
+        public Coin getDescendantFees() {
+            return Coin.valueOf(descendantFees);
+        }
+
+        /** Returns the fee rate of the transaction together with its in-pool descendants. */
+        public Coin getDescendantFeeRate() {
+            return feeRate(descendantFees, descendantSize);
+        }
+
+        // A package is evicted if neither the transaction alone nor together with its descendants pays well.
+        private double getDescendantScore() {
+            return Math.max((double) fee / size, (double) descendantFees / descendantSize);
+        }
+
+        private double getAncestorScore() {
+            return (double) ancestorFees / ancestorSize;
+        }
+
+        @Override
+        public String toString() {
+            return tx.getTxId() + " paying " + getFeeRate().toFriendlyString() + "/kB";
+        }
+    }
+
+    private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Double.compare(a.getDescendantScore(), b.getDescendantScore());
+            return result != 0 ? result : a.tx.getTxId().compareTo(b.tx.getTxId());
+        }
+    };
+
+    private static final Comparator<Entry> MINING_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Double.compare(b.getAncestorScore(), a.getAncestorScore());
+            return result != 0 ? result : Integer.compare(a.ancestorCount, b.ancestorCount);
+        }
+    };
+
+    // Ancestors have fewer ancestors than their descendants, so this sorts parents before their children.
+    private static final Comparator<Entry> TOPOLOGICAL_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Integer.compare(a.ancestorCount, b.ancestorCount);
+        }
+    };
+
+    protected final ReentrantLock lock = Threading.lock(MemoryPool.class);
+
+    private final NetworkParameters params;
+    private final FullPrunedBlockStore utxoStore;
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> entries = new HashMap<>();
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Entry> spenders = new HashMap<>();
+    @GuardedBy("lock") private final TreeSet<Entry> evictionIndex = new TreeSet<>(EVICTION_ORDER);
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> orphans = new LinkedHashMap<>();
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Sha256Hash> orphansByParent = HashMultimap.create();
+    @GuardedBy("lock") private long memoryUsage;
+    // Raised when packages are evicted, in satoshis per kB, and reset by the next block.
+    @GuardedBy("lock") private long evictedFeeRate;
+
+    @GuardedBy("lock") private long maxMemory = DEFAULT_MAX_MEMORY;
+    @GuardedBy("lock") private int maxOrphans = DEFAULT_MAX_ORPHANS;
+    @GuardedBy("lock") private int ancestorLimit = DEFAULT_PACKAGE_LIMIT;
+    @GuardedBy("lock") private int descendantLimit = DEFAULT_PACKAGE_LIMIT;
+    @GuardedBy("lock") private Coin minRelayFeeRate = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+    @GuardedBy("lock") private boolean runScripts = true;
+
+    /** Creates a pool that validates transactions against the unspent outputs of the given store. */
+    public MemoryPool(NetworkParameters params, FullPrunedBlockStore utxoStore) {
+        this.params = checkNotNull(params);
+        this.utxoStore = checkNotNull(utxoStore);
+    }
+
+    /**
+     * Validates the given transaction and adds it to the pool, or keeps it as an orphan if some of its inputs are
+     * unknown. Orphans that the transaction was missing are added as well.
+     *
+     * @throws VerificationException if the transaction is invalid, conflicts with a transaction in the pool, pays too
+     * little, has too many ancestors or descendants, or doesn't fit into the pool.
+     */
+    public Result add(Transaction tx) throws VerificationException, BlockStoreException {
+        lock.lock();
+        try {
+            Result result = accept(tx);
+            if (result == Result.ACCEPTED)
+                acceptOrphansOf(Collections.singletonList(tx.getTxId()));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the transactions of a block that was connected to the block store, and everything that conflicts with
+     * them. Orphans that were waiting for them are tried again.
+     */
+    public void removeForBlock(List<Transaction> transactions) throws BlockStoreException {
+        lock.lock();
+        try {
+            List<Sha256Hash> txIds = new ArrayList<>(transactions.size());
+            for (Transaction tx : transactions) {
+                Sha256Hash txId = tx.getTxId();
+                txIds.add(txId);
+                Entry entry = entries.get(txId);
+                if (entry != null)
+                    remove(Collections.singleton(entry));
+                Transaction orphan = orphans.get(txId);
+                if (orphan != null)
+                    removeOrphan(orphan);
+            }
+            int conflicts = 0;
+            for (Transaction tx : transactions) {
+                if (tx.isCoinBase())
+                    continue;
+                for (TransactionInput input : tx.getInputs()) {
+                    Entry conflict = spenders.get(input.getOutpoint());
+                    if (conflict != null) {
+                        Set<Entry> removed = descendantsOf(conflict);
+                        conflicts += removed.size();
+                        remove(removed);
+                    }
+                }
+            }
+            if (conflicts > 0)
+                log.info("Removed {} transactions that conflict with a block", conflicts);
+            evictedFeeRate = 0;
+            acceptOrphansOf(txIds);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction with the given ID, or null if it isn't in the pool. Orphans aren't. */
+    @Nullable
+    public Transaction get(Sha256Hash txId) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(txId);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the entry of the transaction with the given ID, or null if it isn't in the pool. */
+    @Nullable
+    public Entry getEntry(Sha256Hash txId) {
+        lock.lock();
+        try {
+            return entries.get(txId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction in the pool that spends the given output, or null if none does. */
+    @Nullable
+    public Transaction getSpender(TransactionOutPoint outPoint) {
+        lock.lock();
+        try {
+            Entry entry = spenders.get(outPoint);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of all transactions in the pool, in no particular order. */
+    public List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            List<Transaction> transactions = new ArrayList<>(entries.size());
+            for (Entry entry : entries.values())
+                transactions.add(entry.tx);
+            return transactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool in the order a miner would pick transactions: by the fee rate of their ancestor
+     * packages, each transaction preceded by its ancestors that weren't picked before. The fee rates of packages
+     * aren't updated when some of their ancestors were picked already, so this is an approximation.
+     */
+    public List<Entry> getByAncestorFeeRate() {
+        lock.lock();
+        try {
+            List<Entry> result = new ArrayList<>(entries.size());
+            for (List<Entry> pkg : packages())
+                result.addAll(pkg);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates the fee rate per kB a transaction needs to be among the first given number of virtual bytes a miner
+     * would pick from the pool, which is the fee rate of the package at that position. If the pool is smaller than
+     * that, this is the minimum fee rate of the pool.
+     */
+    public Coin estimateFeeRate(long vbytes) {
+        lock.lock();
+        try {
+            long total = 0;
+            for (List<Entry> pkg : packages()) {
+                long fees = 0, size = 0;
+                for (Entry entry : pkg) {
+                    fees += entry.fee;
+                    size += entry.size;
+                }
+                total += size;
+                if (total >= vbytes)
+                    return feeRate(fees, size);
+            }
+            return getMinFeeRate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the fee rate per kB transactions need to pay to enter the pool at the moment. */
+    public Coin getMinFeeRate() {
+        lock.lock();
+        try {
+            return Coin.valueOf(Math.max(minRelayFeeRate.value, evictedFeeRate));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the pool, not counting orphans. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphans.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated number of bytes the transactions of the pool take in memory, not counting orphans. */
+    public long getMemoryUsage() {
+        lock.lock();
+        try {
+            return memoryUsage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the bound of the estimated memory usage, evicting transactions if the pool is larger. */
+    public void setMaxMemory(long maxMemory) {
+        checkArgument(maxMemory > 0);
+        lock.lock();
+        try {
+            this.maxMemory = maxMemory;
+            trim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxOrphans(int maxOrphans) {
+        checkArgument(maxOrphans >= 0);
+        lock.lock();
+        try {
+            this.maxOrphans = maxOrphans;
+            while (orphans.size() > maxOrphans)
+                removeOrphan(orphans.values().iterator().next());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how many in-pool ancestors and descendants, each including the transaction itself, it may have. */
+    public void setPackageLimits(int ancestorLimit, int descendantLimit) {
+        checkArgument(ancestorLimit > 0 && descendantLimit > 0);
+        lock.lock();
+        try {
+            this.ancestorLimit = ancestorLimit;
+            this.descendantLimit = descendantLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the fee rate per kB that transactions must pay at least. */
+    public void setMinRelayFeeRate(Coin minRelayFeeRate) {
+        checkArgument(minRelayFeeRate.signum() >= 0);
+        lock.lock();
+        try {
+            this.minRelayFeeRate = minRelayFeeRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether or not to run the scripts of transactions before accepting them. Only turn this off if the
+     * transactions come from a source you trust.
+     */
+    public void setRunScripts(boolean runScripts) {
+        lock.lock();
+        try {
+            this.runScripts = runScripts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Result accept(Transaction tx) throws VerificationException, BlockStoreException {
+        Sha256Hash txId = tx.getTxId();
+        if (entries.containsKey(txId) || orphans.containsKey(txId))
+            return Result.ALREADY_KNOWN;
+        tx.verify();
+        if (tx.isCoinBase())
+            throw new VerificationException("Coinbase transaction outside of a block");
+        if (tx.getMessageSize() > Transaction.MAX_STANDARD_TX_SIZE)
+            throw new VerificationException("Transaction larger than " + Transaction.MAX_STANDARD_TX_SIZE + " bytes");
+        int height = utxoStore.getVerifiedChainHead().getHeight() + 1;
+        if (!tx.isFinal(height, Utils.currentTimeSeconds()))
+            throw new VerificationException("Transaction is not final");
+
+        List<Entry> parents = new ArrayList<>();
+        Set<Sha256Hash> missing = new HashSet<>();
+        List<Coin> values = new ArrayList<>(tx.getInputs().size());
+        List<Script> scripts = new ArrayList<>(tx.getInputs().size());
+        Coin valueIn = Coin.ZERO;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            Entry conflict = spenders.get(outPoint);
+            if (conflict != null)
+                throw new VerificationException("Input " + outPoint + " is spent by " + conflict.tx.getTxId()
+                        + " already");
+            Coin value;
+            Script script;
+            Entry parent = entries.get(outPoint.getHash());
+            if (parent != null) {
+                if (outPoint.getIndex() >= parent.tx.getOutputs().size())
+                    throw new VerificationException("Input " + outPoint + " spends a non-existent output");
+                TransactionOutput output = parent.tx.getOutput(outPoint.getIndex());
+                value = output.getValue();
+                script = output.getScriptPubKey();
+                if (!parents.contains(parent))
+                    parents.add(parent);
+            } else {
+                UTXO utxo = utxoStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+                if (utxo == null) {
+                    missing.add(outPoint.getHash());
+                    continue;
+                }
+                if (utxo.isCoinbase() && height - utxo.getHeight() < params.getSpendableCoinbaseDepth())
+                    throw new VerificationException("Input " + outPoint + " spends an immature coinbase");
+                value = utxo.getValue();
+                script = utxo.getScript();
+            }
+            values.add(value);
+            scripts.add(script);
+            valueIn = valueIn.add(value);
+        }
+        if (!missing.isEmpty()) {
+            addOrphan(tx, missing);
+            return Result.ORPHAN;
+        }
+
+        Coin fee = valueIn.subtract(tx.getOutputSum());
+        if (fee.signum() < 0)
+            throw new VerificationException("Transaction spends more than its inputs");
+        Entry entry = new Entry(tx, fee.value, Utils.currentTimeSeconds());
+        Coin minFeeRate = getMinFeeRate();
+        if (entry.getFeeRate().compareTo(minFeeRate) < 0)
+            throw new VerificationException("Transaction pays " + entry.getFeeRate().toFriendlyString()
+                    + "/kB, less than the minimum of " + minFeeRate.toFriendlyString() + "/kB");
+        Set<Entry> ancestors = ancestorsOf(parents);
+        if (ancestors.size() + 1 > ancestorLimit)
+            throw new VerificationException("Transaction has more than " + ancestorLimit + " in-pool ancestors");
+        for (Entry ancestor : ancestors)
+            if (ancestor.descendantCount + 1 > descendantLimit)
+                throw new VerificationException("Ancestor " + ancestor.tx.getTxId() + " would have more than "
+                        + descendantLimit + " in-pool descendants");
+        if (!fitsAfterEviction(entry, ancestors))
+            throw new VerificationException("Memory pool is full");
+        if (runScripts) {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                TransactionInput input = tx.getInput(i);
+                input.getScriptSig().correctlySpends(tx, i, input.getWitness(), values.get(i), scripts.get(i),
+                        STANDARD_VERIFY_FLAGS);
+            }
+        }
+
+        entry.parents = parents.isEmpty() ? Collections.<Entry>emptyList() : parents;
+        for (Entry parent : parents) {
+            if (parent.children.isEmpty())
+                parent.children = new ArrayList<>(1);
+            parent.children.add(entry);
+        }
+        for (Entry ancestor : ancestors) {
+            entry.ancestorCount++;
+            entry.ancestorSize += ancestor.size;
+            entry.ancestorFees += ancestor.fee;
+            evictionIndex.remove(ancestor);
+            ancestor.descendantCount++;
+            ancestor.descendantSize += entry.size;
+            ancestor.descendantFees += entry.fee;
+            evictionIndex.add(ancestor);
+        }
+        entries.put(txId, entry);
+        for (TransactionInput input : tx.getInputs())
+            spenders.put(input.getOutpoint(), entry);
+        evictionIndex.add(entry);
+        memoryUsage += entry.memory;
+        trim();
+        // Only possible if evictions lowered the scores of the ancestors of the entry below what was checked.
+        if (!entries.containsKey(txId))
+            throw new VerificationException("Memory pool is full");
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Returns whether the given new entry would survive the {@link #trim()} after adding it, so that a transaction that
+     * would be evicted right away is refused before it changes the pool or raises the minimum fee rate. Walks the
+     * packages in eviction order until enough memory would be freed, and fails if that reaches the entry's own score
+     * or one of its ancestors.
+     */
+    @GuardedBy("lock")
+    private boolean fitsAfterEviction(Entry entry, Set<Entry> ancestors) {
+        long excess = memoryUsage + entry.memory - maxMemory;
+        if (excess <= 0)
+            return true;
+        double score = entry.getDescendantScore();
+        Set<Entry> evicted = new HashSet<>();
+        for (Entry worst : evictionIndex) {
+            if (worst.getDescendantScore() >= score)
+                return false;
+            if (evicted.contains(worst))
+                continue;
+            for (Entry removed : descendantsOf(worst)) {
+                if (ancestors.contains(removed))
+                    return false;
+                if (evicted.add(removed))
+                    excess -= removed.memory;
+            }
+            if (excess <= 0)
+                return true;
+        }
+        return false;
+    }
+
+    // Evicts the packages with the lowest fee rates until the pool fits.
+    @GuardedBy("lock")
+    private void trim() {
+        int evicted = 0;
+        while (memoryUsage > maxMemory) {
+            Entry worst = evictionIndex.first();
+            long feeRate = feeRate(worst.descendantFees, worst.descendantSize).value + INCREMENTAL_FEE_RATE;
+            evictedFeeRate = Math.max(evictedFeeRate, feeRate);
+            Set<Entry> removed = descendantsOf(worst);
+            evicted += removed.size();
+            remove(removed);
+        }
+        if (evicted > 0)
+            log.info("Evicted {} transactions, minimum fee rate is now {}/kB", evicted,
+                    getMinFeeRate().toFriendlyString());
+    }
+
+    // Removes the given entries. Only confirmed transactions may leave in-pool descendants behind.
+    @GuardedBy("lock")
+    private void remove(Set<Entry> removed) {
+        for (Entry entry : removed) {
+            for (Entry ancestor : ancestorsOf(entry.parents)) {
+                if (removed.contains(ancestor))
+                    continue;
+                evictionIndex.remove(ancestor);
+                ancestor.descendantCount--;
+                ancestor.descendantSize -= entry.size;
+                ancestor.descendantFees -= entry.fee;
+                evictionIndex.add(ancestor);
+            }
+            for (Entry descendant : descendantsOf(entry)) {
+                if (removed.contains(descendant))
+                    continue;
+                descendant.ancestorCount--;
+                descendant.ancestorSize -= entry.size;
+                descendant.ancestorFees -= entry.fee;
+            }
+        }
+        for (Entry entry : removed)
+            for (Entry child : entry.children)
+                if (!removed.contains(child))
+                    child.parents.remove(entry);
+        for (Entry entry : removed) {
+            for (Entry parent : entry.parents)
+                if (!removed.contains(parent))
+                    parent.children.remove(entry);
+            evictionIndex.remove(entry);
+            entries.remove(entry.tx.getTxId());
+            for (TransactionInput input : entry.tx.getInputs())
+                spenders.remove(input.getOutpoint());
+            memoryUsage -= entry.memory;
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<List<Entry>> packages() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        Collections.sort(sorted, MINING_ORDER);
+        Set<Entry> picked = new HashSet<>();
+        List<List<Entry>> packages = new ArrayList<>();
+        for (Entry entry : sorted) {
+            if (picked.contains(entry))
+                continue;
+            List<Entry> pkg = new ArrayList<>();
+            for (Entry ancestor : ancestorsOf(entry.parents))
+                if (!picked.contains(ancestor))
+                    pkg.add(ancestor);
+            pkg.add(entry);
+            Collections.sort(pkg, TOPOLOGICAL_ORDER);
+            picked.addAll(pkg);
+            packages.add(pkg);
+        }
+        return packages;
+    }
+
+    @GuardedBy("lock")
+    private void addOrphan(Transaction tx, Set<Sha256Hash> missing) {
+        if (tx.getMessageSize() > Transaction.MAX_STANDARD_TX_SIZE || maxOrphans == 0)
+            return;
+        Sha256Hash txId = tx.getTxId();
+        orphans.put(txId, tx);
+        for (Sha256Hash parent : missing)
+            orphansByParent.put(parent, txId);
+        while (orphans.size() > maxOrphans)
+            removeOrphan(orphans.values().iterator().next());
+    }
+
+    @GuardedBy("lock")
+    private void removeOrphan(Transaction tx) {
+        Sha256Hash txId = tx.getTxId();
+        orphans.remove(txId);
+        for (TransactionInput input : tx.getInputs())
+            orphansByParent.remove(input.getOutpoint().getHash(), txId);
+    }
+
+    @GuardedBy("lock")
+    private void acceptOrphansOf(Collection<Sha256Hash> parents) throws BlockStoreException {
+        Deque<Sha256Hash> queue = new ArrayDeque<>(parents);
+        while (!queue.isEmpty()) {
+            Sha256Hash parent = queue.poll();
+            for (Sha256Hash orphanId : new ArrayList<>(orphansByParent.get(parent))) {
+                Transaction orphan = orphans.get(orphanId);
+                if (orphan == null)
+                    continue;
+                removeOrphan(orphan);
+                try {
+                    if (accept(orphan) == Result.ACCEPTED)
+                        queue.add(orphanId);
+                } catch (VerificationException e) {
+                    log.info("Orphan {} rejected: {}", orphanId, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static Set<Entry> ancestorsOf(Collection<Entry> parents) {
+        Set<Entry> ancestors = new HashSet<>();
+        Deque<Entry> queue = new ArrayDeque<>(parents);
+        while (!queue.isEmpty()) {
+            Entry entry = queue.poll();
+            if (ancestors.add(entry))
+                queue.addAll(entry.parents);
+        }
+        return ancestors;
+    }
+
+    // Including the entry itself.
+    private static Set<Entry> descendantsOf(Entry entry) {
+        Set<Entry> descendants = new HashSet<>();
+        Deque<Entry> queue = new ArrayDeque<>();
+        queue.add(entry);
+        while (!queue.isEmpty()) {
+            Entry next = queue.poll();
+            if (descendants.add(next))
+                queue.addAll(next.children);
+        }
+        return descendants;
+    }
+
+    private static Coin feeRate(long fees, long size) {
+        return Coin.valueOf(fees * 1000 / size);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "MemoryPool{" + entries.size() + " transactions, " + orphans.size() + " orphans, "
+                    + memoryUsage / 1000 + " kB}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
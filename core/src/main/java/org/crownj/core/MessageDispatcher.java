@@ -0,0 +1,80 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Routes messages received by a {@link Peer} to the {@link MessageHandler} registered for their class. If no handler
+ * is registered for the exact class of a message, the handler of the nearest superclass is used, so for example a
+ * handler for {@link AddressMessage} receives both addr and addrv2 messages unless they have handlers of their own.</p>
+ *
+ * <p>Every peer has its own dispatcher with handlers for all messages it understands, see
+ * {@link Peer#getMessageDispatcher()}. Registering a handler for a class replaces the previous one. Instances are thread
+ * safe.</p>
+ */
+public class MessageDispatcher {
+    private final Map<Class<? extends Message>, MessageHandler<?>> handlers = new ConcurrentHashMap<>();
+    // Handlers resolved for message classes, including those found via a superclass. Cleared on every registration.
+    private final Map<Class<? extends Message>, MessageHandler<?>> resolved = new ConcurrentHashMap<>();
+
+    /** Registers the handler for messages of the given class and, unless they have their own, its subclasses. */
+    public <T extends Message> void register(Class<T> type, MessageHandler<? super T> handler) {
+        handlers.put(checkNotNull(type), checkNotNull(handler));
+        resolved.clear();
+    }
+
+    /** Removes the handler for messages of the given class. Returns true if there was one. */
+    public boolean unregister(Class<? extends Message> type) {
+        boolean removed = handlers.remove(type) != null;
+        resolved.clear();
+        return removed;
+    }
+
+    /** Returns the handler that would process messages of the given class, or null if there is none. */
+    @Nullable
+    public MessageHandler<?> getHandler(Class<? extends Message> type) {
+        MessageHandler<?> handler = resolved.get(type);
+        if (handler != null)
+            return handler;
+        for (Class<?> c = type; c != null && Message.class.isAssignableFrom(c); c = c.getSuperclass()) {
+            handler = handlers.get(c);
+            if (handler != null) {
+                resolved.put(type, handler);
+                return handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes the message to its handler. Returns false if there is no handler for it, in which case the message is
+     * ignored.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean dispatch(Peer peer, Message message) throws Exception {
+        MessageHandler<Message> handler = (MessageHandler<Message>) getHandler(message.getClass());
+        if (handler == null)
+            return false;
+        handler.handle(peer, message);
+        return true;
+    }
+}
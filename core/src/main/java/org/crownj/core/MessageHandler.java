@@ -0,0 +1,30 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+/**
+ * Handles one type of message received by a {@link Peer}. Handlers are registered with the {@link MessageDispatcher}
+ * of a peer, see {@link Peer#getMessageDispatcher()}, and are called on the network thread of that peer, so they
+ * should not block.
+ */
+public interface MessageHandler<T extends Message> {
+    /**
+     * Processes the given message received by the given peer. Throwing an exception has the same effect as for the
+     * built in handlers: the exception is logged and the connection is closed.
+     */
+    void handle(Peer peer, T message) throws Exception;
+}
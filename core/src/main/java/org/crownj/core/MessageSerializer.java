@@ -61,6 +61,12 @@ public abstract class MessageSerializer {
      */
     public abstract boolean isParseRetainMode();
 
+    /**
+     * Whether blocks produced by this serializer defer parsing of their transactions until first access. See
+     * {@link Block#isLazy()}.
+     */
+    public abstract boolean isLazyTransactionMode();
+
     /**
      * Make an address message from the payload. Extension point for alternative
      * serialization format support.
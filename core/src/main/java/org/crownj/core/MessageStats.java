@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.utils.Threading;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Counts the messages received per command, their total size and how long their handlers took. Handler times are
+ * kept in a histogram with eight buckets per power of two, so percentiles are exact to about 12%, and memory use does
+ * not grow with the number of messages.</p>
+ *
+ * <p>Every {@link Peer} records into its own instance, see {@link Peer#getMessageStats()}, and a {@link PeerGroup}
+ * records the messages of all its peers into one more, see {@link PeerGroup#getMessageStats()}. Instances are thread
+ * safe.</p>
+ */
+public class MessageStats {
+    // Handler times below SUB_BUCKETS microseconds have a bucket each, larger ones share a bucket with times up to 12%
+    // apart.
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final ReentrantLock lock = Threading.lock(MessageStats.class);
+    @GuardedBy("lock") private final Map<String, Counters> counters = new HashMap<>();
+
+    private static class Counters {
+        long count;
+        long bytes;
+        long totalMicros;
+        long maxMicros;
+        final long[] histogram = new long[BUCKETS];
+    }
+
+    /** The statistics of one command at the time they were taken. */
+    public static class Entry {
+        public final String command;
+        /** How many messages were received. */
+        public final long count;
+        /** The total size of the messages, in bytes. */
+        public final long bytes;
+        /** The median, 99th percentile and maximum handler time in microseconds. */
+        public final long p50Micros, p99Micros, maxMicros;
+        /** The average handler time in microseconds. */
+        public final long meanMicros;
+
+        private Entry(String command, Counters c) {
+            this.command = command;
+            this.count = c.count;
+            this.bytes = c.bytes;
+            this.p50Micros = Math.min(percentile(c, 50), c.maxMicros);
+            this.p99Micros = Math.min(percentile(c, 99), c.maxMicros);
+            this.maxMicros = c.maxMicros;
+            this.meanMicros = c.count == 0 ? 0 : c.totalMicros / c.count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d msgs, %d bytes, handler p50/p99/max %d/%d/%d us", command, count,
+                    bytes, p50Micros, p99Micros, maxMicros);
+        }
+    }
+
+    /** Records one received message of the given command and size, whose handler took the given time. */
+    public void record(String command, long bytes, long handlerNanos) {
+        long micros = Math.max(0, handlerNanos / 1000);
+        lock.lock();
+        try {
+            Counters c = counters.get(command);
+            if (c == null) {
+                c = new Counters();
+                counters.put(command, c);
+            }
+            c.count++;
+            c.bytes += Math.max(0, bytes);
+            c.totalMicros += micros;
+            c.maxMicros = Math.max(c.maxMicros, micros);
+            c.histogram[bucket(micros)]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the statistics of all commands seen so far, sorted by command. */
+    public SortedMap<String, Entry> getEntries() {
+        lock.lock();
+        try {
+            SortedMap<String, Entry> entries = new TreeMap<>();
+            for (Map.Entry<String, Counters> e : counters.entrySet())
+                entries.put(e.getKey(), new Entry(e.getKey(), e.getValue()));
+            return Collections.unmodifiableSortedMap(entries);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets all statistics. */
+    public void reset() {
+        lock.lock();
+        try {
+            counters.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Values below SUB_BUCKETS get their own bucket. Larger ones go into the octave of their highest bit, subdivided by
+    // the next SUB_BUCKET_BITS bits.
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int octave = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // The largest value that falls into the given bucket.
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (octave - SUB_BUCKET_BITS);
+        return lower + (1L << (octave - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long percentile(Counters c, double percentile) {
+        checkArgument(percentile > 0 && percentile <= 100);
+        if (c.count == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * c.count);
+        long seen = 0;
+        for (int i = 0; i < c.histogram.length; i++) {
+            seen += c.histogram[i];
+            if (seen >= rank)
+                return bucketUpperBound(i);
+        }
+        return c.maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : getEntries().values())
+            builder.append(entry).append('\n');
+        return builder.toString();
+    }
+}
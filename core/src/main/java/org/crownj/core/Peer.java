@@ -23,6 +23,7 @@ import org.crownj.net.NioClientManager;
 import org.crownj.net.StreamConnection;
 import org.crownj.store.BlockStore;
 import org.crownj.store.BlockStoreException;
+import org.crownj.utils.HashedWheelTimer;
 import org.crownj.utils.ListenerRegistration;
 import org.crownj.utils.Threading;
 import org.crownj.wallet.Wallet;
@@ -32,6 +33,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -43,10 +45,13 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.NotYetConnectedException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -108,6 +113,29 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // Whether to check compact block filters (BIP157/158) locally and download only matching blocks, instead of
+    // relying on a Bloom filter. Only has an effect if the remote peer serves compact filters.
+    @GuardedBy("lock") private boolean useCompactFilters = false;
+    // Headers of blocks past the fast catchup time in chain order, waiting for their compact filter to be checked or
+    // for the full block to arrive if the filter matched. They are added to the chain strictly in this order.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, PendingFilterCheck> pendingFilterChecks =
+            new LinkedHashMap<>();
+    // Set if the last headers message was full, so more headers have to be requested once the queue drains.
+    @GuardedBy("lock") private boolean moreHeadersAfterFilterChecks;
+    // Disconnects the peer if the front of the filter check queue makes no progress for FILTER_CHECK_TIMEOUT_MSEC, as
+    // the peer doesn't answer our cfilter, cfheaders or block requests. The download then continues from another peer.
+    private static final long FILTER_CHECK_TIMEOUT_MSEC = 30000;
+    private final HashedWheelTimer.Timeout filterCheckTimeout = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+            filterChecksTimedOut();
+        }
+    });
+    // The filter header of the last block we received a filter hash for, to check that cfheaders chain up.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastFilterHeader, lastFilterHeaderBlock;
+    // The wallet scripts that compact filters are matched against. Reset when a matching block was added to the
+    // chain, as the wallet may have derived new keys.
+    @GuardedBy("lock") @Nullable private List<byte[]> filterElements;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -155,10 +183,44 @@ public class Peer extends PeerSocketHandler {
     // Disconnect from a peer that is not responding to Pings
     private static final int PENDING_PINGS_LIMIT = 50;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
+    // Latency, throughput, stall and invalid data measurements, used by the PeerGroup to rank its peers.
+    private final PeerScore score = new PeerScore();
+    // Routes received messages to their handlers, and counts them along with the time the handlers took.
+    private final MessageDispatcher messageDispatcher = new MessageDispatcher();
+    private final MessageStats messageStats = new MessageStats();
+    @Nullable private volatile MessageStats vGroupMessageStats;
+    // Whether the remote peer connected to us, see PeerServer.
+    private volatile boolean vInbound;
+    // Transactions and blocks the remote peer is known to have, because it announced or sent them to us or we sent
+    // them to it. Sized for the relay traffic of a few minutes on a busy network.
+    private static final int KNOWN_INVENTORY_SIZE = 5000;
+    private static final double KNOWN_INVENTORY_FP_RATE = 0.000001;
+    private final ReentrantLock knownInventoryLock = Threading.lock("Peer-knownInventory lock");
+    @GuardedBy("knownInventoryLock") private final RollingBloomFilter knownInventory =
+            new RollingBloomFilter(KNOWN_INVENTORY_SIZE, KNOWN_INVENTORY_FP_RATE);
 
     private volatile VersionMessage vPeerVersionMessage;
     private volatile Coin vFeeFilter;
 
+    // Recently seen transactions that compact blocks are reconstructed from, or null if compact blocks are disabled.
+    @Nullable private volatile RecentTransactionPool vCompactBlockPool;
+    // Bitmask of the compact block versions the remote peer told us it supports via sendcmpct, bit n for version n.
+    private volatile int vPeerCompactBlockVersions;
+    // Compact blocks waiting for the answer to our getblocktxn request, keyed by block hash. If the answer doesn't
+    // come within BLOCK_TXN_TIMEOUT_MSEC, the full block is downloaded instead.
+    @GuardedBy("lock") private final Map<Sha256Hash, PendingCompactBlock> pendingCompactBlocks = new HashMap<>();
+    private static final long BLOCK_TXN_TIMEOUT_MSEC = 10000;
+
+    private static class PendingCompactBlock {
+        final CompactBlockReconstructor reconstructor;
+        final HashedWheelTimer.Timeout timeout;
+
+        PendingCompactBlock(CompactBlockReconstructor reconstructor, HashedWheelTimer.Timeout timeout) {
+            this.reconstructor = reconstructor;
+            this.timeout = timeout;
+        }
+    }
+
     // A settable future which completes (with this) when the connection is open
     private final SettableFuture<Peer> connectionOpenFuture = SettableFuture.create();
     private final SettableFuture<Peer> outgoingVersionHandshakeFuture = SettableFuture.create();
@@ -231,6 +293,7 @@ public class Peer extends PeerSocketHandler {
         this.vMinProtocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG);
         this.wallets = new CopyOnWriteArrayList<>();
         this.context = Context.get();
+        registerMessageHandlers();
 
         this.versionHandshakeFuture.addListener(new Runnable() {
             @Override
@@ -387,6 +450,15 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        lock.lock();
+        try {
+            for (PendingCompactBlock pending : pendingCompactBlocks.values())
+                pending.timeout.cancel();
+            pendingCompactBlocks.clear();
+            filterCheckTimeout.cancel();
+        } finally {
+            lock.unlock();
+        }
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -421,6 +493,71 @@ public class Peer extends PeerSocketHandler {
         return versionHandshakeFuture;
     }
 
+    /**
+     * Sends the given message to the peer. Transactions and blocks sent are remembered as known to the peer, see
+     * {@link #isKnownInventory(Sha256Hash)}, and items of an {@link InventoryMessage} the peer is known to have are
+     * not announced again. If no item is left, nothing is sent.
+     */
+    @Override
+    public ListenableFuture<?> sendMessage(Message message) throws NotYetConnectedException {
+        if (message instanceof Transaction) {
+            addKnownInventory(((Transaction) message).getTxId());
+        } else if (message instanceof Block) {
+            addKnownInventory(((Block) message).getHash());
+        } else if (message instanceof InventoryMessage && !(message instanceof NotFoundMessage)) {
+            InventoryMessage inv = (InventoryMessage) message;
+            InventoryMessage unknown = new InventoryMessage(params);
+            knownInventoryLock.lock();
+            try {
+                for (InventoryItem item : inv.getItems()) {
+                    if (!knownInventory.contains(item.hash)) {
+                        knownInventory.insert(item.hash);
+                        unknown.addItem(item);
+                    }
+                }
+            } finally {
+                knownInventoryLock.unlock();
+            }
+            if (unknown.getItems().isEmpty())
+                return Futures.immediateFuture(null);
+            if (unknown.getItems().size() < inv.getItems().size())
+                message = unknown;
+        }
+        return super.sendMessage(message);
+    }
+
+    /**
+     * Returns true if the peer probably has the transaction or block with the given hash, because it announced or
+     * sent it to us, or we sent it to the peer. A few thousand of the most recent items are remembered, older ones are
+     * forgotten gradually. There is a tiny chance of false positives.
+     */
+    public boolean isKnownInventory(Sha256Hash hash) {
+        knownInventoryLock.lock();
+        try {
+            return knownInventory.contains(hash);
+        } finally {
+            knownInventoryLock.unlock();
+        }
+    }
+
+    /** Remembers that the peer has the transaction or block with the given hash. */
+    public void addKnownInventory(Sha256Hash hash) {
+        knownInventoryLock.lock();
+        try {
+            knownInventory.insert(hash);
+        } finally {
+            knownInventoryLock.unlock();
+        }
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        int bytesRead = super.receiveBytes(buff);
+        if (bytesRead > 0)
+            score.recordBytesReceived(bytesRead);
+        return bytesRead;
+    }
+
     @Override
     protected void processMessage(Message m) throws Exception {
         // Allow event listeners to filter the message stream. Listeners are allowed to drop messages by
@@ -448,46 +585,179 @@ public class Peer extends PeerSocketHandler {
             throw new ProtocolException(
                     "Received " + m.getClass().getSimpleName() + " before version handshake is complete.");
 
-        if (m instanceof Ping) {
-            processPing((Ping) m);
-        } else if (m instanceof Pong) {
-            processPong((Pong) m);
-        } else if (m instanceof NotFoundMessage) {
-            // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
-            // Because NotFoundMessage is a subclass of InventoryMessage, the test for it must come before the next.
-            processNotFoundMessage((NotFoundMessage) m);
-        } else if (m instanceof InventoryMessage) {
-            processInv((InventoryMessage) m);
-        } else if (m instanceof Block) {
-            processBlock((Block) m);
-        } else if (m instanceof FilteredBlock) {
-            startFilteredBlock((FilteredBlock) m);
-        } else if (m instanceof Transaction) {
-            processTransaction((Transaction) m);
-        } else if (m instanceof GetDataMessage) {
-            processGetData((GetDataMessage) m);
-        } else if (m instanceof AddressMessage) {
-            // We don't care about addresses of the network right now. But in future,
-            // we should save them in the wallet so we don't put too much load on the seed nodes and can
-            // properly explore the network.
-            processAddressMessage((AddressMessage) m);
-        } else if (m instanceof HeadersMessage) {
-            processHeaders((HeadersMessage) m);
-        } else if (m instanceof VersionMessage) {
-            processVersionMessage((VersionMessage) m);
-        } else if (m instanceof VersionAck) {
-            processVersionAck((VersionAck) m);
-        } else if (m instanceof UTXOsMessage) {
-            processUTXOMessage((UTXOsMessage) m);
-        } else if (m instanceof RejectMessage) {
-            log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
-        } else if (m instanceof SendHeadersMessage) {
-            // We ignore this message, because we don't announce new blocks.
-        } else if (m instanceof FeeFilterMessage) {
-            processFeeFilter((FeeFilterMessage) m);
-        } else {
+        long start = System.nanoTime();
+        boolean handled = messageDispatcher.dispatch(this, m);
+        long handlerNanos = System.nanoTime() - start;
+        if (!handled)
             log.warn("{}: Received unhandled message: {}", this, m);
-        }
+        String command = crownSerializer.getCommandName(m.getClass());
+        if (command == null)
+            command = m.getClass().getSimpleName();
+        long bytes = m.length == Message.UNKNOWN_LENGTH ? 0 : m.length;
+        messageStats.record(command, bytes, handlerNanos);
+        MessageStats groupMessageStats = vGroupMessageStats;
+        if (groupMessageStats != null)
+            groupMessageStats.record(command, bytes, handlerNanos);
+    }
+
+    // The built in handlers of all messages we understand. Because the handler of the nearest superclass is used,
+    // NotFoundMessage needs its own handler to not be treated like the InventoryMessage it extends.
+    private void registerMessageHandlers() {
+        messageDispatcher.register(Ping.class, new MessageHandler<Ping>() {
+            @Override
+            public void handle(Peer peer, Ping m) {
+                processPing(m);
+            }
+        });
+        messageDispatcher.register(Pong.class, new MessageHandler<Pong>() {
+            @Override
+            public void handle(Peer peer, Pong m) {
+                processPong(m);
+            }
+        });
+        messageDispatcher.register(NotFoundMessage.class, new MessageHandler<NotFoundMessage>() {
+            @Override
+            public void handle(Peer peer, NotFoundMessage m) {
+                // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
+                processNotFoundMessage(m);
+            }
+        });
+        messageDispatcher.register(InventoryMessage.class, new MessageHandler<InventoryMessage>() {
+            @Override
+            public void handle(Peer peer, InventoryMessage m) {
+                processInv(m);
+            }
+        });
+        messageDispatcher.register(Block.class, new MessageHandler<Block>() {
+            @Override
+            public void handle(Peer peer, Block m) {
+                processBlock(m);
+            }
+        });
+        messageDispatcher.register(FilteredBlock.class, new MessageHandler<FilteredBlock>() {
+            @Override
+            public void handle(Peer peer, FilteredBlock m) {
+                startFilteredBlock(m);
+            }
+        });
+        messageDispatcher.register(Transaction.class, new MessageHandler<Transaction>() {
+            @Override
+            public void handle(Peer peer, Transaction m) throws Exception {
+                processTransaction(m);
+            }
+        });
+        messageDispatcher.register(GetDataMessage.class, new MessageHandler<GetDataMessage>() {
+            @Override
+            public void handle(Peer peer, GetDataMessage m) {
+                processGetData(m);
+            }
+        });
+        messageDispatcher.register(AddressMessage.class, new MessageHandler<AddressMessage>() {
+            @Override
+            public void handle(Peer peer, AddressMessage m) {
+                processAddressMessage(m);
+            }
+        });
+        messageDispatcher.register(HeadersMessage.class, new MessageHandler<HeadersMessage>() {
+            @Override
+            public void handle(Peer peer, HeadersMessage m) throws Exception {
+                processHeaders(m);
+            }
+        });
+        messageDispatcher.register(VersionMessage.class, new MessageHandler<VersionMessage>() {
+            @Override
+            public void handle(Peer peer, VersionMessage m) throws Exception {
+                processVersionMessage(m);
+            }
+        });
+        messageDispatcher.register(VersionAck.class, new MessageHandler<VersionAck>() {
+            @Override
+            public void handle(Peer peer, VersionAck m) throws Exception {
+                processVersionAck(m);
+            }
+        });
+        messageDispatcher.register(UTXOsMessage.class, new MessageHandler<UTXOsMessage>() {
+            @Override
+            public void handle(Peer peer, UTXOsMessage m) {
+                processUTXOMessage(m);
+            }
+        });
+        messageDispatcher.register(RejectMessage.class, new MessageHandler<RejectMessage>() {
+            @Override
+            public void handle(Peer peer, RejectMessage m) {
+                log.error("{} {}: Received {}", Peer.this, getPeerVersionMessage().subVer, m);
+            }
+        });
+        messageDispatcher.register(SendHeadersMessage.class, new MessageHandler<SendHeadersMessage>() {
+            @Override
+            public void handle(Peer peer, SendHeadersMessage m) {
+                // We ignore this message, because we don't announce new blocks.
+            }
+        });
+        messageDispatcher.register(FeeFilterMessage.class, new MessageHandler<FeeFilterMessage>() {
+            @Override
+            public void handle(Peer peer, FeeFilterMessage m) {
+                processFeeFilter(m);
+            }
+        });
+        messageDispatcher.register(SendCmpctMessage.class, new MessageHandler<SendCmpctMessage>() {
+            @Override
+            public void handle(Peer peer, SendCmpctMessage m) {
+                processSendCmpct(m);
+            }
+        });
+        messageDispatcher.register(CmpctBlockMessage.class, new MessageHandler<CmpctBlockMessage>() {
+            @Override
+            public void handle(Peer peer, CmpctBlockMessage m) throws Exception {
+                processCmpctBlock(m);
+            }
+        });
+        messageDispatcher.register(BlockTxnMessage.class, new MessageHandler<BlockTxnMessage>() {
+            @Override
+            public void handle(Peer peer, BlockTxnMessage m) throws Exception {
+                processBlockTxn(m);
+            }
+        });
+        messageDispatcher.register(CFHeadersMessage.class, new MessageHandler<CFHeadersMessage>() {
+            @Override
+            public void handle(Peer peer, CFHeadersMessage m) throws Exception {
+                processCFHeaders(m);
+            }
+        });
+        messageDispatcher.register(CFilterMessage.class, new MessageHandler<CFilterMessage>() {
+            @Override
+            public void handle(Peer peer, CFilterMessage m) throws Exception {
+                processCFilter(m);
+            }
+        });
+    }
+
+    /**
+     * Returns the dispatcher that routes the messages received by this peer to their handlers. Registering a handler
+     * for a message class replaces the built in one, which lets you handle message types this class doesn't know or
+     * change how known ones are processed.
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+
+    /** Returns the count, size and handler time statistics of the messages received by this peer. */
+    public MessageStats getMessageStats() {
+        return messageStats;
+    }
+
+    /** Returns true if the remote peer connected to us, rather than we to it. */
+    public boolean isInbound() {
+        return vInbound;
+    }
+
+    void setInbound(boolean inbound) {
+        this.vInbound = inbound;
+    }
+
+    /** Sets statistics that every received message is recorded into, in addition to {@link #getMessageStats()}. */
+    void setGroupMessageStats(@Nullable MessageStats groupMessageStats) {
+        this.vGroupMessageStats = groupMessageStats;
     }
 
     protected void processUTXOMessage(UTXOsMessage m) {
@@ -523,14 +793,15 @@ public class Peer extends PeerSocketHandler {
         // mode nodes because we can't download the data from them we need to find/verify transactions. Some bogus
         // implementations claim to have a block chain in their services field but then report a height of zero, filter
         // them out here.
-        if (!peerVersionMessage.hasLimitedBlockChain() ||
-                (!params.allowEmptyPeerChain() && peerVersionMessage.bestHeight == 0)) {
+        // Inbound peers connected to us to be served, typically light clients, so they need neither.
+        if (!vInbound && (!peerVersionMessage.hasLimitedBlockChain() ||
+                (!params.allowEmptyPeerChain() && peerVersionMessage.bestHeight == 0))) {
             // Shut down the channel gracefully.
             log.info("{}: Peer does not have at least a recent part of the block chain.", this);
             close();
             return;
         }
-        if ((peerVersionMessage.localServices & requiredServices) != requiredServices) {
+        if (!vInbound && (peerVersionMessage.localServices & requiredServices) != requiredServices) {
             log.info("{}: Peer doesn't support these required services: {}", this,
                     VersionMessage.toStringServices(requiredServices & ~peerVersionMessage.localServices));
             // Shut down the channel gracefully.
@@ -587,6 +858,13 @@ public class Peer extends PeerSocketHandler {
             log.warn("Connected to a peer speaking protocol version {} but need {}, closing",
                     vPeerVersionMessage.clientVersion, version);
             close();
+            return;
+        }
+        // Tell the peer we'd like to receive new blocks as compact blocks. We only use the low bandwidth mode, where
+        // blocks are still announced and we request the compact block ourselves.
+        if (vCompactBlockPool != null && isCompactBlocksVersion(vPeerVersionMessage)
+                && isCompactBlocksVersion(versionMessage)) {
+            sendMessage(new SendCmpctMessage(params, false, getOwnCompactBlockVersion()));
         }
     }
 
@@ -626,6 +904,7 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        boolean compactFilters;
 
         lock.lock();
         try {
@@ -636,12 +915,13 @@ public class Peer extends PeerSocketHandler {
             }
             fastCatchupTimeSecs = this.fastCatchupTimeSecs;
             downloadBlockBodies = this.downloadBlockBodies;
+            compactFilters = isCompactFilterModeLocked();
         } finally {
             lock.unlock();
         }
 
         try {
-            checkState(!downloadBlockBodies, toString());
+            checkState(!downloadBlockBodies || compactFilters, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -664,6 +944,26 @@ public class Peer extends PeerSocketHandler {
                         // headers that are part of the best chain.
                         throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
                     }
+                } else if (compactFilters) {
+                    // In compact filter mode we keep downloading headers, and check the filter of each block from
+                    // here on to decide whether we need its body.
+                    if (!vDownloadData) {
+                        log.info("Lost download peer status, throwing away downloaded headers.");
+                        return;
+                    }
+                    lock.lock();
+                    try {
+                        if (!this.downloadBlockBodies)
+                            log.info("Passed the fast catchup time ({}) at height {}, checking compact filters of {} blocks",
+                                    Utils.dateTimeFormat(fastCatchupTimeSecs * 1000),
+                                    blockChain.getBestChainHeight() + 1, m.getBlockHeaders().size() - i);
+                        this.downloadBlockBodies = true;
+                        queueFilterChecksLocked(m.getBlockHeaders().subList(i, m.getBlockHeaders().size()),
+                                m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS);
+                    } finally {
+                        lock.unlock();
+                    }
+                    return;
                 } else {
                     lock.lock();
                     try {
@@ -693,6 +993,7 @@ public class Peer extends PeerSocketHandler {
             }
         } catch (VerificationException e) {
             log.warn("Block header verification failed", e);
+            score.recordInvalidData();
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
@@ -718,8 +1019,17 @@ public class Peer extends PeerSocketHandler {
     }
 
     protected void processTransaction(final Transaction tx) throws VerificationException {
+        addKnownInventory(tx.getTxId());
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
-        tx.verify();
+        try {
+            tx.verify();
+        } catch (VerificationException e) {
+            score.recordInvalidData();
+            throw e;
+        }
+        RecentTransactionPool compactBlockPool = vCompactBlockPool;
+        if (compactBlockPool != null)
+            compactBlockPool.add(tx);
         lock.lock();
         try {
             if (log.isDebugEnabled())
@@ -934,6 +1244,7 @@ public class Peer extends PeerSocketHandler {
     protected void processBlock(Block m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast block {}", getAddress(), m.getHashAsString());
+        addKnownInventory(m.getHash());
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m)) return;
         if (blockChain == null) {
@@ -941,6 +1252,22 @@ public class Peer extends PeerSocketHandler {
                 log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested because its compact filter matched?
+        boolean filterChecked = false;
+        lock.lock();
+        try {
+            PendingFilterCheck check = pendingFilterChecks.get(m.getHash());
+            if (check != null && check.blockRequested) {
+                check.block = m;
+                filterChecked = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (filterChecked) {
+            addFilterCheckedBlocks();
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             if (log.isDebugEnabled())
@@ -987,6 +1314,7 @@ public class Peer extends PeerSocketHandler {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: Block verification failed", getAddress(), e);
+            score.recordInvalidData();
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
@@ -1086,6 +1414,7 @@ public class Peer extends PeerSocketHandler {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: FilteredBlock verification failed", getAddress(), e);
+            score.recordInvalidData();
         } catch (PrunedException e) {
             // We pruned away some of the data we need to properly handle this block. We need to request the needed
             // data from the remote peer and fix things. Or just give up.
@@ -1167,6 +1496,19 @@ public class Peer extends PeerSocketHandler {
             }
         }
 
+        // Remember what the peer has, and which of the transactions it already knew about.
+        Set<Sha256Hash> announcedBefore = new HashSet<>();
+        knownInventoryLock.lock();
+        try {
+            for (InventoryItem item : items) {
+                if (item.type == InventoryItem.Type.TRANSACTION && knownInventory.contains(item.hash))
+                    announcedBefore.add(item.hash);
+                knownInventory.insert(item.hash);
+            }
+        } finally {
+            knownInventoryLock.unlock();
+        }
+
         GetDataMessage getdata = new GetDataMessage(params);
 
         Iterator<InventoryItem> it = transactions.iterator();
@@ -1181,7 +1523,12 @@ public class Peer extends PeerSocketHandler {
             //
             // The line below can trigger confidence listeners.
             TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
+            if (announcedBefore.contains(item.hash)) {
+                // The peer announced or received this before, so we either asked for it already or don't need it.
+                if (log.isDebugEnabled())
+                    log.debug("{}: Ignoring repeated announcement of tx {}", getAddress(), item.hash);
+                it.remove();
+            } else if (conf.numBroadcastPeers() > 1) {
                 // Some other peer already announced this so don't download.
                 it.remove();
             } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
@@ -1207,7 +1554,19 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && blockChain != null && isCompactFilterModeLocked()) {
+                // New blocks are fetched as headers first, and their bodies only if their compact filter matches. If
+                // we are still downloading headers up to the fast catchup time, that download will get there anyway.
+                if (downloadBlockBodies) {
+                    if (pendingFilterChecks.isEmpty()) {
+                        // Prevent this request being seen as a duplicate.
+                        lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                    } else {
+                        moreHeadersAfterFilterChecks = true;
+                    }
+                }
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1234,6 +1593,9 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (blocks.size() == 1 && isCompactBlocksUsable()) {
+                                // A freshly solved block: most of its transactions should be in our pool already.
+                                getdata.addCompactBlock(item.hash);
                             } else {
                                 getdata.addBlock(item.hash, vPeerVersionMessage.isWitnessSupported());
                             }
@@ -1439,11 +1801,11 @@ public class Peer extends PeerSocketHandler {
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        if (downloadBlockBodies && !isCompactFilterModeLocked()) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
         } else {
-            // Downloading headers for a while instead of full blocks.
+            // Downloading headers for a while instead of full blocks, or always in compact filter mode.
             GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
             sendMessage(message);
         }
@@ -1495,6 +1857,7 @@ public class Peer extends PeerSocketHandler {
             if (!future.isDone()) {
                 long elapsed = Utils.currentTimeMillis() - startTimeMsec;
                 Peer.this.addPingTimeData(elapsed);
+                score.recordLatency(elapsed);
                 if (log.isDebugEnabled())
                     log.debug("{}: ping time is {} ms", Peer.this.toString(), elapsed);
                 future.set(elapsed);
@@ -1546,6 +1909,14 @@ public class Peer extends PeerSocketHandler {
         return pendingPing.future;
     }
 
+    /**
+     * Returns the measurements of how well this peer performs: ping time percentiles, throughput, stalls and invalid
+     * data. The returned object is live and keeps being updated while the peer is connected.
+     */
+    public PeerScore getScore() {
+        return score;
+    }
+
     /**
      * Returns the elapsed time of the last ping/pong cycle. If {@link Peer#ping()} has never
      * been called or we did not hear back the "pong" message yet, returns {@link Long#MAX_VALUE}.
@@ -1601,6 +1972,389 @@ public class Peer extends PeerSocketHandler {
         vFeeFilter = m.getFeeRate();
     }
 
+    private void processSendCmpct(SendCmpctMessage m) {
+        if (log.isDebugEnabled())
+            log.debug("{}: Peer supports compact blocks version {}", this, m.getVersion());
+        if (m.getVersion() > 0 && m.getVersion() < Integer.SIZE)
+            vPeerCompactBlockVersions |= 1 << m.getVersion();
+    }
+
+    protected void processCmpctBlock(CmpctBlockMessage m) {
+        if (log.isDebugEnabled())
+            log.debug("{}: Received compact block {}", getAddress(), m.getBlockHash());
+        RecentTransactionPool pool = vCompactBlockPool;
+        if (pool == null || !isCompactBlocksUsable()) {
+            log.warn("{}: Received compact block we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        Block block;
+        CompactBlockReconstructor reconstructor;
+        try {
+            reconstructor = new CompactBlockReconstructor(m,
+                    getOwnCompactBlockVersion() == SendCmpctMessage.VERSION_WTXID);
+            int missing = reconstructor.fillFromPool(pool.getTransactions());
+            if (missing > 0) {
+                if (log.isDebugEnabled())
+                    log.debug("{}: Compact block {} is missing {} of {} transactions", getAddress(),
+                            m.getBlockHash(), missing, m.getTransactionCount());
+                final Sha256Hash blockHash = m.getBlockHash();
+                HashedWheelTimer.Timeout timeout = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        blockTxnTimedOut(blockHash);
+                    }
+                });
+                PendingCompactBlock previous;
+                lock.lock();
+                try {
+                    previous = pendingCompactBlocks.put(blockHash, new PendingCompactBlock(reconstructor, timeout));
+                } finally {
+                    lock.unlock();
+                }
+                if (previous != null)
+                    previous.timeout.cancel();
+                timeout.reschedule(BLOCK_TXN_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+                sendMessage(reconstructor.createRequest());
+                return;
+            }
+            block = reconstructor.build();
+        } catch (VerificationException e) {
+            log.info("{}: Could not reconstruct compact block {}, downloading full block: {}", getAddress(),
+                    m.getBlockHash(), e.getMessage());
+            requestFullBlock(m.getBlockHash());
+            return;
+        }
+        pool.removeAll(block.getTransactions());
+        processBlock(block);
+    }
+
+    protected void processBlockTxn(BlockTxnMessage m) {
+        PendingCompactBlock pending;
+        lock.lock();
+        try {
+            pending = pendingCompactBlocks.remove(m.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (pending == null) {
+            log.warn("{}: Received blocktxn we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        pending.timeout.cancel();
+        CompactBlockReconstructor reconstructor = pending.reconstructor;
+        Block block;
+        try {
+            reconstructor.fill(m);
+            block = reconstructor.build();
+        } catch (VerificationException e) {
+            log.info("{}: Could not reconstruct compact block {}, downloading full block: {}", getAddress(),
+                    m.getBlockHash(), e.getMessage());
+            requestFullBlock(m.getBlockHash());
+            return;
+        }
+        RecentTransactionPool pool = vCompactBlockPool;
+        if (pool != null)
+            pool.removeAll(block.getTransactions());
+        processBlock(block);
+    }
+
+    // Runs on the timer thread when a getblocktxn request wasn't answered in time.
+    private void blockTxnTimedOut(Sha256Hash blockHash) {
+        lock.lock();
+        try {
+            if (pendingCompactBlocks.remove(blockHash) == null)
+                return;  // Answered in the meantime.
+        } finally {
+            lock.unlock();
+        }
+        log.info("{}: No answer to getblocktxn for compact block {}, downloading full block", getAddress(), blockHash);
+        score.recordStall();
+        requestFullBlock(blockHash);
+    }
+
+    private static class PendingFilterCheck {
+        final Block header;
+        final int height;
+        // The filter hash announced in cfheaders, if that has arrived already.
+        @Nullable Sha256Hash expectedFilterHash;
+        @Nullable BlockFilter filter;
+        boolean blockRequested;
+        @Nullable Block block;
+
+        PendingFilterCheck(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isCompactFilterModeLocked() {
+        return useCompactFilters && vPeerVersionMessage != null && vPeerVersionMessage.isCompactFiltersSupported();
+    }
+
+    /**
+     * Queues the given headers, which must be in chain order, for compact filter checks and requests their filters
+     * and filter hashes.
+     */
+    @GuardedBy("lock")
+    private void queueFilterChecksLocked(List<Block> headers, boolean moreHeaders) throws ProtocolException {
+        checkState(lock.isHeldByCurrentThread());
+        moreHeadersAfterFilterChecks |= moreHeaders;
+        List<PendingFilterCheck> queued = new ArrayList<>(headers.size());
+        try {
+            BlockStore store = checkNotNull(blockChain).getBlockStore();
+            PendingFilterCheck last = Iterables.getLast(pendingFilterChecks.values(), null);
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (pendingFilterChecks.containsKey(hash) || store.get(hash) != null)
+                    continue; // Already have it.
+                int height;
+                if (last != null && last.header.getHash().equals(header.getPrevBlockHash())) {
+                    height = last.height + 1;
+                } else if (last == null) {
+                    StoredBlock prev = store.get(header.getPrevBlockHash());
+                    if (prev == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    height = prev.getHeight() + 1;
+                } else {
+                    // A fork while checks are still pending. We'll catch up with it once the queue has drained.
+                    log.info("{}: Ignoring header {} that doesn't connect to pending filter checks", this, hash);
+                    moreHeadersAfterFilterChecks = true;
+                    break;
+                }
+                last = new PendingFilterCheck(header, height);
+                pendingFilterChecks.put(hash, last);
+                queued.add(last);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        // The deadline runs from when the front of the queue last changed, so only start it for a new queue.
+        if (!queued.isEmpty() && !filterCheckTimeout.isPending())
+            filterCheckTimeout.reschedule(FILTER_CHECK_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < queued.size(); i += GetCFiltersMessage.MAX_FILTERS) {
+            List<PendingFilterCheck> batch = queued.subList(i, Math.min(queued.size(), i + GetCFiltersMessage.MAX_FILTERS));
+            int startHeight = batch.get(0).height;
+            Sha256Hash stopHash = batch.get(batch.size() - 1).header.getHash();
+            sendMessage(new GetCFHeadersMessage(params, BlockFilter.TYPE_BASIC, startHeight, stopHash));
+            sendMessage(new GetCFiltersMessage(params, BlockFilter.TYPE_BASIC, startHeight, stopHash));
+        }
+    }
+
+    protected void processCFHeaders(CFHeadersMessage m) throws ProtocolException {
+        lock.lock();
+        try {
+            List<PendingFilterCheck> checks = new ArrayList<>(pendingFilterChecks.values());
+            int stop = -1;
+            for (int i = 0; i < checks.size(); i++) {
+                if (checks.get(i).header.getHash().equals(m.getStopHash())) {
+                    stop = i;
+                    break;
+                }
+            }
+            if (stop < 0) {
+                log.info("{}: Received cfheaders we did not ask for: {}", getAddress(), m.getStopHash());
+                return;
+            }
+            List<Sha256Hash> filterHashes = m.getFilterHashes();
+            int first = stop - filterHashes.size() + 1;
+            if (first < 0)
+                throw new ProtocolException("Too many filter hashes in cfheaders: " + filterHashes.size());
+            if (lastFilterHeader != null && checks.get(first).header.getPrevBlockHash().equals(lastFilterHeaderBlock)
+                    && !lastFilterHeader.equals(m.getPreviousFilterHeader()))
+                throw new ProtocolException("Filter header chain of peer doesn't connect at " + lastFilterHeaderBlock);
+            for (int i = 0; i < filterHashes.size(); i++)
+                checks.get(first + i).expectedFilterHash = filterHashes.get(i);
+            List<Sha256Hash> filterHeaders = m.getFilterHeaders();
+            if (!filterHeaders.isEmpty()) {
+                lastFilterHeader = filterHeaders.get(filterHeaders.size() - 1);
+                lastFilterHeaderBlock = m.getStopHash();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void processCFilter(CFilterMessage m) throws ProtocolException {
+        lock.lock();
+        try {
+            PendingFilterCheck check = pendingFilterChecks.get(m.getBlockHash());
+            if (check == null) {
+                log.info("{}: Received cfilter we did not ask for: {}", getAddress(), m.getBlockHash());
+                return;
+            }
+            if (check.expectedFilterHash != null && !check.expectedFilterHash.equals(m.getFilterHash()))
+                throw new ProtocolException("Filter of block " + m.getBlockHash() + " doesn't match its filter hash");
+            check.filter = m.getFilter();
+        } finally {
+            lock.unlock();
+        }
+        addFilterCheckedBlocks();
+    }
+
+    // Runs on the timer thread when the filter check queue has been stuck for too long.
+    private void filterChecksTimedOut() {
+        int stuck;
+        lock.lock();
+        try {
+            stuck = pendingFilterChecks.size();
+        } finally {
+            lock.unlock();
+        }
+        if (stuck == 0)
+            return;
+        log.warn("{}: No progress on {} compact filter checks for {} seconds, disconnecting", this, stuck,
+                FILTER_CHECK_TIMEOUT_MSEC / 1000);
+        score.recordStall();
+        close();
+    }
+
+    /**
+     * Adds the blocks at the front of the filter check queue whose fate is decided to the chain: the header if the
+     * filter didn't match, or the full block once it has arrived if it did. Requests the full block of the first
+     * matching filter.
+     */
+    private void addFilterCheckedBlocks() {
+        try {
+            while (true) {
+                Block next = null;
+                lock.lock();
+                try {
+                    Iterator<PendingFilterCheck> it = pendingFilterChecks.values().iterator();
+                    if (it.hasNext()) {
+                        PendingFilterCheck check = it.next();
+                        if (check.block != null) {
+                            next = check.block;
+                            // The wallet may derive new keys from the transactions in this block.
+                            filterElements = null;
+                        } else if (check.filter != null && !check.blockRequested) {
+                            if (filterElements == null) {
+                                filterElements = new ArrayList<>();
+                                for (Wallet wallet : wallets)
+                                    filterElements.addAll(wallet.getCompactFilterElements());
+                            }
+                            if (check.filter.matchesAny(filterElements)) {
+                                if (log.isDebugEnabled())
+                                    log.debug("{}: Compact filter of block {} matched, downloading it", getAddress(),
+                                            check.header.getHash());
+                                check.blockRequested = true;
+                                GetDataMessage getdata = new GetDataMessage(params);
+                                getdata.addBlock(check.header.getHash(), vPeerVersionMessage.isWitnessSupported());
+                                sendMessage(getdata);
+                            } else {
+                                next = check.header;
+                            }
+                        }
+                        if (next != null) {
+                            it.remove();
+                            if (pendingFilterChecks.isEmpty())
+                                filterCheckTimeout.cancel();
+                            else
+                                filterCheckTimeout.reschedule(FILTER_CHECK_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    if (next == null) {
+                        if (pendingFilterChecks.isEmpty() && moreHeadersAfterFilterChecks) {
+                            moreHeadersAfterFilterChecks = false;
+                            lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        }
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // Add to the chain outside of the lock, like processBlock does.
+                if (blockChain.add(next)) {
+                    invokeOnBlocksDownloaded(next, null);
+                } else {
+                    lock.lock();
+                    try {
+                        pendingFilterChecks.clear();
+                        filterCheckTimeout.cancel();
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw new ProtocolException("Got unconnected block from peer: " + next.getHashAsString());
+                }
+            }
+        } catch (VerificationException e) {
+            log.warn("{}: Block verification failed", getAddress(), e);
+            score.recordInvalidData();
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets whether to use compact block filters (BIP157/158) instead of Bloom filters to find the blocks relevant
+     * to our wallets. Blocks past the fast catchup time are then downloaded as headers, their filters are matched
+     * against the scripts of the wallets locally, and only the full blocks that match are downloaded. This has no
+     * effect if the remote peer doesn't serve compact filters, see {@link VersionMessage#isCompactFiltersSupported()}.
+     */
+    public void setUseCompactFilters(boolean useCompactFilters) {
+        lock.lock();
+        try {
+            this.useCompactFilters = useCompactFilters;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if compact block filters are used to find relevant blocks from this peer. */
+    public boolean isUsingCompactFilters() {
+        lock.lock();
+        try {
+            return isCompactFilterModeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestFullBlock(Sha256Hash blockHash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blockHash, vPeerVersionMessage.isWitnessSupported());
+        sendMessage(getdata);
+    }
+
+    /** The compact block version we announce: version 2 carries witness data, so we only use it with peers that do. */
+    private long getOwnCompactBlockVersion() {
+        return vPeerVersionMessage.isWitnessSupported() ? SendCmpctMessage.VERSION_WTXID
+                : SendCmpctMessage.VERSION_TXID;
+    }
+
+    /**
+     * Returns true if new blocks are requested from this peer as compact blocks (BIP152). This is the case if a pool
+     * of recent transactions has been set with {@link #setCompactBlockPool(RecentTransactionPool)} and the remote
+     * peer announced support for the same compact block version we use, and our own version message advertises at
+     * least {@link NetworkParameters.ProtocolVersion#COMPACT_BLOCKS}.
+     */
+    public boolean isCompactBlocksUsable() {
+        return vCompactBlockPool != null && vPeerVersionMessage != null && isCompactBlocksVersion(versionMessage)
+                && (vPeerCompactBlockVersions & (1 << getOwnCompactBlockVersion())) != 0;
+    }
+
+    // Peers only take part in BIP152 if both sides advertise a protocol version that knows about it.
+    private boolean isCompactBlocksVersion(VersionMessage version) {
+        return version.clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+    }
+
+    /**
+     * Sets the pool of recently seen transactions that compact blocks are reconstructed from, or null to disable
+     * compact blocks. Transactions received from this peer are added to the pool. This has to be set before the
+     * connection is opened, as compact blocks are negotiated right after the version handshake.
+     */
+    public void setCompactBlockPool(@Nullable RecentTransactionPool pool) {
+        this.vCompactBlockPool = pool;
+    }
+
+    /** Returns the pool set with {@link #setCompactBlockPool(RecentTransactionPool)}, or null. */
+    @Nullable
+    public RecentTransactionPool getCompactBlockPool() {
+        return vCompactBlockPool;
+    }
+
     /**
      * Returns the difference between our best chain height and the peers, which can either be positive if we are
      * behind the peer, or negative if the peer is ahead of us.
@@ -1725,6 +2479,33 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * <p>Extends the Bloom filter on this connection with the given elements by sending one {@link FilterAddMessage}
+     * for each, which is much cheaper than resending the whole filter. The given filter must be the one previously
+     * set with the elements inserted, it becomes the new value of {@link #getBloomFilter()}. If no filter was set
+     * yet, the whole filter is sent instead as by {@link #setBloomFilter(BloomFilter, boolean)}.</p>
+     *
+     * <p>Therefore, you should not use this method if your app uses a {@link PeerGroup}. It is called for you.</p>
+     */
+    public void addToBloomFilter(List<byte[]> elements, BloomFilter updatedFilter, boolean andQueryMemPool) {
+        checkNotNull(updatedFilter);
+        boolean sendWholeFilter = vBloomFilter == null;
+        for (byte[] element : elements)
+            sendWholeFilter |= element.length > FilterAddMessage.MAX_DATA_SIZE;
+        if (sendWholeFilter) {
+            setBloomFilter(updatedFilter, andQueryMemPool);
+            return;
+        }
+        vBloomFilter = updatedFilter;
+        log.info("{}: Adding {} elements to Bloom filter{}", this, elements.size(),
+                andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(params, element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
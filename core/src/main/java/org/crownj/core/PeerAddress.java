@@ -318,6 +318,12 @@ public class PeerAddress extends ChildMessage {
         return time;
     }
 
+    /** Sets the time the peer was last seen, in seconds since the epoch. */
+    void setTime(long time) {
+        unCache();
+        this.time = time;
+    }
+
     @Override
     public String toString() {
         if (hostname != null) {
@@ -102,6 +102,12 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
     @GuardedBy("lock") private final Map<PeerAddress, Integer> priorityMap;
+    // Long term memory of peer addresses. It refills the inactives queue before we resort to peer discovery.
+    private final AddressManager addressManager;
+    // File the address manager is saved to, or null if addresses are forgotten on shutdown.
+    @Nullable private volatile File vAddressFile;
+    // Count, size and handler time of the messages received by all our peers, per command.
+    private final MessageStats messageStats = new MessageStats();
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
@@ -144,11 +150,28 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion;
+    // Recently seen transactions shared by all peers to reconstruct compact blocks from, or null if disabled.
+    @Nullable private volatile RecentTransactionPool vCompactBlockPool;
 
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     @GuardedBy("lock") private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
+    /** How often the addresses of peers are saved while running, if an address file is set. */
+    public static final long ADDRESS_FILE_SAVE_INTERVAL_MSEC = 15 * 60 * 1000;
+    // While we know fewer addresses than this, we ask newly connected peers for more. Only if we save addresses.
+    private static final int GETADDR_THRESHOLD = 1000;
+
+    /** How many milliseconds to wait between checks for a slow peer to disconnect. */
+    public static final long DEFAULT_SLOW_PEER_ROTATION_INTERVAL_MSEC = 10 * 60 * 1000;
+    /** How many points below the median {@link PeerScore} of all peers a peer must be to be rotated out as slow. */
+    public static final double SLOW_PEER_SCORE_MARGIN = 30;
+    // A peer needs this many ping times before we judge it to be slow.
+    private static final int SLOW_PEER_MIN_LATENCY_SAMPLES = 5;
+    @GuardedBy("lock") private long slowPeerRotationIntervalMsec = DEFAULT_SLOW_PEER_ROTATION_INTERVAL_MSEC;
+    // Download peer candidates scoring this many points less than the best candidate aren't considered.
+    private static final double DOWNLOAD_PEER_SCORE_TOLERANCE = 10;
+
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
@@ -169,7 +192,15 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            // The new keys are inserted into the existing filter, rather than recalculating it from every key.
+            List<byte[]> elements = new ArrayList<>(keys.size() * 2);
+            long earliestKeyTimeSecs = Long.MAX_VALUE;
+            for (ECKey key : keys) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+                earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, key.getCreationTimeSeconds());
+            }
+            extendFilter(elements, true, earliestKeyTimeSecs, true);
         }
     };
 
@@ -206,22 +237,21 @@ public class PeerGroup implements TransactionBroadcaster {
         // it and update their filter themselves, but any newly connected nodes will receive the last filter we
         // calculated, which would not include this transaction.
         //
-        // For this reason we check if the transaction contained any relevant P2PKs or P2WPKHs and force a recalc
-        // and possibly retransmit if so. The recalculation process will end up including the tx hash into the
-        // filter. In case (1), we need to retransmit the filter to the connected peers. In case (2), we don't
-        // and shouldn't, we should just recalculate and cache the new filter for next time.
+        // For this reason we check if the transaction contained any relevant P2PKs or P2WPKHs and insert their
+        // outpoints into the filter if so. In case (1), we need to send the new elements to the connected peers.
+        // In case (2), we don't and shouldn't, we should just update the cached filter for next time.
+        List<byte[]> outpoints = new ArrayList<>();
         for (TransactionOutput output : tx.getOutputs()) {
             Script scriptPubKey = output.getScriptPubKey();
             if (ScriptPattern.isP2PK(scriptPubKey) || ScriptPattern.isP2WPKH(scriptPubKey)) {
-                if (output.isMine(wallet)) {
-                    if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                        recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
-                    else
-                        recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
-                    return;
-                }
+                if (output.isMine(wallet))
+                    outpoints.add(output.getOutPointFor().unsafecrownSerialize());
             }
         }
+        if (!outpoints.isEmpty()) {
+            boolean send = tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+            extendFilter(outpoints, false, Long.MAX_VALUE, send);
+        }
     }
 
     // Exponential backoff for peers starts at 1 second and maxes at 10 minutes.
@@ -293,6 +323,8 @@ public class PeerGroup implements TransactionBroadcaster {
     
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
+    // Whether peers check compact block filters (BIP157/158) locally instead of using a Bloom filter.
+    private volatile boolean vUseCompactFilters = false;
 
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
@@ -370,6 +402,7 @@ public class PeerGroup implements TransactionBroadcaster {
         });
         backoffMap = new HashMap<>();
         priorityMap = new ConcurrentHashMap<>();
+        addressManager = new AddressManager(params);
         peers = new CopyOnWriteArrayList<>();
         pendingPeers = new CopyOnWriteArrayList<>();
         channels = connectionManager;
@@ -470,6 +503,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 }
 
                 boolean havePeerWeCanTry = !inactives.isEmpty() && backoffMap.get(inactives.peek()).getRetryTime() <= now;
+                // Addresses we remember from earlier save us the trip to the discovery sources. They were not in the
+                // backoff map yet, so they can be tried right away.
+                if (!havePeerWeCanTry && addInactivesFromAddressManager() > 0)
+                    havePeerWeCanTry = true;
                 doDiscovery = !havePeerWeCanTry;
             } finally {
                 firstRun = false;
@@ -499,7 +536,7 @@ public class PeerGroup implements TransactionBroadcaster {
                         long interval = Math.max(groupBackoff.getRetryTime() - now, MIN_PEER_DISCOVERY_INTERVAL);
                         log.info("Peer discovery didn't provide us any more peers, will try again in "
                             + interval + "ms.");
-                        executor.schedule(this, interval, TimeUnit.MILLISECONDS);
+                        connectionRetryTimeout.reschedule(interval, TimeUnit.MILLISECONDS);
                     } else {
                         // We have enough peers and discovery provided no more, so just settle down. Most likely we
                         // were given a fixed set of addresses in some test scenario.
@@ -521,7 +558,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     long delay = retryTime - now;
                     log.info("Waiting {} ms before next connect attempt to {}", delay, addrToTry);
                     inactives.add(addrToTry);
-                    executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    connectionRetryTimeout.reschedule(delay, TimeUnit.MILLISECONDS);
                     return;
                 }
                 connectTo(addrToTry, false, vConnectTimeoutMillis);
@@ -534,6 +571,16 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     };
 
+    // Runs triggerConnectionsJob again once the backoff of the next peer or of discovery has passed. There's only ever
+    // one retry pending: each run works out the earliest time anything can be tried again.
+    private final HashedWheelTimer.Timeout connectionRetryTimeout = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+            if (vRunning)
+                triggerConnections();
+        }
+    });
+
     private void triggerConnections() {
         // Run on a background thread due to the need to potentially retry and back off in the background.
         if (!executor.isShutdown())
@@ -629,7 +676,8 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             boolean spvMode = chain != null && !chain.shouldVerifyTransactions();
-            boolean willSendFilter = spvMode && peerFilterProviders.size() > 0 && vBloomFilteringEnabled;
+            boolean willSendFilter = spvMode && peerFilterProviders.size() > 0 && vBloomFilteringEnabled
+                    && !vUseCompactFilters;
             ver.relayTxesBeforeFilter = !willSendFilter;
         } finally {
             lock.unlock();
@@ -856,6 +904,16 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Returns a newly allocated list containing the currently connected peers, ordered from the best to the worst
+     * {@link PeerScore}. Use {@link Peer#getScore()} to see the measurements of each peer.
+     */
+    public List<Peer> getConnectedPeersByScore() {
+        List<Peer> result = getConnectedPeers();
+        PeerScore.sortBestFirst(result);
+        return result;
+    }
+
     /**
      * Returns a list containing Peers that did not complete connection yet.
      */
@@ -916,6 +974,107 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    // Moves addresses from the address manager to the inactives queue, enough to fill the free connection slots twice.
+    // Returns how many were added.
+    @GuardedBy("lock")
+    private int addInactivesFromAddressManager() {
+        int wanted = 2 * (getMaxConnections() - countConnectedAndPendingPeers());
+        if (wanted <= 0)
+            return 0;
+        List<InetSocketAddress> known = new ArrayList<>(backoffMap.size());
+        for (PeerAddress address : backoffMap.keySet())
+            known.add(address.toSocketAddress());
+        int added = 0;
+        for (PeerAddress address : addressManager.select(wanted, known)) {
+            if (address.getAddr() == null)
+                continue;  // Onion addresses can only be reached through a proxy.
+            if (ipv6Unreachable && address.getAddr() instanceof Inet6Address)
+                continue;
+            if (addInactive(new PeerAddress(params, address.getAddr(), address.getPort()), 0))
+                added++;
+        }
+        if (added > 0)
+            log.info("Took {} addresses from {}", added, addressManager);
+        return added;
+    }
+
+    /**
+     * Returns the address manager that remembers the addresses of peers we heard about or connected to. It is filled
+     * by peer discovery and by connected peers, and used before asking the discovery sources again.
+     */
+    public AddressManager getAddressManager() {
+        return addressManager;
+    }
+
+    /**
+     * Returns how many messages of each command all peers of this group received since it was created, their total
+     * size, and the median and 99th percentile time their handlers took. Useful to find out which message types keep
+     * the network threads busy.
+     */
+    public MessageStats getMessageStats() {
+        return messageStats;
+    }
+
+    /**
+     * <p>Makes this group remember the addresses of peers across restarts in the given file. If the file exists, the
+     * addresses are loaded from it immediately, so the group can connect to known peers when it is started rather than
+     * asking the discovery sources first. The addresses are saved to the file every
+     * {@link #ADDRESS_FILE_SAVE_INTERVAL_MSEC} while running and when the group is stopped.</p>
+     *
+     * <p>As long as fewer than a thousand addresses are known, newly connected peers are asked for more.</p>
+     *
+     * <p>Must be called before {@link #start()}.</p>
+     */
+    public void setAddressFile(@Nullable File file) {
+        checkState(!vUsedUp, "Must be called before the peer group is started");
+        vAddressFile = file;
+        if (file != null && file.exists()) {
+            try {
+                addressManager.loadFromFile(file);
+            } catch (IOException e) {
+                log.warn("Could not load addresses from " + file + ", starting without", e);
+            }
+        }
+    }
+
+    private void setupAddressFileSaving() {
+        if (vAddressFile == null)
+            return;
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                saveAddresses();
+            }
+        }, ADDRESS_FILE_SAVE_INTERVAL_MSEC, ADDRESS_FILE_SAVE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    private void saveAddresses() {
+        File file = vAddressFile;
+        if (file == null)
+            return;
+        try {
+            addressManager.saveToFile(file);
+        } catch (Throwable e) {
+            log.error("Could not save addresses to " + file, e);  // The executor swallows exceptions :(
+        }
+    }
+
+    // Asks the peer for the addresses of other peers and adds them to the address manager.
+    private void requestAddresses(final Peer peer) {
+        Futures.addCallback(peer.getAddr(), new FutureCallback<AddressMessage>() {
+            @Override
+            public void onSuccess(AddressMessage message) {
+                int added = addressManager.addAll(message.getAddresses(), peer.getAddress());
+                log.info("{}: Learned {} new addresses, now {}", peer, added, addressManager);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.info("{}: Failed to get addresses: {}", peer, t.toString());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
     private int getPriority(PeerAddress peerAddress) {
         Integer priority = priorityMap.get(peerAddress);
         return priority != null ? priority : 0;
@@ -982,6 +1141,7 @@ public class PeerGroup implements TransactionBroadcaster {
             if (addressList.size() >= maxPeersToDiscoverCount) break;
         }
         if (!addressList.isEmpty()) {
+            addressManager.addAll(addressList, null);
             for (PeerAddress address : addressList) {
                 addInactive(address, 0);
             }
@@ -1064,6 +1224,8 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    setupSlowPeerRotation();
+                    setupAddressFileSaving();
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1079,6 +1241,9 @@ public class PeerGroup implements TransactionBroadcaster {
     public ListenableFuture stopAsync() {
         checkState(vRunning);
         vRunning = false;
+        pingTimeout.cancel();
+        connectionRetryTimeout.cancel();
+        slowPeerRotationTimeout.cancel();
         ListenableFuture future = executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -1093,6 +1258,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    saveAddresses();
                     vRunning = false;
                     log.info("Stopped, took {}.", watch);
                 } catch (Throwable e) {
@@ -1274,40 +1440,11 @@ public class PeerGroup implements TransactionBroadcaster {
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
-                // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
-                FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
-                boolean send;
-                switch (mode) {
-                    case SEND_IF_CHANGED:
-                        send = result.changed;
-                        break;
-                    case DONT_SEND:
-                        send = false;
-                        break;
-                    case FORCE_SEND_FOR_REFRESH:
-                        send = true;
-                        break;
-                    default:
-                        throw new UnsupportedOperationException();
-                }
-                if (send) {
-                    for (Peer peer : peers /* COW */) {
-                        // Only query the mempool if this recalculation request is not in order to lower the observed FP
-                        // rate. There's no point querying the mempool when doing this because the FP rate can only go
-                        // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
-                        peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
-                    }
-                    // Reset the false positive estimate so that we don't send a flood of filter updates
-                    // if the estimate temporarily overshoots our threshold.
-                    if (chain != null)
-                        chain.resetFalsePositiveEstimate();
-                }
-                // Do this last so that bloomFilter is already set when it gets called.
-                setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
+                BloomFilter filter = calculateAndSendFilter(mode);
                 synchronized (inFlightRecalculations) {
                     inFlightRecalculations.put(mode, null);
                 }
-                future.set(result.filter);
+                future.set(filter);
             }
         };
         try {
@@ -1318,6 +1455,107 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
     
+    /**
+     * Does the work of {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)}. Must only be called on the
+     * executor thread, see {@link FilterMerger}.
+     */
+    @Nullable
+    private BloomFilter calculateAndSendFilter(FilterRecalculateMode mode) {
+        if (vUseCompactFilters) {
+            // Compact filters are matched locally by the peers, so there is no filter to calculate or send.
+            // Only the fast catchup time has to follow the wallets, with the same week of slack as below.
+            long earliestKeyTimeSecs = Long.MAX_VALUE;
+            for (PeerFilterProvider provider : peerFilterProviders)
+                earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, provider.getEarliestKeyCreationTime());
+            setFastCatchupTimeSecs(earliestKeyTimeSecs - 86400 * 7);
+            return null;
+        }
+        // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
+        FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
+        boolean send;
+        switch (mode) {
+            case SEND_IF_CHANGED:
+                send = result.changed;
+                break;
+            case DONT_SEND:
+                send = false;
+                break;
+            case FORCE_SEND_FOR_REFRESH:
+                send = true;
+                break;
+            default:
+                throw new UnsupportedOperationException();
+        }
+        if (send) {
+            for (Peer peer : peers /* COW */) {
+                // Only query the mempool if this recalculation request is not in order to lower the observed FP
+                // rate. There's no point querying the mempool when doing this because the FP rate can only go
+                // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
+                peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+            }
+            // Reset the false positive estimate so that we don't send a flood of filter updates
+            // if the estimate temporarily overshoots our threshold.
+            if (chain != null)
+                chain.resetFalsePositiveEstimate();
+        }
+        // Do this last so that bloomFilter is already set when it gets called.
+        setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
+        return result.filter;
+    }
+
+    /**
+     * Inserts new elements into the last calculated Bloom filter and sends them to the peers as {@code filteradd}
+     * messages, followed by a mempool query. This is much cheaper than {@link #recalculateFastCatchupAndFilter}, which
+     * has every filter provider insert all of its keys, scripts and outpoints again. Falls back to a full
+     * recalculation if the filter would become too full (see {@link FilterMerger#insert(List)}), or if the elements
+     * are keys that some wallet doesn't match by public key or that are older than the fast catchup time.
+     *
+     * @param areKeys whether the elements are public keys and their hashes, see {@link BloomFilter#insert(ECKey)}
+     * @param earliestTimeSecs the earliest creation time of the keys, or {@link Long#MAX_VALUE}
+     * @param send whether to send the elements to connected peers, or only update the filter for new peers
+     */
+    private void extendFilter(final List<byte[]> elements, final boolean areKeys, final long earliestTimeSecs,
+                              final boolean send) {
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to extend Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                // Same week of slack that FilterMerger applies to the earliest key time.
+                boolean canInsert = !vUseCompactFilters && earliestTimeSecs - 86400 * 7 >= getFastCatchupTimeSecs();
+                if (areKeys)
+                    for (Wallet wallet : wallets)
+                        canInsert &= wallet.isBloomFilterKeyedByPubKeys();
+                // We only ever use bloomFilterMerger on jobQueue, so this can't interleave with a recalculation.
+                BloomFilter lastFilter = bloomFilterMerger.getLastFilter();
+                BloomFilter filter = canInsert ? bloomFilterMerger.insert(elements) : null;
+                if (filter == null) {
+                    // Recalculate right away rather than queueing a recalculation behind other jobs.
+                    calculateAndSendFilter(send ? FilterRecalculateMode.SEND_IF_CHANGED : FilterRecalculateMode.DONT_SEND);
+                    return;
+                }
+                if (send && !filter.equals(lastFilter)) {
+                    for (Peer peer : peers /* COW */)
+                        peer.addToBloomFilter(elements, filter, true);
+                }
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1399,10 +1637,17 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.receivingAddr.setParent(ver);
 
         Peer peer = createPeer(address, ver);
+        // Stalls and invalid data of earlier connections count against this one.
+        peer.getScore().addHistory(addressManager.getStallCount(address),
+                addressManager.getInvalidDataCount(address));
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setCompactBlockPool(vCompactBlockPool);
+        peer.setUseCompactFilters(vUseCompactFilters);
+        peer.setGroupMessageStats(messageStats);
         pendingPeers.add(peer);
+        addressManager.markAttempt(address);
 
         try {
             log.info("Attempting connection to {}     ({} connected, {} pending, {} max)", address,
@@ -1512,6 +1757,7 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            addressManager.markGood(peer.getAddress());
 
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
@@ -1560,6 +1806,8 @@ public class PeerGroup implements TransactionBroadcaster {
         } finally {
             lock.unlock();
         }
+        if (vAddressFile != null && addressManager.size() < GETADDR_THRESHOLD)
+            requestAddresses(peer);
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
@@ -1572,35 +1820,104 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
-    @Nullable private volatile ListenableScheduledFuture<?> vPingTask;
+    // Pings all peers once per ping interval. It lives on the shared timer wheel and hands the pinging to the executor.
+    private final HashedWheelTimer.Timeout pingTimeout = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+            if (!vRunning || executor.isShutdown())
+                return;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (getPingIntervalMsec() <= 0)
+                            return;  // Disabled.
+                        for (Peer peer : getConnectedPeers()) {
+                            if (peer.getPeerVersionMessage().clientVersion < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG))
+                                continue;
+                            peer.ping();
+                        }
+                    } catch (Throwable e) {
+                        log.error("Exception in ping loop", e);  // The executor swallows exceptions :(
+                    }
+                }
+            });
+            setupPinging();
+        }
+    });
 
-    @SuppressWarnings("NonAtomicOperationOnVolatileField")
     private void setupPinging() {
-        if (getPingIntervalMsec() <= 0)
+        long interval = getPingIntervalMsec();
+        if (interval <= 0 || !vRunning) {
+            pingTimeout.cancel();
             return;  // Disabled.
+        }
+        pingTimeout.reschedule(interval, TimeUnit.MILLISECONDS);
+    }
 
-        vPingTask = executor.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    if (getPingIntervalMsec() <= 0) {
-                        ListenableScheduledFuture<?> task = vPingTask;
-                        if (task != null) {
-                            task.cancel(false);
-                            vPingTask = null;
-                        }
-                        return;  // Disabled.
-                    }
-                    for (Peer peer : getConnectedPeers()) {
-                        if (peer.getPeerVersionMessage().clientVersion < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG))
-                            continue;
-                        peer.ping();
+    // Checks for a slow peer once per rotation interval. Like pinging, it lives on the timer wheel and hands the work
+    // to the executor.
+    private final HashedWheelTimer.Timeout slowPeerRotationTimeout = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+            if (!vRunning || executor.isShutdown())
+                return;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rotateSlowPeer();
+                    } catch (Throwable e) {
+                        log.error("Exception in slow peer rotation", e);  // The executor swallows exceptions :(
                     }
-                } catch (Throwable e) {
-                    log.error("Exception in ping loop", e);  // The executor swallows exceptions :(
                 }
+            });
+            setupSlowPeerRotation();
+        }
+    });
+
+    private void setupSlowPeerRotation() {
+        long interval = getSlowPeerRotationIntervalMsec();
+        if (interval <= 0 || !vRunning) {
+            slowPeerRotationTimeout.cancel();
+            return;  // Disabled.
+        }
+        slowPeerRotationTimeout.reschedule(interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * If all connection slots are taken, disconnects the peer with the worst {@link PeerScore} if it scores much worse
+     * than the median of all peers. A replacement is connected to automatically, so over time slow peers are replaced
+     * by faster ones. The download peer is left alone, as stalls are handled by the chain download speed check.
+     *
+     * @return the disconnected peer, or null if no peer was slow enough
+     */
+    @VisibleForTesting @Nullable
+    Peer rotateSlowPeer() {
+        List<Peer> connected = getConnectedPeers();
+        if (connected.size() < Math.max(3, getMaxConnections()))
+            return null;  // We still have room for more peers, no need to make some.
+        Peer downloadPeer = getDownloadPeer();
+        double[] scores = new double[connected.size()];
+        Peer worst = null;
+        double worstScore = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < scores.length; i++) {
+            Peer peer = connected.get(i);
+            scores[i] = peer.getScore().getScore();
+            if (peer == downloadPeer || peer.getScore().getLatencySampleCount() < SLOW_PEER_MIN_LATENCY_SAMPLES)
+                continue;
+            if (scores[i] < worstScore) {
+                worst = peer;
+                worstScore = scores[i];
             }
-        }, getPingIntervalMsec(), getPingIntervalMsec(), TimeUnit.MILLISECONDS);
+        }
+        Arrays.sort(scores);
+        double median = scores[scores.length / 2];
+        if (worst == null || worstScore >= median - SLOW_PEER_SCORE_MARGIN)
+            return null;
+        log.info("Disconnecting slow peer {} ({}), median score is {}", worst, worst.getScore(), median);
+        worst.close();
+        return worst;
     }
 
     private void setDownloadPeer(@Nullable Peer peer) {
@@ -1681,6 +1998,9 @@ public class PeerGroup implements TransactionBroadcaster {
             peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerScore score = peer.getScore();
+            int misbehavior = score.getStallCount() + score.getInvalidDataCount();
+            addressManager.markMisbehavior(address, score.getStallCount(), score.getInvalidDataCount());
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
             if (peer == downloadPeer) {
@@ -1706,7 +2026,10 @@ public class PeerGroup implements TransactionBroadcaster {
                     log.warn("IPv6 peer connect failed due to routing failure, ignoring IPv6 addresses from now on");
                 }
             } else {
-                backoffMap.get(address).trackFailure();
+                // Addresses that stalled or sent invalid data wait longer before they are tried again.
+                ExponentialBackoff backoff = backoffMap.get(address);
+                for (int i = 0; i <= misbehavior; i++)
+                    backoff.trackFailure();
                 // Put back on inactive list
                 inactives.offer(address);
             }
@@ -1883,6 +2206,7 @@ public class PeerGroup implements TransactionBroadcaster {
                             log.warn(String.format(Locale.US,
                                     "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s, %d stalls left",
                                     average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer, maxStalls));
+                            peer.getScore().recordStall();
                             peer.close();
                             // Reset the sample buffer and give the next peer time to get going.
                             samples = null;
@@ -2098,6 +2422,9 @@ public class PeerGroup implements TransactionBroadcaster {
             log.info("Transaction source unknown, setting to SELF: {}", tx.getTxId());
             tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
         }
+        RecentTransactionPool compactBlockPool = vCompactBlockPool;
+        if (compactBlockPool != null)
+            compactBlockPool.add(tx);
         final TransactionBroadcast broadcast = new TransactionBroadcast(this, tx);
         broadcast.setMinConnections(minConnections);
         broadcast.setDropPeersAfterBroadcast(dropPeersAfterBroadcast && tx.getConfidence().numBroadcastPeers() == 0);
@@ -2163,15 +2490,40 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             this.pingIntervalMsec = pingIntervalMsec;
-            ListenableScheduledFuture<?> task = vPingTask;
-            if (task != null)
-                task.cancel(false);
             setupPinging();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns how often the peer with the worst {@link PeerScore} is checked for being slow enough to be disconnected
+     * and replaced. It defaults to {@link PeerGroup#DEFAULT_SLOW_PEER_ROTATION_INTERVAL_MSEC}.
+     */
+    public long getSlowPeerRotationIntervalMsec() {
+        lock.lock();
+        try {
+            return slowPeerRotationIntervalMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how often the peer with the worst {@link PeerScore} is checked for being slow enough to be disconnected and
+     * replaced. A peer is considered slow if its score is more than {@link #SLOW_PEER_SCORE_MARGIN} points below the
+     * median. Setting the value to be smaller or equal 0 disables the rotation of slow peers.
+     */
+    public void setSlowPeerRotationIntervalMsec(long slowPeerRotationIntervalMsec) {
+        lock.lock();
+        try {
+            this.slowPeerRotationIntervalMsec = slowPeerRotationIntervalMsec;
+            setupSlowPeerRotation();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
@@ -2185,6 +2537,30 @@ public class PeerGroup implements TransactionBroadcaster {
         return vMinRequiredProtocolVersion;
     }
 
+    /**
+     * <p>Enables or disables downloading new blocks as compact blocks (BIP152). Peers keep the transactions they
+     * relay to us in a shared {@link RecentTransactionPool}, and when a new block is announced they ask for its
+     * compact form and rebuild it from that pool, downloading only the transactions that are missing. This saves
+     * most of the bandwidth of a block download, but is only useful if the full blocks are downloaded anyway, i.e.
+     * not when filtered blocks are in use.</p>
+     *
+     * <p>Only affects peers connected after this call. Disabled by default.</p>
+     */
+    public void setCompactBlocksEnabled(boolean enabled) {
+        if (enabled) {
+            if (vCompactBlockPool == null)
+                vCompactBlockPool = new RecentTransactionPool();
+        } else {
+            vCompactBlockPool = null;
+        }
+    }
+
+    /** Returns the pool compact blocks are reconstructed from, or null if compact blocks are disabled. */
+    @Nullable
+    public RecentTransactionPool getCompactBlockPool() {
+        return vCompactBlockPool;
+    }
+
     /**
      * Returns our peers most commonly reported chain height.
      * If the most common heights are tied, or no peers are connected, returns {@code 0}.
@@ -2254,6 +2630,7 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Performs about as well as the best candidate, see PeerScore
         //  - Randomly, to try and spread the load.
         if (peers.isEmpty())
             return null;
@@ -2284,6 +2661,20 @@ public class PeerGroup implements TransactionBroadcaster {
         if (candidates.isEmpty())
             return null;
 
+        // In compact filter mode, prefer peers that serve filters. Any other peer falls back to full blocks.
+        if (vUseCompactFilters) {
+            List<Peer> filterPeers = new LinkedList<>();
+            for (Peer peer : candidates)
+                if (peer.getPeerVersionMessage().isCompactFiltersSupported())
+                    filterPeers.add(peer);
+            if (!filterPeers.isEmpty()) {
+                candidates = filterPeers;
+                highestPriority = Integer.MIN_VALUE;
+                for (Peer peer : candidates)
+                    highestPriority = Math.max(highestPriority, getPriority(peer.peerAddress));
+            }
+        }
+
         // If there is a difference in priority, consider only the highest.
         for (Iterator<Peer> i = candidates.iterator(); i.hasNext(); ) {
             Peer peer = i.next();
@@ -2291,6 +2682,19 @@ public class PeerGroup implements TransactionBroadcaster {
                 i.remove();
         }
 
+        // Only consider candidates that perform about as well as the best one.
+        Map<Peer, Double> scores = new HashMap<>();
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Peer peer : candidates) {
+            double score = peer.getScore().getScore();
+            scores.put(peer, score);
+            bestScore = Math.max(bestScore, score);
+        }
+        for (Iterator<Peer> i = candidates.iterator(); i.hasNext(); ) {
+            if (scores.get(i.next()) < bestScore - DOWNLOAD_PEER_SCORE_TOLERANCE)
+                i.remove();
+        }
+
         // Random poll.
         int index = (int) (Math.random() * candidates.size());
         return candidates.get(index);
@@ -2368,4 +2772,24 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * <p>Switches SPV sync from Bloom filters to compact block filters (BIP157/158). Instead of giving every peer a
+     * filter to scan blocks with on our behalf, the download peer fetches the compact filter of each new block and
+     * matches the scripts of our wallets against it locally, downloading only the full blocks that match. No Bloom
+     * filter is calculated or sent, so wallet changes don't cause filter recalculations, and peers learn nothing
+     * about our wallets from what we ask them.</p>
+     *
+     * <p>The download peer is preferably chosen among peers that serve compact filters. Without a Bloom filter,
+     * peers relay all unconfirmed transactions to us. Only affects peers connected after this call, so call this
+     * before {@link #start()}.</p>
+     */
+    public void setUseCompactFilters(boolean useCompactFilters) {
+        this.vUseCompactFilters = useCompactFilters;
+    }
+
+    /** Returns whether compact block filters are used instead of Bloom filters: defaults to false. */
+    public boolean isUsingCompactFilters() {
+        return vUseCompactFilters;
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.utils.Threading;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Tracks how well a connected {@link Peer} performs: the distribution of its ping latencies, how many bytes per
+ * second it recently sent us, how often it stalled the chain download and how often it sent us data that failed
+ * verification. The measurements are folded into a single {@link #getScore() score}, which {@link PeerGroup} uses to
+ * pick the download peer, to decide which peers a transaction is broadcast to and to rotate out slow peers.</p>
+ *
+ * <p>Each peer owns one instance, see {@link Peer#getScore()}. Stalls and invalid data outlive the connection: the
+ * {@link AddressManager} of the peer group remembers them for the address, and they count against the next connection
+ * to it, see {@link #addHistory(int, int)}. Instances are thread safe.</p>
+ */
+public class PeerScore {
+    /** How many of the most recent ping times are kept for calculating percentiles. */
+    public static final int LATENCY_WINDOW = 64;
+    /** How many seconds of received bytes are averaged for calculating the throughput. */
+    public static final int THROUGHPUT_WINDOW_SECONDS = 30;
+
+    /** The score of a peer we know nothing bad about yet. */
+    public static final double BASE_SCORE = 100;
+    // Points lost per millisecond of 90th percentile ping time, and the most that can be lost that way.
+    private static final double LATENCY_PENALTY_PER_MSEC = 0.05;
+    private static final double MAX_LATENCY_PENALTY = 50;
+    // Points gained per doubling of the throughput in kilobytes per second, and the most that can be gained that way.
+    private static final double THROUGHPUT_BONUS_PER_DOUBLING = 2;
+    private static final double MAX_THROUGHPUT_BONUS = 20;
+    private static final double STALL_PENALTY = 15;
+    private static final double INVALID_DATA_PENALTY = 25;
+
+    private final ReentrantLock lock = Threading.lock(PeerScore.class);
+
+    @GuardedBy("lock") private final long[] latencies = new long[LATENCY_WINDOW];
+    @GuardedBy("lock") private int latencyCount, latencyCursor;
+
+    // Bytes received per second, indexed by the second modulo the window size, and the second each slot belongs to.
+    @GuardedBy("lock") private final long[] bytesPerSecond = new long[THROUGHPUT_WINDOW_SECONDS];
+    @GuardedBy("lock") private final long[] bytesSecond = new long[THROUGHPUT_WINDOW_SECONDS];
+    @GuardedBy("lock") private long totalBytes;
+    private final long createdAtMsec;
+
+    @GuardedBy("lock") private int stallCount;
+    @GuardedBy("lock") private int invalidDataCount;
+    // Recorded for earlier connections to the same address.
+    @GuardedBy("lock") private int pastStallCount;
+    @GuardedBy("lock") private int pastInvalidDataCount;
+
+    public PeerScore() {
+        createdAtMsec = Utils.currentTimeMillis();
+    }
+
+    /** Records the round trip time of a ping, in milliseconds. */
+    public void recordLatency(long millis) {
+        checkArgument(millis >= 0, "Negative latency: %s", millis);
+        lock.lock();
+        try {
+            latencies[latencyCursor] = millis;
+            latencyCursor = (latencyCursor + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the given number of bytes were received from the peer just now. */
+    public void recordBytesReceived(long bytes) {
+        long second = Utils.currentTimeMillis() / 1000;
+        int slot = (int) (second % bytesPerSecond.length);
+        lock.lock();
+        try {
+            if (bytesSecond[slot] != second) {
+                bytesSecond[slot] = second;
+                bytesPerSecond[slot] = 0;
+            }
+            bytesPerSecond[slot] += bytes;
+            totalBytes += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the chain download from this peer stalled. */
+    public void recordStall() {
+        lock.lock();
+        try {
+            stallCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the peer sent us a block, header or transaction that failed verification. */
+    public void recordInvalidData() {
+        lock.lock();
+        try {
+            invalidDataCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the stalls and invalid data recorded for earlier connections to the same address. They count towards the
+     * score, but not towards {@link #getStallCount()} and {@link #getInvalidDataCount()}, which only cover this
+     * connection.
+     */
+    public void addHistory(int stalls, int invalidData) {
+        checkArgument(stalls >= 0 && invalidData >= 0, "Negative history: %s, %s", stalls, invalidData);
+        lock.lock();
+        try {
+            pastStallCount += stalls;
+            pastInvalidDataCount += invalidData;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given percentile of the recent ping times in milliseconds, for example 50 for the median, or -1 if
+     * no ping has completed yet. The nearest-rank method is used, so the result is always one of the samples.
+     */
+    public long getLatencyPercentile(double percentile) {
+        checkArgument(percentile > 0 && percentile <= 100, "Percentile out of range: %s", percentile);
+        long[] sorted;
+        lock.lock();
+        try {
+            if (latencyCount == 0)
+                return -1;
+            sorted = Arrays.copyOf(latencies, latencyCount);
+        } finally {
+            lock.unlock();
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /** Returns how many ping times are currently in the window, at most {@link #LATENCY_WINDOW}. */
+    public int getLatencySampleCount() {
+        lock.lock();
+        try {
+            return latencyCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average number of bytes per second received over the last {@link #THROUGHPUT_WINDOW_SECONDS}
+     * seconds, or over the lifetime of this score if that is shorter.
+     */
+    public double getBytesPerSecond() {
+        long nowMsec = Utils.currentTimeMillis();
+        long now = nowMsec / 1000;
+        lock.lock();
+        try {
+            long sum = 0;
+            for (int i = 0; i < bytesPerSecond.length; i++)
+                if (now - bytesSecond[i] < bytesPerSecond.length)
+                    sum += bytesPerSecond[i];
+            double seconds = Math.min(bytesPerSecond.length, Math.max(1, (nowMsec - createdAtMsec) / 1000.0));
+            return sum / seconds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total number of bytes received from the peer. */
+    public long getTotalBytes() {
+        lock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how often the chain download from the peer stalled during this connection. */
+    public int getStallCount() {
+        lock.lock();
+        try {
+            return stallCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how often the peer sent us data that failed verification during this connection. */
+    public int getInvalidDataCount() {
+        lock.lock();
+        try {
+            return invalidDataCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the overall score of the peer, higher is better. A peer starts at {@link #BASE_SCORE}, loses points for a
+     * high 90th percentile ping time, stalls and invalid data, including those of earlier connections, and gains a few
+     * points for high throughput. The score can become negative.
+     */
+    public double getScore() {
+        long p90 = getLatencyPercentile(90);
+        double kilobytesPerSecond = getBytesPerSecond() / 1024;
+        int stalls, invalid;
+        lock.lock();
+        try {
+            stalls = stallCount + pastStallCount;
+            invalid = invalidDataCount + pastInvalidDataCount;
+        } finally {
+            lock.unlock();
+        }
+        double score = BASE_SCORE;
+        if (p90 >= 0)
+            score -= Math.min(MAX_LATENCY_PENALTY, p90 * LATENCY_PENALTY_PER_MSEC);
+        score += Math.min(MAX_THROUGHPUT_BONUS,
+                THROUGHPUT_BONUS_PER_DOUBLING * Math.log(1 + kilobytesPerSecond) / Math.log(2));
+        score -= stalls * STALL_PENALTY;
+        score -= invalid * INVALID_DATA_PENALTY;
+        return score;
+    }
+
+    /**
+     * Sorts the given peers from the best to the worst score. Peers with equal scores keep their relative order. The
+     * scores are taken once before sorting, as they change over time.
+     */
+    public static void sortBestFirst(List<Peer> peers) {
+        final Map<Peer, Double> scores = new HashMap<>();
+        for (Peer peer : peers)
+            scores.put(peer, peer.getScore().getScore());
+        Collections.sort(peers, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "score %.1f, ping p50/p90 %d/%d ms, %.2f KB/sec, %d stalls, %d invalid", getScore(),
+                getLatencyPercentile(50), getLatencyPercentile(90), getBytesPerSecond() / 1024, getStallCount(),
+                getInvalidDataCount());
+    }
+}
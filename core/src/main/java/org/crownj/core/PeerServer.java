@@ -0,0 +1,563 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.core.listeners.PeerDisconnectedEventListener;
+import org.crownj.net.NioServer;
+import org.crownj.net.StreamConnection;
+import org.crownj.net.StreamConnectionFactory;
+import org.crownj.store.BlockSource;
+import org.crownj.store.BlockStore;
+import org.crownj.store.BlockStoreException;
+import org.crownj.utils.Threading;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Serves the block chain to peers that connect to us, typically light clients. Headers come from a
+ * {@link BlockStore}, full blocks from an optional {@link BlockSource} and transactions from an optional
+ * {@link RecentTransactionPool}. The following requests are answered:</p>
+ *
+ * <ul>
+ * <li>getheaders, with up to {@link HeadersMessage#MAX_HEADERS} headers of the best chain</li>
+ * <li>getblocks, with an inv of up to {@link #MAX_BLOCKS_PER_INV} blocks, if there is a block source</li>
+ * <li>getdata for blocks, for filtered blocks built with the Bloom filter the peer set and for transactions; items we
+ * don't have are answered with notfound</li>
+ * <li>mempool, with an inv of the transactions in the pool that match the Bloom filter</li>
+ * <li>filterload, filteradd and filterclear, which manage the Bloom filter of the connection as defined by BIP37</li>
+ * </ul>
+ *
+ * <p>Each peer may make {@link #DEFAULT_REQUESTS_PER_SECOND} requests per second on average. Requests beyond that are
+ * ignored, and peers that keep flooding us are disconnected. Uploads are capped per peer and for all peers together.
+ * Data that doesn't fit the upload cap is answered with notfound, so the peer can try elsewhere. Large blocks may
+ * overdraw the cap, which then holds back further uploads until it has recovered.</p>
+ *
+ * <p>Call {@link #start(InetSocketAddress)} to listen for connections, or {@link #attach(Peer)} to serve a peer that
+ * was connected some other way.</p>
+ */
+public class PeerServer implements StreamConnectionFactory {
+    private static final Logger log = LoggerFactory.getLogger(PeerServer.class);
+
+    /** How many block hashes are announced in response to getblocks at most, like the reference client. */
+    public static final int MAX_BLOCKS_PER_INV = 500;
+    /** The default maximum number of peers served at the same time. */
+    public static final int DEFAULT_MAX_INBOUND_CONNECTIONS = 125;
+    /** How many requests per second each peer may make on average, and how many in a burst. */
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 20;
+    public static final int DEFAULT_REQUEST_BURST = 100;
+    /** How many bytes per second are uploaded to each peer and to all peers at most, by default. */
+    public static final long DEFAULT_PEER_UPLOAD_BYTES_PER_SECOND = 1024 * 1024;
+    public static final long DEFAULT_TOTAL_UPLOAD_BYTES_PER_SECOND = 10 * 1024 * 1024;
+    // Peers that make this many requests beyond their allowance are disconnected.
+    private static final int MAX_DROPPED_REQUESTS = 100;
+    // Time for the version handshake of an inbound connection.
+    private static final int HANDSHAKE_TIMEOUT_MSEC = 10000;
+    private static final int HEADER_SIZE = 81;
+
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+    @Nullable private volatile BlockSource vBlockSource;
+    @Nullable private volatile RecentTransactionPool vTransactionPool;
+    private volatile int vMaxInboundConnections = DEFAULT_MAX_INBOUND_CONNECTIONS;
+    private volatile double vRequestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    private volatile long vPeerUploadBytesPerSecond = DEFAULT_PEER_UPLOAD_BYTES_PER_SECOND;
+
+    private final ReentrantLock lock = Threading.lock(PeerServer.class);
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new HashMap<>();
+    @GuardedBy("lock") @Nullable private TokenBucket totalUploadBucket =
+            new TokenBucket(DEFAULT_TOTAL_UPLOAD_BYTES_PER_SECOND, DEFAULT_TOTAL_UPLOAD_BYTES_PER_SECOND);
+    @GuardedBy("lock") @Nullable private NioServer server;
+    // Hashes of the best chain by height, starting at mainChainBaseHeight. Built from the block store on first use and
+    // updated from its chain head before every request, which is cheap unless there was a reorg.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> mainChain = new ArrayList<>();
+    @GuardedBy("lock") private int mainChainBaseHeight;
+
+    // What we know about each peer we serve.
+    private class PeerState {
+        @Nullable volatile BloomFilter filter;
+        final TokenBucket requestBucket;
+        @Nullable final TokenBucket uploadBucket;
+        int droppedRequests;
+
+        PeerState() {
+            double requestsPerSecond = vRequestsPerSecond;
+            long uploadBytesPerSecond = vPeerUploadBytesPerSecond;
+            requestBucket = new TokenBucket(requestsPerSecond, Math.max(DEFAULT_REQUEST_BURST, requestsPerSecond));
+            uploadBucket = uploadBytesPerSecond > 0 ? new TokenBucket(uploadBytesPerSecond, uploadBytesPerSecond)
+                    : null;
+        }
+    }
+
+    /**
+     * A token bucket that refills at a constant rate up to its capacity. Taking is allowed whenever the bucket holds
+     * enough tokens, or is full, so amounts larger than the capacity can be taken too. They leave the bucket in debt.
+     */
+    static class TokenBucket {
+        private final double rate, capacity;
+        private double tokens;
+        private long lastRefillMsec;
+
+        TokenBucket(double ratePerSecond, double capacity) {
+            checkArgument(ratePerSecond > 0 && capacity > 0);
+            this.rate = ratePerSecond;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillMsec = Utils.currentTimeMillis();
+        }
+
+        synchronized boolean tryTake(double amount) {
+            long now = Utils.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefillMsec) * rate / 1000);
+            lastRefillMsec = now;
+            if (tokens < Math.min(amount, capacity))
+                return false;
+            tokens -= amount;
+            return true;
+        }
+
+        synchronized void giveBack(double amount) {
+            tokens = Math.min(capacity, tokens + amount);
+        }
+    }
+
+    public PeerServer(NetworkParameters params, BlockStore blockStore) {
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+    }
+
+    /** Sets where full blocks are read from. Without one, only headers and transactions are served. */
+    public void setBlockSource(@Nullable BlockSource blockSource) {
+        this.vBlockSource = blockSource;
+    }
+
+    /** Sets the pool that transactions are served from, and the mempool message is answered from. */
+    public void setTransactionPool(@Nullable RecentTransactionPool transactionPool) {
+        this.vTransactionPool = transactionPool;
+    }
+
+    /** Sets how many peers are served at the same time at most. Further connections are refused. */
+    public void setMaxInboundConnections(int maxInboundConnections) {
+        checkArgument(maxInboundConnections >= 0);
+        this.vMaxInboundConnections = maxInboundConnections;
+    }
+
+    /** Sets how many requests per second each peer may make on average. Applies to peers attached from now on. */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        checkArgument(requestsPerSecond > 0);
+        this.vRequestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Sets how many bytes per second are uploaded to each peer at most, or 0 for no limit. Applies to peers attached
+     * from now on.
+     */
+    public void setPeerUploadBytesPerSecond(long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0);
+        this.vPeerUploadBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Sets how many bytes per second are uploaded to all peers together at most, or 0 for no limit. */
+    public void setTotalUploadBytesPerSecond(long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0);
+        lock.lock();
+        try {
+            totalUploadBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Starts listening for connections on the given address. */
+    public void start(InetSocketAddress bindAddress) throws IOException {
+        NioServer server = new NioServer(this, bindAddress);
+        lock.lock();
+        try {
+            checkState(this.server == null, "Already started");
+            this.server = server;
+        } finally {
+            lock.unlock();
+        }
+        server.startAsync();
+        server.awaitRunning();
+        log.info("Serving peers on {}", bindAddress);
+    }
+
+    /** Stops listening and closes all connections made to the server. */
+    public void stop() {
+        NioServer server;
+        lock.lock();
+        try {
+            server = this.server;
+            this.server = null;
+        } finally {
+            lock.unlock();
+        }
+        if (server != null) {
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    /** Returns the number of peers currently served. */
+    public int getPeerCount() {
+        lock.lock();
+        try {
+            return peers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+        if (getPeerCount() >= vMaxInboundConnections) {
+            log.info("Refusing connection from {}, already serving {} peers", inetAddress, getPeerCount());
+            return null;
+        }
+        int bestHeight;
+        try {
+            bestHeight = blockStore.getChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            log.error("Refusing connection from {}", inetAddress, e);
+            return null;
+        }
+        VersionMessage ver = new VersionMessage(params, bestHeight);
+        ver.localServices = VersionMessage.NODE_BLOOM;
+        if (vBlockSource != null)
+            ver.localServices |= VersionMessage.NODE_NETWORK;
+        Peer peer = createPeer(new PeerAddress(params, inetAddress, port), ver);
+        peer.setInbound(true);
+        peer.setSocketTimeout(HANDSHAKE_TIMEOUT_MSEC);
+        attach(peer);
+        return peer;
+    }
+
+    /** You can override this to customise the creation of {@link Peer} objects for inbound connections. */
+    protected Peer createPeer(PeerAddress address, VersionMessage ver) {
+        return new Peer(params, ver, address, null);
+    }
+
+    /**
+     * Serves the given peer: registers handlers for the requests this server answers with the peer's
+     * {@link Peer#getMessageDispatcher() message dispatcher}. The peer is forgotten once it disconnects.
+     */
+    public void attach(Peer peer) {
+        final PeerState state = new PeerState();
+        lock.lock();
+        try {
+            peers.put(peer, state);
+        } finally {
+            lock.unlock();
+        }
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                lock.lock();
+                try {
+                    peers.remove(peer);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        MessageDispatcher dispatcher = peer.getMessageDispatcher();
+        dispatcher.register(GetHeadersMessage.class, new MessageHandler<GetHeadersMessage>() {
+            @Override
+            public void handle(Peer peer, GetHeadersMessage m) throws BlockStoreException {
+                if (allowRequest(peer, state))
+                    serveHeaders(peer, state, m);
+            }
+        });
+        dispatcher.register(GetBlocksMessage.class, new MessageHandler<GetBlocksMessage>() {
+            @Override
+            public void handle(Peer peer, GetBlocksMessage m) throws BlockStoreException {
+                if (allowRequest(peer, state))
+                    serveBlockInventory(peer, m);
+            }
+        });
+        dispatcher.register(GetDataMessage.class, new MessageHandler<GetDataMessage>() {
+            @Override
+            public void handle(Peer peer, GetDataMessage m) throws BlockStoreException {
+                if (allowRequest(peer, state))
+                    serveData(peer, state, m);
+            }
+        });
+        dispatcher.register(MemoryPoolMessage.class, new MessageHandler<MemoryPoolMessage>() {
+            @Override
+            public void handle(Peer peer, MemoryPoolMessage m) {
+                if (allowRequest(peer, state))
+                    serveMemoryPool(peer, state);
+            }
+        });
+        dispatcher.register(BloomFilter.class, new MessageHandler<BloomFilter>() {
+            @Override
+            public void handle(Peer peer, BloomFilter m) {
+                state.filter = m;
+            }
+        });
+        dispatcher.register(FilterAddMessage.class, new MessageHandler<FilterAddMessage>() {
+            @Override
+            public void handle(Peer peer, FilterAddMessage m) throws ProtocolException {
+                BloomFilter filter = state.filter;
+                if (filter == null)
+                    throw new ProtocolException("filteradd without a filter loaded");
+                filter.insert(m.getData());
+            }
+        });
+        dispatcher.register(FilterClearMessage.class, new MessageHandler<FilterClearMessage>() {
+            @Override
+            public void handle(Peer peer, FilterClearMessage m) {
+                state.filter = null;
+            }
+        });
+    }
+
+    private boolean allowRequest(Peer peer, PeerState state) {
+        if (state.requestBucket.tryTake(1))
+            return true;
+        int dropped;
+        synchronized (state) {
+            dropped = ++state.droppedRequests;
+        }
+        if (dropped > MAX_DROPPED_REQUESTS) {
+            log.info("{}: Too many requests, disconnecting", peer);
+            peer.close();
+        } else if (log.isDebugEnabled()) {
+            log.debug("{}: Request rate exceeded, ignoring request", peer);
+        }
+        return false;
+    }
+
+    // Takes the given number of bytes from the upload caps of the peer and of the server. Returns false if either is
+    // exhausted.
+    private boolean allowUpload(PeerState state, long bytes) {
+        TokenBucket peerBucket = state.uploadBucket;
+        if (peerBucket != null && !peerBucket.tryTake(bytes))
+            return false;
+        TokenBucket totalBucket;
+        lock.lock();
+        try {
+            totalBucket = totalUploadBucket;
+        } finally {
+            lock.unlock();
+        }
+        if (totalBucket != null && !totalBucket.tryTake(bytes)) {
+            if (peerBucket != null)
+                peerBucket.giveBack(bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private void serveHeaders(Peer peer, PeerState state, GetHeadersMessage m) throws BlockStoreException {
+        List<Block> headers = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Sha256Hash hash : getMainChainAfter(m.getLocator(), m.getStopHash(), HeadersMessage.MAX_HEADERS)) {
+                StoredBlock block = blockStore.get(hash);
+                if (block == null)
+                    break;
+                headers.add(block.getHeader());
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!allowUpload(state, headers.size() * HEADER_SIZE)) {
+            log.debug("{}: Upload cap reached, not sending headers", peer);
+            return;
+        }
+        try {
+            peer.sendMessage(new HeadersMessage(params, headers));
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, we never send more than MAX_HEADERS.
+        }
+    }
+
+    private void serveBlockInventory(Peer peer, GetBlocksMessage m) throws BlockStoreException {
+        if (vBlockSource == null)
+            return;
+        InventoryMessage inv = new InventoryMessage(params);
+        lock.lock();
+        try {
+            for (Sha256Hash hash : getMainChainAfter(m.getLocator(), m.getStopHash(), MAX_BLOCKS_PER_INV))
+                inv.addItem(new InventoryItem(InventoryItem.Type.BLOCK, hash));
+        } finally {
+            lock.unlock();
+        }
+        if (!inv.getItems().isEmpty())
+            peer.sendMessage(inv);
+    }
+
+    private void serveData(Peer peer, PeerState state, GetDataMessage m) throws BlockStoreException {
+        BlockSource blockSource = vBlockSource;
+        RecentTransactionPool transactionPool = vTransactionPool;
+        List<InventoryItem> notFound = new LinkedList<>();
+        for (InventoryItem item : m.getItems()) {
+            switch (item.type) {
+                case BLOCK:
+                case WITNESS_BLOCK: {
+                    Block block = blockSource != null ? blockSource.getBlock(item.hash) : null;
+                    if (block == null || !allowUpload(state, sizeOf(block)))
+                        notFound.add(item);
+                    else
+                        peer.sendMessage(block);
+                    break;
+                }
+                case FILTERED_BLOCK:
+                case WITNESS_FILTERED_BLOCK: {
+                    BloomFilter filter = state.filter;
+                    if (filter == null)
+                        break;  // Like the reference client, ignore requests for filtered blocks without a filter.
+                    Block block = blockSource != null ? blockSource.getBlock(item.hash) : null;
+                    if (block == null) {
+                        notFound.add(item);
+                        break;
+                    }
+                    FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+                    // The matched transactions follow the merkle block, in the order of the block.
+                    Map<Sha256Hash, Transaction> matched = filteredBlock.getAssociatedTransactions();
+                    List<Transaction> matchedInOrder = new ArrayList<>(matched.size());
+                    long size = sizeOf(filteredBlock);
+                    for (Transaction tx : block.getTransactions()) {
+                        if (matched.containsKey(tx.getTxId())) {
+                            matchedInOrder.add(tx);
+                            size += sizeOf(tx);
+                        }
+                    }
+                    if (!allowUpload(state, size)) {
+                        notFound.add(item);
+                        break;
+                    }
+                    peer.sendMessage(filteredBlock);
+                    for (Transaction tx : matchedInOrder)
+                        peer.sendMessage(tx);
+                    break;
+                }
+                case TRANSACTION:
+                case WITNESS_TRANSACTION: {
+                    Transaction tx = transactionPool != null ? transactionPool.get(item.hash) : null;
+                    if (tx == null || !allowUpload(state, sizeOf(tx)))
+                        notFound.add(item);
+                    else
+                        peer.sendMessage(tx);
+                    break;
+                }
+                default:
+                    notFound.add(item);
+                    break;
+            }
+        }
+        if (!notFound.isEmpty())
+            peer.sendMessage(new NotFoundMessage(params, notFound));
+    }
+
+    private void serveMemoryPool(Peer peer, PeerState state) {
+        RecentTransactionPool transactionPool = vTransactionPool;
+        if (transactionPool == null)
+            return;
+        BloomFilter filter = state.filter;
+        InventoryMessage inv = new InventoryMessage(params);
+        for (Transaction tx : transactionPool.getTransactions()) {
+            if (filter != null && !filter.applyAndUpdate(tx))
+                continue;
+            inv.addTransaction(tx);
+            if (inv.getItems().size() == InventoryMessage.MAX_INVENTORY_ITEMS) {
+                peer.sendMessage(inv);
+                inv = new InventoryMessage(params);
+            }
+        }
+        if (!inv.getItems().isEmpty())
+            peer.sendMessage(inv);
+    }
+
+    private static long sizeOf(Message message) {
+        return message.length != Message.UNKNOWN_LENGTH ? message.length : message.unsafecrownSerialize().length;
+    }
+
+    // Returns the hashes of up to maxBlocks best chain blocks following the fork point of the locator, up to and
+    // including the stop hash. If no locator hash is on the best chain, we start after the genesis block, if we have
+    // it, like the reference client.
+    @GuardedBy("lock")
+    private List<Sha256Hash> getMainChainAfter(BlockLocator locator, Sha256Hash stopHash, int maxBlocks)
+            throws BlockStoreException {
+        updateMainChainIndex();
+        int forkHeight = mainChainBaseHeight == 0 ? 0 : -1;
+        for (Sha256Hash hash : locator.getHashes()) {
+            StoredBlock block = blockStore.get(hash);
+            if (block != null && isOnMainChain(block)) {
+                forkHeight = block.getHeight();
+                break;
+            }
+        }
+        List<Sha256Hash> result = new ArrayList<>();
+        if (forkHeight < 0)
+            return result;
+        for (int i = forkHeight + 1 - mainChainBaseHeight; i < mainChain.size() && result.size() < maxBlocks; i++) {
+            Sha256Hash hash = mainChain.get(i);
+            result.add(hash);
+            if (hash.equals(stopHash))
+                break;
+        }
+        return result;
+    }
+
+    @GuardedBy("lock")
+    private boolean isOnMainChain(StoredBlock block) {
+        int offset = block.getHeight() - mainChainBaseHeight;
+        return offset >= 0 && offset < mainChain.size() && mainChain.get(offset).equals(block.getHeader().getHash());
+    }
+
+    // Walks back from the chain head until it meets the index, then replaces whatever the index has above that point.
+    @VisibleForTesting @GuardedBy("lock")
+    void updateMainChainIndex() throws BlockStoreException {
+        StoredBlock cursor = blockStore.getChainHead();
+        LinkedList<Sha256Hash> newHashes = new LinkedList<>();
+        int headHeight = cursor.getHeight();
+        while (cursor != null && !isOnMainChain(cursor)) {
+            newHashes.addFirst(cursor.getHeader().getHash());
+            cursor = cursor.getPrev(blockStore);
+        }
+        if (cursor == null) {
+            // Nothing in common, start over from the oldest block we have.
+            mainChain.clear();
+            mainChainBaseHeight = headHeight - newHashes.size() + 1;
+        } else {
+            int keep = cursor.getHeight() - mainChainBaseHeight + 1;
+            mainChain.subList(keep, mainChain.size()).clear();
+        }
+        mainChain.addAll(newHashes);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.crypto.TransactionSignature;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptOpCodes;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.crownj.core.Utils.uint32ToByteStreamLE;
+import static org.crownj.core.Utils.uint64ToByteStreamLE;
+
+/**
+ * <p>Calculates the {@link Transaction.SigHash#ALL} signature hashes of all inputs of a transaction, sharing the work
+ * that is the same for every input. {@link Transaction#hashForSignature(int, byte[], byte)} serializes and parses a
+ * copy of the whole transaction for each input, and
+ * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, byte)} hashes all inputs and outputs again for each
+ * input, so signing a transaction with many inputs takes time quadratic in their number.</p>
+ *
+ * <p>This serializes the transaction once. For legacy signature hashes it keeps the SHA-256 state after every
+ * {@link #CHECKPOINT_INTERVAL} inputs, so the hash of an input only has to continue from the state before it. For
+ * witness signature hashes (BIP 143) it calculates the hashes of the outpoints, sequence numbers and outputs once.
+ * The results are the same as those of the methods of {@link Transaction}.</p>
+ *
+ * <p>The transaction is serialized when this is created, so later changes to it aren't reflected, except that changes to
+ * input scripts and witnesses don't matter anyway. Instances are immutable and can be used by several threads.</p>
+ */
+public class PrecomputedSigHashes {
+    /** The number of inputs between the SHA-256 states that are kept for legacy signature hashes. */
+    public static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final byte SIGHASH_ALL = (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
+
+    private final Transaction tx;
+    private final long version, lockTime;
+
+    // The serialization of the transaction with all input scripts empty: the version and number of inputs, then each
+    // input at inputOffsets[i], then the outputs and lock time from the last of inputOffsets on.
+    private final byte[] blank;
+    private final int[] inputOffsets;
+    // SHA-256 states after blank[0 .. inputOffsets[i * CHECKPOINT_INTERVAL]], or null if digests can't be cloned.
+    @Nullable private final MessageDigest[] checkpoints;
+
+    // BIP 143 hashes.
+    private final byte[] hashPrevouts, hashSequence, hashOutputs;
+
+    public PrecomputedSigHashes(Transaction tx) {
+        this.tx = tx;
+        this.version = tx.getVersion();
+        this.lockTime = tx.getLockTime();
+        List<TransactionInput> inputs = tx.getInputs();
+        int numInputs = inputs.size();
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.getMessageSize());
+            ByteArrayOutputStream prevouts = new UnsafeByteArrayOutputStream(numInputs * 36);
+            ByteArrayOutputStream sequences = new UnsafeByteArrayOutputStream(numInputs * 4);
+            uint32ToByteStreamLE(version, bos);
+            bos.write(new VarInt(numInputs).encode());
+            inputOffsets = new int[numInputs + 1];
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = inputs.get(i);
+                inputOffsets[i] = bos.size();
+                byte[] outpoint = input.getOutpoint().crownSerialize();
+                bos.write(outpoint);
+                bos.write(0); // Empty script.
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+                prevouts.write(outpoint);
+                uint32ToByteStreamLE(input.getSequenceNumber(), sequences);
+            }
+            inputOffsets[numInputs] = bos.size();
+            ByteArrayOutputStream outputs = new UnsafeByteArrayOutputStream(256);
+            for (TransactionOutput output : tx.getOutputs()) {
+                uint64ToByteStreamLE(BigInteger.valueOf(output.getValue().getValue()), outputs);
+                outputs.write(new VarInt(output.getScriptBytes().length).encode());
+                outputs.write(output.getScriptBytes());
+            }
+            bos.write(new VarInt(tx.getOutputs().size()).encode());
+            bos.write(outputs.toByteArray());
+            uint32ToByteStreamLE(lockTime, bos);
+            blank = bos.toByteArray();
+            hashPrevouts = Sha256Hash.hashTwice(prevouts.toByteArray());
+            hashSequence = Sha256Hash.hashTwice(sequences.toByteArray());
+            hashOutputs = Sha256Hash.hashTwice(outputs.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        checkpoints = createCheckpoints(numInputs);
+    }
+
+    @Nullable
+    private MessageDigest[] createCheckpoints(int numInputs) {
+        MessageDigest[] checkpoints = new MessageDigest[(numInputs + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL];
+        MessageDigest digest = Sha256Hash.newDigest();
+        int hashed = 0;
+        try {
+            for (int i = 0; i < checkpoints.length; i++) {
+                int offset = inputOffsets[i * CHECKPOINT_INTERVAL];
+                digest.update(blank, hashed, offset - hashed);
+                hashed = offset;
+                checkpoints[i] = (MessageDigest) digest.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+        return checkpoints;
+    }
+
+    /** Returns the transaction the hashes are calculated for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Returns the legacy signature hash of the given input for {@link Transaction.SigHash#ALL}, the same as
+     * {@link Transaction#hashForSignature(int, byte[], Transaction.SigHash, boolean)}.
+     *
+     * @param inputIndex the input the signature is being calculated for.
+     * @param redeemScript the scriptPubKey that is being satisfied, or the P2SH redeem script.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] redeemScript) {
+        byte[] script = Script.removeAllInstancesOfOp(redeemScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int start = inputOffsets[inputIndex];
+        int end = inputOffsets[inputIndex + 1];
+        MessageDigest digest = prefixDigest(inputIndex);
+        // The outpoint of the input, its script, and its sequence number.
+        digest.update(blank, start, 36);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        digest.update(blank, end - 4, 4);
+        // The other inputs with empty scripts, the outputs and the lock time.
+        digest.update(blank, end, blank.length - end);
+        digest.update(new byte[] { SIGHASH_ALL, 0, 0, 0 });
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    // Returns a digest of the blank transaction up to the given input.
+    private MessageDigest prefixDigest(int inputIndex) {
+        int checkpoint = inputIndex / CHECKPOINT_INTERVAL;
+        MessageDigest digest;
+        int hashed;
+        if (checkpoints != null) {
+            try {
+                digest = (MessageDigest) checkpoints[checkpoint].clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // Cannot happen, cloning worked before.
+            }
+            hashed = inputOffsets[checkpoint * CHECKPOINT_INTERVAL];
+        } else {
+            digest = Sha256Hash.newDigest();
+            hashed = 0;
+        }
+        digest.update(blank, hashed, inputOffsets[inputIndex] - hashed);
+        return digest;
+    }
+
+    /**
+     * Returns the witness signature hash (BIP 143) of the given input for {@link Transaction.SigHash#ALL}, the same as
+     * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, Transaction.SigHash, boolean)}.
+     *
+     * @param inputIndex the input the signature is being calculated for.
+     * @param scriptCode the script code of the input, see BIP 143.
+     * @param prevValue the value of the output that the input spends.
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue) {
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(156 + scriptCode.length);
+        try {
+            uint32ToByteStreamLE(version, bos);
+            bos.write(hashPrevouts);
+            bos.write(hashSequence);
+            int start = inputOffsets[inputIndex];
+            bos.write(blank, start, 36);
+            bos.write(new VarInt(scriptCode.length).encode());
+            bos.write(scriptCode);
+            uint64ToByteStreamLE(BigInteger.valueOf(prevValue.getValue()), bos);
+            bos.write(blank, inputOffsets[inputIndex + 1] - 4, 4);
+            bos.write(hashOutputs);
+            uint32ToByteStreamLE(lockTime, bos);
+            uint32ToByteStreamLE(0x000000ff & SIGHASH_ALL, bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.utils.Threading;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded set of recently seen transactions, keyed by transaction ID. It serves as the pool that compact blocks
+ * are reconstructed from (see {@link CompactBlockReconstructor}): the more of the transactions of a new block are
+ * in here, the fewer have to be downloaded when the block arrives. When full, the least recently added
+ * transaction is evicted.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class RecentTransactionPool {
+    /** Default number of transactions kept, enough for several full blocks. */
+    public static final int DEFAULT_SIZE = 20000;
+
+    protected final ReentrantLock lock = Threading.lock(RecentTransactionPool.class);
+
+    @GuardedBy("lock")
+    private final LinkedHashMap<Sha256Hash, Transaction> transactions;
+
+    public RecentTransactionPool() {
+        this(DEFAULT_SIZE);
+    }
+
+    public RecentTransactionPool(final int maxSize) {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        transactions = new LinkedHashMap<Sha256Hash, Transaction>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> entry) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /** Adds a transaction to the pool, evicting the oldest one if the pool is full. */
+    public void add(Transaction tx) {
+        lock.lock();
+        try {
+            transactions.put(tx.getTxId(), tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction with the given ID, or null if it isn't in the pool. */
+    @Nullable
+    public Transaction get(Sha256Hash txId) {
+        lock.lock();
+        try {
+            return transactions.get(txId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes all transactions of the given block, as they won't appear in any future block. */
+    public void removeAll(List<Transaction> confirmed) {
+        lock.lock();
+        try {
+            for (Transaction tx : confirmed)
+                transactions.remove(tx.getTxId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of all transactions in the pool, oldest first. */
+    public List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<>(transactions.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return transactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A probabilistic set that remembers at least the most recently inserted elements, like the rolling Bloom filter of
+ * the reference client. It never reports a false negative for the last {@code elements} insertions, and reports a
+ * false positive with about the given rate. Older elements are forgotten gradually: the filter is split into three
+ * generations, and whenever the current generation is full, the oldest one is wiped to make room.</p>
+ *
+ * <p>Every cell of the filter is two bits holding the generation (1 to 3) that last set it, or 0 if none did. The two
+ * bits of 64 cells are packed into a pair of longs, so a generation can be wiped with a few bitwise operations per
+ * pair. Insertions and lookups don't allocate.</p>
+ *
+ * <p>Unlike {@link BloomFilter}, this is a local data structure that is never sent over the wire. Instances are not
+ * safe for use by multiple threads.</p>
+ */
+public class RollingBloomFilter {
+    private final int entriesPerGeneration;
+    private final int hashFuncs;
+    private final int tweak;
+    // Pairs of longs: the low bits of the generations of 64 cells, followed by their high bits.
+    private final long[] data;
+    private int entriesThisGeneration;
+    private int generation = 1;
+
+    /**
+     * Creates a filter that remembers at least the last {@code elements} insertions and has about the given false
+     * positive rate.
+     */
+    public RollingBloomFilter(int elements, double falsePositiveRate) {
+        checkArgument(elements > 0, "elements must be positive: %s", elements);
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "Invalid false positive rate: %s",
+                falsePositiveRate);
+        double logFpRate = Math.log(falsePositiveRate);
+        hashFuncs = (int) Math.max(1, Math.min(Math.round(logFpRate / Math.log(0.5)), 50));
+        // Half of the elements per generation, so at most three generations hold 150% of the elements.
+        entriesPerGeneration = (elements + 1) / 2;
+        int maxElements = entriesPerGeneration * 3;
+        long filterBits = (long) Math.ceil(-1.0 * hashFuncs * maxElements
+                / Math.log(1.0 - Math.exp(logFpRate / hashFuncs)));
+        data = new long[(int) ((filterBits + 63) / 64) << 1];
+        tweak = new Random().nextInt();
+    }
+
+    /** Inserts the given hash, see {@link #insert(byte[])}. */
+    public void insert(Sha256Hash hash) {
+        insert(hash.getBytes());
+    }
+
+    /** Inserts the given key. If the current generation is full, the oldest generation is forgotten first. */
+    public void insert(byte[] key) {
+        if (entriesThisGeneration == entriesPerGeneration) {
+            entriesThisGeneration = 0;
+            generation++;
+            if (generation == 4)
+                generation = 1;
+            long generationMask1 = -(long) (generation & 1);
+            long generationMask2 = -(long) (generation >> 1);
+            // Wipe the cells of the generation we're about to reuse.
+            for (int p = 0; p < data.length; p += 2) {
+                long p1 = data[p], p2 = data[p + 1];
+                long mask = (p1 ^ generationMask1) | (p2 ^ generationMask2);
+                data[p] = p1 & mask;
+                data[p + 1] = p2 & mask;
+            }
+        }
+        entriesThisGeneration++;
+        for (int n = 0; n < hashFuncs; n++) {
+            int h = hash(n, key);
+            int bit = h & 0x3F;
+            int pos = fastRange(h, data.length);
+            data[pos & ~1] = (data[pos & ~1] & ~(1L << bit)) | ((long) (generation & 1) << bit);
+            data[pos | 1] = (data[pos | 1] & ~(1L << bit)) | ((long) (generation >> 1) << bit);
+        }
+    }
+
+    /** Returns true if the given hash was probably inserted recently, see {@link #contains(byte[])}. */
+    public boolean contains(Sha256Hash hash) {
+        return contains(hash.getBytes());
+    }
+
+    /**
+     * Returns true if the given key was probably inserted recently. It is always true for the most recent insertions,
+     * see {@link #RollingBloomFilter(int, double)}.
+     */
+    public boolean contains(byte[] key) {
+        for (int n = 0; n < hashFuncs; n++) {
+            int h = hash(n, key);
+            int bit = h & 0x3F;
+            int pos = fastRange(h, data.length);
+            // If the cell is zero in both halves, the key has not been inserted in any live generation.
+            if ((((data[pos & ~1] | data[pos | 1]) >>> bit) & 1) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Forgets all elements. */
+    public void reset() {
+        entriesThisGeneration = 0;
+        generation = 1;
+        Arrays.fill(data, 0);
+    }
+
+    private int hash(int hashNum, byte[] key) {
+        return BloomFilter.murmurHash3((int) (hashNum * 0xFBA4C795L + tweak), key);
+    }
+
+    // Maps a 32 bit hash onto [0, range) without a division.
+    private static int fastRange(int hash, int range) {
+        return (int) (((hash & 0xFFFFFFFFL) * range) >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return "RollingBloomFilter{" + hashFuncs + " hash functions, " + data.length * 32 + " cells, generation "
+                + generation + "}";
+    }
+}
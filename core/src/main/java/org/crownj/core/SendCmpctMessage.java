@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * <p>Represents a "sendcmpct" message on the P2P network, which tells a peer that we are able to receive blocks in
+ * the compact encoding of the given version. If the announce flag is set, the peer is asked to push new blocks to us
+ * as "cmpctblock" messages straight away (high bandwidth mode), otherwise it will keep announcing them with "inv" or
+ * "headers" and we request the compact block ourselves (low bandwidth mode).</p>
+ *
+ * <p>See <a href="https://github.com/crown/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SendCmpctMessage extends Message {
+    /** Compact blocks with short IDs computed from txids. */
+    public static final long VERSION_TXID = 1;
+    /** Compact blocks with short IDs computed from wtxids and prefilled transactions carrying witness data. */
+    public static final long VERSION_WTXID = 2;
+
+    private boolean announce;
+    private long version;
+
+    public SendCmpctMessage(NetworkParameters params, boolean announce, long version) {
+        super(params);
+        this.announce = announce;
+        this.version = version;
+    }
+
+    public SendCmpctMessage(NetworkParameters params, byte[] payloadBytes, crownSerializer serializer, int length) {
+        super(params, payloadBytes, 0, serializer, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        announce = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(announce ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Returns true if the sender wants new blocks to be pushed as compact blocks without an announcement first. */
+    public boolean isAnnounce() {
+        return announce;
+    }
+
+    /** Returns the compact block encoding version, either {@link #VERSION_TXID} or {@link #VERSION_WTXID}. */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SendCmpctMessage other = (SendCmpctMessage) o;
+        return announce == other.announce && version == other.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(announce, version);
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: announce=" + announce + " version=" + version;
+    }
+}
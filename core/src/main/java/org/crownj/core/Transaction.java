@@ -296,6 +296,13 @@ public class Transaction extends ChildMessage {
      * Returns if tx witnesses are allowed based on the protocol version
      */
     private boolean allowWitness() {
+        return allowWitness(serializer);
+    }
+
+    /**
+     * Returns if tx witnesses are allowed based on the protocol version of the given serializer
+     */
+    static boolean allowWitness(MessageSerializer serializer) {
         int protocolVersion = serializer.getProtocolVersion();
         return (protocolVersion & SERIALIZE_TRANSACTION_NO_WITNESS) == 0
                 && protocolVersion >= WITNESS_VERSION.getcrownProtocolVersion();
@@ -443,8 +450,11 @@ public class Transaction extends ChildMessage {
             // This input is taking value from a transaction in our wallet. To discover the value,
             // we must find the connected transaction.
             TransactionOutput connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.UNSPENT));
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.SPENT));
+            if (connected == null) {
+                Transaction spent = wallet.getSpentTransaction(input.getOutpoint().getHash());
+                if (spent != null)
+                    connected = spent.getOutput(input.getOutpoint().getIndex());
+            }
             if (connected == null)
                 connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.PENDING));
             if (connected == null)
@@ -48,4 +48,13 @@ public interface TransactionBag {
 
     /** Returns transactions from a specific pool. */
     Map<Sha256Hash, Transaction> getTransactionPool(WalletTransaction.Pool pool);
+
+    /**
+     * Returns the transaction with the given ID from the spent pool, or null. Unlike a lookup in
+     * {@link #getTransactionPool(WalletTransaction.Pool)}, this also finds spent transactions that were moved out of
+     * memory, see {@link Wallet#setTransactionArchive(org.crownj.store.TransactionArchive, int)}. Those are returned
+     * as copies that aren't connected to the other transactions.
+     */
+    @Nullable
+    Transaction getSpentTransaction(Sha256Hash txId);
 }
@@ -153,7 +153,19 @@ public class TransactionBroadcast {
             int numConnected = peers.size();
             int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
+            // Prefer the best performing peers, picking randomly among equally good ones.
             Collections.shuffle(peers, random);
+            PeerScore.sortBestFirst(peers);
+            // Peers that already have the transaction, for example because they announced it to us, go last.
+            List<Peer> knowing = new ArrayList<>();
+            for (Iterator<Peer> it = peers.iterator(); it.hasNext(); ) {
+                Peer peer = it.next();
+                if (peer.isKnownInventory(tx.getTxId())) {
+                    it.remove();
+                    knowing.add(peer);
+                }
+            }
+            peers.addAll(knowing);
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getTxId());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
@@ -30,8 +30,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -56,8 +54,10 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a transaction in the best chain is derived from the height it appeared at and the best chain height
+ * known to the first {@link DepthTracker} it was added to, which is the one of the wallet that owns it, so it doesn't
+ * have to be updated when blocks arrive. Wallets that share a confidence object can be at different heights, they
+ * use {@link #getDepthInBlocks(int)} with their own best chain height.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -80,8 +80,17 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Only used if the
+    // depth can't be derived from the height of the best chain.
     private int depth;
+    // The trackers of the wallets the transaction belongs to, which know the height of the best chain. The depth is
+    // derived from the height of the first one.
+    private final CopyOnWriteArrayList<DepthTracker> depthTrackers = new CopyOnWriteArrayList<>();
+    // Depths that listeners want to be told about, see addDepthThreshold().
+    private final TreeSet<Integer> depthThresholds = new TreeSet<>();
+    // The heights at which the depth thresholds are reached, as last given to the trackers, and how often they changed.
+    private Set<Integer> depthTargets = Collections.emptySet();
+    private long depthTargetsVersion;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -223,9 +232,8 @@ public class TransactionConfidence {
      *
      * <p>Note that this is NOT called when every block arrives. Instead it is called when the transaction
      * transitions between confidence states, ie, from not being seen in the chain to being seen (not necessarily in
-     * the best chain). If you want to know when the transaction gets buried under another block, implement
-     * {@link org.crownj.core.listeners.NewBestBlockListener} and related listeners, attach them to a
-     * {@link BlockChain} and then use the getters on the confidence object to determine the new depth.</p>
+     * the best chain). If you want to know when the transaction gets buried under a number of blocks, use
+     * {@link #addDepthThreshold(int)}.</p>
      */
     public void addEventListener(Listener listener) {
         addEventListener(Threading.USER_THREAD, listener);
@@ -253,12 +261,17 @@ public class TransactionConfidence {
      * The chain height at which the transaction appeared, if it has been seen in the best chain. Automatically sets
      * the current type to {@link ConfidenceType#BUILDING} and depth to one.
      */
-    public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
+    public void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
-        this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
-        setConfidenceType(ConfidenceType.BUILDING);
+        DepthTargets targets;
+        synchronized (this) {
+            this.appearedAtChainHeight = appearedAtChainHeight;
+            this.depth = 1;
+            changeConfidenceType(ConfidenceType.BUILDING);
+            targets = updateDepthTargets();
+        }
+        applyDepthTargets(targets);
     }
 
     /**
@@ -272,7 +285,16 @@ public class TransactionConfidence {
      * Called by other objects in the system, like a {@link Wallet}, when new information about the confidence of a 
      * transaction becomes available.
      */
-    public synchronized void setConfidenceType(ConfidenceType confidenceType) {
+    public void setConfidenceType(ConfidenceType confidenceType) {
+        DepthTargets targets;
+        synchronized (this) {
+            changeConfidenceType(confidenceType);
+            targets = updateDepthTargets();
+        }
+        applyDepthTargets(targets);
+    }
+
+    private synchronized void changeConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
         this.confidenceType = confidenceType;
@@ -371,11 +393,12 @@ public class TransactionConfidence {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Increments the depth that is used if it can't be derived from the height of the best chain.
      *
      * @return the new depth
+     * @deprecated the depth is derived from the height of the best chain, which the wallet tracks
      */
+    @Deprecated
     public synchronized int incrementDepthInBlocks() {
         return ++this.depth;
     }
@@ -389,13 +412,32 @@ public class TransactionConfidence {
      *     
      * <p>If the transaction appears in the top block, the depth is one. If it's anything else (pending, dead, unknown)
      * the depth is zero.</p>
+     *
+     * <p>The depth is derived from the height the transaction appeared at and the best chain height of the first
+     * wallet that the transaction was added to. If that isn't known yet, the depth set by {@link #setDepthInBlocks(int)}
+     * is used. Wallets that share transactions but are at different heights should use
+     * {@link #getDepthInBlocks(int)}.</p>
+     */
+    public int getDepthInBlocks() {
+        DepthTracker tracker = Iterables.getFirst(depthTrackers, null);
+        return getDepthInBlocks(tracker != null ? tracker.getHeight() : -1);
+    }
+
+    /**
+     * Returns the depth in blocks for the given height of the best chain, see {@link #getDepthInBlocks()}.
+     *
+     * @param bestChainHeight the height of the best chain, or -1 if it isn't known
      */
-    public synchronized int getDepthInBlocks() {
+    public synchronized int getDepthInBlocks(int bestChainHeight) {
+        // The wallet learns about transactions in a block before it learns that the block is the new best one.
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0 && bestChainHeight >= 0)
+            return Math.max(bestChainHeight - appearedAtChainHeight + 1, 1);
         return depth;
     }
 
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. This is only used until the depth can
+     * be derived from the best chain height, see {@link #getDepthInBlocks()}.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
@@ -432,12 +474,20 @@ public class TransactionConfidence {
      * unless there is a re-org. Automatically sets the confidence type to DEAD. The overriding transaction may not
      * directly double spend this one, but could also have double spent a dependency of this tx.
      */
-    public synchronized void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
-        this.overridingTransaction = overridingTransaction;
-        setConfidenceType(ConfidenceType.DEAD);
+    public void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
+        DepthTargets targets;
+        synchronized (this) {
+            this.overridingTransaction = overridingTransaction;
+            changeConfidenceType(ConfidenceType.DEAD);
+            targets = updateDepthTargets();
+        }
+        applyDepthTargets(targets);
     }
 
-    /** Returns a copy of this object. Event listeners are not duplicated. */
+    /**
+     * Returns a copy of this object. Event listeners and depth thresholds are not duplicated, and the depth of the copy
+     * stays what it is now.
+     */
     public TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(hash);
         c.broadcastBy.addAll(broadcastBy);
@@ -446,10 +496,83 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
 
+    /**
+     * <p>Asks for listeners to be run with {@link Listener.ChangeReason#DEPTH} when the transaction reaches the given
+     * depth in the best chain, and again if a re-org takes it back below the depth and the new chain buries it as deep.
+     * Listeners are not run when other depths are reached, so anyone waiting for confirmations should add the depth
+     * they are waiting for. {@link #getDepthFuture(int)} does this automatically.</p>
+     *
+     * <p>Depth thresholds only work once the transaction belongs to a wallet, which tracks the height of the best
+     * chain.</p>
+     */
+    public void addDepthThreshold(int depth) {
+        checkArgument(depth > 0, "depth must be positive");
+        DepthTargets targets;
+        synchronized (this) {
+            if (!depthThresholds.add(depth))
+                return;
+            targets = updateDepthTargets();
+        }
+        applyDepthTargets(targets);
+    }
+
+    /** Returns the depths added with {@link #addDepthThreshold(int)}. */
+    public synchronized SortedSet<Integer> getDepthThresholds() {
+        return new TreeSet<>(depthThresholds);
+    }
+
+    /**
+     * Called by a {@link Wallet} that the transaction is added to, so the transaction reaches its depth thresholds as
+     * the best chain of the wallet grows. The depth is derived from the tracker that was added first.
+     */
+    public void addDepthTracker(DepthTracker tracker) {
+        if (!depthTrackers.addIfAbsent(tracker))
+            return;
+        DepthTargets targets;
+        synchronized (this) {
+            targets = new DepthTargets(++depthTargetsVersion, depthTargets);
+        }
+        applyDepthTargets(targets);
+    }
+
+    // A change of the heights at which the depth thresholds are reached. It is computed while holding the monitor of
+    // this object, and given to the trackers after releasing it because they have locks of their own.
+    private static class DepthTargets {
+        final long version;
+        final Set<Integer> heights;
+
+        DepthTargets(long version, Set<Integer> heights) {
+            this.version = version;
+            this.heights = heights;
+        }
+    }
+
+    // Returns the new heights at which the depth thresholds are reached, or null if they didn't change.
+    @Nullable
+    private synchronized DepthTargets updateDepthTargets() {
+        Set<Integer> heights = new HashSet<>();
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0) {
+            for (int threshold : depthThresholds)
+                heights.add(appearedAtChainHeight + threshold - 1);
+        }
+        if (heights.equals(depthTargets))
+            return null;
+        depthTargets = heights;
+        return new DepthTargets(++depthTargetsVersion, heights);
+    }
+
+    private void applyDepthTargets(@Nullable DepthTargets targets) {
+        if (targets == null)
+            return;
+        for (DepthTracker tracker : depthTrackers)
+            tracker.setTargets(this, targets.version, targets.heights);
+    }
+
     /**
      * Call this after adjusting the confidence, for cases where listeners should be notified. This has to be done
      * explicitly rather than being done automatically because sometimes complex changes to transaction states can
@@ -492,23 +615,28 @@ public class TransactionConfidence {
      * depth to one will wait until it appears in a block on the best chain, and zero will wait until it has been seen
      * on the network.
      */
-    public synchronized ListenableFuture<TransactionConfidence> getDepthFuture(final int depth, Executor executor) {
+    public ListenableFuture<TransactionConfidence> getDepthFuture(final int depth, Executor executor) {
         final SettableFuture<TransactionConfidence> result = SettableFuture.create();
-        if (getDepthInBlocks() >= depth) {
-            result.set(this);
-        }
-        addEventListener(executor, new Listener() {
+        // The listener is added first so a change right after the check isn't missed.
+        Listener listener = new Listener() {
             @Override public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
                     removeEventListener(this);
                     result.set(confidence);
                 }
             }
-        });
+        };
+        addEventListener(executor, listener);
+        if (getDepthInBlocks() >= depth) {
+            removeEventListener(listener);
+            result.set(this);
+        } else if (depth > 0) {
+            addDepthThreshold(depth);
+        }
         return result;
     }
 
-    public synchronized ListenableFuture<TransactionConfidence> getDepthFuture(final int depth) {
+    public ListenableFuture<TransactionConfidence> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
 
@@ -143,16 +143,15 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
-        boolean fresh = false;
         lock.lock();
         try {
             cleanTable();
             confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
         } finally {
             lock.unlock();
         }
-        if (fresh)
+        // Updated after releasing the lock, so the monitor of the confidence object is never taken while holding it.
+        if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
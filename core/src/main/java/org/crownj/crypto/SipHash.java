@@ -0,0 +1,83 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.crypto;
+
+import org.crownj.core.Utils;
+
+/**
+ * <p>An implementation of SipHash-2-4, a fast keyed hash function designed for short inputs. It is used by BIP152
+ * to compute the short transaction IDs of compact blocks.</p>
+ *
+ * <p>See <a href="https://131002.net/siphash/">the SipHash paper</a> for details.</p>
+ */
+public final class SipHash {
+    private SipHash() {
+    }
+
+    /**
+     * Computes SipHash-2-4 of the given data using the 128 bit key formed by k0 and k1, both interpreted as
+     * little endian 64 bit integers.
+     */
+    public static long hash(long k0, long k1, byte[] data) {
+        return hash(k0, k1, data, 0, data.length);
+    }
+
+    /**
+     * Computes SipHash-2-4 of a range of the given data using the 128 bit key formed by k0 and k1.
+     */
+    public static long hash(long k0, long k1, byte[] data, int offset, int length) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+
+        int end = offset + length - (length % 8);
+        for (int i = offset; i < end; i += 8) {
+            long m = Utils.readInt64(data, i);
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        // The final block holds the remaining bytes and the message length in its most significant byte.
+        long last = ((long) length & 0xff) << 56;
+        for (int i = 0; i < length % 8; i++)
+            last |= (data[end + i] & 0xffL) << (8 * i);
+        v3 ^= last;
+        for (int r = 0; r < 2; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= last;
+
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
@@ -16,8 +16,10 @@
 
 package org.crownj.net;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import org.crownj.utils.HashedWheelTimer;
+import org.crownj.utils.Threading;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>A base class which provides basic support for socket timeouts. It is used instead of integrating timeouts into the
@@ -25,14 +27,12 @@ import java.util.TimerTask;
  * </p>
  */
 public abstract class AbstractTimeoutHandler {
-    // TimerTask and timeout value which are added to a timer to kill the connection on timeout
-    private TimerTask timeoutTask;
+    // Timeout on the shared timer wheel which kills the connection, created once and rescheduled on every reset, and
+    // the timeout value.
+    private HashedWheelTimer.Timeout timeoutTask;
     private long timeoutMillis = 0;
     private boolean timeoutEnabled = true;
 
-    // A timer which manages expiring channels as their timeouts occur (if configured).
-    private static final Timer timeoutTimer = new Timer("AbstractTimeoutHandler timeouts", true);
-
     /**
      * <p>Enables or disables the timeout entirely. This may be useful if you want to store the timeout value but wish
      * to temporarily disable/enable timeouts.</p>
@@ -69,13 +69,15 @@ public abstract class AbstractTimeoutHandler {
             timeoutTask.cancel();
         if (timeoutMillis == 0 || !timeoutEnabled)
             return;
-        timeoutTask = new TimerTask() {
-            @Override
-            public void run() {
-                timeoutOccurred();
-            }
-        };
-        timeoutTimer.schedule(timeoutTask, timeoutMillis);
+        if (timeoutTask == null) {
+            timeoutTask = Threading.TIMER_WHEEL.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    timeoutOccurred();
+                }
+            });
+        }
+        timeoutTask.reschedule(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     protected abstract void timeoutOccurred();
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableList;
 import org.crownj.core.PeerGroup;
 
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -41,9 +42,18 @@ public class FilterMerger {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
 
+    /**
+     * How far the estimated false positive rate of a filter that was extended with {@link #insert(List)} may rise
+     * above that of a freshly calculated filter with the same elements, before a full recalculation is required.
+     */
+    public static final double MAX_FP_RATE_DRIFT = 2.0;
+
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // The false positive rate lastFilter was calculated for, and the number of elements inserted into it since.
+    private double lastFilterFPRate;
+    private int lastFilterElements;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -89,6 +99,8 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFilterFPRate = fpRate;
+                lastFilterElements = elements;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -102,6 +114,38 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * <p>Returns a copy of the last calculated filter with the given elements inserted, and makes it the last filter.
+     * This is much cheaper than {@link #calculate(ImmutableList)}, which asks every provider to insert all of its
+     * elements again, so it should be used when the only change is that new elements have to be matched, for example
+     * when keys are added to a wallet. Peers can be sent the same elements with a
+     * {@link org.crownj.core.FilterAddMessage} instead of the whole new filter.</p>
+     *
+     * <p>Returns null if there is no last filter, or if the filter would become so full that its estimated false
+     * positive rate drifts more than {@link #MAX_FP_RATE_DRIFT} times above that of a freshly calculated filter. The
+     * caller must do a full calculation in that case.</p>
+     */
+    public BloomFilter insert(List<byte[]> elements) {
+        if (lastFilter == null || lastFilter.matchesAll())
+            return null;
+        int newElementCount = lastFilterElements + elements.size();
+        BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, lastFilterFPRate, bloomFilterTweak,
+                BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.merge(lastFilter);
+        if (newElementCount > lastBloomFilterElementCount) {
+            // A recalculated filter would be bigger, with the same stair-stepping as in calculate().
+            BloomFilter resized = new BloomFilter(newElementCount + 100, vBloomFilterFPRate, bloomFilterTweak,
+                    BloomFilter.BloomUpdate.UPDATE_ALL);
+            if (filter.getFalsePositiveRate(newElementCount)
+                    > resized.getFalsePositiveRate(newElementCount) * MAX_FP_RATE_DRIFT)
+                return null;
+        }
+        for (byte[] element : elements)
+            filter.insert(element);
+        lastFilterElements = newElementCount;
+        return lastFilter = filter;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -17,11 +17,18 @@
 
 package org.crownj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
 
 import org.crownj.core.Coin;
 import org.crownj.core.ECKey;
-import org.crownj.core.LegacyAddress;
+import org.crownj.core.PrecomputedSigHashes;
+import org.crownj.core.Sha256Hash;
 import org.crownj.core.Transaction;
 import org.crownj.core.TransactionInput;
 import org.crownj.core.TransactionOutput;
@@ -49,6 +56,10 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link Transaction.SigHash#ALL} signing mode.</p>
+ * <p>The keys are looked up in the key bag on the calling thread, so a {@link org.crownj.wallet.DecryptingKeyBag} works
+ * as usual. The signature hashes share their common work through {@link PrecomputedSigHashes}, and for transactions
+ * with at least {@link #MIN_PARALLEL_INPUTS} inputs they and the signatures are calculated on a {@link ForkJoinPool}.
+ * Signatures are deterministic (RFC 6979), so the result is the same as when signing one input after the other.</p>
  */
 public class LocalTransactionSigner implements TransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -60,6 +71,32 @@ public class LocalTransactionSigner implements TransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    /** Transactions with fewer inputs to sign than this are signed on the calling thread. */
+    public static final int MIN_PARALLEL_INPUTS = 16;
+    // How many inputs a task of the pool signs without splitting them further.
+    private static final int INPUTS_PER_TASK = 8;
+
+    private static ForkJoinPool sharedPool;
+
+    @Nullable private final ForkJoinPool pool;
+
+    /** Creates a signer that signs inputs in parallel on a pool shared by all such signers. */
+    public LocalTransactionSigner() {
+        this(getSharedPool());
+    }
+
+    /** Creates a signer that signs inputs in parallel on the given pool, or on the calling thread if it's null. */
+    public LocalTransactionSigner(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        // Threads are only started once there is something to sign.
+        if (sharedPool == null)
+            sharedPool = new ForkJoinPool();
+        return sharedPool;
+    }
+
     @Override
     public boolean isReady() {
         return true;
@@ -69,6 +106,7 @@ public class LocalTransactionSigner implements TransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<InputSignature> signatures = new ArrayList<>(numInputs);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             final TransactionOutput connectedOutput = txIn.getConnectedOutput();
@@ -107,47 +145,115 @@ public class LocalTransactionSigner implements TransactionSigner {
                 log.warn("No local key found for input {}", i);
                 continue;
             }
+            signatures.add(new InputSignature(i, txIn, scriptPubKey, redeemData.redeemScript.getProgram(), key));
+        }
+        if (signatures.isEmpty())
+            return true;
+
+        PrecomputedSigHashes sigHashes = new PrecomputedSigHashes(tx);
+        if (pool != null && signatures.size() >= MIN_PARALLEL_INPUTS) {
+            pool.invoke(new SignTask(signatures, sigHashes));
+        } else {
+            for (InputSignature signature : signatures)
+                signature.calculate(sigHashes);
+        }
+        // Insert the signatures in the order of the inputs, failing at the same input as when signing one by one.
+        for (InputSignature signature : signatures)
+            signature.insert();
+        return true;
+    }
 
-            Script inputScript = txIn.getScriptSig();
-            // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
-            // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
+    // The signature of an input, calculated by any thread and then inserted by the signing one.
+    private static class InputSignature {
+        final int index;
+        final TransactionInput txIn;
+        final Script scriptPubKey;
+        // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
+        // a CHECKMULTISIG program for P2SH inputs
+        final byte[] script;
+        final ECKey key;
+        @Nullable final Coin value;
+        TransactionSignature signature;
+        RuntimeException failure;
+
+        InputSignature(int index, TransactionInput txIn, Script scriptPubKey, byte[] script, ECKey key) {
+            this.index = index;
+            this.txIn = txIn;
+            this.scriptPubKey = scriptPubKey;
+            this.script = script;
+            this.key = key;
+            this.value = ScriptPattern.isP2WPKH(scriptPubKey) ? txIn.getValue() : null;
+        }
+
+        void calculate(PrecomputedSigHashes sigHashes) {
             try {
+                Sha256Hash hash;
                 if (ScriptPattern.isP2PK(scriptPubKey) || ScriptPattern.isP2PKH(scriptPubKey)
                         || ScriptPattern.isP2SH(scriptPubKey)) {
-                    TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL,
-                            false);
-
-                    // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We
-                    // already have calculated the signature using the local key and now need to insert it in the
-                    // correct place within inputScript. For P2PKH and P2PK script there is only one signature and it
-                    // always goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out
-                    // our relative position relative to other signers. Since we don't have that information at this
-                    // point, and since we always run first, we have to depend on the other signers rearranging the
-                    // signatures as needed. Therefore, always place as first signature.
-                    int sigIndex = 0;
-                    inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeTocrown(),
-                            sigIndex);
-                    txIn.setScriptSig(inputScript);
-                    txIn.setWitness(null);
+                    hash = sigHashes.hashForSignature(index, script);
                 } else if (ScriptPattern.isP2WPKH(scriptPubKey)) {
                     Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key);
-                    Coin value = txIn.getValue();
-                    TransactionSignature signature = tx.calculateWitnessSignature(i, key, scriptCode, value,
-                            Transaction.SigHash.ALL, false);
-                    txIn.setScriptSig(ScriptBuilder.createEmpty());
-                    txIn.setWitness(TransactionWitness.redeemP2WPKH(signature, key));
+                    hash = sigHashes.hashForWitnessSignature(index, scriptCode.getProgram(), value);
                 } else {
                     throw new IllegalStateException(script.toString());
                 }
-            } catch (ECKey.KeyIsEncryptedException e) {
-                throw e;
-            } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
+                signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+            } catch (RuntimeException e) {
+                failure = e;
             }
+        }
 
+        void insert() {
+            if (failure instanceof ECKey.KeyIsEncryptedException) {
+                throw failure;
+            } else if (failure instanceof ECKey.MissingPrivateKeyException) {
+                log.warn("No private key in keypair for input {}", index);
+                return;
+            } else if (failure != null) {
+                throw failure;
+            }
+            if (ScriptPattern.isP2WPKH(scriptPubKey)) {
+                txIn.setScriptSig(ScriptBuilder.createEmpty());
+                txIn.setWitness(TransactionWitness.redeemP2WPKH(signature, key));
+            } else {
+                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We
+                // already have calculated the signature using the local key and now need to insert it in the
+                // correct place within inputScript. For P2PKH and P2PK script there is only one signature and it
+                // always goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out
+                // our relative position relative to other signers. Since we don't have that information at this
+                // point, and since we always run first, we have to depend on the other signers rearranging the
+                // signatures as needed. Therefore, always place as first signature.
+                int sigIndex = 0;
+                Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                        signature.encodeTocrown(), sigIndex);
+                txIn.setScriptSig(inputScript);
+                txIn.setWitness(null);
+            }
         }
-        return true;
     }
 
+    // Calculates the signatures of a range of inputs, splitting it up between the threads of the pool.
+    private static class SignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<InputSignature> signatures;
+        private final PrecomputedSigHashes sigHashes;
+
+        SignTask(List<InputSignature> signatures, PrecomputedSigHashes sigHashes) {
+            this.signatures = signatures;
+            this.sigHashes = sigHashes;
+        }
+
+        @Override
+        protected void compute() {
+            int size = signatures.size();
+            if (size <= INPUTS_PER_TASK) {
+                for (InputSignature signature : signatures)
+                    signature.calculate(sigHashes);
+            } else {
+                invokeAll(new SignTask(signatures.subList(0, size / 2), sigHashes),
+                        new SignTask(signatures.subList(size / 2, size), sigHashes));
+            }
+        }
+    }
 }
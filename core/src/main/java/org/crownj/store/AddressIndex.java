@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.UTXO;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An index of all outputs of the best chain by their scriptPubKey, and of where they were spent, so the history of
+ * any address can be queried without a wallet or a rescan. See
+ * {@link org.crownj.core.FullPrunedBlockChain#setAddressIndex(AddressIndex)}.
+ */
+public interface AddressIndex extends ChainIndex {
+    /** Spent by fields of outputs that are unspent, or whose spending transaction isn't known. */
+    int UNKNOWN = -1;
+
+    /** An output paid to a script. */
+    class Posting {
+        /** The transaction that created the output. */
+        public final Sha256Hash txId;
+        /** The height of its block. */
+        public final int height;
+        /** The position of the transaction in its block. */
+        public final int position;
+        /** The index of the output in the transaction. */
+        public final int vout;
+        public final Coin value;
+        /** The height of the block that spent the output, or {@link #UNKNOWN} if it is unspent. */
+        public final int spentHeight;
+        /**
+         * The position of the spending transaction in its block, or {@link #UNKNOWN} if the output is unspent or its
+         * block was reconnected from undo data without transactions.
+         */
+        public final int spentPosition;
+
+        public Posting(Sha256Hash txId, int height, int position, int vout, Coin value, int spentHeight,
+                       int spentPosition) {
+            this.txId = checkNotNull(txId);
+            this.height = height;
+            this.position = position;
+            this.vout = vout;
+            this.value = checkNotNull(value);
+            this.spentHeight = spentHeight;
+            this.spentPosition = spentPosition;
+        }
+
+        public boolean isSpent() {
+            return spentHeight != UNKNOWN;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Posting other = (Posting) o;
+            return height == other.height && position == other.position && vout == other.vout
+                    && spentHeight == other.spentHeight && spentPosition == other.spentPosition
+                    && txId.equals(other.txId) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(txId, height, position, vout, value, spentHeight, spentPosition);
+        }
+
+        @Override
+        public String toString() {
+            MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).add("tx", txId)
+                    .add("height", height).add("position", position).add("vout", vout).add("value", value.toFriendlyString());
+            if (isSpent())
+                helper.add("spentHeight", spentHeight).add("spentPosition", spentPosition);
+            return helper.toString();
+        }
+    }
+
+    /**
+     * Returns the outputs paid to the given scriptPubKey in blocks from the first to the last height, both inclusive,
+     * ordered by height, position and index.
+     */
+    List<Posting> getPostings(byte[] scriptPubKey, int fromHeight, int toHeight) throws BlockStoreException;
+
+    /**
+     * Adds the outputs created and spent by a block to the current batch.
+     *
+     * @param txIds the IDs of the transactions of the block in order, which give the positions of the created outputs
+     * @param created the outputs created by the block
+     * @param spent the outputs spent by the block
+     * @param spentBy the position of the transaction that spent each of the spent outputs, or null if not known
+     */
+    void connectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds, List<UTXO> created, List<UTXO> spent,
+                      @Nullable List<Integer> spentBy) throws BlockStoreException;
+
+    /**
+     * Reverts a block at the top of the index in the current batch. The outputs must be the same as when the block was
+     * connected.
+     */
+    void disconnectBlock(Sha256Hash blockHash, int height, List<UTXO> created, List<UTXO> spent)
+            throws BlockStoreException;
+}
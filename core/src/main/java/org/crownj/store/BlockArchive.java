@@ -0,0 +1,462 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Block;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.ProtocolException;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Utils;
+import org.crownj.utils.Threading;
+import com.google.common.base.Predicate;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An append-only archive of full blocks, so that wallets can be rescanned and historical blocks served without
+ * downloading them again. {@link BlockStore}s only keep headers (and full pruned stores UTXOs and undo data), so this
+ * complements them rather than replacing them.</p>
+ *
+ * <p>Blocks are appended to segment files in the same format as the reference client's {@code blk?????.dat} files,
+ * so they can be read back with {@link org.crownj.utils.BlockFileLoader} as well. A memory mapped hash table maps
+ * block hashes to their segment and offset. Segments are memory mapped for reading, so
+ * {@link #getBlockBytes(Sha256Hash)} can return the serialized block without copying it.</p>
+ *
+ * <p>Old blocks can be pruned by height, see {@link #setPruneDepth(int)}. Whole segments are deleted at a time, so a
+ * few more blocks than asked for are kept. Only the archive's process may open it at a time.</p>
+ */
+public class BlockArchive implements BlockSource {
+    private static final Logger log = LoggerFactory.getLogger(BlockArchive.class);
+    protected final ReentrantLock lock = Threading.lock(BlockArchive.class);
+
+    /** The default size after which a new segment file is started. */
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024 * 1024;
+    public static final String INDEX_MAGIC = "BLKI";
+    public static final String INDEX_FILE_NAME = "index.dat";
+
+    // The index is a MappedHashTable from block hash to (16 bytes):
+    //   4 bytes segment number
+    //   4 bytes offset of the serialized block in the segment
+    //   4 bytes length of the serialized block
+    //   4 bytes height
+    //
+    // Its header holds:
+    //   4 bytes number of the segment blocks are appended to
+    //   4 bytes length of that segment up to the end of its last indexed block
+    //   4 bytes height below which blocks may have been pruned
+    private static final int VALUE_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // Magic and length that precede each block in a segment.
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentSize;
+
+    // Used to stop other applications/processes from opening the archive.
+    private final FileLock fileLock;
+    private final RandomAccessFile lockFile;
+
+    @GuardedBy("lock") private MappedHashTable index;
+    @GuardedBy("lock") private int activeSegment, activeLength;
+    @GuardedBy("lock") private int prunedHeight;
+    @GuardedBy("lock") @Nullable private FileChannel activeChannel;
+    // Read only mappings of the segments, remapped when the active segment has grown beyond its mapping.
+    @GuardedBy("lock") private final Map<Integer, MappedByteBuffer> segmentMappings = new HashMap<>();
+    // Highest height of the blocks in each segment, to decide which ones can be pruned.
+    @GuardedBy("lock") private final TreeMap<Integer, Integer> segmentMaxHeights = new TreeMap<>();
+    @GuardedBy("lock") private int pruneDepth;
+    @GuardedBy("lock") private boolean closed;
+
+    /**
+     * Opens or creates an archive in the given directory, starting a new segment file after
+     * {@link #DEFAULT_SEGMENT_SIZE} bytes.
+     */
+    public BlockArchive(NetworkParameters params, File directory) throws BlockStoreException {
+        this(params, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens or creates an archive in the given directory, starting a new segment file once the current one has reached
+     * the given size. If the process crashed while writing, blocks that were appended but not yet indexed are
+     * truncated away.
+     */
+    public BlockArchive(NetworkParameters params, File directory, int segmentSize) throws BlockStoreException {
+        checkArgument(segmentSize > 0);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.segmentSize = segmentSize;
+        RandomAccessFile lockFile = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, ".lock"), "rw");
+            try {
+                fileLock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new ChainFileLockedException("Archive is already open in this process");
+            }
+            if (fileLock == null)
+                throw new ChainFileLockedException("Archive is already locked by another process");
+            this.lockFile = lockFile;
+            lock.lock();
+            try {
+                File indexFile = new File(directory, INDEX_FILE_NAME);
+                if (!indexFile.exists()) {
+                    if (segmentFile(0).exists())
+                        throw new BlockStoreException("Index of the archive in " + directory + " is missing");
+                    log.info("Creating new block archive in {}", directory);
+                }
+                index = new MappedHashTable(indexFile, INDEX_MAGIC, VALUE_SIZE, INITIAL_CAPACITY);
+                activeSegment = index.getHeaderInt(0);
+                activeLength = index.getHeaderInt(4);
+                prunedHeight = index.getHeaderInt(8);
+                for (MappedHashTable.Entry entry : index.entries())
+                    updateMaxHeight(entry.value.getInt(0), entry.value.getInt(12));
+                openActiveSegment();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            closeQuietly(lockFile);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(lockFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Prunes blocks that are more than the given number of blocks below the highest archived block whenever a segment
+     * fills up. Zero, the default, keeps all blocks.
+     */
+    public void setPruneDepth(int depth) {
+        checkArgument(depth >= 0);
+        lock.lock();
+        try {
+            pruneDepth = depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the given block, unless it is in the archive already. The block is written to disk by the kernel at its
+     * own pace, call {@link #flush()} to make sure it is.
+     */
+    public void put(Block block, int height) throws BlockStoreException {
+        Sha256Hash hash = block.getHash();
+        byte[] bytes = block.unsafecrownSerialize();
+        lock.lock();
+        try {
+            checkOpen();
+            if (index.get(hash.getBytes()) != null)
+                return;
+            if (activeLength > 0 && (long) activeLength + RECORD_HEADER_BYTES + bytes.length > segmentSize)
+                startNewSegment();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+            record.putInt((int) params.getPacketMagic());
+            byte[] length = new byte[4];
+            Utils.uint32ToByteArrayLE(bytes.length, length, 0);
+            record.put(length);
+            record.put(bytes);
+            ((Buffer) record).flip();
+            FileChannel channel = checkNotNull(activeChannel);
+            long position = activeLength;
+            while (record.hasRemaining())
+                position += channel.write(record, position);
+            ByteBuffer value = ByteBuffer.allocate(VALUE_SIZE);
+            value.putInt(activeSegment).putInt(activeLength + RECORD_HEADER_BYTES).putInt(bytes.length).putInt(height);
+            activeLength = (int) position;
+            index.put(hash.getBytes(), value.array());
+            writeHeader();
+            updateMaxHeight(activeSegment, height);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the block with the given hash is in the archive. */
+    public boolean contains(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return index.get(hash.getBytes()) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Block getBlock(Sha256Hash hash) throws BlockStoreException {
+        ByteBuffer bytes = getBlockBytes(hash);
+        if (bytes == null)
+            return null;
+        byte[] payload = new byte[bytes.remaining()];
+        bytes.get(payload);
+        try {
+            return params.getDefaultSerializer().makeBlock(payload);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Returns the serialized block with the given hash, or null if it isn't in the archive. The buffer is a read only
+     * view of the memory mapped segment, so nothing is copied until its bytes are read.
+     */
+    @Nullable
+    public ByteBuffer getBlockBytes(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            ByteBuffer value = index.get(hash.getBytes());
+            if (value == null)
+                return null;
+            int segment = value.getInt(0);
+            int offset = value.getInt(4);
+            int length = value.getInt(8);
+            MappedByteBuffer mapping = mapSegment(segment, offset + length);
+            if (mapping == null)
+                return null;
+            ByteBuffer bytes = mapping.asReadOnlyBuffer();
+            ((Buffer) bytes).position(offset);
+            ((Buffer) bytes).limit(offset + length);
+            return bytes.slice();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height the block with the given hash was archived with, or -1 if it isn't in the archive. */
+    public int getHeight(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            ByteBuffer value = index.get(hash.getBytes());
+            return value == null ? -1 : value.getInt(12);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks in the archive. */
+    public int size() {
+        lock.lock();
+        try {
+            return closed ? 0 : index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height below which blocks may have been pruned, zero if nothing was pruned yet. */
+    public int getPrunedHeight() {
+        lock.lock();
+        try {
+            return prunedHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all segments that only contain blocks below the given height, except for the one blocks are currently
+     * appended to. Returns the number of blocks removed.
+     */
+    public int prune(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            final List<Integer> segments = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> entry : segmentMaxHeights.entrySet())
+                if (entry.getKey() != activeSegment && entry.getValue() < height)
+                    segments.add(entry.getKey());
+            if (segments.isEmpty())
+                return 0;
+            prunedHeight = Math.max(prunedHeight, height);
+            writeHeader();
+            // Rewrite the index first, so a crash can't leave entries that point into deleted segments.
+            int removed = index.removeIf(new Predicate<MappedHashTable.Entry>() {
+                @Override
+                public boolean apply(MappedHashTable.Entry entry) {
+                    return segments.contains(entry.value.getInt(0));
+                }
+            });
+            for (Integer segment : segments) {
+                segmentMappings.remove(segment);
+                segmentMaxHeights.remove(segment);
+                File file = segmentFile(segment);
+                if (!file.delete())
+                    log.warn("Could not delete pruned segment {}", file);
+            }
+            log.info("Pruned {} blocks below height {} in {} segments", removed, height, segments.size());
+            return removed;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forces all appended blocks and the index to disk. */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (activeChannel != null)
+                activeChannel.force(false);
+            index.force();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes and closes the archive. It can't be used after that. */
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            flush();
+            closed = true;
+            index.close();
+            segmentMappings.clear();
+            if (activeChannel != null)
+                activeChannel.close();
+            fileLock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the file of the segment with the given number, in the naming scheme of the reference client. */
+    public File segmentFile(int segment) {
+        return new File(directory, String.format(Locale.US, "blk%05d.dat", segment));
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Archive closed");
+    }
+
+    @GuardedBy("lock")
+    private void writeHeader() {
+        index.putHeaderInt(0, activeSegment);
+        index.putHeaderInt(4, activeLength);
+        index.putHeaderInt(8, prunedHeight);
+    }
+
+    @GuardedBy("lock")
+    private void updateMaxHeight(int segment, int height) {
+        Integer maxHeight = segmentMaxHeights.get(segment);
+        if (maxHeight == null || maxHeight < height)
+            segmentMaxHeights.put(segment, height);
+    }
+
+    @GuardedBy("lock")
+    private void openActiveSegment() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(activeSegment), "rw");
+        activeChannel = file.getChannel();
+        if (activeChannel.size() > activeLength) {
+            log.info("Truncating {} bytes that were appended to {} but not indexed", activeChannel.size() - activeLength,
+                    segmentFile(activeSegment));
+            activeChannel.truncate(activeLength);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startNewSegment() throws IOException, BlockStoreException {
+        activeChannel.force(false);
+        activeChannel.close();
+        activeSegment++;
+        activeLength = 0;
+        writeHeader();
+        openActiveSegment();
+        if (pruneDepth > 0 && !segmentMaxHeights.isEmpty()) {
+            int bestHeight = 0;
+            for (int height : segmentMaxHeights.values())
+                bestHeight = Math.max(bestHeight, height);
+            if (bestHeight - pruneDepth > 0)
+                prune(bestHeight - pruneDepth);
+        }
+    }
+
+    /** Returns a mapping of the given segment that covers at least the given length, or null if the file is shorter. */
+    @GuardedBy("lock")
+    @Nullable
+    private MappedByteBuffer mapSegment(int segment, long length) throws IOException {
+        MappedByteBuffer mapping = segmentMappings.get(segment);
+        if (mapping != null && mapping.capacity() >= length)
+            return mapping;
+        File file = segmentFile(segment);
+        if (file.length() < length)
+            return null;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+        segmentMappings.put(segment, mapping);
+        return mapping;
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        try {
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            log.warn("Could not close {}", file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockArchive{" + directory + ", " + size() + " blocks}";
+    }
+}
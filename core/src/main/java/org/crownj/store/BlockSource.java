@@ -0,0 +1,33 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Block;
+import org.crownj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * A source of full blocks, including their transactions. A {@link BlockStore} only keeps headers, so anything that
+ * serves blocks to other peers, like {@link org.crownj.core.PeerServer}, needs one of these. Implementations must be
+ * thread safe.
+ */
+public interface BlockSource {
+    /** Returns the block with the given hash, or null if it is not available. */
+    @Nullable
+    Block getBlock(Sha256Hash hash) throws BlockStoreException;
+}
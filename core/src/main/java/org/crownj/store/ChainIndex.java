@@ -0,0 +1,47 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>An optional index of the verified chain, kept up to date by {@link org.crownj.core.FullPrunedBlockChain}. Blocks
+ * are connected and disconnected in batches, which are committed together with the batch of the block store, and
+ * aborted with it. Changes of a batch are not visible until it is committed.</p>
+ *
+ * <p>The index remembers the hashes of the blocks it was given, so the chain can check that it matches the verified
+ * chain head before using it.</p>
+ */
+public interface ChainIndex {
+    /** Returns the height of the last block connected to the index, or zero if none was. */
+    int getBestHeight() throws BlockStoreException;
+
+    /** Returns the hash of the block connected at the given height, or null if there is none. */
+    @Nullable
+    Sha256Hash getBlockHash(int height) throws BlockStoreException;
+
+    /** Applies the current batch, and starts a new one. */
+    void commitBatchWrite() throws BlockStoreException;
+
+    /** Discards the current batch, and starts a new one. */
+    void abortBatchWrite();
+
+    /** Closes the index. It can't be used after that. */
+    void close() throws BlockStoreException;
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.UTXO;
+import org.crownj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An {@link AddressIndex} in a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>. Outputs are keyed by
+ * the SHA-256 hash of their scriptPubKey followed by the height of their block, so the history of a script in a range
+ * of heights is a single range scan. Every output takes about 100 bytes before compression.</p>
+ *
+ * <p>Batches are kept in memory until they are committed, and then written atomically.</p>
+ */
+public class LevelDBAddressIndex implements AddressIndex {
+    protected final ReentrantLock lock = Threading.lock(LevelDBAddressIndex.class);
+
+    // Keys start with the type, followed by:
+    //   POSTING: 32 bytes script hash, 4 bytes height, 32 bytes transaction ID, 4 bytes index of the output
+    //   BLOCK: 4 bytes height
+    //   BEST_HEIGHT: nothing
+    // All numbers are big endian, so postings sort by height.
+    //
+    // Posting values are 4 bytes position of the transaction, 8 bytes value, 4 bytes spent height and 4 bytes spent
+    // position. Block values are the 32 byte hashes of the blocks.
+    private enum KeyType {
+        POSTING, BLOCK, BEST_HEIGHT
+    }
+    private static final int POSTING_KEY_SIZE = 1 + 32 + 4 + 32 + 4;
+    private static final int POSTING_VALUE_SIZE = 4 + 8 + 4 + 4;
+
+    private final File directory;
+    @GuardedBy("lock") private final DB db;
+    @GuardedBy("lock") private boolean closed;
+    // Writes of the current batch, null values are deletes.
+    @GuardedBy("lock") private final Map<ByteBuffer, byte[]> batch = new HashMap<>();
+
+    /** Opens or creates an index in the given directory, using the JNI/C++ version of LevelDB. */
+    public LevelDBAddressIndex(File directory) throws BlockStoreException {
+        this(directory, JniDBFactory.factory);
+    }
+
+    /** Opens or creates an index in the given directory, using the given factory. */
+    public LevelDBAddressIndex(File directory, DBFactory dbFactory) throws BlockStoreException {
+        this.directory = checkNotNull(directory);
+        Options options = new Options();
+        options.createIfMissing();
+        try {
+            db = dbFactory.open(directory, options);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public List<Posting> getPostings(byte[] scriptPubKey, int fromHeight, int toHeight) throws BlockStoreException {
+        checkArgument(fromHeight >= 0);
+        lock.lock();
+        try {
+            checkOpen();
+            List<Posting> postings = new ArrayList<>();
+            if (toHeight < fromHeight)
+                return postings;
+            byte[] scriptHash = Sha256Hash.hash(scriptPubKey);
+            ByteBuffer start = ByteBuffer.allocate(1 + 32 + 4);
+            start.put((byte) KeyType.POSTING.ordinal()).put(scriptHash).putInt(fromHeight);
+            try (DBIterator iterator = db.iterator()) {
+                for (iterator.seek(start.array()); iterator.hasNext(); iterator.next()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+                    if (key.remaining() != POSTING_KEY_SIZE || key.get() != KeyType.POSTING.ordinal())
+                        break;
+                    byte[] keyScriptHash = new byte[32];
+                    key.get(keyScriptHash);
+                    int height = key.getInt();
+                    if (!Arrays.equals(keyScriptHash, scriptHash) || height > toHeight)
+                        break;
+                    byte[] txId = new byte[32];
+                    key.get(txId);
+                    int vout = key.getInt();
+                    ByteBuffer value = ByteBuffer.wrap(entry.getValue());
+                    int position = value.getInt();
+                    Coin amount = Coin.valueOf(value.getLong());
+                    postings.add(new Posting(Sha256Hash.wrap(txId), height, position, vout, amount, value.getInt(),
+                            value.getInt()));
+                }
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            // Within a block, the keys are in the order of the transaction IDs.
+            Collections.sort(postings, new Comparator<Posting>() {
+                @Override
+                public int compare(Posting a, Posting b) {
+                    if (a.height != b.height)
+                        return Integer.compare(a.height, b.height);
+                    if (a.position != b.position)
+                        return Integer.compare(a.position, b.position);
+                    return Integer.compare(a.vout, b.vout);
+                }
+            });
+            return postings;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getBestHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] value = db.get(bestHeightKey());
+            return value == null ? 0 : ByteBuffer.wrap(value).getInt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] value = db.get(blockKey(height));
+            return value == null ? null : Sha256Hash.wrap(value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void connectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds, List<UTXO> created,
+                             List<UTXO> spent, @Nullable List<Integer> spentBy) throws BlockStoreException {
+        checkArgument(height > 0);
+        checkArgument(spentBy == null || spentBy.size() == spent.size());
+        lock.lock();
+        try {
+            checkOpen();
+            Map<Sha256Hash, Integer> positions = new HashMap<>();
+            for (int i = 0; i < txIds.size(); i++)
+                positions.put(txIds.get(i), i);
+            for (UTXO out : created) {
+                Integer position = positions.get(out.getHash());
+                if (position == null)
+                    throw new BlockStoreException("Output of unknown transaction " + out.getHash());
+                ByteBuffer value = ByteBuffer.allocate(POSTING_VALUE_SIZE);
+                value.putInt(position).putLong(out.getValue().value).putInt(UNKNOWN).putInt(UNKNOWN);
+                batch.put(postingKey(out), value.array());
+            }
+            for (int i = 0; i < spent.size(); i++)
+                markSpent(spent.get(i), height, spentBy == null ? UNKNOWN : spentBy.get(i));
+            batch.put(ByteBuffer.wrap(blockKey(height)), blockHash.getBytes());
+            batch.put(ByteBuffer.wrap(bestHeightKey()), ByteBuffer.allocate(4).putInt(height).array());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void disconnectBlock(Sha256Hash blockHash, int height, List<UTXO> created, List<UTXO> spent)
+            throws BlockStoreException {
+        checkArgument(height > 0);
+        lock.lock();
+        try {
+            checkOpen();
+            for (UTXO out : spent)
+                markSpent(out, UNKNOWN, UNKNOWN);
+            for (UTXO out : created)
+                batch.put(postingKey(out), null);
+            batch.put(ByteBuffer.wrap(blockKey(height)), null);
+            batch.put(ByteBuffer.wrap(bestHeightKey()), ByteBuffer.allocate(4).putInt(height - 1).array());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commitBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batch.isEmpty())
+                return;
+            try (WriteBatch writeBatch = db.createWriteBatch()) {
+                for (Map.Entry<ByteBuffer, byte[]> entry : batch.entrySet()) {
+                    if (entry.getValue() == null)
+                        writeBatch.delete(entry.getKey().array());
+                    else
+                        writeBatch.put(entry.getKey().array(), entry.getValue());
+                }
+                db.write(writeBatch);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            batch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abortBatchWrite() {
+        lock.lock();
+        try {
+            batch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            batch.clear();
+            db.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rewrites the spent height and position of the posting of the output. This reads the posting first, from the batch
+    // or the database, because the UTXO doesn't know the position of its transaction, which is part of the value. The
+    // read also catches spends of outputs the index never saw.
+    @GuardedBy("lock")
+    private void markSpent(UTXO out, int spentHeight, int spentPosition) throws BlockStoreException {
+        ByteBuffer key = postingKey(out);
+        byte[] value = batch.containsKey(key) ? batch.get(key) : db.get(key.array());
+        if (value == null)
+            throw new BlockStoreException("Address index is missing output " + out.getHash() + ":" + out.getIndex());
+        value = value.clone();
+        ByteBuffer.wrap(value).putInt(12, spentHeight).putInt(16, spentPosition);
+        batch.put(key, value);
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Index closed");
+    }
+
+    private static ByteBuffer postingKey(UTXO out) {
+        ByteBuffer key = ByteBuffer.allocate(POSTING_KEY_SIZE);
+        key.put((byte) KeyType.POSTING.ordinal()).put(Sha256Hash.hash(out.getScript().getProgram()))
+                .putInt(out.getHeight()).put(out.getHash().getBytes()).putInt((int) out.getIndex());
+        key.flip();
+        return key;
+    }
+
+    private static byte[] blockKey(int height) {
+        return ByteBuffer.allocate(5).put((byte) KeyType.BLOCK.ordinal()).putInt(height).array();
+    }
+
+    private static byte[] bestHeightKey() {
+        return new byte[] { (byte) KeyType.BEST_HEIGHT.ordinal() };
+    }
+
+    @Override
+    public String toString() {
+        return "LevelDBAddressIndex{" + directory + "}";
+    }
+}
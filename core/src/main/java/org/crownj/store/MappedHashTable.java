@@ -0,0 +1,314 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Utils;
+import com.google.common.base.Predicate;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A memory mapped hash table from 32 byte keys, like hashes, to fixed size values. Slots are found by linear probing
+ * and freed by shifting the following slots back, so there are no tombstones, and a lookup usually touches one page.
+ * The table doubles its capacity when it gets half full. Growing and {@link #removeIf(Predicate)} write a new file next
+ * to the old one and then move it into place, so the file on disk is always a complete table.</p>
+ *
+ * <p>Keys must be uniformly distributed in their last four bytes, which holds for the hashes of blocks and
+ * transactions. A small header is available to the owner of the table for its own bookkeeping. This class isn't
+ * thread safe, its owners lock around it.</p>
+ */
+class MappedHashTable {
+    // File format:
+    //   4 header bytes, the magic of the owner
+    //   4 bytes capacity, a power of two
+    //   4 bytes number of entries
+    //   4 bytes size of the values
+    //   112 bytes header of the owner
+    //
+    // Followed by the slots:
+    //    1 byte, one if the slot is used
+    //   32 bytes key
+    //    value
+    private static final int PROLOGUE_BYTES = 128;
+    private static final int OWNER_HEADER_OFFSET = 16;
+    /** Size of the header available to the owner. */
+    static final int OWNER_HEADER_BYTES = PROLOGUE_BYTES - OWNER_HEADER_OFFSET;
+    static final int KEY_SIZE = 32;
+
+    private final File file;
+    private final String magic;
+    private final int valueSize, slotSize;
+    private MappedByteBuffer buffer;
+    private int capacity, count;
+
+    /** An entry of the table. */
+    static class Entry {
+        final byte[] key;
+        final ByteBuffer value;
+
+        Entry(byte[] key, ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Opens the table in the given file, or creates it with the given initial capacity if the file doesn't exist.
+     * The magic is four ASCII characters that identify the owner.
+     */
+    MappedHashTable(File file, String magic, int valueSize, int initialCapacity) throws IOException,
+            BlockStoreException {
+        checkArgument(magic.length() == 4);
+        checkArgument(valueSize > 0);
+        checkArgument(Integer.bitCount(initialCapacity) == 1, "Capacity must be a power of two: %s", initialCapacity);
+        this.file = file;
+        this.magic = magic;
+        this.valueSize = valueSize;
+        this.slotSize = 1 + KEY_SIZE + valueSize;
+        if (file.exists()) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        randomAccessFile.length());
+            }
+            byte[] header = new byte[4];
+            buffer.get(header);
+            if (!new String(header, StandardCharsets.US_ASCII).equals(magic))
+                throw new BlockStoreException("Header bytes of " + file + " do not equal " + magic);
+            capacity = buffer.getInt(4);
+            count = buffer.getInt(8);
+            if (buffer.getInt(12) != valueSize)
+                throw new BlockStoreException("Unexpected value size in " + file + ": " + buffer.getInt(12));
+            if (Integer.bitCount(capacity) != 1 || buffer.capacity() != PROLOGUE_BYTES + (long) capacity * slotSize)
+                throw new BlockStoreException("Size of " + file + " does not match its capacity: " + capacity);
+        } else {
+            rebuild(initialCapacity, new ArrayList<Entry>(), new byte[OWNER_HEADER_BYTES]);
+        }
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        return count;
+    }
+
+    /** Returns a read only view of the value for the given key, or null if the key isn't in the table. */
+    @Nullable
+    ByteBuffer get(byte[] key) {
+        int slot = find(key);
+        return slot < 0 ? null : value(slot);
+    }
+
+    /** Adds the given entry, or replaces the value of an existing one. Returns true if the key was new. */
+    boolean put(byte[] key, byte[] value) throws IOException {
+        checkArgument(key.length == KEY_SIZE && value.length == valueSize);
+        int slot = find(key);
+        if (slot >= 0) {
+            ((Buffer) buffer).position(position(slot) + 1 + KEY_SIZE);
+            buffer.put(value);
+            return false;
+        }
+        if ((count + 1) * 2 > capacity)
+            rebuild(capacity * 2, entries(), ownerHeader());
+        insert(key, value);
+        return true;
+    }
+
+    /** Removes the entry with the given key. Returns true if it was in the table. */
+    boolean remove(byte[] key) {
+        int hole = find(key);
+        if (hole < 0)
+            return false;
+        int mask = capacity - 1;
+        byte[] scratch = new byte[slotSize];
+        for (int slot = (hole + 1) & mask; buffer.get(position(slot)) != 0; slot = (slot + 1) & mask) {
+            ((Buffer) buffer).position(position(slot) + 1);
+            byte[] otherKey = new byte[KEY_SIZE];
+            buffer.get(otherKey);
+            int home = home(otherKey);
+            // Entries whose home is cyclically between the hole and their slot can stay, the others move back.
+            boolean stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (stays)
+                continue;
+            ((Buffer) buffer).position(position(slot));
+            buffer.get(scratch);
+            ((Buffer) buffer).position(position(hole));
+            buffer.put(scratch);
+            hole = slot;
+        }
+        buffer.put(position(hole), (byte) 0);
+        count--;
+        buffer.putInt(8, count);
+        return true;
+    }
+
+    /** Returns copies of all entries, in no particular order. */
+    List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(count);
+        for (int slot = 0; slot < capacity; slot++) {
+            if (buffer.get(position(slot)) == 0)
+                continue;
+            byte[] key = new byte[KEY_SIZE];
+            byte[] value = new byte[valueSize];
+            ((Buffer) buffer).position(position(slot) + 1);
+            buffer.get(key);
+            buffer.get(value);
+            entries.add(new Entry(key, ByteBuffer.wrap(value)));
+        }
+        return entries;
+    }
+
+    /** Removes all entries that match the given predicate, by writing a new table. Returns the number removed. */
+    int removeIf(Predicate<Entry> predicate) throws IOException {
+        List<Entry> kept = new ArrayList<>(count);
+        for (Entry entry : entries())
+            if (!predicate.apply(entry))
+                kept.add(entry);
+        int removed = count - kept.size();
+        if (removed > 0)
+            rebuild(capacity, kept, ownerHeader());
+        return removed;
+    }
+
+    int getHeaderInt(int offset) {
+        checkHeaderRange(offset, 4);
+        return buffer.getInt(OWNER_HEADER_OFFSET + offset);
+    }
+
+    void putHeaderInt(int offset, int value) {
+        checkHeaderRange(offset, 4);
+        buffer.putInt(OWNER_HEADER_OFFSET + offset, value);
+    }
+
+    byte[] getHeaderBytes(int offset, int length) {
+        checkHeaderRange(offset, length);
+        byte[] bytes = new byte[length];
+        ((Buffer) buffer).position(OWNER_HEADER_OFFSET + offset);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    void putHeaderBytes(int offset, byte[] bytes) {
+        checkHeaderRange(offset, bytes.length);
+        ((Buffer) buffer).position(OWNER_HEADER_OFFSET + offset);
+        buffer.put(bytes);
+    }
+
+    /** Forces the table to disk. */
+    void force() {
+        buffer.force();
+    }
+
+    /** Forces the table to disk and releases it. It can't be used after that. */
+    void close() {
+        buffer.force();
+        buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+    }
+
+    private void checkHeaderRange(int offset, int length) {
+        checkArgument(offset >= 0 && offset + length <= OWNER_HEADER_BYTES, "Outside of header: %s", offset);
+    }
+
+    private byte[] ownerHeader() {
+        return getHeaderBytes(0, OWNER_HEADER_BYTES);
+    }
+
+    private int position(int slot) {
+        // The file size is checked to fit into an int when it is created.
+        return PROLOGUE_BYTES + slot * slotSize;
+    }
+
+    private ByteBuffer value(int slot) {
+        ByteBuffer value = buffer.asReadOnlyBuffer();
+        int start = position(slot) + 1 + KEY_SIZE;
+        ((Buffer) value).position(start);
+        ((Buffer) value).limit(start + valueSize);
+        return value.slice();
+    }
+
+    private int home(byte[] key) {
+        return (int) Utils.readUint32(key, KEY_SIZE - 4) & (capacity - 1);
+    }
+
+    private int find(byte[] key) {
+        checkArgument(key.length == KEY_SIZE);
+        checkState(buffer != null, "Table closed");
+        byte[] scratch = new byte[KEY_SIZE];
+        int mask = capacity - 1;
+        for (int slot = home(key); buffer.get(position(slot)) != 0; slot = (slot + 1) & mask) {
+            ((Buffer) buffer).position(position(slot) + 1);
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, key))
+                return slot;
+        }
+        return -1;
+    }
+
+    private void insert(byte[] key, byte[] value) {
+        int mask = capacity - 1;
+        int slot = home(key);
+        while (buffer.get(position(slot)) != 0)
+            slot = (slot + 1) & mask;
+        ((Buffer) buffer).position(position(slot) + 1);
+        buffer.put(key);
+        buffer.put(value);
+        // The flag makes the slot visible, so it is written last.
+        buffer.put(position(slot), (byte) 1);
+        count++;
+        buffer.putInt(8, count);
+    }
+
+    private void rebuild(int capacity, List<Entry> entries, byte[] ownerHeader) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        long length = PROLOGUE_BYTES + (long) capacity * slotSize;
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Table too large to map: " + length);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(length);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        buffer.put(magic.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(4, capacity);
+        buffer.putInt(12, valueSize);
+        this.capacity = capacity;
+        this.count = 0;
+        buffer.putInt(8, 0);
+        putHeaderBytes(0, ownerHeader);
+        for (Entry entry : entries) {
+            byte[] value = new byte[valueSize];
+            entry.value.duplicate().get(value);
+            insert(entry.key, value);
+        }
+        buffer.force();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.utils.Threading;
+import com.google.common.collect.ImmutableList;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link TransactionIndex} on disk. Transaction IDs are kept in a memory mapped hash table together with the height
+ * and position of their block, so a lookup is one read of the table plus one read of the block hash at that height,
+ * from a flat file of block hashes indexed by height. An entry takes 41 bytes, and the table is at most half full.</p>
+ *
+ * <p>Batches are kept in memory until they are committed. If the process dies while a batch is being applied, the
+ * index can't be opened again and has to be deleted and rebuilt by replaying the chain. Only one process may open the
+ * index at a time.</p>
+ */
+public class MappedTransactionIndex implements TransactionIndex {
+    private static final Logger log = LoggerFactory.getLogger(MappedTransactionIndex.class);
+    protected final ReentrantLock lock = Threading.lock(MappedTransactionIndex.class);
+
+    public static final String INDEX_MAGIC = "TXIX";
+    public static final String INDEX_FILE_NAME = "txindex.dat";
+    public static final String BLOCKS_FILE_NAME = "blocks.dat";
+
+    // The table maps transaction IDs to (8 bytes):
+    //   4 bytes height of the block
+    //   4 bytes position in the block
+    //
+    // Its header holds:
+    //   4 bytes one while a batch is being applied, else zero
+    //   4 bytes best height
+    //
+    // The blocks file holds the 32 byte hashes of the connected blocks, by height.
+    private static final int VALUE_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final File directory;
+    private final FileLock fileLock;
+    private final RandomAccessFile lockFile;
+
+    @GuardedBy("lock") private final MappedHashTable table;
+    @GuardedBy("lock") private final FileChannel blocks;
+    @GuardedBy("lock") private int bestHeight;
+    @GuardedBy("lock") private boolean closed;
+
+    // Connected and disconnected blocks of the current batch, in order.
+    private static class Change {
+        final boolean connect;
+        final Sha256Hash blockHash;
+        final int height;
+        final List<Sha256Hash> txIds;
+
+        Change(boolean connect, Sha256Hash blockHash, int height, List<Sha256Hash> txIds) {
+            this.connect = connect;
+            this.blockHash = checkNotNull(blockHash);
+            this.height = height;
+            this.txIds = ImmutableList.copyOf(txIds);
+        }
+    }
+    @GuardedBy("lock") private final List<Change> batch = new ArrayList<>();
+
+    /** Opens or creates an index in the given directory. */
+    public MappedTransactionIndex(File directory) throws BlockStoreException {
+        this.directory = checkNotNull(directory);
+        RandomAccessFile lockFile = null;
+        FileChannel blocks = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, ".lock"), "rw");
+            try {
+                fileLock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new ChainFileLockedException("Index is already open in this process");
+            }
+            if (fileLock == null)
+                throw new ChainFileLockedException("Index is already locked by another process");
+            this.lockFile = lockFile;
+            table = new MappedHashTable(new File(directory, INDEX_FILE_NAME), INDEX_MAGIC, VALUE_SIZE,
+                    INITIAL_CAPACITY);
+            if (table.getHeaderInt(0) != 0)
+                throw new BlockStoreException("The transaction index in " + directory
+                        + " was interrupted while being updated, delete it and replay the chain to rebuild it");
+            bestHeight = table.getHeaderInt(4);
+            blocks = new RandomAccessFile(new File(directory, BLOCKS_FILE_NAME), "rw").getChannel();
+            this.blocks = blocks;
+        } catch (IOException e) {
+            closeQuietly(blocks, lockFile);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(blocks, lockFile);
+            throw e;
+        }
+    }
+
+    @Override
+    @Nullable
+    public Location getLocation(Sha256Hash txId) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            ByteBuffer value = table.get(txId.getBytes());
+            if (value == null)
+                return null;
+            int height = value.getInt(0);
+            // Left behind by a disconnected block whose transactions weren't all known.
+            if (height > bestHeight)
+                return null;
+            Sha256Hash blockHash = readBlockHash(height);
+            if (blockHash == null)
+                throw new BlockStoreException("Transaction index is missing the block at height " + height);
+            return new Location(blockHash, height, value.getInt(4));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getBestHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return bestHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return height > 0 && height <= bestHeight ? readBlockHash(height) : null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the index. */
+    public int size() {
+        lock.lock();
+        try {
+            return closed ? 0 : table.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void connectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds) throws BlockStoreException {
+        checkArgument(height > 0);
+        lock.lock();
+        try {
+            checkOpen();
+            batch.add(new Change(true, blockHash, height, txIds));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void disconnectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds) throws BlockStoreException {
+        checkArgument(height > 0);
+        lock.lock();
+        try {
+            checkOpen();
+            batch.add(new Change(false, blockHash, height, txIds));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commitBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batch.isEmpty())
+                return;
+            table.putHeaderInt(0, 1);
+            for (Change change : batch) {
+                if (change.connect) {
+                    ByteBuffer value = ByteBuffer.allocate(VALUE_SIZE);
+                    for (int i = 0; i < change.txIds.size(); i++) {
+                        value.putInt(0, change.height).putInt(4, i);
+                        table.put(change.txIds.get(i).getBytes(), value.array());
+                    }
+                    writeBlockHash(change.height, change.blockHash);
+                    bestHeight = change.height;
+                } else {
+                    for (Sha256Hash txId : change.txIds) {
+                        // A duplicated transaction (see BIP30) may still be indexed in its earlier block.
+                        ByteBuffer value = table.get(txId.getBytes());
+                        if (value != null && value.getInt(0) == change.height)
+                            table.remove(txId.getBytes());
+                    }
+                    bestHeight = change.height - 1;
+                }
+            }
+            batch.clear();
+            table.putHeaderInt(4, bestHeight);
+            table.putHeaderInt(0, 0);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abortBatchWrite() {
+        lock.lock();
+        try {
+            batch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forces the index to disk. */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            blocks.force(false);
+            table.force();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            if (!batch.isEmpty())
+                log.warn("Closing transaction index with {} uncommitted blocks", batch.size());
+            flush();
+            closed = true;
+            table.close();
+            blocks.close();
+            fileLock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Index closed");
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Sha256Hash readBlockHash(int height) throws IOException {
+        ByteBuffer hash = ByteBuffer.allocate(32);
+        long position = (long) height * 32;
+        while (hash.hasRemaining()) {
+            int read = blocks.read(hash, position + hash.position());
+            if (read < 0)
+                return null;
+        }
+        return Sha256Hash.wrap(hash.array());
+    }
+
+    @GuardedBy("lock")
+    private void writeBlockHash(int height, Sha256Hash hash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(hash.getBytes());
+        long position = (long) height * 32;
+        while (buffer.hasRemaining())
+            blocks.write(buffer, position + buffer.position());
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel, @Nullable RandomAccessFile file) {
+        try {
+            if (channel != null)
+                channel.close();
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            log.warn("Could not close {}", file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedTransactionIndex{" + directory + ", " + size() + " transactions}";
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.utils.Threading;
+import com.google.common.primitives.Longs;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An append-only archive of serialized transactions keyed by their ID, so a {@link org.crownj.wallet.Wallet} can
+ * move old transactions off the heap, see {@link org.crownj.wallet.Wallet#setTransactionArchive(TransactionArchive,
+ * int)}. The transactions are appended to a data file, and a memory mapped hash table maps their IDs to their offset.
+ * The data file is memory mapped for reading, so a lookup doesn't copy anything but the transaction itself.</p>
+ *
+ * <p>Each transaction is checksummed, so a transaction that was only partly written before a crash is never returned.
+ * Transactions can't be removed. Only one process may open the archive at a time.</p>
+ */
+public class TransactionArchive {
+    private static final Logger log = LoggerFactory.getLogger(TransactionArchive.class);
+    protected final ReentrantLock lock = Threading.lock(TransactionArchive.class);
+
+    public static final String INDEX_MAGIC = "TXAR";
+    public static final String INDEX_FILE_NAME = "txarchive-index.dat";
+    public static final String DATA_FILE_NAME = "txarchive.dat";
+
+    // The index is a MappedHashTable from transaction ID to (16 bytes):
+    //   8 bytes offset of the serialized transaction in the data file
+    //   4 bytes length of the serialized transaction
+    //   4 bytes CRC32 of the serialized transaction
+    //
+    // Its header holds:
+    //   8 bytes length of the data file up to the end of its last indexed transaction
+    private static final int VALUE_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File directory;
+
+    // Used to stop other applications/processes from opening the archive.
+    private final FileLock fileLock;
+    private final RandomAccessFile lockFile;
+
+    @GuardedBy("lock") private final MappedHashTable index;
+    @GuardedBy("lock") private final FileChannel data;
+    @GuardedBy("lock") private long dataLength;
+    // Read only mapping of the data file, remapped when it has grown beyond it.
+    @GuardedBy("lock") @Nullable private MappedByteBuffer mapping;
+    @GuardedBy("lock") private boolean closed;
+
+    /**
+     * Opens or creates an archive in the given directory. If the process crashed while writing, transactions that were
+     * appended but not yet indexed are truncated away.
+     */
+    public TransactionArchive(File directory) throws BlockStoreException {
+        this.directory = checkNotNull(directory);
+        RandomAccessFile lockFile = null;
+        FileChannel data = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, ".lock"), "rw");
+            try {
+                fileLock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new ChainFileLockedException("Archive is already open in this process");
+            }
+            if (fileLock == null)
+                throw new ChainFileLockedException("Archive is already locked by another process");
+            this.lockFile = lockFile;
+            File indexFile = new File(directory, INDEX_FILE_NAME);
+            File dataFile = new File(directory, DATA_FILE_NAME);
+            if (!indexFile.exists() && dataFile.exists())
+                throw new BlockStoreException("Index of the archive in " + directory + " is missing");
+            index = new MappedHashTable(indexFile, INDEX_MAGIC, VALUE_SIZE, INITIAL_CAPACITY);
+            dataLength = Longs.fromByteArray(index.getHeaderBytes(0, 8));
+            data = new RandomAccessFile(dataFile, "rw").getChannel();
+            if (data.size() > dataLength) {
+                log.info("Truncating {} bytes that were appended to {} but not indexed", data.size() - dataLength,
+                        dataFile);
+                data.truncate(dataLength);
+            } else if (data.size() < dataLength) {
+                throw new BlockStoreException("Data file of the archive in " + directory + " is truncated");
+            }
+            this.data = data;
+        } catch (IOException e) {
+            closeQuietly(data, lockFile);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(data, lockFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the given serialized transaction, unless one with the same ID is in the archive already. It is written to
+     * disk by the kernel at its own pace, call {@link #flush()} to make sure it is.
+     */
+    public void put(Sha256Hash txId, byte[] bytes) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (index.get(txId.getBytes()) != null)
+                return;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = dataLength;
+            while (buffer.hasRemaining())
+                position += data.write(buffer, position);
+            ByteBuffer value = ByteBuffer.allocate(VALUE_SIZE);
+            value.putLong(dataLength).putInt(bytes.length).putInt((int) checksum(bytes));
+            dataLength = position;
+            index.put(txId.getBytes(), value.array());
+            index.putHeaderBytes(0, Longs.toByteArray(dataLength));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the serialized transaction with the given ID, or null if it isn't in the archive. */
+    @Nullable
+    public byte[] get(Sha256Hash txId) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            ByteBuffer value = index.get(txId.getBytes());
+            if (value == null)
+                return null;
+            long offset = value.getLong(0);
+            int length = value.getInt(8);
+            byte[] bytes = new byte[length];
+            if (offset + length <= Integer.MAX_VALUE) {
+                ByteBuffer view = map(offset + length).asReadOnlyBuffer();
+                ((Buffer) view).position((int) offset);
+                view.get(bytes);
+            } else {
+                // Beyond what a single mapping can cover.
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (data.read(buffer, offset + buffer.position()) < 0)
+                        throw new BlockStoreException("Data file of the archive in " + directory + " is truncated");
+                }
+            }
+            if ((int) checksum(bytes) != value.getInt(12))
+                throw new BlockStoreException("Transaction " + txId + " is corrupt in the archive in " + directory);
+            return bytes;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the transaction with the given ID is in the archive. */
+    public boolean contains(Sha256Hash txId) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return index.get(txId.getBytes()) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the archive. */
+    public int size() {
+        lock.lock();
+        try {
+            return closed ? 0 : index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forces all appended transactions and the index to disk. */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            // The data first, so the index never points to transactions that aren't on disk.
+            data.force(false);
+            index.force();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes and closes the archive. It can't be used after that. */
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            flush();
+            closed = true;
+            index.close();
+            mapping = null;
+            data.close();
+            fileLock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Archive closed");
+    }
+
+    /** Returns a mapping of the data file that covers at least the given length. */
+    @GuardedBy("lock")
+    private MappedByteBuffer map(long length) throws IOException {
+        checkArgument(length <= dataLength);
+        if (mapping == null || mapping.capacity() < length)
+            mapping = data.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(dataLength, Integer.MAX_VALUE));
+        return mapping;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel, @Nullable RandomAccessFile file) {
+        try {
+            if (channel != null)
+                channel.close();
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            log.warn("Could not close {}", file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionArchive{" + directory + ", " + size() + " transactions}";
+    }
+}
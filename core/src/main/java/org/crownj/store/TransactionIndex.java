@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An index from transaction ID to the block of the best chain that contains the transaction, so transactions can be
+ * found after their outputs were spent and the {@link FullPrunedBlockStore} forgot about them. See
+ * {@link org.crownj.core.FullPrunedBlockChain#setTransactionIndex(TransactionIndex)}.
+ */
+public interface TransactionIndex extends ChainIndex {
+    /** Where a transaction is in the best chain. */
+    class Location {
+        /** The hash of the block that contains the transaction. */
+        public final Sha256Hash blockHash;
+        /** The height of the block. */
+        public final int height;
+        /** The position of the transaction in the block, zero for the coinbase. */
+        public final int position;
+
+        public Location(Sha256Hash blockHash, int height, int position) {
+            this.blockHash = checkNotNull(blockHash);
+            this.height = height;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Location other = (Location) o;
+            return height == other.height && position == other.position && blockHash.equals(other.blockHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(blockHash, height, position);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("block", blockHash).add("height", height)
+                    .add("position", position).toString();
+        }
+    }
+
+    /** Returns where the transaction with the given ID is in the best chain, or null if it isn't in the index. */
+    @Nullable
+    Location getLocation(Sha256Hash txId) throws BlockStoreException;
+
+    /** Adds the transactions of a block, in the order they have in the block, to the current batch. */
+    void connectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds) throws BlockStoreException;
+
+    /**
+     * Removes the transactions of the block at the top of the index in the current batch. The transactions must be
+     * the same as when the block was connected, though their order doesn't matter.
+     */
+    void disconnectBlock(Sha256Hash blockHash, int height, List<Sha256Hash> txIds) throws BlockStoreException;
+}
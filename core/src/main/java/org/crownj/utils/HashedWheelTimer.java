@@ -0,0 +1,261 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.utils;
+
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A timer for large numbers of timeouts that are often rescheduled or cancelled before they expire, like socket
+ * timeouts. Time is divided into ticks, and timeouts are kept in a ring of buckets indexed by the tick they expire in,
+ * so scheduling, rescheduling and cancelling take constant time, and a {@link Timeout} can be rescheduled any number
+ * of times without allocating. The price is precision: a timeout expires up to one tick late.</p>
+ *
+ * <p>A single daemon thread advances the wheel, and runs the tasks of expired timeouts. Tasks should therefore be
+ * quick and hand off any real work to an executor. The thread is started by the first timeout scheduled and only wakes
+ * up once per tick while timeouts are pending.</p>
+ *
+ * <p>{@link Threading#TIMER_WHEEL} is shared by the whole library. Instances are thread safe.</p>
+ */
+public class HashedWheelTimer {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final String name;
+    private final long tickNanos;
+    private final long startNanos;
+    private final int mask;
+
+    private final ReentrantLock lock = Threading.lock(HashedWheelTimer.class);
+    private final Condition scheduled = lock.newCondition();
+    // Heads of the doubly linked lists of timeouts, indexed by their deadline tick modulo the wheel size.
+    @GuardedBy("lock") private final Timeout[] wheel;
+    // The last tick the worker processed.
+    @GuardedBy("lock") private long tick;
+    @GuardedBy("lock") private int pending;
+    @GuardedBy("lock") @Nullable private Thread worker;
+    @GuardedBy("lock") private boolean stopped;
+
+    /**
+     * A task that runs once its delay has passed. It can be rescheduled and cancelled any number of times, but only
+     * be pending once at a time.
+     */
+    public class Timeout {
+        private final Runnable task;
+        @GuardedBy("lock") private long deadline;
+        @GuardedBy("lock") @Nullable private Timeout prev, next;
+        @GuardedBy("lock") private boolean isPending;
+
+        private Timeout(Runnable task) {
+            this.task = checkNotNull(task);
+        }
+
+        /**
+         * Schedules the task to run after the given delay. If it was pending already, the previous delay is
+         * forgotten.
+         */
+        public void reschedule(long delay, TimeUnit unit) {
+            checkArgument(delay >= 0, "Negative delay: %s", delay);
+            lock.lock();
+            try {
+                checkState(!stopped, "Timer is stopped");
+                if (isPending)
+                    unlink(this);
+                long elapsedNanos = System.nanoTime() - startNanos;
+                // Skip the ticks that passed while the wheel was empty, there was nothing to do in them.
+                if (pending == 0)
+                    tick = Math.max(tick, elapsedNanos / tickNanos - 1);
+                // Round up, so the timeout never expires early.
+                long ticks = (elapsedNanos + unit.toNanos(delay) + tickNanos - 1) / tickNanos;
+                deadline = Math.max(ticks, tick + 1);
+                link(this);
+                if (worker == null) {
+                    worker = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            work();
+                        }
+                    }, name);
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+                scheduled.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Cancels the timeout. Returns true if it was pending, false if it had expired or was never scheduled. */
+        public boolean cancel() {
+            lock.lock();
+            try {
+                if (!isPending)
+                    return false;
+                unlink(this);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Returns true if the timeout is scheduled and has not expired or been cancelled yet. */
+        public boolean isPending() {
+            lock.lock();
+            try {
+                return isPending;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Creates a timer with the given name for its thread, tick duration and number of buckets. The number of buckets
+     * is rounded up to a power of two. Timeouts further ahead than one round of the wheel share buckets with earlier
+     * ones, which costs a little time on each tick but is otherwise harmless.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int buckets) {
+        checkArgument(tickDuration > 0, "Tick duration must be positive: %s", tickDuration);
+        checkArgument(buckets > 0 && buckets <= 1 << 30, "Invalid number of buckets: %s", buckets);
+        this.name = checkNotNull(name);
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startNanos = System.nanoTime();
+        int size = Integer.highestOneBit(buckets);
+        if (size < buckets)
+            size <<= 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /** Creates an unscheduled timeout for the given task, see {@link Timeout#reschedule(long, TimeUnit)}. */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    /** Schedules the given task to run after the given delay. */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task);
+        timeout.reschedule(delay, unit);
+        return timeout;
+    }
+
+    /** Returns the number of timeouts currently pending. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Cancels all pending timeouts and stops the thread. The timer can't be used after that. */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            for (int i = 0; i < wheel.length; i++)
+                while (wheel[i] != null)
+                    unlink(wheel[i]);
+            scheduled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void link(Timeout timeout) {
+        int bucket = (int) (timeout.deadline & mask);
+        Timeout head = wheel[bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        wheel[bucket] = timeout;
+        timeout.isPending = true;
+        pending++;
+    }
+
+    @GuardedBy("lock")
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[(int) (timeout.deadline & mask)] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.isPending = false;
+        pending--;
+    }
+
+    private void work() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (pending == 0 && !stopped)
+                    scheduled.awaitUninterruptibly();
+                if (stopped)
+                    return;
+                long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    scheduled.awaitNanos(sleepNanos);
+                    continue;
+                }
+                tick++;
+                Timeout timeout = wheel[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= tick) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+            } catch (InterruptedException e) {
+                // Not expected, as the thread is private. Keep going.
+            } finally {
+                lock.unlock();
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (Throwable e) {
+                    log.error("Exception in timeout task", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelTimer{" + name + ", " + getPendingCount() + " pending}";
+    }
+}
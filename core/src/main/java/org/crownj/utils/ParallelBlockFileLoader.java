@@ -0,0 +1,478 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.utils;
+
+import org.crownj.core.Block;
+import org.crownj.core.Message;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.Sha256Hash;
+import org.crownj.store.BlockStore;
+import org.crownj.store.BlockStoreException;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A faster alternative to {@link BlockFileLoader} for importing many block files in the crown Core format. The files
+ * are memory mapped, a scanner thread finds the magic delimited records in them, and a pool of worker threads
+ * deserializes and hashes the blocks in batches. The blocks are then handed out by the iterator, on the thread that
+ * consumes it, in an order where each block follows its parent, as {@link org.crownj.core.AbstractBlockChain#add(Block)}
+ * likes them. Blocks that are stored before their parent are held back until the parent has been seen.</p>
+ *
+ * <p>Unlike {@link BlockFileLoader}, problems are not swallowed: every record that can't be read is reported in
+ * {@link #getErrors()}, and the loader carries on with the next one. {@link #getProgress()} reports how far the import
+ * has got and how fast it is.</p>
+ *
+ * <pre>
+ * ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(),
+ *         Runtime.getRuntime().availableProcessors());
+ * for (Block block : loader)
+ *     chain.add(block);
+ * </pre>
+ *
+ * <p>Worker threads inherit the {@link org.crownj.core.Context} of the thread that creates the loader. The loader
+ * holds at most a few batches per worker in memory, plus the blocks waiting for their parent.</p>
+ */
+public class ParallelBlockFileLoader implements Iterable<Block>, Iterator<Block>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockFileLoader.class);
+
+    /** Number of records deserialized by one task. */
+    private static final int BATCH_RECORDS = 64;
+    /** Number of batches that may be queued up per worker thread. */
+    private static final int BATCHES_PER_THREAD = 4;
+    private static final long PROGRESS_LOG_INTERVAL_MSEC = 10000;
+
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final long totalBytes;
+    private final ExecutorService workers;
+    private final Thread scanner;
+    // Batches of blocks in the order they are stored, the scanner waits for the consumer when it's full.
+    private final BlockingQueue<Future<List<Block>>> batches;
+    private final List<LoadError> errors = new ArrayList<>();
+    private final Stopwatch stopwatch = Stopwatch.createStarted();
+    private final AtomicLong bytesRead = new AtomicLong(), filesRead = new AtomicLong(), blocksRead = new AtomicLong();
+
+    // The following are only used by the consuming thread.
+    private final ArrayDeque<Block> ready = new ArrayDeque<>();
+    private final Set<Sha256Hash> connected = new HashSet<>();
+    private final Map<Sha256Hash, List<Block>> waitingForParent = new HashMap<>();
+    // Where the parents of blocks that are not connected yet are looked up, if importing into an existing chain.
+    @Nullable private final BlockStore store;
+    private volatile int waitingCount;
+    private volatile long blocksReturned;
+    private long lastProgressLogMsec;
+    private boolean finished;
+
+    // Marks the end of the batches.
+    private static final Future<List<Block>> END = Futures.immediateFuture((List<Block>) ImmutableList.<Block>of());
+
+    /** A record that could not be read. */
+    public static class LoadError {
+        /** The file the record is in. */
+        public final File file;
+        /** The offset of the record in the file, or -1 if the whole file could not be read. */
+        public final long offset;
+        public final Throwable cause;
+
+        LoadError(File file, long offset, Throwable cause) {
+            this.file = file;
+            this.offset = offset;
+            this.cause = cause;
+        }
+
+        @Override
+        public String toString() {
+            return file + (offset >= 0 ? " at offset " + offset : "") + ": " + cause;
+        }
+    }
+
+    /** A snapshot of the progress of a load. */
+    public static class Progress {
+        public final int files, filesRead;
+        public final long totalBytes, bytesRead;
+        /** Blocks deserialized, and blocks handed out by the iterator so far. */
+        public final long blocksRead, blocksReturned;
+        /** Blocks held back because their parent was not seen yet. */
+        public final int blocksWaiting;
+        public final int errors;
+        public final long elapsedMillis;
+
+        Progress(int files, int filesRead, long totalBytes, long bytesRead, long blocksRead, long blocksReturned,
+                 int blocksWaiting, int errors, long elapsedMillis) {
+            this.files = files;
+            this.filesRead = filesRead;
+            this.totalBytes = totalBytes;
+            this.bytesRead = bytesRead;
+            this.blocksRead = blocksRead;
+            this.blocksReturned = blocksReturned;
+            this.blocksWaiting = blocksWaiting;
+            this.errors = errors;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /** Returns the fraction of the bytes read, between 0 and 1. */
+        public double getFraction() {
+            return totalBytes == 0 ? 1 : (double) bytesRead / totalBytes;
+        }
+
+        public double getBlocksPerSecond() {
+            return elapsedMillis == 0 ? 0 : blocksReturned * 1000.0 / elapsedMillis;
+        }
+
+        public double getMegabytesPerSecond() {
+            return elapsedMillis == 0 ? 0 : bytesRead * 1000.0 / elapsedMillis / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%.1f%% of %d files, %d blocks (%.0f blocks/s, %.1f MB/s), %d waiting for parent, %d errors",
+                    getFraction() * 100, files, blocksReturned, getBlocksPerSecond(), getMegabytesPerSecond(),
+                    blocksWaiting, errors);
+        }
+    }
+
+    /**
+     * Starts loading the given files, using the given number of worker threads to deserialize blocks. The chain is
+     * assumed to start at the genesis block.
+     */
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files, int threads) {
+        this(params, files, threads, params.getGenesisBlock().getHash());
+    }
+
+    /**
+     * Starts loading the given files, using the given number of worker threads to deserialize blocks. Blocks are
+     * handed out once their parent was handed out, or is the given start block, so when importing into an existing
+     * chain, pass the hash of its head.
+     */
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files, int threads, Sha256Hash startHash) {
+        this(params, files, threads, startHash, null);
+    }
+
+    /**
+     * Starts loading the given files into the chain of the given store, using the given number of worker threads to
+     * deserialize blocks. Blocks that the store already has are skipped, and blocks whose parent is in the store are
+     * handed out right away, so a resumed import doesn't hold back the blocks below the chain head. Stores that only
+     * keep recent blocks, like {@link org.crownj.store.SPVBlockStore}, can't tell about older ones, which are then held
+     * back as with {@link #ParallelBlockFileLoader(NetworkParameters, List, int, Sha256Hash)}.
+     */
+    public ParallelBlockFileLoader(NetworkParameters params, List<File> files, int threads, BlockStore store)
+            throws BlockStoreException {
+        this(params, files, threads, store.getChainHead().getHeader().getHash(), store);
+    }
+
+    private ParallelBlockFileLoader(NetworkParameters params, List<File> files, int threads, Sha256Hash startHash,
+                                    @Nullable BlockStore store) {
+        checkArgument(threads > 0);
+        this.store = store;
+        this.params = checkNotNull(params);
+        this.files = ImmutableList.copyOf(files);
+        long totalBytes = 0;
+        for (File file : files)
+            totalBytes += file.length();
+        this.totalBytes = totalBytes;
+        connected.add(checkNotNull(startHash));
+        batches = new ArrayBlockingQueue<>(threads * BATCHES_PER_THREAD);
+        workers = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Block loader"));
+        scanner = new ContextPropagatingThreadFactory("Block file scanner").newThread(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+        scanner.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready.isEmpty())
+            loadNextBlocks();
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public Block next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        blocksReturned++;
+        long now = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        if (now - lastProgressLogMsec >= PROGRESS_LOG_INTERVAL_MSEC) {
+            lastProgressLogMsec = now;
+            log.info("Loading blocks: {}", getProgress());
+        }
+        return ready.poll();
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Block> iterator() {
+        return this;
+    }
+
+    /** Returns the records that could not be read so far. */
+    public List<LoadError> getErrors() {
+        synchronized (errors) {
+            return ImmutableList.copyOf(errors);
+        }
+    }
+
+    /** Returns how far the load has got. */
+    public Progress getProgress() {
+        int errorCount;
+        synchronized (errors) {
+            errorCount = errors.size();
+        }
+        return new Progress(files.size(), (int) filesRead.get(), totalBytes, bytesRead.get(), blocksRead.get(),
+                blocksReturned, waitingCount, errorCount, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    /** Stops loading. Blocks that were already handed out are unaffected. */
+    @Override
+    public void close() {
+        scanner.interrupt();
+        workers.shutdownNow();
+        batches.clear();
+        finished = true;
+    }
+
+    private void loadNextBlocks() {
+        while (ready.isEmpty() && !finished) {
+            Future<List<Block>> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (batch == END) {
+                finished = true;
+                workers.shutdown();
+                if (waitingCount > 0)
+                    log.warn("{} blocks were never connected to the chain, their parents are missing", waitingCount);
+                log.info("Finished loading blocks: {}", getProgress());
+                break;
+            }
+            try {
+                for (Block block : batch.get())
+                    offer(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());  // Cannot happen, parse() reports its own errors.
+            }
+        }
+    }
+
+    // Hands the block out if its parent was handed out already or is in the store, else holds it back until then.
+    private void offer(Block block) {
+        Sha256Hash prev = block.getPrevBlockHash();
+        if (connected.contains(block.getHash()))
+            return;  // The block is stored twice, or is the start block.
+        // Only blocks that aren't next to the ones handed out are looked up in the store, so an import from scratch
+        // doesn't pay for it.
+        if (!connected.contains(prev) && isStored(block.getHash()))
+            return;  // Already in the chain.
+        if (!connected.contains(prev) && !isStored(prev)) {
+            List<Block> children = waitingForParent.get(prev);
+            if (children == null) {
+                children = new ArrayList<>(1);
+                waitingForParent.put(prev, children);
+            }
+            children.add(block);
+            waitingCount++;
+            return;
+        }
+        ArrayDeque<Block> connecting = new ArrayDeque<>();
+        connecting.add(block);
+        while (!connecting.isEmpty()) {
+            Block next = connecting.poll();
+            if (!connected.add(next.getHash()))
+                continue;
+            ready.add(next);
+            List<Block> children = waitingForParent.remove(next.getHash());
+            if (children != null) {
+                waitingCount -= children.size();
+                connecting.addAll(children);
+            }
+        }
+    }
+
+    private boolean isStored(Sha256Hash hash) {
+        if (store == null)
+            return false;
+        try {
+            return store.get(hash) != null;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void scan() {
+        try {
+            for (File file : files) {
+                scanFile(file);
+                filesRead.incrementAndGet();
+            }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            return;  // Closed.
+        }
+        try {
+            batches.put(END);
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    // Finds the records in the file and queues them up in batches for the workers.
+    private void scanFile(final File file) throws InterruptedException {
+        final MappedByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("File too large to map: " + length);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            addError(file, -1, e);
+            bytesRead.addAndGet(file.length());
+            return;
+        }
+        int magic = (int) params.getPacketMagic();
+        int limit = buffer.limit();
+        int position = 0, skipped = 0, recordBytes = 0;
+        List<int[]> records = new ArrayList<>(BATCH_RECORDS);
+        while (position + 8 <= limit) {
+            if (buffer.getInt(position) != magic) {
+                // Files are preallocated with zeros, anything else is garbage.
+                if (buffer.get(position) != 0)
+                    skipped++;
+                position++;
+                continue;
+            }
+            if (skipped > 0) {
+                addError(file, position - skipped, new IOException("Skipped " + skipped + " bytes of garbage"));
+                skipped = 0;
+            }
+            int size = Integer.reverseBytes(buffer.getInt(position + 4));
+            if (size <= 0 || size > Message.MAX_SIZE) {
+                addError(file, position, new IOException("Invalid record size " + size));
+                position += 4;
+                continue;
+            }
+            if (size > limit - position - 8) {
+                // Usually the last record written before a crash.
+                addError(file, position, new IOException("Truncated record of " + size + " bytes"));
+                break;
+            }
+            records.add(new int[] { position + 8, size });
+            position += 8 + size;
+            recordBytes += 8 + size;
+            if (records.size() == BATCH_RECORDS) {
+                batches.put(submit(file, buffer, records));
+                records = new ArrayList<>(BATCH_RECORDS);
+            }
+        }
+        if (skipped > 0)
+            addError(file, position - skipped, new IOException("Skipped " + skipped + " bytes of garbage"));
+        if (!records.isEmpty())
+            batches.put(submit(file, buffer, records));
+        // Account for the zeros and garbage between the records, the workers count the records.
+        bytesRead.addAndGet(limit - recordBytes);
+    }
+
+    private Future<List<Block>> submit(final File file, final ByteBuffer buffer, final List<int[]> records) {
+        return workers.submit(new Callable<List<Block>>() {
+            @Override
+            public List<Block> call() {
+                return parse(file, buffer.duplicate(), records);
+            }
+        });
+    }
+
+    private List<Block> parse(File file, ByteBuffer buffer, List<int[]> records) {
+        List<Block> blocks = new ArrayList<>(records.size());
+        for (int[] record : records) {
+            int offset = record[0], size = record[1];
+            try {
+                byte[] bytes = new byte[size];
+                ((Buffer) buffer).position(offset);
+                buffer.get(bytes);
+                Block block = params.getDefaultSerializer().makeBlock(bytes);
+                block.getHash();  // Hash on this thread rather than the consuming one.
+                blocks.add(block);
+                blocksRead.incrementAndGet();
+            } catch (Exception e) {
+                addError(file, offset - 8, e);
+            }
+            bytesRead.addAndGet(size + 8);
+        }
+        return blocks;
+    }
+
+    private void addError(File file, long offset, Throwable cause) {
+        LoadError error = new LoadError(file, offset, cause);
+        log.warn("Could not load block: {}", error);
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelBlockFileLoader{" + getProgress() + "}";
+    }
+}
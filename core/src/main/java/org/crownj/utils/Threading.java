@@ -200,4 +200,17 @@ public class Threading {
                 }
             })
     );
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Shared timer.
+    //
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A timer wheel with a 10 millisecond tick for socket timeouts, pings and other short tasks that run after a
+     * delay. Its tasks run on the timer thread and should hand off real work to an executor.
+     */
+    public static final HashedWheelTimer TIMER_WHEEL = new HashedWheelTimer("Threading.TIMER_WHEEL", 10,
+            TimeUnit.MILLISECONDS, 1024);
 }
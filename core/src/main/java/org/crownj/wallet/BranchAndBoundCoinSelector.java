@@ -0,0 +1,260 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionOutput;
+import org.crownj.script.ScriptBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} for wallets with lots of unspent outputs. The wallet hands out its spend candidates in
+ * value order, from an index it keeps up to date, so they don't have to be sorted for every selection like
+ * {@link DefaultCoinSelector} does.</p>
+ *
+ * <p>It first searches for a set of outputs that adds up to the target without change, meaning it exceeds the target
+ * by less than the cost of change. Such an excess goes to the fee instead of a change output. The search is the
+ * branch-and-bound algorithm of the reference client: a depth first search over including or omitting each output,
+ * largest first, that cuts off branches that overshoot or can no longer reach the target. It gives up after a
+ * bounded number of steps. If it finds nothing, the selector falls back to the knapsack algorithm of the reference
+ * client, which creates change.</p>
+ *
+ * <p>Like the default selector, it only selects outputs of transactions that are in the chain, or that are ours and
+ * were seen by peers. Candidates that don't come from the wallet's index, for example from a {@link
+ * org.crownj.core.UTXOProvider}, are sorted instead.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default number of steps the changeless search may take. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    // Random subsets tried by the knapsack fallback.
+    private static final int KNAPSACK_ITERATIONS = 1000;
+
+    private final Wallet wallet;
+    private final long costOfChange;
+    private final int maxTries;
+    private final Random random = new Random();
+
+    /**
+     * Creates a selector for the given wallet that treats excess below the dust limit of a change output as the cost
+     * of change, as the wallet adds such change to the fee anyway.
+     */
+    public BranchAndBoundCoinSelector(Wallet wallet) {
+        this(wallet, minNonDustChange(wallet.getParams()), DEFAULT_MAX_TRIES);
+    }
+
+    // The smallest P2PKH change output that isn't dust.
+    private static Coin minNonDustChange(NetworkParameters params) {
+        byte[] script = ScriptBuilder.createP2PKHOutputScript(new byte[20]).getProgram();
+        return new TransactionOutput(params, null, Coin.ZERO, script).getMinNonDustValue();
+    }
+
+    /**
+     * Creates a selector for the given wallet. A selection without change may exceed the target by less than the cost
+     * of change, and the search for one takes at most the given number of steps.
+     */
+    public BranchAndBoundCoinSelector(Wallet wallet, Coin costOfChange, int maxTries) {
+        checkArgument(costOfChange.signum() >= 0, "Negative cost of change: %s", costOfChange);
+        checkArgument(maxTries > 0, "maxTries must be positive: %s", maxTries);
+        this.wallet = checkNotNull(wallet);
+        this.costOfChange = costOfChange.value;
+        this.maxTries = maxTries;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<TransactionOutput> pool = sortCandidates(candidates);
+        // Asked for everything, like when calculating a balance or emptying the wallet.
+        if (target.compareTo(wallet.getParams().getMaxMoney()) >= 0)
+            return selection(pool);
+        CoinSelection selection = selectWithoutChange(target.value, pool);
+        if (selection == null)
+            selection = selectWithKnapsack(target.value, pool);
+        return selection;
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable. */
+    protected boolean shouldSelect(Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Returns the selectable candidates, largest first. The candidates of the wallet are already in that order, see
+    // Wallet.calculateAllSpendCandidates(), so they are only sorted if they come from elsewhere.
+    private List<TransactionOutput> sortCandidates(List<TransactionOutput> candidates) {
+        List<TransactionOutput> pool = new ArrayList<>(candidates.size());
+        boolean sorted = true;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction()))
+                continue;
+            if (!pool.isEmpty() && UnspentsByValue.LARGEST_FIRST.compare(pool.get(pool.size() - 1), output) > 0)
+                sorted = false;
+            pool.add(output);
+        }
+        if (!sorted)
+            Collections.sort(pool, UnspentsByValue.LARGEST_FIRST);
+        return pool;
+    }
+
+    /**
+     * Searches for the outputs that exceed the target by the least, and by less than the cost of change. The pool
+     * must be ordered largest first. Returns null if there are none, or the search ran out of steps before it found
+     * any.
+     */
+    CoinSelection selectWithoutChange(long target, List<TransactionOutput> pool) {
+        int size = pool.size();
+        long[] values = new long[size];
+        long available = 0;
+        for (int i = 0; i < size; i++) {
+            values[i] = pool.get(i).getValue().value;
+            available += values[i];
+        }
+        if (available < target)
+            return null;
+        // Indexes of the included outputs, in order.
+        int[] included = new int[size];
+        int depth = 0;
+        int[] best = null;
+        int bestDepth = 0;
+        long bestExcess = Long.MAX_VALUE;
+        long value = 0;
+        int index = 0;
+        for (int tries = 0; tries < maxTries; tries++, index++) {
+            boolean backtrack = false;
+            if (value + available < target || value > target + costOfChange) {
+                // Can't reach the target anymore, or overshot it.
+                backtrack = true;
+            } else if (value >= target) {
+                long excess = value - target;
+                if (excess <= bestExcess) {
+                    best = included.clone();
+                    bestDepth = depth;
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                if (depth == 0)
+                    break;  // Searched everything.
+                // Put the omitted outputs back into the lookahead, then omit the last included one instead.
+                for (index--; index > included[depth - 1]; index--)
+                    available += values[index];
+                value -= values[index];
+                depth--;
+            } else {
+                available -= values[index];
+                // Omitting an output and then including one of the same value would find the same sets again.
+                if (depth == 0 || index - 1 == included[depth - 1] || values[index] != values[index - 1]) {
+                    included[depth++] = index;
+                    value += values[index];
+                }
+            }
+        }
+        if (best == null)
+            return null;
+        List<TransactionOutput> gathered = new ArrayList<>(bestDepth);
+        for (int i = 0; i < bestDepth; i++)
+            gathered.add(pool.get(best[i]));
+        return selection(gathered);
+    }
+
+    /**
+     * Selects outputs that add up to at least the target, with change: a single output of the exact value, all outputs
+     * smaller than the target if they add up to it exactly, or else the smallest output larger than the target or the
+     * best of some random subsets of the smaller ones, whichever comes closer. The pool must be ordered largest first.
+     * If the pool isn't worth the target, all of it is returned.
+     */
+    CoinSelection selectWithKnapsack(long target, List<TransactionOutput> pool) {
+        TransactionOutput smallestLarger = null;
+        List<TransactionOutput> lower = new ArrayList<>();
+        long lowerTotal = 0;
+        for (TransactionOutput output : pool) {
+            long value = output.getValue().value;
+            if (value == target)
+                return selection(Collections.singletonList(output));
+            if (value < target) {
+                lower.add(output);
+                lowerTotal += value;
+            } else {
+                smallestLarger = output;
+            }
+        }
+        if (lowerTotal == target)
+            return selection(lower);
+        if (lowerTotal < target)
+            return smallestLarger != null ? selection(Collections.singletonList(smallestLarger)) : selection(pool);
+        boolean[] best = new boolean[lower.size()];
+        long bestTotal = approximateBestSubset(lower, lowerTotal, target, best);
+        if (smallestLarger != null && bestTotal != target && smallestLarger.getValue().value <= bestTotal)
+            return selection(Collections.singletonList(smallestLarger));
+        List<TransactionOutput> gathered = new ArrayList<>();
+        for (int i = 0; i < best.length; i++) {
+            if (best[i])
+                gathered.add(lower.get(i));
+        }
+        return selection(gathered);
+    }
+
+    // Tries random subsets of the outputs, largest first, and keeps the smallest one that reaches the target in best.
+    private long approximateBestSubset(List<TransactionOutput> outputs, long total, long target, boolean[] best) {
+        int size = outputs.size();
+        boolean[] included = new boolean[size];
+        Arrays.fill(best, true);
+        long bestTotal = total;
+        for (int rep = 0; rep < KNAPSACK_ITERATIONS && bestTotal != target; rep++) {
+            Arrays.fill(included, false);
+            long sum = 0;
+            boolean reachedTarget = false;
+            for (int pass = 0; pass < 2 && !reachedTarget; pass++) {
+                for (int i = 0; i < size; i++) {
+                    // The first pass includes outputs at random, the second fills up with the ones left out.
+                    if (pass == 0 ? !random.nextBoolean() : included[i])
+                        continue;
+                    sum += outputs.get(i).getValue().value;
+                    included[i] = true;
+                    if (sum >= target) {
+                        reachedTarget = true;
+                        if (sum < bestTotal) {
+                            bestTotal = sum;
+                            System.arraycopy(included, 0, best, 0, size);
+                        }
+                        sum -= outputs.get(i).getValue().value;
+                        included[i] = false;
+                    }
+                }
+            }
+        }
+        return bestTotal;
+    }
+
+    private static CoinSelection selection(List<TransactionOutput> outputs) {
+        long total = 0;
+        for (TransactionOutput output : outputs)
+            total += output.getValue().value;
+        return new CoinSelection(Coin.valueOf(total), outputs);
+    }
+}
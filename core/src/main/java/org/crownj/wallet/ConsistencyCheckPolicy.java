@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Decides how thoroughly a {@link Wallet} checks itself for consistency after it received a transaction, committed
+ * one, re-organized or cleaned up. A full check, see {@link Wallet#isConsistentOrThrow()}, looks at every transaction
+ * and so gets slow for big wallets. An incremental check only looks at the transactions that were touched by the
+ * change: that each is in exactly one pool, and that the outputs of those in the unspent and spent pools agree with
+ * their pool.</p>
+ *
+ * <p>The default is {@link #always()}, which suits tests and staging. Set another policy with
+ * {@link Wallet#setConsistencyCheckPolicy(ConsistencyCheckPolicy)} and watch what the checks cost with
+ * {@link Wallet#getConsistencyCheckStats()}. Subclasses can decide differently, for example by time.</p>
+ */
+public abstract class ConsistencyCheckPolicy {
+    /** How much of the wallet to check. */
+    public enum Check {
+        /** Every transaction. */
+        FULL,
+        /** Only the transactions touched since the last check. */
+        INCREMENTAL,
+        /** Nothing. */
+        NONE
+    }
+
+    /**
+     * Returns the check to run after the given change of the wallet. Changes are counted from one, and the count
+     * starts over when the policy is set.
+     */
+    public abstract Check getCheck(long mutation);
+
+    /** Returns a policy that checks the whole wallet after every change. */
+    public static ConsistencyCheckPolicy always() {
+        return new FixedPolicy(Check.FULL);
+    }
+
+    /** Returns a policy that checks the whole wallet after every given number of changes, and nothing in between. */
+    public static ConsistencyCheckPolicy sampled(final int interval) {
+        checkArgument(interval > 0, "interval must be positive: %s", interval);
+        return new ConsistencyCheckPolicy() {
+            @Override
+            public Check getCheck(long mutation) {
+                return mutation % interval == 0 ? Check.FULL : Check.NONE;
+            }
+
+            @Override
+            public String toString() {
+                return "sampled every " + interval;
+            }
+        };
+    }
+
+    /** Returns a policy that only checks the transactions touched by each change. */
+    public static ConsistencyCheckPolicy incremental() {
+        return new FixedPolicy(Check.INCREMENTAL);
+    }
+
+    /** Returns a policy that never checks. */
+    public static ConsistencyCheckPolicy off() {
+        return new FixedPolicy(Check.NONE);
+    }
+
+    private static class FixedPolicy extends ConsistencyCheckPolicy {
+        private final Check check;
+
+        private FixedPolicy(Check check) {
+            this.check = check;
+        }
+
+        @Override
+        public Check getCheck(long mutation) {
+            return check;
+        }
+
+        @Override
+        public String toString() {
+            return check.name().toLowerCase(Locale.US);
+        }
+    }
+
+    /** What the consistency checks of a wallet cost since its policy was set. */
+    public static class Stats {
+        /** How many changes the policy was asked about. */
+        public final long mutations;
+        /** How many full checks ran, and how long they took in total. */
+        public final long fullChecks, fullCheckNanos;
+        /** How many incremental checks ran, and how long they took in total. */
+        public final long incrementalChecks, incrementalCheckNanos;
+        /** How many transactions the incremental checks looked at. */
+        public final long transactionsChecked;
+        /** How many checks found the wallet inconsistent. */
+        public final long failures;
+
+        Stats(long mutations, long fullChecks, long fullCheckNanos, long incrementalChecks,
+              long incrementalCheckNanos, long transactionsChecked, long failures) {
+            this.mutations = mutations;
+            this.fullChecks = fullChecks;
+            this.fullCheckNanos = fullCheckNanos;
+            this.incrementalChecks = incrementalChecks;
+            this.incrementalCheckNanos = incrementalCheckNanos;
+            this.transactionsChecked = transactionsChecked;
+            this.failures = failures;
+        }
+
+        /** Returns how many changes weren't checked at all. */
+        public long getSkipped() {
+            return mutations - fullChecks - incrementalChecks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d changes: %d full checks in %d us, %d incremental checks of %d txns in %d us, %d skipped, %d failed",
+                    mutations, fullChecks, fullCheckNanos / 1000, incrementalChecks, transactionsChecked,
+                    incrementalCheckNanos / 1000, getSkipped(), failures);
+        }
+    }
+}
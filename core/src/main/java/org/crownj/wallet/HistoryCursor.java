@@ -0,0 +1,78 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+
+import java.util.Date;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A position in the history of a wallet, which is ordered by decreasing update time and then by transaction ID like
+ * {@link Transaction#SORT_TX_BY_UPDATE_TIME}. Pass it to {@link Wallet#getRecentTransactions(HistoryCursor, int, boolean)}
+ * to get the page of transactions after it. A cursor stays valid when the wallet changes: pages just continue from
+ * the same time.
+ */
+public final class HistoryCursor implements Comparable<HistoryCursor> {
+    private final long updateTime;
+    private final Sha256Hash txId;
+
+    public HistoryCursor(long updateTimeMillis, Sha256Hash txId) {
+        this.updateTime = updateTimeMillis;
+        this.txId = checkNotNull(txId);
+    }
+
+    /** Returns the position of the given transaction by its current update time. */
+    public static HistoryCursor of(Transaction tx) {
+        return new HistoryCursor(tx.getUpdateTime().getTime(), tx.getTxId());
+    }
+
+    public Date getUpdateTime() {
+        return new Date(updateTime);
+    }
+
+    public Sha256Hash getTxId() {
+        return txId;
+    }
+
+    @Override
+    public int compareTo(HistoryCursor other) {
+        int updateTimeComparison = -Long.compare(updateTime, other.updateTime);
+        return updateTimeComparison != 0 ? updateTimeComparison : txId.compareTo(other.txId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HistoryCursor other = (HistoryCursor) o;
+        return updateTime == other.updateTime && txId.equals(other.txId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(updateTime, txId);
+    }
+
+    @Override
+    public String toString() {
+        return updateTime + ":" + txId;
+    }
+}
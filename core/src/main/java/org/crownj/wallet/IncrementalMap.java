@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>An immutable map that is published as an older version plus the changes since, and only built when it is read.
+ * {@link WalletSnapshot} uses it so that publishing a change of the wallet, which happens under the wallet lock, costs
+ * in proportion to what the change touched rather than to the size of the wallet. Building the whole map is left to
+ * the threads that read it.</p>
+ *
+ * <p>Changes pile up over versions that nobody reads, so once there are more of them than the square root of the size
+ * of the older version, they are merged into it. That keeps the work per change bounded on average.</p>
+ */
+final class IncrementalMap<K, V> {
+    private static final int MIN_MERGED_CHANGES = 32;
+
+    // The order of the keys, or null for the order they were added in.
+    @Nullable private final Comparator<? super K> order;
+    private final ImmutableMap<K, V> base;
+    // The changes since base, no key is in both.
+    private final ImmutableMap<K, V> puts;
+    private final ImmutableSet<K> removals;
+    // Built on first read. Racing readers build equal maps, one of which wins.
+    @Nullable private volatile ImmutableMap<K, V> map;
+    @Nullable private volatile ImmutableList<K> keys;
+
+    private IncrementalMap(@Nullable Comparator<? super K> order, ImmutableMap<K, V> base, ImmutableMap<K, V> puts,
+                           ImmutableSet<K> removals) {
+        this.order = order;
+        this.base = base;
+        this.puts = puts;
+        this.removals = removals;
+        if (puts.isEmpty() && removals.isEmpty())
+            this.map = base;
+    }
+
+    /** Copies the given map. The keys are ordered by the given comparator, or else like in the given map. */
+    static <K, V> IncrementalMap<K, V> copyOf(Map<K, V> map, @Nullable Comparator<? super K> order) {
+        ImmutableMap<K, V> base = order == null ? ImmutableMap.copyOf(map) : ImmutableSortedMap.copyOf(map, order);
+        return new IncrementalMap<>(order, base, ImmutableMap.<K, V>of(), ImmutableSet.<K>of());
+    }
+
+    /** Returns the value of the given key, without building the map. */
+    @Nullable
+    V get(K key) {
+        V value = puts.get(key);
+        if (value != null)
+            return value;
+        return removals.contains(key) ? null : base.get(key);
+    }
+
+    /** Returns the whole map. */
+    ImmutableMap<K, V> asMap() {
+        ImmutableMap<K, V> map = this.map;
+        if (map == null)
+            this.map = map = merge(order, base, puts, removals);
+        return map;
+    }
+
+    /** Returns the keys in their order. */
+    ImmutableList<K> keys() {
+        ImmutableList<K> keys = this.keys;
+        if (keys == null)
+            this.keys = keys = asMap().keySet().asList();
+        return keys;
+    }
+
+    /**
+     * Returns the next version, with the given values put and the given keys removed. Returns this if nothing changes.
+     * The given maps are copied.
+     */
+    IncrementalMap<K, V> with(Map<K, V> newPuts, Set<K> newRemovals) {
+        if (newPuts.isEmpty() && newRemovals.isEmpty())
+            return this;
+        ImmutableMap<K, V> built = this.map;
+        if (built != null)
+            return new IncrementalMap<>(order, built, ImmutableMap.copyOf(newPuts), ImmutableSet.copyOf(newRemovals));
+        Map<K, V> puts = new LinkedHashMap<>(this.puts);
+        Set<K> removals = new HashSet<>(this.removals);
+        puts.keySet().removeAll(newRemovals);
+        puts.putAll(newPuts);
+        removals.removeAll(newPuts.keySet());
+        removals.addAll(newRemovals);
+        if (puts.size() + removals.size() > Math.max(MIN_MERGED_CHANGES, (int) Math.sqrt(base.size())))
+            return new IncrementalMap<>(order, merge(order, base, puts, removals), ImmutableMap.<K, V>of(),
+                    ImmutableSet.<K>of());
+        return new IncrementalMap<>(order, base, ImmutableMap.copyOf(puts), ImmutableSet.copyOf(removals));
+    }
+
+    private static <K, V> ImmutableMap<K, V> merge(@Nullable Comparator<? super K> order, ImmutableMap<K, V> base,
+                                                   Map<K, V> puts, Set<K> removals) {
+        ImmutableMap.Builder<K, V> builder = order == null
+                ? ImmutableMap.<K, V>builder() : new ImmutableSortedMap.Builder<K, V>(order);
+        for (Map.Entry<K, V> entry : base.entrySet()) {
+            K key = entry.getKey();
+            if (!puts.containsKey(key) && !removals.contains(key))
+                builder.put(entry);
+        }
+        builder.putAll(puts);
+        return builder.build();
+    }
+}
@@ -227,6 +227,9 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // Counts the changes to the set of keys that can sign, see getKeyModificationCount(). Volatile, as wallet snapshots
+    // read it without the lock.
+    private volatile int keyModificationCount;
 
     private final CopyOnWriteArrayList<ListenerRegistration<CurrentKeyChangeEventListener>> currentKeyChangeListeners = new CopyOnWriteArrayList<>();
 
@@ -308,6 +311,7 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        keyModificationCount++;
         currentKeys.clear();
         currentAddresses.clear();
         queueOnCurrentKeyChanged();
@@ -503,7 +507,10 @@ public class KeyChainGroup implements KeyBag {
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
     public int importKeys(List<ECKey> keys) {
-        return basic.importKeys(keys);
+        int imported = basic.importKeys(keys);
+        if (imported > 0)
+            keyModificationCount++;
+        return imported;
     }
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
@@ -676,6 +683,15 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Returns a counter that goes up whenever keys are imported or removed, chains are added, or keys are encrypted or
+     * decrypted. Unlike {@link #numKeys()}, it doesn't change when chains derive more keys, only when the set of keys
+     * that can sign for existing outputs may have changed.
+     */
+    int getKeyModificationCount() {
+        return keyModificationCount;
+    }
+
     /**
      * Removes a key that was imported into the basic key chain. You cannot remove deterministic keys.
      * @throws java.lang.IllegalArgumentException if the key is deterministic.
@@ -683,7 +699,10 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        boolean removed = basic.removeKey(key);
+        if (removed)
+            keyModificationCount++;
+        return removed;
     }
 
     /**
@@ -722,6 +741,7 @@ public class KeyChainGroup implements KeyBag {
             this.chains.clear();
             this.chains.addAll(newChains);
         }
+        keyModificationCount++;
     }
 
     /**
@@ -745,6 +765,7 @@ public class KeyChainGroup implements KeyBag {
         }
         this.basic = newBasic;
         this.keyCrypter = null;
+        keyModificationCount++;
     }
 
     /** Returns true if the group is encrypted. */
@@ -790,6 +811,37 @@ public class KeyChainGroup implements KeyBag {
         return basic.getKeys();
     }
 
+    /**
+     * Returns the keys a Bloom filter from {@link #getBloomFilter(int, double, long)} would be interested in: the
+     * imported keys and the leaf keys of all deterministic chains that aren't married, including their lookahead
+     * zones. Married chains receive to P2SH scripts instead, see {@link #getScriptsForFiltering()}.
+     */
+    public List<ECKey> getKeysForFiltering() {
+        List<ECKey> keys = new ArrayList<>(basic.getKeys());
+        if (chains != null) {
+            for (DeterministicKeyChain chain : chains) {
+                if (chain.isMarried())
+                    continue;
+                chain.maybeLookAhead();
+                keys.addAll(chain.getLeafKeys());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the P2SH output scripts of the married chains, including their lookahead zones. These are what a Bloom
+     * filter from {@link #getBloomFilter(int, double, long)} matches for married chains.
+     */
+    public List<Script> getScriptsForFiltering() {
+        List<Script> scripts = new ArrayList<>();
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains)
+                if (chain.isMarried())
+                    scripts.addAll(((MarriedKeyChain) chain).getOutputScriptsForFiltering());
+        return scripts;
+    }
+
     public long getEarliestKeyCreationTime() {
         long time = basic.getEarliestKeyCreationTime();   // Long.MAX_VALUE if empty.
         if (chains != null)
@@ -875,6 +927,23 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    /**
+     * Returns a value that is different whenever the keys returned by {@link #serializeToProtobuf()} may have changed:
+     * when keys were imported, removed, encrypted, decrypted, derived or issued. Unlike serializing them, this only
+     * reads a few counters. Issuing keys doesn't run {@link KeyChainEventListener}s, so they can't tell.
+     */
+    ImmutableList<Integer> getKeyState() {
+        ImmutableList.Builder<Integer> state = ImmutableList.builder();
+        state.add(keyModificationCount, basic.numKeys());
+        if (chains != null) {
+            for (DeterministicKeyChain chain : chains) {
+                state.add(chain.numKeys(), chain.getIssuedExternalKeys(), chain.getIssuedInternalKeys(),
+                        chain.getLookaheadSize(), chain.getLookaheadThreshold());
+            }
+        }
+        return state.build();
+    }
+
     /** Returns a list of key protobufs obtained by merging the chains. */
     public List<Protos.Key> serializeToProtobuf() {
         List<Protos.Key> result;
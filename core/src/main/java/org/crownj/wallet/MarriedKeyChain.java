@@ -292,6 +292,23 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return filter;
     }
 
+    /**
+     * Returns the P2SH output scripts of all leaf keys, including the lookahead zone. These are what the chain receives
+     * to, so compact block filters are matched against them instead of the keys.
+     */
+    public List<Script> getOutputScriptsForFiltering() {
+        lock.lock();
+        try {
+            maybeLookAheadScripts();
+            List<Script> scripts = new ArrayList<>(marriedKeysRedeemData.size());
+            for (RedeemData redeemData : marriedKeysRedeemData.values())
+                scripts.add(ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript));
+            return scripts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int numBloomFilterEntries() {
         maybeLookAhead();
@@ -0,0 +1,483 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Address;
+import org.crownj.core.Coin;
+import org.crownj.core.Context;
+import org.crownj.core.InsufficientMoneyException;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionBroadcaster;
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+import org.crownj.core.TransactionInput;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.core.TransactionOutput;
+import org.crownj.core.VarInt;
+import org.crownj.core.VerificationException;
+import org.crownj.script.ScriptBuilder;
+import org.crownj.utils.Threading;
+import org.crownj.wallet.WalletTransaction.Pool;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Sends many payments out of a {@link Wallet} in few transactions. Payments are queued with
+ * {@link #queue(Address, Coin)} and sent with {@link #flush()}, or both at once with {@link #send(List)}. Each
+ * transaction pays as many of them as fit into {@link #setMaxOutputsSize(int)} bytes of outputs, so thousands of
+ * payments share the cost of their inputs and change, and the wallet does one coin selection and fee calculation per
+ * transaction rather than per payment.</p>
+ *
+ * <p>The wallet lock is only held while a transaction is completed and while it is committed. The inputs of a completed
+ * transaction are reserved in between, so nothing else spends them while the transactions of a flush are signed in
+ * parallel on the {@link #setSigningExecutor(ExecutorService) signing executor}.</p>
+ *
+ * <p>With {@link #setReplaceByFee(boolean)}, the transactions opt into replace-by-fee (BIP 125), and as long as the last
+ * one is unconfirmed, the next flush replaces it with a transaction that pays its payments and the queued ones
+ * together, for a higher fee. The future of a payment completes with the transaction that paid it when it was
+ * broadcast, so for payments of a replaced transaction it's the replaced one: its
+ * {@link org.crownj.core.TransactionConfidence#getOverridingTransaction()} is the replacement.</p>
+ */
+public class PayoutBatcher {
+    private static final Logger log = LoggerFactory.getLogger(PayoutBatcher.class);
+    protected final ReentrantLock lock = Threading.lock(PayoutBatcher.class);
+
+    /** The default for {@link #setMaxOutputsSize(int)}, which leaves the other half of a transaction to its inputs. */
+    public static final int DEFAULT_MAX_OUTPUTS_SIZE = Transaction.MAX_STANDARD_TX_SIZE / 2;
+
+    // Sequence number of inputs that opt into replace-by-fee, see TransactionInput.isOptInFullRBF().
+    private static final long RBF_SEQUENCE = TransactionInput.NO_SEQUENCE - 2;
+
+    /** A payment of a value to an address. */
+    public static class Payout {
+        public final Address address;
+        public final Coin value;
+        private final SettableFuture<Transaction> future = SettableFuture.create();
+
+        public Payout(Address address, Coin value) {
+            this.address = checkNotNull(address);
+            this.value = checkNotNull(value);
+            checkArgument(value.signum() > 0, "value must be positive: %s", value);
+        }
+
+        /**
+         * Returns a future that completes with the transaction that pays this payment once it was broadcast, or fails
+         * if it couldn't be sent, for example with an {@link InsufficientMoneyException}.
+         */
+        public ListenableFuture<Transaction> getFuture() {
+            return future;
+        }
+
+        private int getOutputSize() {
+            int scriptSize = ScriptBuilder.createOutputScript(address).getProgram().length;
+            return 8 + VarInt.sizeOf(scriptSize) + scriptSize;
+        }
+
+        @Override
+        public String toString() {
+            return value.toFriendlyString() + " to " + address;
+        }
+    }
+
+    // A transaction of a flush, from its completion to its commit.
+    private static class Batch {
+        final SendRequest req;
+        final List<Payout> payouts;
+        // The batch that this one replaces, if any.
+        @Nullable final Batch replaced;
+        // Outputs reserved in the wallet until this batch is committed.
+        final List<TransactionOutPoint> reserved;
+
+        Batch(SendRequest req, List<Payout> payouts, @Nullable Batch replaced, List<TransactionOutPoint> reserved) {
+            this.req = req;
+            this.payouts = payouts;
+            this.replaced = replaced;
+            this.reserved = reserved;
+        }
+
+        Transaction tx() {
+            return req.tx;
+        }
+    }
+
+    private final Wallet wallet;
+    private final TransactionBroadcaster broadcaster;
+
+    private volatile Coin feePerKb = Context.get().getFeePerKb();
+    @Nullable private volatile KeyParameter aesKey;
+    private volatile int maxOutputsSize = DEFAULT_MAX_OUTPUTS_SIZE;
+    private volatile boolean replaceByFee;
+    private volatile ListeningExecutorService signingExecutor = Threading.THREAD_POOL;
+
+    @GuardedBy("lock") private final List<Payout> queue = new ArrayList<>();
+    // The last committed batch, which the next flush may replace.
+    @GuardedBy("lock") @Nullable private Batch lastBatch;
+
+    public PayoutBatcher(Wallet wallet, TransactionBroadcaster broadcaster) {
+        this.wallet = checkNotNull(wallet);
+        this.broadcaster = checkNotNull(broadcaster);
+    }
+
+    /** Sets the fee per kilobyte of the transactions, see {@link SendRequest#feePerKb}. */
+    public void setFeePerKb(Coin feePerKb) {
+        this.feePerKb = checkNotNull(feePerKb);
+    }
+
+    /** Sets the key to decrypt the wallet with, see {@link SendRequest#aesKey}. */
+    public void setAesKey(@Nullable KeyParameter aesKey) {
+        this.aesKey = aesKey;
+    }
+
+    /**
+     * Sets how many bytes the outputs of a transaction may take up at most, which decides how many payments it pays.
+     * A transaction that still turns out too big is split in two.
+     */
+    public void setMaxOutputsSize(int maxOutputsSize) {
+        checkArgument(maxOutputsSize > 0 && maxOutputsSize < Transaction.MAX_STANDARD_TX_SIZE,
+                "maxOutputsSize out of range: %s", maxOutputsSize);
+        this.maxOutputsSize = maxOutputsSize;
+    }
+
+    /**
+     * Sets whether the transactions opt into replace-by-fee, so payments can be added to the last one while it's
+     * unconfirmed. Off by default, because recipients that use {@link DefaultRiskAnalysis} consider such
+     * transactions risky until they are confirmed.
+     */
+    public void setReplaceByFee(boolean replaceByFee) {
+        this.replaceByFee = replaceByFee;
+    }
+
+    /** Sets the executor that signs the transactions of a flush. The default is {@link Threading#THREAD_POOL}. */
+    public void setSigningExecutor(ExecutorService signingExecutor) {
+        this.signingExecutor = MoreExecutors.listeningDecorator(signingExecutor);
+    }
+
+    /** Queues a payment for the next {@link #flush()}, and returns its future, see {@link Payout#getFuture()}. */
+    public ListenableFuture<Transaction> queue(Address address, Coin value) {
+        Payout payout = new Payout(address, value);
+        queue(Collections.singletonList(payout));
+        return payout.getFuture();
+    }
+
+    /** Queues the given payments for the next {@link #flush()}. */
+    public void queue(List<Payout> payouts) {
+        lock.lock();
+        try {
+            queue.addAll(payouts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of queued payments. */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queues the given payments and flushes, and returns their futures, see {@link Payout#getFuture()}. */
+    public List<ListenableFuture<Transaction>> send(List<Payout> payouts) {
+        queue(payouts);
+        flush();
+        List<ListenableFuture<Transaction>> futures = new ArrayList<>(payouts.size());
+        for (Payout payout : payouts)
+            futures.add(payout.getFuture());
+        return futures;
+    }
+
+    /**
+     * Sends the queued payments. Returns once their transactions are committed to the wallet and handed to the
+     * broadcaster, with those transactions. Payments that couldn't be sent have their futures failed; they aren't
+     * queued again, except for those that were to be added to a transaction that confirmed in the meantime.
+     */
+    public List<Transaction> flush() {
+        checkState(!wallet.lock.isHeldByCurrentThread());
+        lock.lock();
+        try {
+            if (queue.isEmpty())
+                return Collections.emptyList();
+            LinkedList<Payout> remaining = new LinkedList<>(queue);
+            queue.clear();
+            log.info("Flushing {} payouts", remaining.size());
+
+            List<Batch> batches = new ArrayList<>();
+            Batch replaceable = replaceByFee ? getReplaceableBatch() : null;
+            if (replaceable != null) {
+                Batch replacement = completeReplacement(replaceable, remaining);
+                if (replacement != null)
+                    batches.add(replacement);
+            }
+            while (!remaining.isEmpty())
+                completeAll(take(remaining, 0), batches);
+
+            List<Batch> signed = sign(batches);
+            List<Transaction> committed = new ArrayList<>(signed.size());
+            for (Batch batch : signed) {
+                if (commit(batch)) {
+                    committed.add(batch.tx());
+                    lastBatch = batch;
+                }
+            }
+            for (Batch batch : signed) {
+                if (committed.contains(batch.tx()))
+                    broadcast(batch);
+            }
+            return committed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes payouts off the front of the queue until their outputs would exceed the maximum size.
+    private List<Payout> take(LinkedList<Payout> remaining, int outputsSize) {
+        List<Payout> payouts = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            int size = remaining.getFirst().getOutputSize();
+            if (!payouts.isEmpty() && outputsSize + size > maxOutputsSize)
+                break;
+            payouts.add(remaining.removeFirst());
+            outputsSize += size;
+        }
+        return payouts;
+    }
+
+    // Returns the last batch if it can still be replaced.
+    @Nullable
+    private Batch getReplaceableBatch() {
+        Batch batch = lastBatch;
+        if (batch == null)
+            return null;
+        Transaction tx = batch.tx();
+        wallet.lock.lock();
+        try {
+            if (wallet.getTransactionPool(Pool.PENDING).get(tx.getTxId()) != tx
+                    || tx.getConfidence().getConfidenceType() != ConfidenceType.PENDING)
+                return null;
+            for (TransactionOutput output : tx.getOutputs())
+                if (output.getSpentBy() != null)
+                    return null;
+            for (TransactionInput input : tx.getInputs())
+                if (input.getConnectedOutput() == null || !input.isOptInFullRBF())
+                    return null;
+            return batch;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    // Completes a transaction that pays the payouts of the given batch and as many queued ones as fit. It spends all
+    // inputs of the batch and pays its fee rate plus the minimum relay fee rate, so it pays more than the batch and
+    // for its own relay, as BIP 125 requires. Returns null if that isn't possible, leaving the queue as it was.
+    @Nullable
+    private Batch completeReplacement(Batch replaced, LinkedList<Payout> remaining) {
+        int outputsSize = 0;
+        for (Payout payout : replaced.payouts)
+            outputsSize += payout.getOutputSize();
+        List<Payout> added = take(remaining, outputsSize);
+        List<Payout> payouts = new ArrayList<>(replaced.payouts);
+        payouts.addAll(added);
+        try {
+            return complete(payouts, replaced);
+        } catch (InsufficientMoneyException | Wallet.CompletionException e) {
+            log.info("Could not replace {}, sending the queued payouts separately: {}", replaced.tx().getTxId(),
+                    e.toString());
+            remaining.addAll(0, added);
+            return null;
+        }
+    }
+
+    // Completes transactions that pay the given payouts, splitting them up while a transaction would be too big. Fails
+    // the payouts of those that couldn't be completed.
+    private void completeAll(List<Payout> payouts, List<Batch> batches) {
+        try {
+            batches.add(complete(payouts, null));
+        } catch (Wallet.ExceededMaxTransactionSize e) {
+            if (payouts.size() == 1) {
+                fail(payouts, e);
+                return;
+            }
+            log.info("Transaction with {} payouts is too big, splitting it", payouts.size());
+            int half = payouts.size() / 2;
+            completeAll(payouts.subList(0, half), batches);
+            completeAll(payouts.subList(half, payouts.size()), batches);
+        } catch (InsufficientMoneyException | Wallet.CompletionException e) {
+            fail(payouts, e);
+        }
+    }
+
+    // Completes a transaction that pays the given payouts, replacing the given batch if any, and reserves its inputs.
+    private Batch complete(List<Payout> payouts, @Nullable Batch replaced) throws InsufficientMoneyException {
+        Transaction tx = new Transaction(wallet.getParams());
+        List<TransactionOutPoint> reserved = new ArrayList<>();
+        SendRequest req = SendRequest.forTx(tx);
+        req.feePerKb = feePerKb;
+        if (replaced != null) {
+            Transaction replacedTx = replaced.tx();
+            for (TransactionInput input : replacedTx.getInputs())
+                tx.addInput(checkNotNull(input.getConnectedOutput()));
+            // The replacement mustn't spend the outputs of the transaction it replaces.
+            for (TransactionOutput output : replacedTx.getOutputs())
+                reserved.add(output.getOutPointFor());
+            Coin replacedRate = checkNotNull(replacedTx.getFee()).multiply(1000).divide(replacedTx.getVsize());
+            req.feePerKb = Coin.valueOf(Math.max(feePerKb.value,
+                    replacedRate.add(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE).value + 1));
+        }
+        for (Payout payout : payouts)
+            tx.addOutput(payout.value, payout.address);
+        req.aesKey = aesKey;
+        req.signInputs = false;
+        wallet.lock.lock();
+        try {
+            wallet.reserveOutputs(reserved);
+            try {
+                wallet.completeTx(req);
+            } finally {
+                wallet.releaseOutputs(reserved);
+            }
+            reserved.clear();
+            for (TransactionInput input : tx.getInputs()) {
+                reserved.add(input.getOutpoint());
+                if (replaceByFee)
+                    input.setSequenceNumber(RBF_SEQUENCE);
+            }
+            if (replaced != null)
+                for (TransactionOutput output : replaced.tx().getOutputs())
+                    reserved.add(output.getOutPointFor());
+            wallet.reserveOutputs(reserved);
+            return new Batch(req, payouts, replaced, reserved);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    // Signs the batches in parallel, and returns those that were signed. Releases the reservations of the others.
+    private List<Batch> sign(List<Batch> batches) {
+        final Context context = Context.get();
+        List<ListenableFuture<Batch>> futures = new ArrayList<>(batches.size());
+        for (final Batch batch : batches) {
+            futures.add(signingExecutor.submit(new Callable<Batch>() {
+                @Override
+                public Batch call() throws Exception {
+                    Context.propagate(context);
+                    wallet.signUncommittedTransaction(batch.req);
+                    return batch;
+                }
+            }));
+        }
+        List<Batch> signed = new ArrayList<>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            Batch batch = batches.get(i);
+            try {
+                signed.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(batch, e);
+            } catch (ExecutionException e) {
+                log.warn("Could not sign {}", batch.tx().getTxId(), e.getCause());
+                abandon(batch, e.getCause());
+            }
+        }
+        return signed;
+    }
+
+    // Commits the batch, and returns true if that worked. Otherwise fails its new payouts, or queues them again if the
+    // transaction it was to replace confirmed or was spent in the meantime.
+    private boolean commit(Batch batch) {
+        wallet.lock.lock();
+        try {
+            wallet.releaseOutputs(batch.reserved);
+            if (batch.replaced == null) {
+                wallet.commitTx(batch.tx());
+            } else if (wallet.isReplaceable(batch.replaced.tx())) {
+                wallet.commitReplacement(batch.replaced.tx(), batch.tx());
+            } else {
+                log.info("Could not replace {}, queueing the payouts again", batch.replaced.tx().getTxId());
+                queue.addAll(0, newPayouts(batch));
+                return false;
+            }
+            return true;
+        } catch (VerificationException e) {
+            fail(newPayouts(batch), e);
+            return false;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private void broadcast(final Batch batch) {
+        ListenableFuture<Transaction> future = broadcaster.broadcastTransaction(batch.tx()).future();
+        Futures.addCallback(future, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction tx) {
+                for (Payout payout : batch.payouts)
+                    payout.future.set(tx);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                fail(batch.payouts, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void abandon(Batch batch, Throwable t) {
+        wallet.releaseOutputs(batch.reserved);
+        fail(newPayouts(batch), t);
+    }
+
+    // Returns the payouts of the batch that aren't paid by the transaction it replaces.
+    private static List<Payout> newPayouts(Batch batch) {
+        if (batch.replaced == null)
+            return batch.payouts;
+        return batch.payouts.subList(batch.replaced.payouts.size(), batch.payouts.size());
+    }
+
+    private static void fail(List<Payout> payouts, Throwable t) {
+        for (Payout payout : payouts)
+            payout.future.setException(t);
+    }
+
+    @Override
+    public String toString() {
+        return "PayoutBatcher{" + getQueueSize() + " queued}";
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionConfidence;
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+import com.google.common.base.Predicate;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The transactions of a {@link Wallet} ordered by update time, and the confirmed ones also by the height they appeared
+ * at, so pages of the history are found without sorting the whole wallet. The wallet re-indexes a transaction whenever
+ * it moves it between pools or it appears in a block. Entries whose transaction has since changed in other ways, like
+ * an update time set by the user, are checked when they are read, so they are never returned out of order or at a wrong
+ * height. Not thread safe, the wallet lock guards it.
+ */
+class TransactionHistory {
+    private final TreeMap<HistoryCursor, Transaction> byUpdateTime = new TreeMap<>();
+    private final Map<Sha256Hash, HistoryCursor> cursors = new HashMap<>();
+    // Confirmed transactions by height, then by ID.
+    private final TreeMap<Integer, TreeMap<Sha256Hash, Transaction>> byHeight = new TreeMap<>();
+    private final Map<Sha256Hash, Integer> heights = new HashMap<>();
+
+    /** Adds the transaction, or moves it to its current update time and height. */
+    void update(Transaction tx) {
+        Sha256Hash txId = tx.getTxId();
+        HistoryCursor cursor = HistoryCursor.of(tx);
+        HistoryCursor oldCursor = cursors.put(txId, cursor);
+        if (!cursor.equals(oldCursor)) {
+            if (oldCursor != null)
+                byUpdateTime.remove(oldCursor);
+            byUpdateTime.put(cursor, tx);
+        }
+        int height = heightOf(tx);
+        Integer oldHeight = height >= 0 ? heights.put(txId, height) : heights.remove(txId);
+        if (oldHeight == null || oldHeight != height) {
+            if (oldHeight != null)
+                removeFromHeight(oldHeight, txId);
+            if (height >= 0) {
+                TreeMap<Sha256Hash, Transaction> atHeight = byHeight.get(height);
+                if (atHeight == null) {
+                    atHeight = new TreeMap<>();
+                    byHeight.put(height, atHeight);
+                }
+                atHeight.put(txId, tx);
+            }
+        }
+    }
+
+    void remove(Sha256Hash txId) {
+        HistoryCursor cursor = cursors.remove(txId);
+        if (cursor != null)
+            byUpdateTime.remove(cursor);
+        Integer height = heights.remove(txId);
+        if (height != null)
+            removeFromHeight(height, txId);
+    }
+
+    void clear() {
+        byUpdateTime.clear();
+        cursors.clear();
+        byHeight.clear();
+        heights.clear();
+    }
+
+    /** Returns the position of the transaction in the index, or null if it isn't indexed. */
+    @Nullable
+    HistoryCursor getCursor(Sha256Hash txId) {
+        return cursors.get(txId);
+    }
+
+    /**
+     * Returns up to the given number of transactions that the filter accepts, most recently updated first, starting
+     * after the cursor or from the most recent if it is null. Zero means no limit.
+     */
+    List<Transaction> getRecent(@Nullable HistoryCursor after, int limit, Predicate<Transaction> filter) {
+        checkArgument(limit >= 0);
+        while (true) {
+            List<Transaction> page = new ArrayList<>();
+            List<Transaction> moved = new ArrayList<>();
+            Map<HistoryCursor, Transaction> tail = after == null ? byUpdateTime : byUpdateTime.tailMap(after, false);
+            for (Map.Entry<HistoryCursor, Transaction> entry : tail.entrySet()) {
+                Transaction tx = entry.getValue();
+                // The update time was changed outside of the wallet.
+                if (!entry.getKey().equals(HistoryCursor.of(tx))) {
+                    moved.add(tx);
+                    continue;
+                }
+                if (!filter.apply(tx))
+                    continue;
+                page.add(tx);
+                if (page.size() == limit)
+                    break;
+            }
+            if (moved.isEmpty())
+                return page;
+            for (Transaction tx : moved)
+                update(tx);
+        }
+    }
+
+    /**
+     * Returns the transactions that appeared in the best chain at heights from the first to the last, both inclusive,
+     * ordered by height and then by ID.
+     */
+    List<Transaction> getByHeight(int fromHeight, int toHeight, Predicate<Transaction> filter) {
+        List<Transaction> result = new ArrayList<>();
+        if (toHeight < fromHeight)
+            return result;
+        for (Map.Entry<Integer, TreeMap<Sha256Hash, Transaction>> entry
+                : byHeight.subMap(fromHeight, true, toHeight, true).entrySet()) {
+            for (Transaction tx : entry.getValue().values()) {
+                if (heightOf(tx) == entry.getKey() && filter.apply(tx))
+                    result.add(tx);
+            }
+        }
+        return result;
+    }
+
+    private void removeFromHeight(int height, Sha256Hash txId) {
+        TreeMap<Sha256Hash, Transaction> atHeight = byHeight.get(height);
+        if (atHeight != null && atHeight.remove(txId) != null && atHeight.isEmpty())
+            byHeight.remove(height);
+    }
+
+    private static int heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+import org.crownj.core.TransactionOutput;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Running totals of the unspent outputs of a {@link Wallet}, so balances don't have to be summed over all of them each
+ * time. Remembers which outputs the wallet could sign for when they were added, so they are subtracted the same way
+ * even if the keys changed in between. Outputs of coinbase transactions and of transactions that weren't in the best
+ * chain yet are kept apart as unsettled, as they mature or confirm without the wallet necessarily noticing. Not thread
+ * safe, the wallet lock guards it.
+ */
+class UnspentBalances {
+    private long total;
+    private long spendable;
+    // Usually only watched outputs, so this is small.
+    private final Set<TransactionOutput> unsignable = new HashSet<>();
+    private final Set<TransactionOutput> unsettled = new HashSet<>();
+
+    void add(TransactionOutput output, boolean signable) {
+        long value = output.getValue().value;
+        total += value;
+        if (signable)
+            spendable += value;
+        else
+            unsignable.add(output);
+        Transaction parent = checkNotNull(output.getParentTransaction());
+        if (parent.isCoinBase() || parent.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+            unsettled.add(output);
+    }
+
+    void remove(TransactionOutput output) {
+        long value = output.getValue().value;
+        total -= value;
+        if (!unsignable.remove(output))
+            spendable -= value;
+        unsettled.remove(output);
+    }
+
+    void clear() {
+        total = 0;
+        spendable = 0;
+        unsignable.clear();
+        unsettled.clear();
+    }
+
+    /** Returns the value of all outputs, or only of those that could be signed for. */
+    Coin getTotal(boolean onlySignable) {
+        return Coin.valueOf(onlySignable ? spendable : total);
+    }
+
+    boolean isSignable(TransactionOutput output) {
+        return !unsignable.contains(output);
+    }
+
+    /** Returns a copy of the outputs that may be immature or not confirmed yet. */
+    Set<TransactionOutput> getUnsettled() {
+        return new HashSet<>(unsettled);
+    }
+
+    boolean hasUnsettled() {
+        return !unsettled.isEmpty();
+    }
+
+    /** Marks an output as confirmed for good, unless a re-org moves its transaction back into the pending pool. */
+    void settle(TransactionOutput output) {
+        unsettled.remove(output);
+    }
+}
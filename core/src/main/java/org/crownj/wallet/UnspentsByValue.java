@@ -0,0 +1,67 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.TransactionOutput;
+
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The unspent outputs of a {@link Wallet} ordered by value, largest first, so coin selectors like
+ * {@link BranchAndBoundCoinSelector} don't have to sort all of them for every transaction. The wallet keeps it in sync
+ * with the outputs it could spend. Not thread safe, the wallet lock guards it.
+ */
+class UnspentsByValue {
+    /** Orders outputs by value, largest first, and then by their outpoint. */
+    static final Comparator<TransactionOutput> LARGEST_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = b.getValue().compareTo(a.getValue());
+            if (c != 0)
+                return c;
+            c = a.getParentTransactionHash().compareTo(b.getParentTransactionHash());
+            if (c != 0)
+                return c;
+            return Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    private final TreeSet<TransactionOutput> outputs = new TreeSet<>(LARGEST_FIRST);
+
+    void add(TransactionOutput output) {
+        outputs.add(output);
+    }
+
+    void remove(TransactionOutput output) {
+        outputs.remove(output);
+    }
+
+    void clear() {
+        outputs.clear();
+    }
+
+    int size() {
+        return outputs.size();
+    }
+
+    /** Returns the outputs, largest first. Must not be modified. */
+    NavigableSet<TransactionOutput> getOutputs() {
+        return outputs;
+    }
+}
@@ -18,6 +18,8 @@
 package org.crownj.wallet;
 
 import com.google.common.annotations.*;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.collect.*;
 import com.google.common.math.IntMath;
 import com.google.common.util.concurrent.*;
@@ -28,9 +30,11 @@ import org.crownj.core.Address;
 import org.crownj.core.Base58;
 import org.crownj.core.AbstractBlockChain;
 import org.crownj.core.BlockChain;
+import org.crownj.core.BlockFilter;
 import org.crownj.core.BloomFilter;
 import org.crownj.core.Coin;
 import org.crownj.core.Context;
+import org.crownj.core.DepthTracker;
 import org.crownj.core.ECKey;
 import org.crownj.core.FilteredBlock;
 import org.crownj.core.InsufficientMoneyException;
@@ -60,6 +64,8 @@ import org.crownj.crypto.*;
 import org.crownj.script.*;
 import org.crownj.script.Script.ScriptType;
 import org.crownj.signers.*;
+import org.crownj.store.BlockStoreException;
+import org.crownj.store.TransactionArchive;
 import org.crownj.utils.*;
 import org.crownj.wallet.Protos.Wallet.*;
 import org.crownj.wallet.WalletTransaction.*;
@@ -159,10 +165,50 @@ public class Wallet extends BaseTaggableObject
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
+    // The transactions of the pools by update time and height, for paging through the history.
+    private final TransactionHistory history = new TransactionHistory();
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
+    // Running totals of myUnspents for getBalance(), and the key modification count of the key chain group when it last
+    // checked which outputs can be signed for.
+    private final UnspentBalances unspentBalances = new UnspentBalances();
+    private int unspentBalancesKeyModifications = -1;
+    // myUnspents ordered by value, for BranchAndBoundCoinSelector.
+    private final UnspentsByValue unspentsByValue = new UnspentsByValue();
+    // Outputs that completeTx() mustn't select, because they're spent by a transaction that is being signed outside of
+    // the lock, see reserveOutputs().
+    private final Set<TransactionOutPoint> reservedOutPoints = new HashSet<>();
+
+    // Decides how much of the wallet is checked after each change, see checkConsistency(). The transactions touched
+    // since the last check are remembered for incremental checks.
+    private ConsistencyCheckPolicy consistencyCheckPolicy = ConsistencyCheckPolicy.always();
+    private final Set<Transaction> touchedTransactions = new HashSet<>();
+    private long consistencyMutations, fullChecks, fullCheckNanos, incrementalChecks, incrementalCheckNanos,
+            transactionsChecked, consistencyFailures;
+    // The transactions changed since the last record of the journal, see WalletFiles.enableJournal(). Set when
+    // transactions were removed, which records can't express.
+    private boolean journaling;
+    private final Set<Transaction> unjournaledTransactions = new HashSet<>();
+    private boolean journalNeedsSnapshot;
+    // Fully spent transactions deep in the chain are moved into the archive, see setTransactionArchive(). Candidates
+    // are the transactions that entered the spent pool since, checked on each new best block.
+    @Nullable private TransactionArchive transactionArchive;
+    private int archiveDepth;
+    private final Set<Transaction> archiveCandidates = new HashSet<>();
+    @Nullable private WalletProtobufSerializer archiveSerializer;
+    // The latest read-only view, see getSnapshot(). Null until somebody asks for one, so wallets that are only read
+    // the usual way don't pay for publishing them. The flags tell which of its parts have to be built anew, the sets
+    // which transactions and outputs changed since, for the parts that are published as their changes.
+    @Nullable private volatile WalletSnapshot vSnapshot;
+    private long snapshotVersion;
+    private boolean snapshotPoolsStale, snapshotCandidatesStale, snapshotScriptsStale;
+    private final Set<Sha256Hash> snapshotPoolChanges = new HashSet<>();
+    private final Set<TransactionOutput> snapshotCandidateChanges = new HashSet<>();
+    // The key modification count of the key chain group the snapshot was built with. Read by getSnapshot() without the
+    // lock, as key changes don't publish a new snapshot.
+    private volatile int snapshotKeyModifications = -1;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -191,6 +237,8 @@ public class Wallet extends BaseTaggableObject
     @Nullable private Sha256Hash lastBlockSeenHash;
     private int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
+    // The height of the best chain that the depth of our transactions is derived from. It only goes back on a re-org.
+    private final DepthTracker depthTracker = new DepthTracker();
 
     private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
         = new CopyOnWriteArrayList<>();
@@ -209,10 +257,6 @@ public class Wallet extends BaseTaggableObject
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private HashSet<Sha256Hash> ignoreNextNewBlock;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -477,7 +521,6 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -492,11 +535,35 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            touch(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
                         lock.unlock();
                     }
+                } else if (reason == ChangeReason.DEPTH) {
+                    // The transaction reached a depth somebody is waiting for, see addWalletTransaction().
+                    lock.lock();
+                    try {
+                        Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx == null || confidence.getConfidenceType() != ConfidenceType.BUILDING)
+                            return;
+                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                        // pending tx has zero confidence at all, which would not be right: we expect it to be
+                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                        // but this way is backwards compatible with existing software, and the new state probably
+                        // wouldn't mean anything different to just remembering peers anyway.
+                        if (getDepthInBlocks(confidence) > context.getEventHorizon()) {
+                            confidence.clearBroadcastBy();
+                            touch(tx);
+                        }
+                        queueOnTransactionConfidenceChanged(tx);
+                    } finally {
+                        lock.unlock();
+                    }
                 }
             }
         };
@@ -1053,6 +1120,13 @@ public class Wallet extends BaseTaggableObject
         }
         if (added > 0) {
             queueOnScriptsChanged(scripts, true);
+            lock.lock();
+            try {
+                snapshotScriptsStale = true;
+                maybePublishSnapshot();
+            } finally {
+                lock.unlock();
+            }
             saveNow();
         }
         return added;
@@ -1099,6 +1173,8 @@ public class Wallet extends BaseTaggableObject
             }
 
             queueOnScriptsChanged(scripts, false);
+            snapshotScriptsStale = true;
+            maybePublishSnapshot();
             saveNow();
             return true;
         } finally {
@@ -1492,6 +1568,16 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Changes whenever the keys serialized by serializeKeyChainGroupToProtobuf() may have changed.
+    ImmutableList<Integer> getKeyState() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.getKeyState();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
         FileOutputStream stream = null;
@@ -1649,6 +1735,7 @@ public class Wallet extends BaseTaggableObject
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
             files.shutdownAndWait();
+            setJournaling(false);
         } finally {
             lock.unlock();
         }
@@ -1677,6 +1764,45 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Starts or stops remembering the changed transactions for the journal of the file manager.
+    void setJournaling(boolean journaling) {
+        checkState(lock.isHeldByCurrentThread());
+        this.journaling = journaling;
+        unjournaledTransactions.clear();
+        journalNeedsSnapshot = false;
+    }
+
+    // Returns the transactions changed since the last call with their pools, or null if transactions were removed and
+    // the whole wallet has to be written instead.
+    @Nullable
+    List<WalletTransaction> takeUnjournaledTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        List<WalletTransaction> result = new ArrayList<>(unjournaledTransactions.size());
+        boolean removed = journalNeedsSnapshot;
+        for (Transaction tx : unjournaledTransactions) {
+            Sha256Hash txId = tx.getTxId();
+            if (unspent.containsKey(txId))
+                result.add(new WalletTransaction(Pool.UNSPENT, unspent.get(txId)));
+            else if (spent.containsKey(txId))
+                result.add(new WalletTransaction(Pool.SPENT, spent.get(txId)));
+            else if (pending.containsKey(txId))
+                result.add(new WalletTransaction(Pool.PENDING, pending.get(txId)));
+            else if (dead.containsKey(txId))
+                result.add(new WalletTransaction(Pool.DEAD, dead.get(txId)));
+            else
+                removed = true;
+        }
+        unjournaledTransactions.clear();
+        journalNeedsSnapshot = false;
+        return removed ? null : result;
+    }
+
+    // Remembers the last journal record contained in the wallet, without saving it like setTag() would.
+    void setJournalSequence(long sequence) {
+        checkState(lock.isHeldByCurrentThread());
+        super.setTag(WalletJournal.SEQUENCE_TAG, WalletJournal.encodeSequence(sequence));
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
      * {@link WalletProtobufSerializer}.
@@ -1704,13 +1830,29 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with a journal, see {@link WalletFiles#enableJournal(long)}, the changes in the journal
+     * are applied too.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
         try {
             try (FileInputStream stream = new FileInputStream(file)) {
-                return loadFromFileStream(stream, walletExtensions);
+                File journalFile = WalletJournal.journalFileFor(file);
+                if (!journalFile.exists())
+                    return loadFromFileStream(stream, walletExtensions);
+                // Apply the changes that were only appended to the journal.
+                Protos.Wallet walletProto = WalletJournal.replay(WalletProtobufSerializer.parseToProto(stream),
+                        journalFile);
+                NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+                if (params == null)
+                    throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+                Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
             }
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not open file", e);
@@ -1800,6 +1942,101 @@ public class Wallet extends BaseTaggableObject
         return isActuallySpent == isSpent;
     }
 
+    /**
+     * Sets how thoroughly the wallet checks itself after each change, see {@link ConsistencyCheckPolicy}. This also
+     * resets the {@link #getConsistencyCheckStats()}.
+     */
+    public void setConsistencyCheckPolicy(ConsistencyCheckPolicy policy) {
+        lock.lock();
+        try {
+            consistencyCheckPolicy = checkNotNull(policy);
+            touchedTransactions.clear();
+            consistencyMutations = fullChecks = fullCheckNanos = incrementalChecks = incrementalCheckNanos =
+                    transactionsChecked = consistencyFailures = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ConsistencyCheckPolicy getConsistencyCheckPolicy() {
+        lock.lock();
+        try {
+            return consistencyCheckPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns what the consistency checks cost since the policy was set. */
+    public ConsistencyCheckPolicy.Stats getConsistencyCheckStats() {
+        lock.lock();
+        try {
+            return new ConsistencyCheckPolicy.Stats(consistencyMutations, fullChecks, fullCheckNanos,
+                    incrementalChecks, incrementalCheckNanos, transactionsChecked, consistencyFailures);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs the check the policy asks for after a change of the wallet, throwing IllegalStateException if it fails.
+    private void checkConsistency() {
+        checkState(lock.isHeldByCurrentThread());
+        List<Transaction> touched = new ArrayList<>(touchedTransactions);
+        touchedTransactions.clear();
+        ConsistencyCheckPolicy.Check check = consistencyCheckPolicy.getCheck(++consistencyMutations);
+        if (check == ConsistencyCheckPolicy.Check.NONE)
+            return;
+        long start = System.nanoTime();
+        try {
+            if (check == ConsistencyCheckPolicy.Check.FULL)
+                isConsistentOrThrow();
+            else
+                isConsistentOrThrow(touched);
+        } catch (IllegalStateException x) {
+            consistencyFailures++;
+            throw x;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (check == ConsistencyCheckPolicy.Check.FULL) {
+                fullChecks++;
+                fullCheckNanos += nanos;
+            } else {
+                incrementalChecks++;
+                incrementalCheckNanos += nanos;
+                transactionsChecked += touched.size();
+            }
+        }
+    }
+
+    // Checks the pools of the given transactions only, and that the pools add up.
+    private void isConsistentOrThrow(List<Transaction> touched) throws IllegalStateException {
+        int size1 = transactions.size();
+        int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
+        if (size1 != size2)
+            throw new IllegalStateException("Inconsistent wallet sizes: " + size1 + ", " + size2);
+        for (Transaction tx : touched) {
+            Sha256Hash txId = tx.getTxId();
+            Transaction inWallet = transactions.get(txId);
+            int pools = 0;
+            for (Map<Sha256Hash, Transaction> pool : Arrays.asList(unspent, spent, pending, dead)) {
+                Transaction inPool = pool.get(txId);
+                if (inPool == null)
+                    continue;
+                pools++;
+                if (inPool != inWallet)
+                    throw new IllegalStateException("Two transactions with same hash: " + txId);
+            }
+            if (pools != (inWallet != null ? 1 : 0))
+                throw new IllegalStateException("Transaction in " + pools + " pools: " + txId);
+            if (inWallet != tx)
+                continue;
+            if (unspent.containsKey(txId) && !isTxConsistent(tx, false))
+                throw new IllegalStateException("Inconsistent unspent tx: " + txId);
+            if (spent.containsKey(txId) && !isTxConsistent(tx, true))
+                throw new IllegalStateException("Inconsistent spent tx: " + txId);
+        }
+    }
+
     /** Returns a wallet deserialized from the given input stream and wallet extensions. */
     public static Wallet loadFromFileStream(InputStream stream, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
         Wallet wallet = new WalletProtobufSerializer().readWallet(stream, walletExtensions);
@@ -2137,10 +2374,12 @@ public class Wallet extends BaseTaggableObject
             if (tmp != null)
                 tx = tmp;
         }
+        touch(tx);
 
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
+        snapshotPoolChanged(txHash);
 
         if (bestChain) {
             boolean wasDead = dead.remove(txHash) != null;
@@ -2152,7 +2391,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addMyUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2183,12 +2422,8 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            history.update(tx);
             if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
-                ignoreNextNewBlock.add(txHash);
-
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
@@ -2242,7 +2477,7 @@ public class Wallet extends BaseTaggableObject
         }
 
         informConfidenceListenersIfNotReorganizing();
-        isConsistentOrThrow();
+        checkConsistency();
         // Optimization for the case where a block has tons of relevant transactions.
         saveLater();
         hardSaveOnNextBlock = true;
@@ -2311,7 +2546,8 @@ public class Wallet extends BaseTaggableObject
      * transactions are extracted and sent to us UNLESS the new block caused a re-org, in which case this will
      * not be called (the {@link Wallet#reorganize(StoredBlock, List, List)} method will
      * call this one in that case).</p>
-     * <p>Used to update confidence data in each transaction and last seen block hash. Triggers auto saving.
+     * <p>Used to update the best chain height that the depth of transactions is derived from, and the last seen block
+     * hash. Triggers auto saving.
      * Invokes the onWalletChanged event listener if there were any affected transactions.</p>
      */
     @Override
@@ -2326,30 +2562,11 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getTxId())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getTxId());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
-                }
-            }
+            // The depth of BUILDING transactions is derived from the best chain height, so only the transactions
+            // that reach a depth somebody is waiting for have to be told about the new block.
+            depthTracker.advance(block.getHeight());
+            if (transactionArchive != null && !insideReorg)
+                archiveTransactions();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2366,6 +2583,158 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Moves transactions off the heap into the given archive once all the outputs of the wallet in them were spent,
+     * and they and the transactions spending them are buried under more than the given number of blocks. Wallets of
+     * busy services pile up lots of such transactions that are rarely looked at again. Archived transactions aren't
+     * returned by {@link #getTransactions(boolean)} or the history and aren't saved in the wallet file anymore, but
+     * {@link #getTransaction(Sha256Hash)} and the spent pool still find them, reading a copy from the archive that
+     * isn't connected to any other transaction.</p>
+     *
+     * <p>A transaction is only archived once the wallet transactions it spends from were archived, so no resident
+     * output is ever spent by an archived transaction. The depth can't be less than the event horizon, so re-orgs
+     * never reach archived transactions. Pass null to stop archiving; archived transactions stay in the archive. The
+     * archive isn't remembered in the wallet file, so set it again after loading the wallet.</p>
+     */
+    public void setTransactionArchive(@Nullable TransactionArchive archive, int depth) {
+        checkArgument(archive == null || depth >= context.getEventHorizon(),
+                "Depth must be at least the event horizon: %s", depth);
+        lock.lock();
+        try {
+            transactionArchive = archive;
+            archiveDepth = depth;
+            archiveCandidates.clear();
+            if (archive != null) {
+                archiveSerializer = new WalletProtobufSerializer();
+                archiveCandidates.addAll(spent.values());
+            } else {
+                archiveSerializer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archive set with {@link #setTransactionArchive(TransactionArchive, int)}, or null. */
+    @Nullable
+    public TransactionArchive getTransactionArchive() {
+        lock.lock();
+        try {
+            return transactionArchive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves the candidates that are buried deep enough into the archive, see setTransactionArchive().
+    private void archiveTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionArchive archive = checkNotNull(transactionArchive);
+        List<Transaction> buried = new ArrayList<>();
+        for (Iterator<Transaction> i = archiveCandidates.iterator(); i.hasNext();) {
+            Transaction tx = i.next();
+            if (spent.get(tx.getTxId()) != tx)
+                i.remove();  // Moved out of the spent pool since.
+            else if (isBuriedForArchive(tx))
+                buried.add(tx);
+        }
+        if (buried.isEmpty())
+            return;
+        // Oldest first, so transactions can be archived together with those they spend from.
+        Collections.sort(buried, new Comparator<Transaction>() {
+            @Override
+            public int compare(Transaction tx1, Transaction tx2) {
+                return Integer.compare(tx1.getConfidence().getAppearedAtChainHeight(),
+                        tx2.getConfidence().getAppearedAtChainHeight());
+            }
+        });
+        Set<Transaction> archived = new LinkedHashSet<>();
+        for (Transaction tx : buried) {
+            if (canArchive(tx, archived))
+                archived.add(tx);
+        }
+        if (archived.isEmpty())
+            return;
+        try {
+            for (Transaction tx : archived) {
+                Protos.Transaction proto = WalletProtobufSerializer.makeTxProto(new WalletTransaction(Pool.SPENT, tx));
+                archive.put(tx.getTxId(), proto.toByteArray());
+            }
+            // Only drop them once they are on disk.
+            archive.flush();
+        } catch (BlockStoreException e) {
+            log.warn("Could not archive transactions, keeping them in the wallet", e);
+            return;
+        }
+        for (Transaction tx : archived) {
+            Sha256Hash txId = tx.getTxId();
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null)
+                    spentBy.disconnect();
+            }
+            spent.remove(txId);
+            transactions.remove(txId);
+            history.remove(txId);
+            archiveCandidates.remove(tx);
+            snapshotPoolChanged(txId);
+            tx.getConfidence().removeEventListener(txConfidenceListener);
+            // Not touch(), as journal records can't express the removal: if the journal is replayed, the transaction
+            // is resident again until it is archived the next time, which is harmless.
+            touchedTransactions.add(tx);
+        }
+        log.info("Archived {} transactions, {} are left in the wallet", archived.size(), transactions.size());
+        checkConsistency();
+    }
+
+    private boolean isBuriedForArchive(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING
+                && getDepthInBlocks(confidence) > archiveDepth;
+    }
+
+    // The depth of the transaction in our best chain, which can differ from other wallets that share the transaction.
+    int getDepthInBlocks(TransactionConfidence confidence) {
+        return confidence.getDepthInBlocks(depthTracker.getHeight());
+    }
+
+    // Whether the buried transaction can go into the archive together with the given ones.
+    private boolean canArchive(Transaction tx, Set<Transaction> archived) {
+        // Wait until its last change is journaled, so the journal never refers to a transaction the wallet dropped.
+        if (unjournaledTransactions.contains(tx))
+            return false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null && !isBuriedForArchive(checkNotNull(spentBy.getParentTransaction())))
+                return false;
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction parent = input.getConnectedTransaction();
+            if (parent != null && transactions.get(parent.getTxId()) == parent && !archived.contains(parent))
+                return false;
+        }
+        return true;
+    }
+
+    // Returns a copy of the given transaction from the archive, or null if it isn't there.
+    @Nullable
+    private Transaction getArchivedTransaction(Sha256Hash txId) {
+        lock.lock();
+        try {
+            if (transactionArchive == null)
+                return null;
+            byte[] bytes = transactionArchive.get(txId);
+            if (bytes == null)
+                return null;
+            return checkNotNull(archiveSerializer).readDetachedTransaction(params, Protos.Transaction.parseFrom(bytes));
+        } catch (BlockStoreException | IOException | UnreadableWalletException e) {
+            log.error("Could not read transaction {} from the archive", txId, e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2389,6 +2758,7 @@ public class Wallet extends BaseTaggableObject
             log.info("  coinbase tx <-dead: confidence {}", tx.getTxId(),
                     tx.getConfidence().getConfidenceType().name());
             dead.remove(tx.getTxId());
+            snapshotPoolChanged(tx.getTxId());
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -2505,7 +2875,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeMyUnspent(output));
                 }
             }
         }
@@ -2528,7 +2898,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeMyUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2558,7 +2928,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addMyUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2566,9 +2936,10 @@ public class Wallet extends BaseTaggableObject
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            history.update(tx);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeMyUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2584,13 +2955,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeMyUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeMyUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2603,6 +2974,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        touch(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getTxId()) != null) {
@@ -2610,6 +2982,9 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getTxId(), context);
                 }
                 spent.put(tx.getTxId(), tx);
+                snapshotPoolChanged(tx.getTxId());
+                if (transactionArchive != null)
+                    archiveCandidates.add(tx);
             }
         } else {
             if (spent.remove(tx.getTxId()) != null) {
@@ -2617,6 +2992,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getTxId(), context);
                 }
                 unspent.put(tx.getTxId(), tx);
+                snapshotPoolChanged(tx.getTxId());
             }
         }
     }
@@ -2710,7 +3086,7 @@ public class Wallet extends BaseTaggableObject
                 throw new RuntimeException(e);
             }
 
-            isConsistentOrThrow();
+            checkConsistency();
             informConfidenceListenersIfNotReorganizing();
             saveNow();
         } finally {
@@ -2966,6 +3342,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        maybePublishSnapshot();
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3092,6 +3469,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        touch(tx);
+        snapshotPoolChanged(tx.getTxId());
         transactions.put(tx.getTxId(), tx);
         switch (pool) {
         case UNSPENT:
@@ -3099,6 +3478,8 @@ public class Wallet extends BaseTaggableObject
             break;
         case SPENT:
             checkState(spent.put(tx.getTxId(), tx) == null);
+            if (transactionArchive != null)
+                archiveCandidates.add(tx);
             break;
         case PENDING:
             checkState(pending.put(tx.getTxId(), tx) == null);
@@ -3112,12 +3493,15 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addMyUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        tx.getConfidence().addDepthTracker(depthTracker);
+        tx.getConfidence().addDepthThreshold(context.getEventHorizon() + 1);
+        history.update(tx);
     }
 
     /**
@@ -3129,34 +3513,72 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
-     * Dead transactions (overridden by double spends) are optionally included.</p>
-     * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * Dead transactions (overridden by double spends) are optionally included. Zero returns all transactions.</p>
+     * <p>The wallet keeps its transactions ordered by update time, so this takes O(log(num transactions) + N) time.</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        return getRecentTransactions(null, numTransactions, includeDead);
+    }
+
+    /**
+     * <p>Returns the page of up to N transactions after the given cursor, ordered by increasing age like
+     * {@link #getRecentTransactions(int, boolean)}. Zero returns all transactions after the cursor. A null cursor
+     * starts from the most recent transaction, and the cursor of the last transaction of a page, from
+     * {@link #getHistoryCursor(Sha256Hash)}, gives the next page.</p>
+     * <p>Takes O(log(num transactions) + N) time.</p>
+     */
+    public List<Transaction> getRecentTransactions(@Nullable HistoryCursor after, int numTransactions,
+                                                   boolean includeDead) {
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = unspent.size() + spent.size() + pending.size();
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            return history.getRecent(after, numTransactions, inPools(includeDead));
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns the position of the given transaction in the history of the wallet, to continue a page of
+     * {@link #getRecentTransactions(HistoryCursor, int, boolean)} after it, or null if the transaction isn't in the
+     * wallet.
+     */
+    @Nullable
+    public HistoryCursor getHistoryCursor(Sha256Hash txId) {
+        lock.lock();
+        try {
+            return history.getCursor(txId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the transactions that appeared in the best chain at heights from the first to the last, both inclusive,
+     * ordered by height and then by transaction ID. Takes O(log(num transactions) + N) time, where N is the number of
+     * transactions returned.
+     */
+    public List<Transaction> getTransactionsByHeight(int fromHeight, int toHeight) {
+        lock.lock();
+        try {
+            return history.getByHeight(fromHeight, toHeight, inPools(false));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Accepts the transactions in the pools returned by getTransactions().
+    private Predicate<Transaction> inPools(final boolean includeDead) {
+        return new Predicate<Transaction>() {
+            @Override
+            public boolean apply(Transaction tx) {
+                Sha256Hash txId = tx.getTxId();
+                return unspent.containsKey(txId) || spent.containsKey(txId) || pending.containsKey(txId)
+                        || (includeDead && dead.containsKey(txId));
+            }
+        };
+    }
+
     /**
      * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
      */
@@ -3164,7 +3586,20 @@ public class Wallet extends BaseTaggableObject
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
-            return transactions.get(hash);
+            Transaction tx = transactions.get(hash);
+            return tx != null ? tx : getArchivedTransaction(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Transaction getSpentTransaction(Sha256Hash txId) {
+        lock.lock();
+        try {
+            Transaction tx = spent.get(txId);
+            return tx != null ? tx : getArchivedTransaction(txId);
         } finally {
             lock.unlock();
         }
@@ -3191,6 +3626,161 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Returns the map of the given pool itself, without archived transactions.
+    private Map<Sha256Hash, Transaction> getPoolMap(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /**
+     * <p>Returns an immutable view of the wallet as it was after its last change, see {@link WalletSnapshot}. Unlike
+     * the other getters this doesn't take the wallet lock, so it never waits for block processing or re-orgs to
+     * finish, and all values of the view belong together.</p>
+     *
+     * <p>The first call builds the view under the lock. From then on a new version is published whenever a change of
+     * the wallet has been completed, sharing the parts that didn't change with the version before. Keys that were
+     * imported or removed, or chains that were added, change which outputs can be spent: the first call after that
+     * builds the next version under the lock too.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshotKeyModifications == keyChainGroup.getKeyModificationCount())
+            return snapshot;
+        lock.lock();
+        try {
+            if (vSnapshot == null)
+                vSnapshot = buildSnapshot(null);
+            else
+                maybePublishSnapshot();
+            return vSnapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Publishes a new snapshot, unless nobody asked for one yet.
+    private void maybePublishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        WalletSnapshot previous = vSnapshot;
+        if (previous != null)
+            vSnapshot = buildSnapshot(previous);
+    }
+
+    private WalletSnapshot buildSnapshot(@Nullable WalletSnapshot previous) {
+        ImmutableList<Script> scripts;
+        int keyModifications;
+        keyChainGroupLock.lock();
+        try {
+            scripts = previous == null || snapshotScriptsStale
+                    ? ImmutableList.copyOf(watchedScripts) : ImmutableList.copyOf(previous.getWatchedScripts());
+            keyModifications = keyChainGroup.getKeyModificationCount();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+        // Coinbases mature and pending outputs confirm with new blocks, which changes what can be spent.
+        boolean newBlock = previous == null || !Objects.equal(previous.getLastBlockSeenHash(), lastBlockSeenHash);
+        boolean changed = previous == null || snapshotPoolsStale || snapshotCandidatesStale
+                || !snapshotPoolChanges.isEmpty() || !snapshotCandidateChanges.isEmpty()
+                || keyModifications != snapshotKeyModifications || vUTXOProvider != null || newBlock;
+
+        WalletSnapshot.Pools pools;
+        if (previous == null || snapshotPoolsStale) {
+            EnumMap<Pool, IncrementalMap<Sha256Hash, Transaction>> maps = new EnumMap<>(Pool.class);
+            for (Pool pool : Pool.values())
+                maps.put(pool, IncrementalMap.copyOf(getPoolMap(pool), null));
+            pools = new WalletSnapshot.Pools(maps);
+        } else if (!snapshotPoolChanges.isEmpty()) {
+            EnumMap<Pool, IncrementalMap<Sha256Hash, Transaction>> maps = new EnumMap<>(Pool.class);
+            for (Pool pool : Pool.values()) {
+                IncrementalMap<Sha256Hash, Transaction> before = previous.getPools().get(pool);
+                Map<Sha256Hash, Transaction> current = getPoolMap(pool);
+                Map<Sha256Hash, Transaction> puts = new HashMap<>();
+                Set<Sha256Hash> removals = new HashSet<>();
+                for (Sha256Hash txId : snapshotPoolChanges) {
+                    Transaction tx = current.get(txId);
+                    if (tx == null) {
+                        if (before.get(txId) != null)
+                            removals.add(txId);
+                    } else if (before.get(txId) != tx) {
+                        puts.put(txId, tx);
+                    }
+                }
+                maps.put(pool, before.with(puts, removals));
+            }
+            pools = new WalletSnapshot.Pools(maps);
+        } else {
+            pools = previous.getPools();
+        }
+
+        IncrementalMap<TransactionOutput, TransactionOutput> candidates;
+        if (previous == null || snapshotCandidatesStale || keyModifications != snapshotKeyModifications
+                || vUTXOProvider != null) {
+            Map<TransactionOutput, TransactionOutput> outputs = new HashMap<>();
+            for (TransactionOutput output : calculateAllSpendCandidates(true, true))
+                outputs.put(output, output);
+            candidates = IncrementalMap.copyOf(outputs, UnspentsByValue.LARGEST_FIRST);
+        } else {
+            Set<TransactionOutput> outputs = snapshotCandidateChanges;
+            if (newBlock && unspentBalances.hasUnsettled()) {
+                outputs = new HashSet<>(outputs);
+                outputs.addAll(unspentBalances.getUnsettled());
+            }
+            IncrementalMap<TransactionOutput, TransactionOutput> before = previous.getSpendCandidateMap();
+            Map<TransactionOutput, TransactionOutput> puts = new HashMap<>();
+            Set<TransactionOutput> removals = new HashSet<>();
+            for (TransactionOutput output : outputs) {
+                boolean candidate = myUnspents.contains(output) && canSignForOutput(output)
+                        && checkNotNull(output.getParentTransaction()).isMature();
+                boolean wasCandidate = before.get(output) != null;
+                if (candidate && !wasCandidate)
+                    puts.put(output, output);
+                else if (!candidate && wasCandidate)
+                    removals.add(output);
+            }
+            candidates = before.with(puts, removals);
+        }
+
+        // The balances come from the running totals, which only look at the unsettled and pending outputs.
+        Map<BalanceType, Coin> balances;
+        if (changed) {
+            balances = new EnumMap<>(BalanceType.class);
+            for (BalanceType balanceType : BalanceType.values())
+                balances.put(balanceType, vUTXOProvider != null
+                        ? calculateBalance(balanceType) : getBalanceFromTotals(balanceType));
+        } else {
+            balances = previous.getBalances();
+        }
+
+        snapshotPoolsStale = snapshotCandidatesStale = snapshotScriptsStale = false;
+        snapshotPoolChanges.clear();
+        snapshotCandidateChanges.clear();
+        snapshotKeyModifications = keyModifications;
+        return new WalletSnapshot(++snapshotVersion, pools, candidates, scripts, balances, lastBlockSeenHash,
+                lastBlockSeenHeight);
+    }
+
+    // Remembers that a transaction may have moved between pools, for the next snapshot.
+    private void snapshotPoolChanged(Sha256Hash txId) {
+        if (vSnapshot != null)
+            snapshotPoolChanges.add(txId);
+    }
+
+    // Remembers that an output may have become a spend candidate or stopped being one, for the next snapshot.
+    private void snapshotCandidateChanged(TransactionOutput output) {
+        if (vSnapshot != null)
+            snapshotCandidateChanges.add(output);
+    }
+
     /**
      * Prepares the wallet for a blockchain replay. Removes all transactions (as they would get in the way of the
      * replay) and makes the wallet think it has never seen a block. {@link WalletChangeEventListener#onWalletChanged} will
@@ -3220,6 +3810,7 @@ public class Wallet extends BaseTaggableObject
         try {
             if (fromHeight == 0) {
                 clearTransactions();
+                maybePublishSnapshot();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -3235,7 +3826,16 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        history.clear();
         myUnspents.clear();
+        unspentBalances.clear();
+        unspentsByValue.clear();
+        touchedTransactions.clear();
+        unjournaledTransactions.clear();
+        journalNeedsSnapshot = true;
+        archiveCandidates.clear();
+        snapshotPoolsStale = snapshotCandidatesStale = true;
+        depthTracker.reset();
     }
 
     /**
@@ -3286,14 +3886,17 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addMyUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeMyUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        history.remove(tx.getTxId());
+                        touch(tx);
+                        snapshotPoolChanged(tx.getTxId());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3304,7 +3907,8 @@ public class Wallet extends BaseTaggableObject
                 }
             }
             if (dirty) {
-                isConsistentOrThrow();
+                checkConsistency();
+                maybePublishSnapshot();
                 saveLater();
                 if (log.isInfoEnabled())
                     log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
@@ -3731,23 +4335,125 @@ public class Wallet extends BaseTaggableObject
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+            // The totals only cover the wallet's own outputs.
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            Coin balance = getBalanceFromTotals(balanceType);
+            if (log.isDebugEnabled()) {
+                Coin expected = calculateBalance(balanceType);
+                if (!balance.equals(expected)) {
+                    log.error("{} balance is {} but should be {}, recalculating the totals", balanceType,
+                            balance.toFriendlyString(), expected.toFriendlyString());
+                    unspentBalancesKeyModifications = -1;
+                    return expected;
+                }
             }
+            return balance;
         } finally {
             lock.unlock();
         }
     }
 
+    // Takes the balance from the running totals of myUnspents. For the available balance only the unsettled and pending
+    // outputs are looked at, as the others are in the best chain, mature and so always selected by the coin selector.
+    private Coin getBalanceFromTotals(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        updateSignableUnspents();
+        boolean onlySignable = balanceType == BalanceType.ESTIMATED_SPENDABLE
+                || balanceType == BalanceType.AVAILABLE_SPENDABLE;
+        Coin balance = unspentBalances.getTotal(onlySignable);
+        if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE)
+            return balance;
+        Set<TransactionOutput> unsettled = unspentBalances.getUnsettled();
+        for (Transaction tx : pending.values()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (myUnspents.contains(output))
+                    unsettled.add(output);
+            }
+        }
+        for (TransactionOutput output : unsettled) {
+            Transaction tx = checkNotNull(output.getParentTransaction());
+            if (!tx.isCoinBase() && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING
+                    && !pending.containsKey(tx.getTxId()))
+                unspentBalances.settle(output);
+            if (onlySignable && !unspentBalances.isSignable(output))
+                continue;
+            if (!tx.isMature() || !DefaultCoinSelector.isSelectable(tx))
+                balance = balance.subtract(output.getValue());
+        }
+        return balance;
+    }
+
+    // Sums the balance over all spend candidates, which is slow for big wallets.
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    private boolean addMyUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        snapshotCandidateChanged(output);
+        touch(output.getParentTransaction());
+        unspentBalances.add(output, canSignForOutput(output));
+        unspentsByValue.add(output);
+        return true;
+    }
+
+    private boolean removeMyUnspent(TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        snapshotCandidateChanged(output);
+        touch(output.getParentTransaction());
+        unspentBalances.remove(output);
+        unspentsByValue.remove(output);
+        return true;
+    }
+
+    // Remembers a changed transaction for the next consistency check and journal record.
+    private void touch(Transaction tx) {
+        touchedTransactions.add(tx);
+        if (journaling)
+            unjournaledTransactions.add(tx);
+    }
+
+    private boolean canSignForOutput(TransactionOutput output) {
+        try {
+            return canSignFor(output.getScriptPubKey());
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    // Outputs that couldn't be signed for may have become spendable when keys were imported or chains added, and the
+    // other way around when keys were removed.
+    private void updateSignableUnspents() {
+        int keyModifications;
+        keyChainGroupLock.lock();
+        try {
+            keyModifications = keyChainGroup.getKeyModificationCount();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+        if (keyModifications == unspentBalancesKeyModifications)
+            return;
+        unspentBalances.clear();
+        for (TransactionOutput output : myUnspents)
+            unspentBalances.add(output, canSignForOutput(output));
+        unspentBalancesKeyModifications = keyModifications;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4267,6 +4973,8 @@ public class Wallet extends BaseTaggableObject
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
             // we don't have the keys for.
             List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            if (!reservedOutPoints.isEmpty())
+                candidates = removeReserved(candidates);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -4400,6 +5108,116 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Like {@link #signTransaction(SendRequest)}, but only holds the wallet lock while looking up the signers, so several
+     * transactions can be signed at the same time. The transaction must not have been committed to the wallet, and its
+     * inputs should be reserved, see {@link #reserveOutputs(Collection)}.
+     */
+    void signUncommittedTransaction(SendRequest req) throws BadWalletEncryptionKeyException {
+        checkState(!lock.isHeldByCurrentThread());
+        List<TransactionSigner> signers;
+        lock.lock();
+        try {
+            checkState(!pending.containsKey(req.tx.getTxId()), "Transaction %s was already committed", req.tx.getTxId());
+            signers = new ArrayList<>(this.signers);
+        } finally {
+            lock.unlock();
+        }
+        // The key lookups of the key bag take the key chain group lock on their own.
+        KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+        try {
+            TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(req.tx);
+            for (TransactionInput txIn : req.tx.getInputs()) {
+                TransactionOutput connectedOutput = checkNotNull(txIn.getConnectedOutput());
+                RedeemData redeemData = txIn.getConnectedRedeemData(maybeDecryptingKeyBag);
+                checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
+                Script scriptPubKey = connectedOutput.getScriptPubKey();
+                txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
+                txIn.setWitness(scriptPubKey.createEmptyWitness(redeemData.keys.get(0)));
+            }
+            for (TransactionSigner signer : signers) {
+                if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
+                    log.info("{} returned false for the tx", signer.getClass().getName());
+            }
+            new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
+        } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
+            throw new BadWalletEncryptionKeyException(e);
+        }
+    }
+
+    /**
+     * Keeps {@link #completeTx(SendRequest)} from selecting the given outputs until they are released again. Used to
+     * hold on to the inputs of completed transactions while they are signed outside of the wallet lock.
+     */
+    void reserveOutputs(Collection<TransactionOutPoint> outPoints) {
+        lock.lock();
+        try {
+            reservedOutPoints.addAll(outPoints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Releases outputs reserved by {@link #reserveOutputs(Collection)}. */
+    void releaseOutputs(Collection<TransactionOutPoint> outPoints) {
+        lock.lock();
+        try {
+            reservedOutPoints.removeAll(outPoints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<TransactionOutput> removeReserved(List<TransactionOutput> candidates) {
+        List<TransactionOutput> unreserved = new ArrayList<>(candidates.size());
+        for (TransactionOutput output : candidates) {
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, output.getIndex(),
+                    output.getParentTransactionHash());
+            if (!reservedOutPoints.contains(outPoint))
+                unreserved.add(output);
+        }
+        return unreserved;
+    }
+
+    /**
+     * Returns true if the given transaction is pending in this wallet and none of its outputs are spent, so it can be
+     * replaced with {@link #commitReplacement(Transaction, Transaction)}.
+     */
+    boolean isReplaceable(Transaction tx) {
+        lock.lock();
+        try {
+            if (pending.get(tx.getTxId()) != tx)
+                return false;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.getSpentBy() != null)
+                    return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces a pending transaction of ours with another one that spends at least one of the same outputs, as a
+     * replace-by-fee (BIP 125) replacement. The replaced transaction is killed with the replacement as its
+     * overriding transaction, and the replacement is committed.
+     *
+     * @throws IllegalStateException if the replaced transaction isn't replaceable, see {@link #isReplaceable(Transaction)}
+     */
+    void commitReplacement(Transaction replaced, Transaction replacement) throws VerificationException {
+        lock.lock();
+        try {
+            checkState(isReplaceable(replaced), "Transaction %s isn't replaceable", replaced.getTxId());
+            log.info("Replacing {} by {}", replaced.getTxId(), replacement.getTxId());
+            killTxns(ImmutableSet.of(replaced), null);
+            replaced.getConfidence().setOverridingTransaction(replacement);
+            commitTx(replacement);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size.
      * If ensureMinRequiredFee is true, feePerKb is set to at least {@link Transaction#REFERENCE_DEFAULT_MIN_TX_FEE}.
@@ -4437,7 +5255,8 @@ public class Wallet extends BaseTaggableObject
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
+                // Largest first, which BranchAndBoundCoinSelector relies on to skip sorting.
+                for (TransactionOutput output : unspentsByValue.getOutputs()) {
                     if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
@@ -4731,13 +5550,14 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addMyUnspent(output));
                                 input.disconnect();
                             }
                         }
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        snapshotPoolChanged(txHash);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -4762,15 +5582,14 @@ public class Wallet extends BaseTaggableObject
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
+            // The transactions in blocks up to and including the chain split block are now only buried by the blocks
+            // up to the split point. Their depth is derived from the best chain height, and they reach their depth
+            // thresholds again as the new blocks are replayed.
+            depthTracker.reorganize(splitPoint.getHeight());
+            for (Transaction tx : getTransactions(false)) {
+                if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -4791,7 +5610,7 @@ public class Wallet extends BaseTaggableObject
                 }
                 notifyNewBestBlock(block);
             }
-            isConsistentOrThrow();
+            checkConsistency();
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4807,18 +5626,6 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /**
-     * Subtract the supplied depth from the given transactions.
-     */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     //endregion
 
     /******************************************************************************************************************/
@@ -4934,6 +5741,47 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns true if the Bloom filter of this wallet matches its keys by the public key and its hash, as inserted by
+     * {@link BloomFilter#insert(ECKey)}. This is what allows a filter to be extended with new keys instead of being
+     * recalculated. Married key chains match P2SH script hashes instead.
+     */
+    public boolean isBloomFilterKeyedByPubKeys() {
+        keyChainGroupLock.lock();
+        try {
+            return !keyChainGroup.isMarried();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the output scripts, as program bytes, that this wallet is interested in. These are matched against
+     * BIP158 compact block filters (see {@link BlockFilter}) to decide which blocks to download. They cover
+     * pay-to-pubkey, P2PKH and P2WPKH outputs to all keys including the lookahead zone, the P2SH outputs of married
+     * key chains including theirs, and all watched scripts. Spends of our outputs are found as well, because the
+     * filters also contain the scripts spent in a block.
+     */
+    public List<byte[]> getCompactFilterElements() {
+        keyChainGroupLock.lock();
+        try {
+            List<byte[]> elements = new ArrayList<>();
+            for (ECKey key : keyChainGroup.getKeysForFiltering()) {
+                elements.add(ScriptBuilder.createP2PKOutputScript(key).getProgram());
+                elements.add(ScriptBuilder.createP2PKHOutputScript(key).getProgram());
+                if (key.isCompressed())
+                    elements.add(ScriptBuilder.createP2WPKHOutputScript(key).getProgram());
+            }
+            for (Script script : keyChainGroup.getScriptsForFiltering())
+                elements.add(script.getProgram());
+            for (Script script : watchedScripts)
+                elements.add(script.getProgram());
+            return elements;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
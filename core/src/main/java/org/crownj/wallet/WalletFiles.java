@@ -22,12 +22,16 @@ import org.crownj.utils.*;
 import org.slf4j.*;
 
 import com.google.common.base.Stopwatch;
+import net.jcip.annotations.GuardedBy;
 
 import javax.annotation.*;
 import java.io.*;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -50,6 +54,18 @@ public class WalletFiles {
 
     private volatile Listener vListener;
 
+    // Taken after the wallet lock, so records are appended in the order they were taken from the wallet even though
+    // the wallet lock is released while writing them.
+    private final ReentrantLock journalLock = Threading.lock("wallet-journal");
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    private volatile boolean vJournalEnabled;
+    @GuardedBy("journalLock") @Nullable private WalletJournal journal;
+    @GuardedBy("journalLock") private long maxJournalBytes;
+    // The key state of the wallet when its keys were last written, see Wallet.getKeyState().
+    @GuardedBy("journalLock") @Nullable private List<Integer> journaledKeyState;
+    // Set when a record could not be written, so the next save rewrites the wallet file instead.
+    @GuardedBy("journalLock") private boolean journalBroken;
+
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
      */
@@ -128,6 +144,13 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (vJournalEnabled)
+            appendToJournal();
+        else
+            saveSnapshot();
+    }
+
+    private void saveSnapshot() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -141,6 +164,103 @@ public class WalletFiles {
         log.info("Save completed in {}", watch);
     }
 
+    /**
+     * <p>Appends the changes of each save to a journal next to the wallet file, see {@link WalletJournal}, instead of
+     * rewriting the whole wallet. Once the journal grew beyond the given size, the next save rewrites the wallet file
+     * and empties the journal. Saves requested with {@link #saveLater()} still coalesce, so they are appended as a
+     * single record with a single sync to disk.</p>
+     *
+     * <p>Only changes the wallet made itself are appended. Changes to its transactions made from outside, like setting
+     * a memo, are saved with the next rewrite. The wallet file is rewritten right away, so the journal starts out
+     * empty. {@link Wallet#loadFromFile(File, WalletExtension...)} applies the journal.</p>
+     */
+    public void enableJournal(long maxJournalBytes) throws IOException {
+        checkArgument(maxJournalBytes > 0, "maxJournalBytes must be positive: %s", maxJournalBytes);
+        wallet.lock.lock();
+        journalLock.lock();
+        try {
+            checkState(journal == null, "Journal already enabled");
+            long sequence = WalletJournal.decodeSequence(wallet.maybeGetTag(WalletJournal.SEQUENCE_TAG));
+            this.journal = new WalletJournal(WalletJournal.journalFileFor(file), sequence);
+            this.maxJournalBytes = maxJournalBytes;
+            wallet.setJournaling(true);
+            compactJournal();
+            vJournalEnabled = true;
+        } finally {
+            journalLock.unlock();
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns the size of the journal in bytes, or zero if the journal isn't enabled. */
+    public long getJournalSize() throws IOException {
+        journalLock.lock();
+        try {
+            return journal != null ? journal.size() : 0;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // Appends the changes since the last record, or rewrites the wallet file if the journal got too big. The record is
+    // taken under the wallet lock, but written after releasing it.
+    private void appendToJournal() throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        wallet.lock.lock();
+        journalLock.lock();
+        try {
+            Protos.Wallet record = null;
+            try {
+                if (journal == null) {
+                    // Shut down in the meantime.
+                    saveSnapshot();
+                    return;
+                }
+                List<WalletTransaction> changed = wallet.takeUnjournaledTransactions();
+                if (changed == null || journalBroken || journal.size() >= maxJournalBytes) {
+                    compactJournal();
+                    return;
+                }
+                // The keys are only written when they changed, as all of them replace those of the record before.
+                List<Integer> keyState = wallet.getKeyState();
+                List<Protos.Key> keys = Collections.emptyList();
+                if (!keyState.equals(journaledKeyState))
+                    keys = wallet.serializeKeyChainGroupToProtobuf();
+                journaledKeyState = keyState;
+                // Any full save of the wallet from now on contains this record, even one that doesn't go through us
+                // like Wallet.saveToFile(), so loading it must not apply the record again.
+                wallet.setJournalSequence(journal.getLastSequence() + 1);
+                record = serializer.walletToProto(wallet, changed, keys);
+            } finally {
+                wallet.lock.unlock();
+            }
+            journal.append(record);
+            journal.sync();
+            watch.stop();
+            log.info("Appended {} transactions to journal {} in {}", record.getTransactionCount(), journal, watch);
+        } catch (IOException | RuntimeException e) {
+            // The changes taken from the wallet may be lost, so only a rewrite can save them now.
+            journalBroken = true;
+            throw e;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // Rewrites the wallet file, remembering the last record so it isn't applied again, and empties the journal.
+    private void compactJournal() throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        checkState(journalLock.isHeldByCurrentThread());
+        wallet.setJournalSequence(journal.getLastSequence());
+        wallet.takeUnjournaledTransactions();
+        // Taken before saving, so keys that change in the meantime are written with the next record.
+        List<Integer> keyState = wallet.getKeyState();
+        saveSnapshot();
+        journal.reset();
+        journaledKeyState = keyState;
+        journalBroken = false;
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (executor.isShutdown() || savePending.getAndSet(true))
@@ -156,5 +276,17 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                vJournalEnabled = false;
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException x) {
+            log.error("Failed to close journal", x);
+        } finally {
+            journalLock.unlock();
+        }
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only file of changes to a wallet, kept next to the wallet file, see {@link #journalFileFor(File)}. Each
+ * record is a {@link Protos.Wallet} holding only the transactions that changed since the record before, the keys if
+ * they changed, and the small fields like the last seen block. {@link WalletFiles#enableJournal(long)} appends records
+ * instead of rewriting the whole wallet, and compacts them into a new wallet file once the journal grew too big.</p>
+ *
+ * <p>Records are numbered, and a wallet file remembers the last record it contains in a tag, so records that survived
+ * a crash during compaction are never applied twice. Every record is framed by its length and a checksum, and replaying
+ * stops at the first record that was torn by a crash. {@link Wallet#loadFromFile(File, WalletExtension...)} replays
+ * the journal automatically. Not thread safe, {@link WalletFiles} guards it.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The tag of the number of the last record that is contained in a wallet file. */
+    public static final String SEQUENCE_TAG = "org.crownj.wallet.journal.sequence";
+
+    // Length, sequence number and checksum.
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long lastSequence;
+
+    /**
+     * Opens the journal for appending after the given sequence number. The caller writes the wallet file and then
+     * {@link #reset()}s the journal before appending, so no records are lost if that fails.
+     */
+    WalletJournal(File file, long lastSequence) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.lastSequence = lastSequence;
+    }
+
+    /** Returns the journal file of the given wallet file. */
+    public static File journalFileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Appends a record, numbered after the last one. Call {@link #sync()} to make it durable. */
+    void append(Protos.Wallet record) throws IOException {
+        byte[] payload = record.toByteArray();
+        long sequence = lastSequence + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(sequence);
+        buffer.putLong(checksum(sequence, payload));
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        lastSequence = sequence;
+    }
+
+    /** Forces the appended records to disk. */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /** Discards all records, after they were compacted into the wallet file. */
+    void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /** Returns the size of the journal in bytes. */
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /** Returns the number of the last appended record. */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return file + " at record " + lastSequence;
+    }
+
+    /** Returns the number of the last record contained in the given wallet, or zero if there is none. */
+    public static long getSequence(Protos.Wallet wallet) {
+        for (Protos.Tag tag : wallet.getTagsList()) {
+            if (tag.getTag().equals(SEQUENCE_TAG))
+                return decodeSequence(tag.getData());
+        }
+        return 0;
+    }
+
+    static ByteString encodeSequence(long sequence) {
+        return ByteString.copyFrom(Longs.toByteArray(sequence));
+    }
+
+    static long decodeSequence(@Nullable ByteString data) {
+        return data != null && data.size() == 8 ? Longs.fromByteArray(data.toByteArray()) : 0;
+    }
+
+    /**
+     * Applies the records of the given journal file that aren't contained in the given wallet yet. Transactions of a
+     * record replace those with the same hash, keys replace all keys, and the other fields replace those of the wallet.
+     */
+    public static Protos.Wallet replay(Protos.Wallet snapshot, File journalFile) throws IOException {
+        long sequence = getSequence(snapshot);
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        Map<ByteString, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < builder.getTransactionCount(); i++)
+            indexes.put(builder.getTransaction(i).getHash(), i);
+        int applied = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r")) {
+            long length = raf.length();
+            while (raf.getFilePointer() + HEADER_SIZE <= length) {
+                int size = raf.readInt();
+                long recordSequence = raf.readLong();
+                long checksum = raf.readLong();
+                if (size < 0 || raf.getFilePointer() + size > length) {
+                    log.warn("Journal {} ends with a torn record {}", journalFile, recordSequence);
+                    break;
+                }
+                byte[] payload = new byte[size];
+                raf.readFully(payload);
+                if (checksum != checksum(recordSequence, payload)) {
+                    log.warn("Journal {} has a corrupt record {}, ignoring it and the rest", journalFile,
+                            recordSequence);
+                    break;
+                }
+                if (recordSequence <= sequence)
+                    continue;
+                apply(builder, indexes, Protos.Wallet.parseFrom(payload));
+                sequence = recordSequence;
+                applied++;
+            }
+        }
+        log.info("Replayed {} records of journal {}", applied, journalFile);
+        setSequence(builder, sequence);
+        return builder.build();
+    }
+
+    private static void apply(Protos.Wallet.Builder builder, Map<ByteString, Integer> indexes, Protos.Wallet record) {
+        for (Protos.Transaction tx : record.getTransactionList()) {
+            Integer index = indexes.get(tx.getHash());
+            if (index != null) {
+                builder.setTransaction(index, tx);
+            } else {
+                indexes.put(tx.getHash(), builder.getTransactionCount());
+                builder.addTransaction(tx);
+            }
+        }
+        if (record.getKeyCount() > 0)
+            builder.clearKey().addAllKey(record.getKeyList());
+        builder.clearWatchedScript().addAllWatchedScript(record.getWatchedScriptList());
+        builder.clearDescription();
+        if (record.hasDescription())
+            builder.setDescription(record.getDescription());
+        builder.clearLastSeenBlockHash().clearLastSeenBlockHeight().clearLastSeenBlockTimeSecs();
+        if (record.hasLastSeenBlockHash())
+            builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+        if (record.hasLastSeenBlockHeight())
+            builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+        if (record.hasLastSeenBlockTimeSecs())
+            builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        builder.setEncryptionType(record.getEncryptionType());
+        builder.clearEncryptionParameters();
+        if (record.hasEncryptionParameters())
+            builder.setEncryptionParameters(record.getEncryptionParameters());
+        builder.clearKeyRotationTime();
+        if (record.hasKeyRotationTime())
+            builder.setKeyRotationTime(record.getKeyRotationTime());
+        builder.clearExtension().addAllExtension(record.getExtensionList());
+        builder.clearTags().addAllTags(record.getTagsList());
+        builder.setVersion(record.getVersion());
+    }
+
+    private static void setSequence(Protos.Wallet.Builder builder, long sequence) {
+        for (int i = 0; i < builder.getTagsCount(); i++) {
+            if (builder.getTags(i).getTag().equals(SEQUENCE_TAG)) {
+                builder.removeTags(i);
+                break;
+            }
+        }
+        builder.addTags(Protos.Tag.newBuilder().setTag(SEQUENCE_TAG).setData(encodeSequence(sequence)));
+    }
+
+    private static long checksum(long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(Longs.toByteArray(sequence));
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
@@ -28,6 +28,7 @@ import org.crownj.core.TransactionInput;
 import org.crownj.core.TransactionOutPoint;
 import org.crownj.core.TransactionOutput;
 import org.crownj.core.TransactionWitness;
+import org.crownj.core.TxConfidenceTable;
 import org.crownj.crypto.KeyCrypter;
 import org.crownj.crypto.KeyCrypterScrypt;
 import org.crownj.script.Script;
@@ -169,18 +170,26 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, wallet.getWalletTransactions(), wallet.serializeKeyChainGroupToProtobuf());
+    }
+
+    /**
+     * Like {@link #walletToProto(Wallet)}, but with only the given transactions and keys. Used for the records of a
+     * {@link WalletJournal}.
+     */
+    Protos.Wallet walletToProto(Wallet wallet, Iterable<WalletTransaction> transactions, List<Protos.Key> keys) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : transactions) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        walletBuilder.addAllKey(keys);
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -246,7 +255,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -614,6 +623,26 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
+    /**
+     * Reads a transaction written by {@link #makeTxProto(WalletTransaction)} on its own, with its confidence but without
+     * connecting it to any other transaction. Used to load transactions the wallet moved into its archive. The copy gets
+     * a confidence object of its own, so the archived confidence doesn't overwrite the one other copies of the
+     * transaction share through the {@link org.crownj.core.Context}.
+     */
+    Transaction readDetachedTransaction(NetworkParameters params, Protos.Transaction txProto)
+            throws UnreadableWalletException {
+        try {
+            readTransaction(txProto, params);
+            Transaction tx = txMap.get(txProto.getHash());
+            TransactionConfidence confidence = tx.getConfidence(new TxConfidenceTable(1));
+            if (txProto.hasConfidence())
+                readConfidence(params, tx, txProto.getConfidence(), confidence);
+            return tx;
+        } finally {
+            txMap.clear();
+        }
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
@@ -0,0 +1,188 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionOutput;
+import org.crownj.script.Script;
+import org.crownj.wallet.Wallet.BalanceType;
+import org.crownj.wallet.WalletTransaction.Pool;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An immutable view of a {@link Wallet} as it was after a change, see {@link Wallet#getSnapshot()}. Reading it never
+ * takes the wallet lock, so queries aren't held up while the wallet processes blocks. All values in a snapshot belong
+ * to the same version of the wallet.</p>
+ *
+ * <p>A new version is published after every change of the transactions, the best block or the watched scripts. It
+ * shares the parts that didn't change with the version before, so a new block that doesn't affect the wallet doesn't
+ * copy its transactions, and holds the pools and spend candidates that did change as the changes since an older
+ * version. They are only built in full when they are first read, on the reading thread. The {@link Transaction} objects themselves are those of the wallet and keep changing, like
+ * their confidence, so read those parts of them under the wallet lock if they have to match the snapshot.</p>
+ */
+public class WalletSnapshot {
+    private final long version;
+    private final Pools pools;
+    private final IncrementalMap<TransactionOutput, TransactionOutput> spendCandidates;
+    private final ImmutableList<Script> watchedScripts;
+    private final ImmutableMap<BalanceType, Coin> balances;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+
+    /** The transactions of the pools, shared between versions until they change. */
+    static class Pools {
+        private final ImmutableMap<Pool, IncrementalMap<Sha256Hash, Transaction>> pools;
+        // Built on first read, like the pools.
+        @Nullable private volatile ImmutableSet<Transaction> active, all;
+
+        Pools(Map<Pool, IncrementalMap<Sha256Hash, Transaction>> pools) {
+            this.pools = Maps.immutableEnumMap(pools);
+            checkArgument(this.pools.size() == 4);
+        }
+
+        IncrementalMap<Sha256Hash, Transaction> get(Pool pool) {
+            return checkNotNull(pools.get(pool));
+        }
+
+        ImmutableSet<Transaction> getTransactions(boolean includeDead) {
+            ImmutableSet<Transaction> transactions = includeDead ? all : active;
+            if (transactions == null) {
+                ImmutableSet.Builder<Transaction> builder = ImmutableSet.builder();
+                for (Pool pool : pools.keySet())
+                    if (includeDead || pool != Pool.DEAD)
+                        builder.addAll(get(pool).asMap().values());
+                transactions = builder.build();
+                if (includeDead)
+                    all = transactions;
+                else
+                    active = transactions;
+            }
+            return transactions;
+        }
+    }
+
+    WalletSnapshot(long version, Pools pools, IncrementalMap<TransactionOutput, TransactionOutput> spendCandidates,
+                   ImmutableList<Script> watchedScripts, Map<BalanceType, Coin> balances,
+                   @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight) {
+        this.version = version;
+        this.pools = checkNotNull(pools);
+        this.spendCandidates = checkNotNull(spendCandidates);
+        this.watchedScripts = checkNotNull(watchedScripts);
+        this.balances = Maps.immutableEnumMap(balances);
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+    }
+
+    /** Returns the number of this version, which grows with every version a wallet publishes. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Returns the balance of the given type, see {@link Wallet#getBalance(BalanceType)}. */
+    public Coin getBalance(BalanceType balanceType) {
+        return checkNotNull(balances.get(balanceType));
+    }
+
+    /** Returns the {@link BalanceType#AVAILABLE} balance, see {@link Wallet#getBalance()}. */
+    public Coin getBalance() {
+        return getBalance(BalanceType.AVAILABLE);
+    }
+
+    /**
+     * Returns the transactions of the wallet, optionally including the dead ones, see
+     * {@link Wallet#getTransactions(boolean)}.
+     */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        return pools.getTransactions(includeDead);
+    }
+
+    /** Returns the transaction with the given hash, or null if the wallet didn't have it. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        for (IncrementalMap<Sha256Hash, Transaction> pool : pools.pools.values()) {
+            Transaction tx = pool.get(hash);
+            if (tx != null)
+                return tx;
+        }
+        return null;
+    }
+
+    /** Returns the transactions of the given pool. */
+    public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+        return pools.get(pool).asMap();
+    }
+
+    /** Returns the number of transactions in the given pool. */
+    public int getPoolSize(Pool pool) {
+        return getTransactionPool(pool).size();
+    }
+
+    /**
+     * Returns the outputs that could be spent, excluding immature coinbases and outputs the wallet can't sign for, see
+     * {@link Wallet#calculateAllSpendCandidates(boolean, boolean)}.
+     */
+    public List<TransactionOutput> getSpendCandidates() {
+        return spendCandidates.keys();
+    }
+
+    /** Returns the watched scripts, see {@link Wallet#getWatchedScripts()}. */
+    public List<Script> getWatchedScripts() {
+        return watchedScripts;
+    }
+
+    /** Returns the hash of the last best chain block the wallet had seen, or null if none. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last best chain block the wallet had seen, or -1 if none. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    Pools getPools() {
+        return pools;
+    }
+
+    IncrementalMap<TransactionOutput, TransactionOutput> getSpendCandidateMap() {
+        return spendCandidates;
+    }
+
+    ImmutableMap<BalanceType, Coin> getBalances() {
+        return balances;
+    }
+
+    @Override
+    public String toString() {
+        return "WalletSnapshot{version " + version + ", " + getTransactions(false).size() + " transactions, balance "
+                + getBalance().toFriendlyString() + ", last block " + lastBlockSeenHeight + "}";
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.MainNetParams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AddressManagerTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    private static final String ONION_V3 = "kpgvmscirrdqpekbqjsvw5teanhatztpp2gl6eee4zkowvwfxwenqaid.onion";
+
+    private static PeerAddress address(int a, int b, int c, int d) throws Exception {
+        return new PeerAddress(MAINNET, InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d }),
+                9340, BigInteger.valueOf(VersionMessage.NODE_NETWORK));
+    }
+
+    @Test
+    public void addAndSelect() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        List<InetSocketAddress> all = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            PeerAddress address = address(44, i, 1, 1);
+            // Rarely, an address lands in the slot of another one and is dropped.
+            if (manager.add(address, null))
+                all.add(address.toSocketAddress());
+        }
+        assertTrue(all.size() > 90);
+        assertFalse(manager.add(address(44, 0, 1, 1), null)); // Already known.
+        assertEquals(all.size(), manager.size());
+        assertEquals(all.size(), manager.getNewCount());
+
+        List<PeerAddress> selected = manager.select(10, Collections.<InetSocketAddress>emptyList());
+        assertEquals(10, selected.size());
+        HashSet<InetSocketAddress> distinct = new HashSet<>();
+        for (PeerAddress address : selected)
+            assertTrue(distinct.add(address.toSocketAddress()));
+
+        InetSocketAddress last = all.remove(all.size() - 1);
+        selected = manager.select(10, all);
+        assertEquals(1, selected.size());
+        assertEquals(last, selected.get(0).toSocketAddress());
+    }
+
+    @Test
+    public void markGoodMovesToTried() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        PeerAddress good = address(44, 1, 1, 1);
+        manager.add(good, null);
+        manager.add(address(44, 2, 1, 1), null);
+        assertFalse(manager.isTried(good));
+        manager.markGood(good);
+        assertTrue(manager.isTried(good));
+        assertEquals(1, manager.getTriedCount());
+        assertEquals(1, manager.getNewCount());
+
+        // Unknown addresses are added before they're marked.
+        PeerAddress unknown = address(45, 1, 1, 1);
+        manager.markGood(unknown);
+        assertTrue(manager.isTried(unknown));
+        assertEquals(3, manager.size());
+    }
+
+    @Test
+    public void failingAddressesAreSelectedLess() throws Exception {
+        Utils.setMockClock();
+        try {
+            AddressManager manager = new AddressManager(MAINNET);
+            PeerAddress failing = address(44, 1, 1, 1);
+            PeerAddress fresh = address(45, 1, 1, 1);
+            manager.add(failing, null);
+            manager.add(fresh, null);
+            for (int i = 0; i < 5; i++)
+                manager.markAttempt(failing);
+            int failingSelected = 0;
+            for (int i = 0; i < 1000; i++)
+                if (manager.select(1, Collections.<InetSocketAddress>emptyList()).get(0).equals(failing))
+                    failingSelected++;
+            assertTrue("selected " + failingSelected, failingSelected < 100);
+        } finally {
+            Utils.resetMocking();
+        }
+    }
+
+    @Test
+    public void misbehavingAddressesAreSelectedLess() throws Exception {
+        Utils.setMockClock();
+        try {
+            AddressManager manager = new AddressManager(MAINNET);
+            PeerAddress misbehaving = address(44, 1, 1, 1);
+            PeerAddress clean = address(45, 1, 1, 1);
+            manager.markGood(misbehaving);
+            manager.markGood(clean);
+            manager.markMisbehavior(misbehaving, 2, 1);
+            manager.markMisbehavior(address(46, 1, 1, 1), 1, 1); // Unknown, ignored.
+            assertEquals(2, manager.getStallCount(misbehaving));
+            assertEquals(1, manager.getInvalidDataCount(misbehaving));
+            assertEquals(0, manager.getStallCount(clean));
+            int misbehavingSelected = 0;
+            for (int i = 0; i < 1000; i++)
+                if (manager.select(1, Collections.<InetSocketAddress>emptyList()).get(0).equals(misbehaving))
+                    misbehavingSelected++;
+            assertTrue("selected " + misbehavingSelected, misbehavingSelected < 200);
+        } finally {
+            Utils.resetMocking();
+        }
+    }
+
+    @Test
+    public void bucketsLimitAddressesOfOneGroup() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        PeerAddress source = address(46, 1, 1, 1);
+        // A single network group from a single source gets a single bucket.
+        for (int i = 0; i < 1000; i++)
+            manager.add(address(44, 1, i / 250, i % 250 + 1), source);
+        assertTrue(manager.size() > 10);
+        assertTrue(manager.size() <= AddressManager.BUCKET_SIZE);
+
+        // Many network groups from a single source get a limited number of buckets.
+        manager = new AddressManager(MAINNET);
+        for (int i = 0; i < 5000; i++)
+            manager.add(address(44 + i / 250, i % 250, 1, 1), source);
+        assertTrue(manager.size() > 500);
+        assertTrue(manager.size() <= 16 * AddressManager.BUCKET_SIZE);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        PeerAddress tried = address(44, 1, 1, 1);
+        PeerAddress ipv6 = new PeerAddress(MAINNET, InetAddress.getByName("2001:db8::1"), 9340);
+        PeerAddress onion = new PeerAddress(MAINNET, ONION_V3, 9340);
+        manager.add(tried, null);
+        manager.markGood(tried);
+        manager.add(ipv6, tried);
+        manager.add(onion, tried);
+        assertEquals(3, manager.size());
+
+        AddressManager v2 = new AddressManager(MAINNET);
+        v2.read(new ByteArrayInputStream(write(manager, 2)));
+        assertEquals(3, v2.size());
+        assertEquals(1, v2.getTriedCount());
+        assertTrue(v2.isTried(tried));
+        assertEquals(2, v2.select(3, Collections.singletonList(tried.toSocketAddress())).size());
+
+        // The addrv1 encoding can't represent TORv3 addresses.
+        AddressManager v1 = new AddressManager(MAINNET);
+        v1.read(new ByteArrayInputStream(write(manager, 1)));
+        assertEquals(2, v1.size());
+        assertTrue(v1.isTried(tried));
+
+        File file = File.createTempFile("addresses", null);
+        file.deleteOnExit();
+        manager.saveToFile(file);
+        AddressManager loaded = new AddressManager(MAINNET);
+        loaded.loadFromFile(file);
+        assertEquals(3, loaded.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptFile() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        manager.add(address(44, 1, 1, 1), null);
+        byte[] bytes = write(manager, 2);
+        new AddressManager(MAINNET).read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 5)));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptLength() throws Exception {
+        AddressManager manager = new AddressManager(MAINNET);
+        manager.add(address(44, 1, 1, 1), null);
+        byte[] bytes = write(manager, 2);
+        // Header, count, address, last try and success, attempts, successes, tried flag, then the source group length.
+        int offset = 7 + 1 + 32 + 1;
+        offset += new PeerAddress(MAINNET, bytes, offset, null,
+                MAINNET.getDefaultSerializer().withProtocolVersion(2)).getMessageSize();
+        offset += 8 + 1 + 1 + 1;
+        byte[] corrupt = Arrays.copyOf(bytes, offset + 9);
+        Arrays.fill(corrupt, offset, corrupt.length, (byte) 0xff);
+        new AddressManager(MAINNET).read(new ByteArrayInputStream(corrupt));
+    }
+
+    private static byte[] write(AddressManager manager, int protocolVariant) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        manager.write(bos, protocolVariant);
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import org.crownj.params.MainNetParams;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptPattern;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.crownj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class BlockFilterTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    // The genesis block vector of BIP158: the block has a single output, paying to the famous pay-to-pubkey script.
+    private static final Sha256Hash GENESIS_HASH =
+            Sha256Hash.wrap("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943");
+    private static final byte[] GENESIS_SCRIPT = HEX.decode("4104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0" +
+            "ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac");
+
+    @Test
+    public void bip158GenesisVector() throws Exception {
+        byte[] key = Arrays.copyOf(GENESIS_HASH.getReversedBytes(), 16);
+        GolombCodedSet set = GolombCodedSet.build(key, BlockFilter.BASIC_P, BlockFilter.BASIC_M,
+                Collections.singletonList(GENESIS_SCRIPT));
+        assertEquals("019dfca8", HEX.encode(set.getEncoded()));
+
+        BlockFilter filter = new BlockFilter(BlockFilter.TYPE_BASIC, GENESIS_HASH, HEX.decode("019dfca8"));
+        assertEquals(1, filter.size());
+        assertTrue(filter.matches(new Script(GENESIS_SCRIPT)));
+        assertEquals("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750",
+                filter.computeHeader(Sha256Hash.ZERO_HASH).toString());
+    }
+
+    @Test
+    public void matchAny() {
+        Random random = new Random(1);
+        List<byte[]> members = randomElements(random, 500);
+        GolombCodedSet set = GolombCodedSet.build(new byte[16], BlockFilter.BASIC_P, BlockFilter.BASIC_M, members);
+        assertEquals(500, set.size());
+        for (byte[] member : members)
+            assertTrue(set.match(member));
+
+        List<byte[]> others = randomElements(random, 1000);
+        assertFalse(set.matchAny(others));
+        others.add(members.get(123));
+        assertTrue(set.matchAny(others));
+        assertFalse(set.matchAny(new ArrayList<byte[]>()));
+    }
+
+    @Test
+    public void emptySet() {
+        GolombCodedSet set = GolombCodedSet.build(new byte[16], BlockFilter.BASIC_P, BlockFilter.BASIC_M,
+                new ArrayList<byte[]>());
+        assertEquals(0, set.size());
+        assertFalse(set.match(GENESIS_SCRIPT));
+    }
+
+    @Test
+    public void multiplyHighUnsigned() {
+        Random random = new Random(2);
+        BigInteger twoTo64 = BigInteger.ONE.shiftLeft(64);
+        for (int i = 0; i < 1000; i++) {
+            long x = random.nextLong(), y = random.nextLong();
+            BigInteger product = unsigned(x).multiply(unsigned(y)).shiftRight(64);
+            assertEquals(product.mod(twoTo64), unsigned(GolombCodedSet.multiplyHighUnsigned(x, y)));
+        }
+    }
+
+    @Test
+    public void basicFilterOfBlock() throws Exception {
+        new Context(MAINNET);
+        Block block = MAINNET.getDefaultSerializer()
+                .makeBlock(ByteStreams.toByteArray(getClass().getResourceAsStream("block481829.dat")));
+        BlockFilter filter = BlockFilter.buildBasic(block, Collections.singletonList(GENESIS_SCRIPT));
+        assertEquals(block.getHash(), filter.getBlockHash());
+        List<byte[]> outputScripts = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                if (!ScriptPattern.isOpReturn(output.getScriptPubKey()))
+                    outputScripts.add(output.getScriptBytes());
+        for (byte[] script : outputScripts.subList(0, 100))
+            assertTrue(filter.matchesAny(Collections.singletonList(script)));
+        assertTrue(filter.matches(new Script(GENESIS_SCRIPT)));
+
+        // Through the wire and back.
+        CFilterMessage message = (CFilterMessage) roundTrip(new CFilterMessage(MAINNET, filter));
+        assertEquals(block.getHash(), message.getBlockHash());
+        assertEquals(filter.getFilterHash(), message.getFilterHash());
+        assertArrayEquals(filter.getFilterBytes(), message.getFilter().getFilterBytes());
+    }
+
+    @Test
+    public void filterHeaderChain() throws Exception {
+        Sha256Hash previous = Sha256Hash.of(new byte[] { 1 });
+        List<Sha256Hash> filterHashes = Arrays.asList(Sha256Hash.of(new byte[] { 2 }), Sha256Hash.of(new byte[] { 3 }));
+        CFHeadersMessage message = (CFHeadersMessage) roundTrip(new CFHeadersMessage(MAINNET,
+                BlockFilter.TYPE_BASIC, GENESIS_HASH, previous, filterHashes));
+        assertEquals(GENESIS_HASH, message.getStopHash());
+        assertEquals(previous, message.getPreviousFilterHeader());
+        assertEquals(filterHashes, message.getFilterHashes());
+        Sha256Hash first = BlockFilter.computeHeader(filterHashes.get(0), previous);
+        assertEquals(Arrays.asList(first, BlockFilter.computeHeader(filterHashes.get(1), first)),
+                message.getFilterHeaders());
+
+        GetCFiltersMessage getcfilters = new GetCFiltersMessage(MAINNET, BlockFilter.TYPE_BASIC, 700000, GENESIS_HASH);
+        assertEquals(getcfilters, roundTrip(getcfilters));
+        GetCFHeadersMessage getcfheaders = new GetCFHeadersMessage(MAINNET, BlockFilter.TYPE_BASIC, 1, GENESIS_HASH);
+        assertEquals(getcfheaders, roundTrip(getcfheaders));
+    }
+
+    private static List<byte[]> randomElements(Random random, int count) {
+        List<byte[]> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] element = new byte[25];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    private static BigInteger unsigned(long value) {
+        return BigInteger.valueOf(value).and(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+    }
+
+    private static Message roundTrip(Message message) throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+}
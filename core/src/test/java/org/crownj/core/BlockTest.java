@@ -278,6 +278,52 @@ public class BlockTest {
         block481829.checkWitnessRoot();
     }
 
+    @Test
+    public void lazyTransactions() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block481829.dat"));
+        Block eager = MAINNET.getDefaultSerializer().makeBlock(bytes);
+        Block lazy = MAINNET.getSerializer(false).withLazyTransactions(true).makeBlock(bytes);
+        assertTrue(lazy.isLazy());
+        assertEquals(eager.getHash(), lazy.getHash());
+        assertEquals(2020, lazy.getTransactionCount());
+        assertEquals(bytes.length, lazy.getMessageSize());
+
+        // Ids and roots are calculated from the raw bytes, including those of witness transactions.
+        for (int i = 0; i < lazy.getTransactionCount(); i++)
+            assertEquals(eager.transactions.get(i).getTxId(), lazy.getTransactionId(i));
+        lazy.verifyMerkleRoot();
+        assertEquals(eager.getWitnessRoot(), lazy.getWitnessRoot());
+        assertTrue(lazy.isLazy());
+
+        // Single transactions are parsed on demand.
+        Transaction tx = lazy.getTransaction(1);
+        assertEquals(eager.transactions.get(1), tx);
+        assertTrue(tx.hasWitnesses() == eager.transactions.get(1).hasWitnesses());
+        assertTrue(lazy.isLazy());
+        assertArrayEquals(bytes, lazy.crownSerialize());
+
+        // Asking for everything leaves lazy mode.
+        assertEquals(eager.getTransactions(), lazy.getTransactions());
+        assertFalse(lazy.isLazy());
+        assertSame(tx, lazy.getTransaction(1));
+        lazy.verify(Block.BLOCK_HEIGHT_GENESIS, EnumSet.noneOf(Block.VerifyFlag.class));
+        assertArrayEquals(bytes, lazy.crownSerialize());
+    }
+
+    @Test
+    public void lazyTransactionsBadMerkleRoot() throws Exception {
+        Block lazy = TESTNET.getSerializer(false).withLazyTransactions(true).makeBlock(block700000Bytes);
+        lazy.verifyMerkleRoot();
+        lazy.setMerkleRoot(Sha256Hash.ZERO_HASH);
+        try {
+            lazy.verifyMerkleRoot();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertTrue(lazy.isLazy());
+    }
+
     @Test
     public void isBIPs() throws Exception {
         final Block genesis = MAINNET.getGenesisBlock();
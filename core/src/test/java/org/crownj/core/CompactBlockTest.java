@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import org.crownj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactBlockTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(MAINNET);
+        block = MAINNET.getDefaultSerializer()
+                .makeBlock(ByteStreams.toByteArray(getClass().getResourceAsStream("block481829.dat")));
+    }
+
+    @Test
+    public void cmpctBlockRoundTrip() throws Exception {
+        CmpctBlockMessage message = CmpctBlockMessage.fromBlock(block, 0x1234567890abcdefL, true);
+        assertEquals(block.getTransactions().size(), message.getTransactionCount());
+
+        CmpctBlockMessage parsed = (CmpctBlockMessage) roundTrip(message);
+        assertEquals(block.getHash(), parsed.getBlockHash());
+        assertEquals(0x1234567890abcdefL, parsed.getNonce());
+        assertArrayEquals(message.getShortIds(), parsed.getShortIds());
+        assertArrayEquals(new int[] { 0 }, parsed.getPrefilledIndexes());
+        assertEquals(block.getTransactions().get(0).getWTxId(), parsed.getPrefilledTransactions().get(0).getWTxId());
+        for (long shortId : parsed.getShortIds())
+            assertEquals(0, shortId >>> 48);
+    }
+
+    @Test
+    public void getBlockTxnRoundTrip() throws Exception {
+        GetBlockTxnMessage message = new GetBlockTxnMessage(MAINNET, block.getHash(), new int[] { 1, 2, 7, 300 });
+        GetBlockTxnMessage parsed = (GetBlockTxnMessage) roundTrip(message);
+        assertEquals(message, parsed);
+        assertArrayEquals(new int[] { 1, 2, 7, 300 }, parsed.getIndexes());
+    }
+
+    @Test
+    public void reconstructFromPool() throws Exception {
+        List<Transaction> transactions = block.getTransactions();
+        CmpctBlockMessage message = (CmpctBlockMessage) roundTrip(CmpctBlockMessage.fromBlock(block, 42, true));
+
+        // Everything except a few transactions is already known.
+        List<Transaction> pool = new ArrayList<>(transactions.subList(1, transactions.size()));
+        pool.remove(transactions.get(5));
+        pool.remove(transactions.get(1000));
+        CompactBlockReconstructor reconstructor = new CompactBlockReconstructor(message, true);
+        assertEquals(2, reconstructor.fillFromPool(pool));
+        assertFalse(reconstructor.isComplete());
+
+        GetBlockTxnMessage request = reconstructor.createRequest();
+        assertArrayEquals(new int[] { 5, 1000 }, request.getIndexes());
+        BlockTxnMessage answer = (BlockTxnMessage) roundTrip(new BlockTxnMessage(MAINNET, block.getHash(),
+                Arrays.asList(transactions.get(5), transactions.get(1000))));
+        reconstructor.fill(answer);
+        assertTrue(reconstructor.isComplete());
+
+        Block rebuilt = reconstructor.build();
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertArrayEquals(block.crownSerialize(), rebuilt.crownSerialize());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void wrongTransactionFailsMerkleCheck() throws Exception {
+        List<Transaction> transactions = block.getTransactions();
+        CompactBlockReconstructor reconstructor =
+                new CompactBlockReconstructor(CmpctBlockMessage.fromBlock(block, 42, true), true);
+        reconstructor.fillFromPool(transactions.subList(2, transactions.size()));
+        // Answer with a transaction from elsewhere in the block.
+        reconstructor.fill(new BlockTxnMessage(MAINNET, block.getHash(), Arrays.asList(transactions.get(2))));
+        reconstructor.build();
+    }
+
+    @Test(expected = VerificationException.class)
+    public void wrongTransactionCount() throws Exception {
+        CompactBlockReconstructor reconstructor =
+                new CompactBlockReconstructor(CmpctBlockMessage.fromBlock(block, 42, true), true);
+        reconstructor.fill(new BlockTxnMessage(MAINNET, block.getHash(), new ArrayList<Transaction>()));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void duplicateShortIds() throws Exception {
+        CmpctBlockMessage message = new CmpctBlockMessage(MAINNET, block, 42, new long[] { 7, 7 }, new int[] { 0 },
+                block.getTransactions().subList(0, 1));
+        new CompactBlockReconstructor(message, true);
+    }
+
+    @Test
+    public void recentTransactionPoolEvictsOldest() {
+        List<Transaction> transactions = block.getTransactions();
+        RecentTransactionPool pool = new RecentTransactionPool(2);
+        pool.add(transactions.get(1));
+        pool.add(transactions.get(2));
+        pool.add(transactions.get(3));
+        assertEquals(2, pool.size());
+        assertNull(pool.get(transactions.get(1).getTxId()));
+        assertEquals(transactions.get(3), pool.get(transactions.get(3).getTxId()));
+        pool.removeAll(transactions);
+        assertEquals(0, pool.size());
+    }
+
+    private static Message roundTrip(Message message) throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+import org.crownj.utils.*;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DepthTrackerTest {
+    private DepthTracker tracker;
+    private TransactionConfidence confidence;
+    private List<Integer> depths;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        tracker = new DepthTracker();
+        confidence = new TransactionConfidence(Sha256Hash.of(new byte[] { 1 }));
+        confidence.addDepthTracker(tracker);
+        depths = new ArrayList<>();
+        confidence.addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    depths.add(confidence.getDepthInBlocks());
+            }
+        });
+    }
+
+    @Test
+    public void depthThresholds() throws Exception {
+        confidence.addDepthThreshold(3);
+        tracker.advance(9);
+        // The transaction is seen in a block before the block becomes the best one.
+        confidence.setAppearedAtChainHeight(10);
+        assertEquals(1, confidence.getDepthInBlocks());
+        tracker.advance(10);
+        assertEquals(1, confidence.getDepthInBlocks());
+        tracker.advance(11);
+        // Several blocks at once.
+        tracker.advance(14);
+        assertEquals(5, confidence.getDepthInBlocks());
+        assertEquals(Arrays.asList(5), depths);
+
+        // A re-org back to below the threshold reaches it again.
+        tracker.reorganize(11);
+        assertEquals(2, confidence.getDepthInBlocks());
+        tracker.advance(12);
+        assertEquals(Arrays.asList(5, 3), depths);
+
+        // Once the transaction is no longer in the chain, nothing is reached.
+        confidence.setConfidenceType(ConfidenceType.PENDING);
+        assertEquals(0, confidence.getDepthInBlocks());
+        tracker.advance(20);
+        assertEquals(Arrays.asList(5, 3), depths);
+    }
+
+    @Test
+    public void replayedBlocksDontLowerHeight() throws Exception {
+        confidence.setAppearedAtChainHeight(10);
+        tracker.advance(15);
+        tracker.advance(11);
+        assertEquals(15, tracker.getHeight());
+        assertEquals(6, confidence.getDepthInBlocks());
+        tracker.reset();
+        tracker.advance(11);
+        assertEquals(2, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void depthWithoutBestChainHeight() throws Exception {
+        confidence.setAppearedAtChainHeight(10);
+        confidence.setDepthInBlocks(4);
+        assertEquals(4, confidence.getDepthInBlocks());
+        // Once the height is known, the depth is derived from it.
+        tracker.advance(11);
+        assertEquals(2, confidence.getDepthInBlocks());
+        // Copies don't change.
+        TransactionConfidence copy = confidence.duplicate();
+        tracker.advance(12);
+        assertEquals(2, copy.getDepthInBlocks());
+        assertEquals(3, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void trackersOfSeveralWallets() throws Exception {
+        DepthTracker behind = new DepthTracker();
+        confidence.addDepthTracker(behind);
+        confidence.addDepthThreshold(3);
+        confidence.setAppearedAtChainHeight(10);
+        tracker.advance(10);
+        tracker.advance(20);
+        behind.advance(11);
+        assertEquals(11, confidence.getDepthInBlocks());
+        assertEquals(2, confidence.getDepthInBlocks(behind.getHeight()));
+        assertEquals(Arrays.asList(11), depths);
+        // The threshold is reached again for the wallet that is behind.
+        behind.advance(12);
+        assertEquals(3, confidence.getDepthInBlocks(behind.getHeight()));
+        assertEquals(Arrays.asList(11, 11), depths);
+    }
+
+    @Test
+    public void getDepthFuture() throws Exception {
+        confidence.setAppearedAtChainHeight(10);
+        tracker.advance(10);
+        assertTrue(confidence.getDepthFuture(1, Threading.SAME_THREAD).isDone());
+        ListenableFuture<TransactionConfidence> future = confidence.getDepthFuture(4, Threading.SAME_THREAD);
+        tracker.advance(12);
+        assertFalse(future.isDone());
+        tracker.advance(13);
+        assertTrue(future.isDone());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.UnitTestParams;
+import org.crownj.store.FullPrunedBlockStore;
+import org.crownj.store.MemoryFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.crownj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class MemoryPoolTest {
+    private static NetworkParameters PARAMS;
+    private FullPrunedBlockStore store;
+    private FullPrunedBlockChain chain;
+    private MemoryPool pool;
+    private ECKey key;
+    private Block head;
+    private int height;
+    // Mature coinbase outputs, oldest first.
+    private final List<TransactionOutput> coinbases = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        PARAMS = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        pool = new MemoryPool(PARAMS, store);
+        key = new ECKey();
+        head = PARAMS.getGenesisBlock();
+        height = 0;
+        List<Transaction> coinbaseTxs = new ArrayList<>();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth() + 5; i++) {
+            mine();
+            coinbaseTxs.add(head.getTransactions().get(0));
+        }
+        for (Transaction coinbase : coinbaseTxs.subList(0, 5))
+            coinbases.add(coinbase.getOutput(0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private Block mine(Transaction... transactions) throws Exception {
+        Block block = head.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), ++height);
+        for (Transaction tx : transactions)
+            block.addTransaction(tx);
+        block.solve();
+        assertTrue(chain.add(block));
+        head = block;
+        return block;
+    }
+
+    // Spends the given outputs into one output, paying the given fee.
+    private Transaction spend(Coin fee, TransactionOutput... outputs) {
+        Transaction tx = new Transaction(PARAMS);
+        Coin value = Coin.ZERO;
+        for (TransactionOutput output : outputs)
+            value = value.add(output.getValue());
+        tx.addOutput(value.subtract(fee), key);
+        for (TransactionOutput output : outputs)
+            tx.addSignedInput(output, key);
+        return tx;
+    }
+
+    @Test
+    public void validation() throws Exception {
+        Transaction tx = spend(CENT, coinbases.get(0));
+        assertEquals(MemoryPool.Result.ACCEPTED, pool.add(tx));
+        assertEquals(MemoryPool.Result.ALREADY_KNOWN, pool.add(tx));
+        assertEquals(tx, pool.get(tx.getTxId()));
+        assertEquals(tx, pool.getSpender(tx.getInput(0).getOutpoint()));
+        MemoryPool.Entry entry = pool.getEntry(tx.getTxId());
+        assertEquals(CENT, entry.getFee());
+        assertEquals(CENT.multiply(1000).divide(tx.getVsize()), entry.getFeeRate());
+
+        // A double spend.
+        try {
+            pool.add(spend(COIN, coinbases.get(0)));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("spent"));
+        }
+        // Too low a fee.
+        try {
+            pool.add(spend(Coin.ZERO, coinbases.get(1)));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("less than the minimum"));
+        }
+        // An immature coinbase.
+        try {
+            pool.add(spend(CENT, head.getTransactions().get(0).getOutput(0)));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("immature"));
+        }
+        // A bad signature.
+        Transaction forged = new Transaction(PARAMS);
+        forged.addOutput(FIFTY_COINS.subtract(CENT), key);
+        forged.addSignedInput(coinbases.get(1), new ECKey());
+        try {
+            pool.add(forged);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void orphansAndPackages() throws Exception {
+        Transaction parent = spend(CENT, coinbases.get(0));
+        Transaction child = spend(CENT, parent.getOutput(0));
+        Transaction grandchild = spend(CENT, child.getOutput(0));
+        assertEquals(MemoryPool.Result.ORPHAN, pool.add(grandchild));
+        assertEquals(MemoryPool.Result.ORPHAN, pool.add(child));
+        assertEquals(MemoryPool.Result.ALREADY_KNOWN, pool.add(child));
+        assertEquals(2, pool.getOrphanCount());
+        assertEquals(0, pool.size());
+
+        assertEquals(MemoryPool.Result.ACCEPTED, pool.add(parent));
+        assertEquals(0, pool.getOrphanCount());
+        assertEquals(3, pool.size());
+        MemoryPool.Entry parentEntry = pool.getEntry(parent.getTxId());
+        assertEquals(1, parentEntry.getAncestorCount());
+        assertEquals(3, parentEntry.getDescendantCount());
+        assertEquals(CENT.multiply(3), parentEntry.getDescendantFees());
+        MemoryPool.Entry grandchildEntry = pool.getEntry(grandchild.getTxId());
+        assertEquals(3, grandchildEntry.getAncestorCount());
+        assertEquals(parent.getVsize() + child.getVsize() + grandchild.getVsize(), grandchildEntry.getAncestorSize());
+
+        // Limits count the transaction itself.
+        pool.setPackageLimits(3, 3);
+        try {
+            pool.add(spend(CENT, grandchild.getOutput(0)));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ancestors"));
+        }
+
+        // Confirming the parent leaves the others with fewer ancestors.
+        mine(parent);
+        pool.removeForBlock(head.getTransactions());
+        assertEquals(2, pool.size());
+        assertNull(pool.get(parent.getTxId()));
+        assertEquals(2, pool.getEntry(grandchild.getTxId()).getAncestorCount());
+        assertEquals(2, pool.getEntry(child.getTxId()).getDescendantCount());
+        assertEquals(1, pool.getEntry(child.getTxId()).getAncestorCount());
+    }
+
+    @Test
+    public void conflictsWithBlock() throws Exception {
+        Transaction parent = spend(CENT, coinbases.get(0));
+        Transaction child = spend(CENT, parent.getOutput(0));
+        Transaction unrelated = spend(CENT, coinbases.get(1));
+        pool.add(parent);
+        pool.add(child);
+        pool.add(unrelated);
+        // A block confirms a double spend of the parent.
+        Transaction doubleSpend = spend(COIN, coinbases.get(0));
+        mine(doubleSpend);
+        pool.removeForBlock(head.getTransactions());
+        assertEquals(Collections.singletonList(unrelated), pool.getTransactions());
+    }
+
+    @Test
+    public void miningOrder() throws Exception {
+        // The parent pays little, but its child pays for both.
+        Transaction parent = spend(SATOSHI.multiply(1000), coinbases.get(0));
+        Transaction child = spend(COIN, parent.getOutput(0));
+        Transaction middle = spend(CENT, coinbases.get(1));
+        Transaction low = spend(MILLICOIN, coinbases.get(2));
+        for (Transaction tx : Arrays.asList(parent, child, middle, low))
+            pool.add(tx);
+        List<Transaction> order = new ArrayList<>();
+        for (MemoryPool.Entry entry : pool.getByAncestorFeeRate())
+            order.add(entry.getTransaction());
+        assertEquals(Arrays.asList(parent, child, middle, low), order);
+
+        // The first package is the parent and the child together.
+        Coin packageRate = COIN.add(SATOSHI.multiply(1000)).multiply(1000)
+                .divide(parent.getVsize() + child.getVsize());
+        assertEquals(packageRate, pool.estimateFeeRate(1));
+        assertEquals(pool.getEntry(low.getTxId()).getFeeRate(), pool.estimateFeeRate(
+                parent.getVsize() + child.getVsize() + middle.getVsize() + 1));
+        assertEquals(pool.getMinFeeRate(), pool.estimateFeeRate(1000000));
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        Transaction low = spend(MILLICOIN, coinbases.get(0));
+        Transaction lowChild = spend(MILLICOIN.multiply(2), low.getOutput(0));
+        Transaction high = spend(COIN, coinbases.get(1));
+        pool.add(low);
+        pool.add(lowChild);
+        pool.add(high);
+        long usage = pool.getMemoryUsage();
+        assertTrue(usage > 0);
+
+        // Shrinking evicts the low paying package as a whole.
+        pool.setMaxMemory(usage - 1);
+        assertEquals(Collections.singletonList(high), pool.getTransactions());
+        assertTrue(pool.getMinFeeRate().isGreaterThan(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE));
+        // Paying less than the evicted package isn't enough any more.
+        try {
+            pool.add(spend(MILLICOIN, coinbases.get(2)));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // A transaction that doesn't fit and pays less than the others is refused, without changing the pool.
+        pool.setMaxMemory(pool.getMemoryUsage());
+        Coin minFeeRate = pool.getMinFeeRate();
+        try {
+            pool.add(spend(CENT, coinbases.get(3)));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("full"));
+        }
+        assertEquals(Collections.singletonList(high), pool.getTransactions());
+        assertEquals(minFeeRate, pool.getMinFeeRate());
+
+        // The next block resets the minimum.
+        mine();
+        pool.removeForBlock(head.getTransactions());
+        assertEquals(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE, pool.getMinFeeRate());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageDispatcherTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private static class RecordingHandler<T extends Message> implements MessageHandler<T> {
+        final List<Message> received = new ArrayList<>();
+
+        @Override
+        public void handle(Peer peer, T message) {
+            received.add(message);
+        }
+    }
+
+    @Test
+    public void dispatchesToNearestSuperclass() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        RecordingHandler<InventoryMessage> invHandler = new RecordingHandler<>();
+        dispatcher.register(InventoryMessage.class, invHandler);
+
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        NotFoundMessage notFound = new NotFoundMessage(UNITTEST);
+        assertTrue(dispatcher.dispatch(null, inv));
+        assertTrue(dispatcher.dispatch(null, notFound));
+        assertFalse(dispatcher.dispatch(null, new Ping(1)));
+        assertEquals(2, invHandler.received.size());
+
+        // A handler for the subclass takes precedence.
+        RecordingHandler<NotFoundMessage> notFoundHandler = new RecordingHandler<>();
+        dispatcher.register(NotFoundMessage.class, notFoundHandler);
+        assertTrue(dispatcher.dispatch(null, notFound));
+        assertEquals(2, invHandler.received.size());
+        assertEquals(1, notFoundHandler.received.size());
+
+        assertTrue(dispatcher.unregister(NotFoundMessage.class));
+        assertSame(invHandler, dispatcher.getHandler(NotFoundMessage.class));
+        assertFalse(dispatcher.unregister(NotFoundMessage.class));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MessageStatsTest {
+    @Test
+    public void buckets() {
+        for (long v = 0; v < 100000; v++) {
+            int bucket = MessageStats.bucket(v);
+            assertTrue(v <= MessageStats.bucketUpperBound(bucket));
+            if (bucket > 0)
+                assertTrue(v > MessageStats.bucketUpperBound(bucket - 1));
+        }
+        assertEquals(Long.MAX_VALUE, MessageStats.bucketUpperBound(MessageStats.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void countsAndPercentiles() {
+        MessageStats stats = new MessageStats();
+        for (int i = 1; i <= 100; i++)
+            stats.record("tx", 250, i * 1000L);
+        stats.record("inv", 37, 5000);
+        Map<String, MessageStats.Entry> entries = stats.getEntries();
+        assertEquals(2, entries.size());
+
+        MessageStats.Entry tx = entries.get("tx");
+        assertEquals(100, tx.count);
+        assertEquals(25000, tx.bytes);
+        assertEquals(100, tx.maxMicros);
+        assertEquals(50, tx.meanMicros);
+        // Percentiles are rounded up to the bucket bound, which is at most 12.5% off.
+        assertTrue(tx.p50Micros >= 50 && tx.p50Micros <= 57);
+        assertTrue(tx.p99Micros >= 99 && tx.p99Micros <= 100);
+
+        MessageStats.Entry inv = entries.get("inv");
+        assertEquals(1, inv.count);
+        assertEquals(5, inv.p50Micros);
+        assertEquals(5, inv.p99Micros);
+
+        stats.reset();
+        assertTrue(stats.getEntries().isEmpty());
+    }
+}
@@ -232,6 +232,14 @@ public class PeerGroupTest extends TestWithPeerGroup {
         inbound(p2, new NotFoundMessage(UNITTEST, getdata.getItems()));
         pingAndWait(p2);
         assertEquals(value, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Both peers got the inv, only p2 the tx. The group counts the messages of all peers.
+        assertEquals(1, peerOf(p1).getMessageStats().getEntries().get("inv").count);
+        assertNull(peerOf(p1).getMessageStats().getEntries().get("tx"));
+        MessageStats.Entry invStats = peerGroup.getMessageStats().getEntries().get("inv");
+        assertEquals(2, invStats.count);
+        assertTrue(invStats.p99Micros >= invStats.p50Micros);
+        assertEquals(1, peerGroup.getMessageStats().getEntries().get("tx").count);
     }
 
     
@@ -508,6 +516,102 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void scoreBasedSelectionAndRotation() throws Exception {
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        VersionMessage ver = new VersionMessage(UNITTEST, 2);
+        ver.clientVersion = NetworkParameters.ProtocolVersion.WITNESS_VERSION.getcrownProtocolVersion();
+        ver.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM | VersionMessage.NODE_WITNESS;
+        Peer p1 = connectPeer(1, ver).peer;
+        Peer p2 = connectPeer(2, ver).peer;
+        assertNull(peerGroup.rotateSlowPeer()); // Connection slots left.
+        Peer p3 = connectPeer(3, ver).peer;
+        peerGroup.setMaxConnections(3);
+
+        // A peer that stalled a chain download before is never picked while better ones are available.
+        p2.getScore().recordStall();
+        for (int i = 0; i < 20; i++)
+            assertNotEquals(p2, peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+
+        // A peer with high latency that sent us garbage is the worst of all, but isn't judged on a single ping.
+        p3.getScore().recordLatency(2000);
+        p3.getScore().recordInvalidData();
+        assertEquals(Arrays.asList(p1, p2, p3), peerGroup.getConnectedPeersByScore());
+        assertNull(peerGroup.rotateSlowPeer());
+        for (int i = 0; i < 5; i++) {
+            p1.getScore().recordLatency(20);
+            p2.getScore().recordLatency(20);
+            p3.getScore().recordLatency(2000);
+        }
+        assertEquals(p3, peerGroup.rotateSlowPeer());
+        assertEquals(p3, disconnectedPeers.take());
+    }
+
+    @Test
+    public void stallsOutliveConnections() throws Exception {
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        VersionMessage ver = new VersionMessage(UNITTEST, 2);
+        ver.clientVersion = NetworkParameters.ProtocolVersion.WITNESS_VERSION.getcrownProtocolVersion();
+        ver.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM | VersionMessage.NODE_WITNESS;
+        Peer clean = connectPeer(1, ver).peer;
+        Peer stalled = connectPeer(2, ver).peer;
+        stalled.getScore().recordStall();
+        stalled.close();
+        assertEquals(stalled, disconnectedPeers.take());
+        assertEquals(1, peerGroup.getAddressManager().getStallCount(stalled.getAddress()));
+
+        // The next connection to the same address starts out worse than the clean one.
+        Peer reconnected = connectPeer(2, ver).peer;
+        assertEquals(0, reconnected.getScore().getStallCount());
+        assertTrue(reconnected.getScore().getScore() < clean.getScore().getScore());
+        assertEquals(Arrays.asList(clean, reconnected), peerGroup.getConnectedPeersByScore());
+        for (int i = 0; i < 20; i++)
+            assertEquals(clean, peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+    }
+
+    @Test
+    public void reconnectFromAddressFile() throws Exception {
+        File file = File.createTempFile("addresses", null);
+        file.deleteOnExit();
+        AddressManager saved = new AddressManager(UNITTEST);
+        saved.markGood(new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), 2000));
+        saved.markGood(new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), 2001));
+        saved.saveToFile(file);
+
+        // Discovery is not needed, as the peers from last time are remembered.
+        final AtomicInteger discoveries = new AtomicInteger();
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            @Override
+            public List<InetSocketAddress> getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) {
+                discoveries.incrementAndGet();
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+        peerGroup.setMaxConnections(2);
+        peerGroup.setAddressFile(file);
+        assertEquals(2, peerGroup.getAddressManager().getTriedCount());
+        peerGroup.addConnectedEventListener(connectedListener);
+        peerGroup.start();
+        handleConnectToPeer(0);
+        handleConnectToPeer(1);
+        connectedPeers.take();
+        connectedPeers.take();
+        assertEquals(0, discoveries.get());
+
+        // Stopping saves the addresses again.
+        assertTrue(file.delete());
+        peerGroup.stop();
+        AddressManager reloaded = new AddressManager(UNITTEST);
+        reloaded.loadFromFile(file);
+        assertEquals(2, reloaded.getTriedCount());
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final int timeout = 100;
@@ -665,14 +769,11 @@ public class PeerGroupTest extends TestWithPeerGroup {
             key = wallet.freshReceiveKey();
         }
         peerGroup.waitForJobQueue();
-        BloomFilter bf, f2 = null;
-        while ((bf = (BloomFilter) outbound(p1)) != null) {
-            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
-            f2 = bf;
-        }
+        BloomFilter f2 = f1;
+        Message m;
+        while ((m = outbound(p1)) != null)
+            f2 = receiveFilterUpdate(p1, m, f2);
         assertNotNull(key);
-        assertNotNull(f2);
-        assertNull(outbound(p1));
         // Check the last filter received.
         assertNotEquals(f1, f2);
         assertTrue(f2.contains(key.getPubKey()));
@@ -681,6 +782,31 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void testBloomFilterExtendedOnNewKey() throws Exception {
+        // A key that doesn't move the fast catchup time is sent with filteradd instead of a whole new filter.
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        // Discard the filters and mempool queries sent on connect.
+        while (outbound(p1) != null) {
+        }
+        BloomFilter f1 = p1.lastReceivedFilter;
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        peerGroup.waitForJobQueue();
+        assertArrayEquals(key.getPubKey(), assertNextMessageIs(p1, FilterAddMessage.class).getData());
+        assertArrayEquals(key.getPubKeyHash(), assertNextMessageIs(p1, FilterAddMessage.class).getData());
+        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        assertNull(outbound(p1));
+        assertFalse(f1.contains(key.getPubKey()));
+
+        // New peers get the extended filter.
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertTrue(p2.lastReceivedFilter.contains(key.getPubKey()));
+        assertTrue(p2.lastReceivedFilter.contains(key.getPubKeyHash()));
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -833,9 +959,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // Await the new filter.
         peerGroup.waitForJobQueue();
-        BloomFilter newFilter = assertNextMessageIs(p1, BloomFilter.class);
+        BloomFilter newFilter = receiveFilterUpdate(p1, waitForOutbound(p1), filter);
         assertNotEquals(filter, newFilter);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
         Ping ping = assertNextMessageIs(p1, Ping.class);
         inbound(p1, new Pong(ping.getNonce()));
 
@@ -849,8 +974,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // It happened again.
         peerGroup.waitForJobQueue();
-        newFilter = assertNextMessageIs(p1, BloomFilter.class);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        newFilter = receiveFilterUpdate(p1, waitForOutbound(p1), newFilter);
         inbound(p1, new Pong(assertNextMessageIs(p1, Ping.class).getNonce()));
         assertNextMessageIs(p1, GetDataMessage.class);
         newBlocks = blocks.subList(6, blocks.size());
@@ -863,6 +987,25 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    // Returns the filter the remote peer has after processing the given message and the ones following it, which must
+    // be either a whole new filter or additions to the given filter, followed by a mempool query.
+    private BloomFilter receiveFilterUpdate(InboundMessageQueuer p, Message m, BloomFilter filter) throws Exception {
+        BloomFilter updated;
+        if (m instanceof BloomFilter) {
+            updated = (BloomFilter) m;
+            m = waitForOutbound(p);
+        } else {
+            assertTrue(m instanceof FilterAddMessage);
+            updated = new BloomFilter(UNITTEST, filter.crownSerialize());
+            while (m instanceof FilterAddMessage) {
+                updated.insert(((FilterAddMessage) m).getData());
+                m = waitForOutbound(p);
+            }
+        }
+        assertTrue(m instanceof MemoryPoolMessage);
+        return updated;
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
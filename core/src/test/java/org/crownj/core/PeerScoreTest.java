@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerScoreTest {
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void latencyPercentiles() {
+        PeerScore score = new PeerScore();
+        assertEquals(-1, score.getLatencyPercentile(50));
+        for (int i = 1; i <= 10; i++)
+            score.recordLatency(i * 10);
+        assertEquals(10, score.getLatencySampleCount());
+        assertEquals(50, score.getLatencyPercentile(50));
+        assertEquals(90, score.getLatencyPercentile(90));
+        assertEquals(100, score.getLatencyPercentile(100));
+        assertEquals(10, score.getLatencyPercentile(1));
+
+        // Old samples fall out of the window.
+        for (int i = 0; i < PeerScore.LATENCY_WINDOW; i++)
+            score.recordLatency(500);
+        assertEquals(PeerScore.LATENCY_WINDOW, score.getLatencySampleCount());
+        assertEquals(500, score.getLatencyPercentile(1));
+    }
+
+    @Test
+    public void throughput() {
+        PeerScore score = new PeerScore();
+        assertEquals(0, score.getBytesPerSecond(), 0);
+        for (int i = 0; i < 10; i++) {
+            score.recordBytesReceived(2048);
+            Utils.rollMockClock(1);
+        }
+        assertEquals(2048, score.getBytesPerSecond(), 0);
+        assertEquals(20480, score.getTotalBytes());
+
+        // Nothing received for a whole window.
+        Utils.rollMockClock(PeerScore.THROUGHPUT_WINDOW_SECONDS);
+        assertEquals(0, score.getBytesPerSecond(), 0);
+        assertEquals(20480, score.getTotalBytes());
+    }
+
+    @Test
+    public void score() {
+        PeerScore fresh = new PeerScore();
+        assertEquals(PeerScore.BASE_SCORE, fresh.getScore(), 0);
+
+        PeerScore fast = new PeerScore();
+        PeerScore slow = new PeerScore();
+        for (int i = 0; i < 10; i++) {
+            fast.recordLatency(20);
+            slow.recordLatency(600);
+        }
+        assertTrue(fast.getScore() > slow.getScore());
+
+        PeerScore busy = new PeerScore();
+        busy.recordLatency(20);
+        busy.recordBytesReceived(100 * 1024);
+        Utils.rollMockClock(1);
+        assertTrue(busy.getScore() > fast.getScore());
+
+        fast.recordStall();
+        assertEquals(1, fast.getStallCount());
+        assertTrue(fast.getScore() < PeerScore.BASE_SCORE - 10);
+        fast.recordInvalidData();
+        assertEquals(1, fast.getInvalidDataCount());
+        assertTrue(fast.getScore() < slow.getScore());
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.net.MessageWriteTarget;
+import org.crownj.params.UnitTestParams;
+import org.crownj.store.BlockSource;
+import org.crownj.store.MemoryBlockStore;
+import org.crownj.testing.FakeTxBuilder;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.crownj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class PeerServerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private MemoryBlockStore blockStore;
+    private final Map<Sha256Hash, Block> blocks = new HashMap<>();
+    private PeerServer server;
+    private Peer peer;
+    private final LinkedList<Message> sent = new LinkedList<>();
+    private Transaction tx;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        key = new ECKey();
+        tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, key);
+        for (int i = 1; i <= 10; i++) {
+            FakeTxBuilder.BlockPair pair = i == 5 ? FakeTxBuilder.createFakeBlock(blockStore, i, tx)
+                    : FakeTxBuilder.createFakeBlock(blockStore, i);
+            blocks.put(pair.block.getHash(), pair.block);
+        }
+        server = new PeerServer(UNITTEST, blockStore);
+        server.setBlockSource(new BlockSource() {
+            @Override
+            public Block getBlock(Sha256Hash hash) {
+                return blocks.get(hash);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    // Connects an inbound peer that writes the messages it sends into the sent list.
+    private void connect() throws Exception {
+        peer = new Peer(UNITTEST, new VersionMessage(UNITTEST, 10),
+                new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), 18444), null);
+        peer.setInbound(true);
+        server.attach(peer);
+        peer.setWriteTarget(new MessageWriteTarget() {
+            @Override
+            public ListenableFuture<?> writeBytes(byte[] message) throws ProtocolException {
+                try {
+                    sent.add(UNITTEST.getDefaultSerializer().deserialize(ByteBuffer.wrap(message)));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return Futures.immediateFuture(null);
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+        });
+        peer.connectionOpened();
+        // A light client without any services or block chain.
+        VersionMessage clientVersion = new VersionMessage(UNITTEST, 0);
+        peer.processMessage(clientVersion);
+        peer.processMessage(new VersionAck());
+        assertTrue(peer.getVersionHandshakeFuture().isDone());
+        sent.clear();
+    }
+
+    private BlockLocator locatorOf(int height) throws Exception {
+        StoredBlock block = blockStore.getChainHead();
+        while (block.getHeight() > height)
+            block = block.getPrev(blockStore);
+        return new BlockLocator().add(block.getHeader().getHash());
+    }
+
+    @Test
+    public void servesHeadersAndBlockInventory() throws Exception {
+        connect();
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(0), Sha256Hash.ZERO_HASH));
+        HeadersMessage headers = (HeadersMessage) sent.poll();
+        assertEquals(10, headers.getBlockHeaders().size());
+        assertEquals(blockStore.getChainHead().getHeader().getHash(), headers.getBlockHeaders().get(9).getHash());
+
+        // Continue from height 7, stopping at height 9.
+        Sha256Hash stop = blockStore.getChainHead().getHeader().getPrevBlockHash();
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(7), stop));
+        headers = (HeadersMessage) sent.poll();
+        assertEquals(2, headers.getBlockHeaders().size());
+        assertEquals(stop, headers.getBlockHeaders().get(1).getHash());
+
+        peer.processMessage(new GetBlocksMessage(UNITTEST, locatorOf(3), Sha256Hash.ZERO_HASH));
+        InventoryMessage inv = (InventoryMessage) sent.poll();
+        assertEquals(7, inv.getItems().size());
+        assertEquals(InventoryItem.Type.BLOCK, inv.getItems().get(0).type);
+        assertNull(sent.poll());
+    }
+
+    @Test
+    public void servesBlocksAndFilteredBlocks() throws Exception {
+        connect();
+        Block block5 = null;
+        for (Block block : blocks.values())
+            if (block.getTransactions().contains(tx))
+                block5 = block;
+        assertNotNull(block5);
+
+        GetDataMessage getdata = new GetDataMessage(UNITTEST);
+        getdata.addBlock(block5.getHash(), false);
+        getdata.addBlock(Sha256Hash.of(new byte[] {1}), false);
+        peer.processMessage(getdata);
+        assertEquals(block5, sent.poll());
+        NotFoundMessage notFound = (NotFoundMessage) sent.poll();
+        assertEquals(1, notFound.getItems().size());
+
+        // Load a filter that matches the transaction, and request the filtered block.
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0);
+        filter.insert(key);
+        peer.processMessage(filter);
+        getdata = new GetDataMessage(UNITTEST);
+        getdata.addFilteredBlock(block5.getHash());
+        peer.processMessage(getdata);
+        FilteredBlock filteredBlock = (FilteredBlock) sent.poll();
+        assertEquals(block5.getHash(), filteredBlock.getHash());
+        assertEquals(1, filteredBlock.getTransactionHashes().size());
+        assertEquals(tx, sent.poll());
+        assertNull(sent.poll());
+
+        // Without a filter, filtered block requests are ignored.
+        peer.processMessage(new FilterClearMessage());
+        peer.processMessage(getdata);
+        assertNull(sent.poll());
+    }
+
+    @Test
+    public void servesMemoryPool() throws Exception {
+        RecentTransactionPool pool = new RecentTransactionPool();
+        Transaction other = FakeTxBuilder.createFakeTx(UNITTEST, COIN, new ECKey());
+        pool.add(tx);
+        pool.add(other);
+        server.setTransactionPool(pool);
+        connect();
+
+        BloomFilter filter = new BloomFilter(10, 0.000001, 0);
+        filter.insert(key);
+        peer.processMessage(filter);
+        peer.processMessage(new MemoryPoolMessage());
+        InventoryMessage inv = (InventoryMessage) sent.poll();
+        assertEquals(1, inv.getItems().size());
+        assertEquals(tx.getTxId(), inv.getItems().get(0).hash);
+
+        GetDataMessage getdata = new GetDataMessage(UNITTEST);
+        getdata.addTransaction(other.getTxId(), false);
+        peer.processMessage(getdata);
+        assertEquals(other, sent.poll());
+    }
+
+    @Test
+    public void rateLimits() throws Exception {
+        server.setRequestsPerSecond(1);
+        server.setPeerUploadBytesPerSecond(100);
+        connect();
+        Block head = blocks.get(blockStore.getChainHead().getHeader().getHash());
+
+        // The burst of requests is used up, further requests are ignored until the allowance recovers. The locator
+        // is the chain head, so the answers are empty and don't count against the upload cap.
+        for (int i = 0; i < PeerServer.DEFAULT_REQUEST_BURST; i++) {
+            peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(10), Sha256Hash.ZERO_HASH));
+            assertTrue(sent.poll() instanceof HeadersMessage);
+        }
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(10), Sha256Hash.ZERO_HASH));
+        assertNull(sent.poll());
+        Utils.rollMockClock(2);
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(10), Sha256Hash.ZERO_HASH));
+        assertTrue(sent.poll() instanceof HeadersMessage);
+
+        // The first block overdraws the upload cap, the second has to wait until it has recovered.
+        Utils.rollMockClock(60);
+        GetDataMessage getdata = new GetDataMessage(UNITTEST);
+        getdata.addBlock(head.getHash(), false);
+        peer.processMessage(getdata);
+        assertEquals(head, sent.poll());
+        peer.processMessage(getdata);
+        assertTrue(sent.poll() instanceof NotFoundMessage);
+        Utils.rollMockClock(60);
+        peer.processMessage(getdata);
+        assertEquals(head, sent.poll());
+    }
+
+    @Test
+    public void followsReorganizations() throws Exception {
+        connect();
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(0), Sha256Hash.ZERO_HASH));
+        assertEquals(10, ((HeadersMessage) sent.poll()).getBlockHeaders().size());
+
+        // Replace the blocks above height 8 by a longer fork.
+        StoredBlock forkPoint = blockStore.getChainHead().getPrev(blockStore).getPrev(blockStore);
+        StoredBlock cursor = forkPoint;
+        List<Sha256Hash> fork = new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            cursor = FakeTxBuilder.createFakeBlock(blockStore, cursor, cursor.getHeight() + 1).storedBlock;
+            fork.add(cursor.getHeader().getHash());
+        }
+        peer.processMessage(new GetHeadersMessage(UNITTEST, locatorOf(0), Sha256Hash.ZERO_HASH));
+        List<Block> headers = ((HeadersMessage) sent.poll()).getBlockHeaders();
+        assertEquals(11, headers.size());
+        for (int i = 0; i < 3; i++)
+            assertEquals(fork.get(i), headers.get(8 + i).getHash());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.UnitTestParams;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
+import org.crownj.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PrecomputedSigHashesTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UNITTEST);
+        Random random = new Random(42);
+        tx = new Transaction(UNITTEST);
+        // More than two checkpoints, and not a multiple of their interval.
+        for (int i = 0; i < PrecomputedSigHashes.CHECKPOINT_INTERVAL * 2 + 7; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = new TransactionInput(UNITTEST, tx, new byte[] { 1, 2, 3 },
+                    new TransactionOutPoint(UNITTEST, random.nextInt(5), Sha256Hash.wrap(hash)));
+            input.setSequenceNumber(TransactionInput.NO_SEQUENCE - random.nextInt(3));
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000000) + 1), LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        tx.setLockTime(123456);
+    }
+
+    @Test
+    public void legacyHashesMatch() throws Exception {
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        PrecomputedSigHashes sigHashes = new PrecomputedSigHashes(tx);
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            assertEquals(tx.hashForSignature(i, script, Transaction.SigHash.ALL, false),
+                    sigHashes.hashForSignature(i, script.getProgram()));
+
+        // Code separators are removed like by Transaction.
+        byte[] separated = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).op(ScriptOpCodes.OP_TRUE).build()
+                .getProgram();
+        assertEquals(tx.hashForSignature(3, separated, Transaction.SigHash.ALL, false),
+                sigHashes.hashForSignature(3, separated));
+    }
+
+    @Test
+    public void witnessHashesMatch() throws Exception {
+        Script scriptCode = ScriptBuilder.createP2PKHOutputScript(new ECKey());
+        PrecomputedSigHashes sigHashes = new PrecomputedSigHashes(tx);
+        for (int i = 0; i < tx.getInputs().size(); i += 17) {
+            Coin value = Coin.valueOf(1000 + i);
+            assertEquals(tx.hashForWitnessSignature(i, scriptCode, value, Transaction.SigHash.ALL, false),
+                    sigHashes.hashForWitnessSignature(i, scriptCode.getProgram(), value));
+        }
+    }
+
+    @Test
+    public void ignoresLaterChanges() throws Exception {
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        Sha256Hash before = tx.hashForSignature(0, script, Transaction.SigHash.ALL, false);
+        PrecomputedSigHashes sigHashes = new PrecomputedSigHashes(tx);
+        // Input scripts aren't signed anyway.
+        tx.getInput(1).setScriptSig(new ScriptBuilder().data(new byte[71]).build());
+        assertEquals(before, tx.hashForSignature(0, script, Transaction.SigHash.ALL, false));
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        assertEquals(before, sigHashes.hashForSignature(0, script.getProgram()));
+        assertNotEquals(before, tx.hashForSignature(0, script, Transaction.SigHash.ALL, false));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RollingBloomFilterTest {
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(Integer.toString(i).getBytes());
+    }
+
+    @Test
+    public void remembersRecentInsertions() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        for (int i = 0; i < 1000; i++) {
+            filter.insert(hash(i));
+            // The last 100 insertions must always be found.
+            for (int j = Math.max(0, i - 99); j <= i; j++)
+                assertTrue(filter.contains(hash(j)));
+        }
+    }
+
+    @Test
+    public void forgetsOldInsertions() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        for (int i = 0; i < 100; i++)
+            filter.insert(hash(i));
+        for (int i = 1000; i < 1300; i++)
+            filter.insert(hash(i));
+        int remembered = 0;
+        for (int i = 0; i < 100; i++)
+            if (filter.contains(hash(i)))
+                remembered++;
+        assertEquals(0, remembered);
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        RollingBloomFilter filter = new RollingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.insert(hash(i));
+        int falsePositives = 0;
+        for (int i = 100000; i < 110000; i++)
+            if (filter.contains(hash(i)))
+                falsePositives++;
+        // About 1% expected, allow for some variance.
+        assertTrue("False positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void reset() {
+        RollingBloomFilter filter = new RollingBloomFilter(10, 0.0001);
+        filter.insert(hash(1));
+        assertTrue(filter.contains(hash(1)));
+        filter.reset();
+        assertFalse(filter.contains(hash(1)));
+    }
+}
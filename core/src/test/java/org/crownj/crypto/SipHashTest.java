@@ -0,0 +1,48 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.crypto;
+
+import org.crownj.core.Utils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SipHashTest {
+    // Key 00 01 02 ... 0f, as used by the reference test vectors.
+    private static final long K0 = 0x0706050403020100L;
+    private static final long K1 = 0x0f0e0d0c0b0a0908L;
+
+    @Test
+    public void referenceVectors() {
+        assertEquals(0x726fdb47dd0e0e31L, SipHash.hash(K0, K1, new byte[0]));
+        assertEquals(0x93f5f5799a932462L, SipHash.hash(K0, K1, sequence(8)));
+        assertEquals(0xa129ca6149be45e5L, SipHash.hash(K0, K1, sequence(15)));
+    }
+
+    @Test
+    public void range() {
+        byte[] padded = Utils.HEX.decode("ff" + Utils.HEX.encode(sequence(15)) + "ff");
+        assertEquals(SipHash.hash(K0, K1, sequence(15)), SipHash.hash(K0, K1, padded, 1, 15));
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+}
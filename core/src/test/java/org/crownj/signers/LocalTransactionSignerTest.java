@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.signers;
+
+import org.crownj.core.*;
+import org.crownj.script.Script;
+import org.crownj.signers.TransactionSigner.ProposedTransaction;
+import org.crownj.testing.*;
+import org.crownj.wallet.DecryptingKeyBag;
+import org.crownj.wallet.KeyBag;
+import org.crownj.wallet.RedeemData;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.crownj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class LocalTransactionSignerTest extends TestWithWallet {
+    private static final int NUM_INPUTS = LocalTransactionSigner.MIN_PARALLEL_INPUTS * 2 + 3;
+
+    private final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    private ForkJoinPool pool;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < NUM_INPUTS; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        super.tearDown();
+    }
+
+    // Spends all outputs of the wallet, with empty signatures in the input scripts like Wallet.signTransaction().
+    private Transaction unsignedSpend(KeyBag keyBag) {
+        Transaction tx = new Transaction(UNITTEST);
+        for (TransactionOutput output : wallet.calculateAllSpendCandidates())
+            tx.addInput(output);
+        tx.addOutput(CENT.multiply(NUM_INPUTS - 1), OTHER_ADDRESS);
+        for (TransactionInput input : tx.getInputs()) {
+            Script scriptPubKey = input.getConnectedOutput().getScriptPubKey();
+            RedeemData redeemData = input.getConnectedRedeemData(keyBag);
+            input.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
+        }
+        return tx;
+    }
+
+    private void assertSignsLikeOneByOne(KeyBag keyBag) throws Exception {
+        Transaction serial = unsignedSpend(keyBag);
+        assertTrue(new LocalTransactionSigner(null).signInputs(new ProposedTransaction(serial), keyBag));
+        Transaction parallel = unsignedSpend(keyBag);
+        assertEquals(NUM_INPUTS, parallel.getInputs().size());
+        assertTrue(new LocalTransactionSigner(pool).signInputs(new ProposedTransaction(parallel), keyBag));
+
+        assertArrayEquals(serial.crownSerialize(), parallel.crownSerialize());
+        for (TransactionInput input : parallel.getInputs())
+            input.verify(input.getConnectedOutput());
+    }
+
+    @Test
+    public void parallelSignaturesAreIdentical() throws Exception {
+        assertSignsLikeOneByOne(wallet);
+    }
+
+    @Test
+    public void encryptedKeys() throws Exception {
+        wallet.encrypt("password");
+        KeyParameter aesKey = wallet.getKeyCrypter().deriveKey("password");
+        assertSignsLikeOneByOne(new DecryptingKeyBag(wallet, aesKey));
+    }
+}
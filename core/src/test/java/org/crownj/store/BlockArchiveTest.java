@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Address;
+import org.crownj.core.Block;
+import org.crownj.core.Context;
+import org.crownj.core.ECKey;
+import org.crownj.core.LegacyAddress;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Utils;
+import org.crownj.params.UnitTestParams;
+import org.crownj.utils.BlockFileLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockArchiveTest {
+    private static NetworkParameters UNITTEST;
+    private File directory;
+    private List<Block> blocks;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        UNITTEST = UnitTestParams.get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        directory = Files.createTempDirectory("blockarchive").toFile();
+        // Each block is five seconds after the previous one, so they would be in the future otherwise.
+        Utils.setMockClock(UNITTEST.getGenesisBlock().getTimeSeconds() + 24 * 60 * 60);
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        blocks = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 2000; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        BlockArchive archive = new BlockArchive(UNITTEST, directory);
+        for (int i = 0; i < blocks.size(); i++)
+            archive.put(blocks.get(i), i + 1);
+        // Putting a block twice doesn't append it again.
+        archive.put(blocks.get(0), 1);
+        assertEquals(blocks.size(), archive.size());
+        archive.close();
+
+        // Check we can get them back out again if we reopen the archive, after the index has grown a few times.
+        archive = new BlockArchive(UNITTEST, directory);
+        assertEquals(blocks.size(), archive.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            assertEquals(block, archive.getBlock(block.getHash()));
+            assertEquals(i + 1, archive.getHeight(block.getHash()));
+        }
+        ByteBuffer bytes = archive.getBlockBytes(blocks.get(7).getHash());
+        assertTrue(bytes.isReadOnly());
+        assertEquals(blocks.get(7).unsafecrownSerialize().length, bytes.remaining());
+        assertNull(archive.getBlock(Sha256Hash.ZERO_HASH));
+        assertFalse(archive.contains(UNITTEST.getGenesisBlock().getHash()));
+        archive.close();
+
+        // The segment can be read like the files of the reference client.
+        List<Block> loaded = new ArrayList<>();
+        for (Block block : new BlockFileLoader(UNITTEST, Collections.singletonList(archive.segmentFile(0))))
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void locked() throws Exception {
+        BlockArchive archive = new BlockArchive(UNITTEST, directory);
+        try {
+            new BlockArchive(UNITTEST, directory);
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void truncatesUnindexedBlocks() throws Exception {
+        BlockArchive archive = new BlockArchive(UNITTEST, directory);
+        archive.put(blocks.get(0), 1);
+        archive.close();
+        // Simulate a crash after a block was appended to the segment but before it was indexed.
+        File segment = archive.segmentFile(0);
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(length);
+            file.write(new byte[100]);
+        }
+        archive = new BlockArchive(UNITTEST, directory);
+        assertEquals(length, segment.length());
+        archive.put(blocks.get(1), 2);
+        assertEquals(blocks.get(1), archive.getBlock(blocks.get(1).getHash()));
+        archive.close();
+    }
+
+    @Test
+    public void segmentsAndPruning() throws Exception {
+        int blockSize = blocks.get(0).unsafecrownSerialize().length + 8;
+        // Room for ten blocks per segment.
+        BlockArchive archive = new BlockArchive(UNITTEST, directory, blockSize * 10);
+        for (int i = 0; i < 100; i++)
+            archive.put(blocks.get(i), i + 1);
+        assertTrue(archive.segmentFile(9).exists());
+        assertFalse(archive.segmentFile(10).exists());
+
+        // Segments that only contain blocks below the height are deleted, the one holding block 35 is kept.
+        assertEquals(30, archive.prune(35));
+        assertEquals(35, archive.getPrunedHeight());
+        assertFalse(archive.segmentFile(2).exists());
+        assertTrue(archive.segmentFile(3).exists());
+        assertNull(archive.getBlock(blocks.get(29).getHash()));
+        assertEquals(blocks.get(30), archive.getBlock(blocks.get(30).getHash()));
+        assertEquals(70, archive.size());
+        archive.close();
+
+        // Automatic pruning once segments fill up.
+        archive = new BlockArchive(UNITTEST, directory, blockSize * 10);
+        assertEquals(70, archive.size());
+        archive.setPruneDepth(25);
+        for (int i = 100; i < 200; i++)
+            archive.put(blocks.get(i), i + 1);
+        assertTrue(archive.getPrunedHeight() >= 160);
+        assertNull(archive.getBlock(blocks.get(150).getHash()));
+        for (int i = 175; i < 200; i++)
+            assertEquals(blocks.get(i), archive.getBlock(blocks.get(i).getHash()));
+        archive.close();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Block;
+import org.crownj.core.Coin;
+import org.crownj.core.Context;
+import org.crownj.core.ECKey;
+import org.crownj.core.FullPrunedBlockChain;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.core.TransactionOutput;
+import org.crownj.core.UTXO;
+import org.crownj.core.Utils;
+import org.crownj.params.UnitTestParams;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.crownj.core.Coin.FIFTY_COINS;
+import static org.crownj.store.AddressIndex.UNKNOWN;
+import static org.junit.Assert.*;
+
+public class LevelDBAddressIndexTest {
+    private static NetworkParameters PARAMS;
+    private File directory;
+    private LevelDBAddressIndex index;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        PARAMS = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        directory = Files.createTempDirectory("addressindex").toFile();
+        index = new LevelDBAddressIndex(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void postings() throws Exception {
+        Script alice = ScriptBuilder.createP2PKOutputScript(new ECKey());
+        Script bob = ScriptBuilder.createP2PKOutputScript(new ECKey());
+        Sha256Hash block1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash block2 = Sha256Hash.of(new byte[] { 2 });
+        Sha256Hash tx1 = Sha256Hash.of(new byte[] { 10 });
+        Sha256Hash tx2 = Sha256Hash.of(new byte[] { 20 });
+        Sha256Hash tx3 = Sha256Hash.of(new byte[] { 30 });
+        UTXO out1 = new UTXO(tx1, 0, Coin.COIN, 1, true, alice);
+        UTXO out2 = new UTXO(tx2, 0, Coin.CENT, 2, false, bob);
+        UTXO out3 = new UTXO(tx3, 1, Coin.CENT, 2, false, alice);
+
+        index.connectBlock(block1, 1, Arrays.asList(tx1), Arrays.asList(out1), Collections.<UTXO>emptyList(),
+                Collections.<Integer>emptyList());
+        // The first output is spent by the second transaction in the same batch.
+        index.connectBlock(block2, 2, Arrays.asList(Sha256Hash.ZERO_HASH, tx2, tx3), Arrays.asList(out2, out3),
+                Arrays.asList(out1), Arrays.asList(1));
+        assertEquals(0, index.getBestHeight());
+        assertTrue(index.getPostings(alice.getProgram(), 0, Integer.MAX_VALUE).isEmpty());
+        index.commitBatchWrite();
+
+        assertEquals(2, index.getBestHeight());
+        assertEquals(block2, index.getBlockHash(2));
+        AddressIndex.Posting posting1 = new AddressIndex.Posting(tx1, 1, 0, 0, Coin.COIN, 2, 1);
+        AddressIndex.Posting posting3 = new AddressIndex.Posting(tx3, 2, 2, 1, Coin.CENT, UNKNOWN, UNKNOWN);
+        assertEquals(Arrays.asList(posting1, posting3), index.getPostings(alice.getProgram(), 0, 2));
+        assertEquals(Arrays.asList(posting1), index.getPostings(alice.getProgram(), 1, 1));
+        assertEquals(Arrays.asList(posting3), index.getPostings(alice.getProgram(), 2, 100));
+        assertTrue(index.getPostings(alice.getProgram(), 3, 100).isEmpty());
+        assertEquals(Arrays.asList(new AddressIndex.Posting(tx2, 2, 1, 0, Coin.CENT, UNKNOWN, UNKNOWN)),
+                index.getPostings(bob.getProgram(), 0, 100));
+
+        // Aborting leaves the index as it was.
+        index.disconnectBlock(block2, 2, Arrays.asList(out2, out3), Arrays.asList(out1));
+        index.abortBatchWrite();
+        index.commitBatchWrite();
+        assertEquals(2, index.getPostings(alice.getProgram(), 0, 100).size());
+
+        index.disconnectBlock(block2, 2, Arrays.asList(out2, out3), Arrays.asList(out1));
+        index.commitBatchWrite();
+        assertEquals(1, index.getBestHeight());
+        assertNull(index.getBlockHash(2));
+        assertEquals(Arrays.asList(new AddressIndex.Posting(tx1, 1, 0, 0, Coin.COIN, UNKNOWN, UNKNOWN)),
+                index.getPostings(alice.getProgram(), 0, 100));
+        assertTrue(index.getPostings(bob.getProgram(), 0, 100).isEmpty());
+
+        // Committed changes survive reopening.
+        index.close();
+        index = new LevelDBAddressIndex(directory);
+        assertEquals(1, index.getBestHeight());
+        assertEquals(1, index.getPostings(alice.getProgram(), 0, 100).size());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void spendingUnknownOutput() throws Exception {
+        Script script = ScriptBuilder.createP2PKOutputScript(new ECKey());
+        UTXO out = new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.COIN, 1, false, script);
+        index.connectBlock(Sha256Hash.ZERO_HASH, 2, Collections.<Sha256Hash>emptyList(),
+                Collections.<UTXO>emptyList(), Arrays.asList(out), null);
+    }
+
+    @Test
+    public void followsChain() throws Exception {
+        FullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setAddressIndex(index);
+
+        ECKey outKey = new ECKey();
+        byte[] outScript = ScriptBuilder.createP2PKOutputScript(outKey).getProgram();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                outKey.getPubKey(), FIFTY_COINS, height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                    outKey.getPubKey(), FIFTY_COINS, height++);
+            chain.add(rollingBlock);
+        }
+        Block fork = rollingBlock;
+        int forkHeight = height - 1;
+        assertEquals(forkHeight, index.getPostings(outScript, 0, Integer.MAX_VALUE).size());
+
+        // Spend the first coinbase.
+        ECKey toKey = new ECKey();
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(new TransactionOutput(PARAMS, spend, Coin.COIN, toKey));
+        spend.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getTxId()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), outKey);
+        rollingBlock.addTransaction(spend);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        List<AddressIndex.Posting> postings = index.getPostings(outScript, 1, 1);
+        assertEquals(Arrays.asList(new AddressIndex.Posting(coinbase.getTxId(), 1, 0, 0, FIFTY_COINS, forkHeight + 1,
+                1)), postings);
+        byte[] toScript = spend.getOutput(0).getScriptBytes();
+        assertEquals(Arrays.asList(new AddressIndex.Posting(spend.getTxId(), forkHeight + 1, 1, 0, Coin.COIN, UNKNOWN,
+                UNKNOWN)), index.getPostings(toScript, 0, Integer.MAX_VALUE));
+
+        // Reorganize onto a longer fork that doesn't have the spend.
+        Block fork1 = fork.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, new ECKey().getPubKey(),
+                FIFTY_COINS, forkHeight + 1);
+        Block fork2 = fork1.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, new ECKey().getPubKey(),
+                FIFTY_COINS, forkHeight + 2);
+        chain.add(fork1);
+        chain.add(fork2);
+        assertEquals(forkHeight + 2, index.getBestHeight());
+        assertTrue(index.getPostings(toScript, 0, Integer.MAX_VALUE).isEmpty());
+        assertFalse(index.getPostings(outScript, 1, 1).get(0).isSpent());
+        store.close();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Block;
+import org.crownj.core.Coin;
+import org.crownj.core.Context;
+import org.crownj.core.ECKey;
+import org.crownj.core.FullPrunedBlockChain;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.core.TransactionOutput;
+import org.crownj.core.Utils;
+import org.crownj.params.UnitTestParams;
+import org.crownj.script.Script;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.crownj.core.Coin.FIFTY_COINS;
+import static org.junit.Assert.*;
+
+public class MappedTransactionIndexTest {
+    private static NetworkParameters PARAMS;
+    private File directory;
+    private MappedTransactionIndex index;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        PARAMS = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        directory = Files.createTempDirectory("txindex").toFile();
+        index = new MappedTransactionIndex(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static List<Sha256Hash> hashes(int count) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8), 42 }));
+        return hashes;
+    }
+
+    @Test
+    public void batches() throws Exception {
+        Sha256Hash block1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash block2 = Sha256Hash.of(new byte[] { 2 });
+        List<Sha256Hash> txIds = hashes(100);
+        index.connectBlock(block1, 1, txIds.subList(0, 60));
+        index.connectBlock(block2, 2, txIds.subList(60, 100));
+        // Nothing is visible before the commit.
+        assertNull(index.getLocation(txIds.get(0)));
+        assertEquals(0, index.getBestHeight());
+        index.commitBatchWrite();
+        assertEquals(2, index.getBestHeight());
+        assertEquals(100, index.size());
+        assertEquals(new TransactionIndex.Location(block1, 1, 0), index.getLocation(txIds.get(0)));
+        assertEquals(new TransactionIndex.Location(block1, 1, 59), index.getLocation(txIds.get(59)));
+        assertEquals(new TransactionIndex.Location(block2, 2, 0), index.getLocation(txIds.get(60)));
+        assertEquals(block2, index.getBlockHash(2));
+        assertNull(index.getBlockHash(3));
+
+        // An aborted batch leaves no trace.
+        index.disconnectBlock(block2, 2, txIds.subList(60, 100));
+        index.abortBatchWrite();
+        index.commitBatchWrite();
+        assertEquals(2, index.getBestHeight());
+        assertEquals(100, index.size());
+
+        // The order of the transactions doesn't matter when disconnecting.
+        List<Sha256Hash> reversed = new ArrayList<>(txIds.subList(60, 100));
+        Collections.reverse(reversed);
+        index.disconnectBlock(block2, 2, reversed);
+        index.commitBatchWrite();
+        assertEquals(1, index.getBestHeight());
+        assertEquals(60, index.size());
+        assertNull(index.getLocation(txIds.get(60)));
+        assertNull(index.getBlockHash(2));
+        assertEquals(new TransactionIndex.Location(block1, 1, 59), index.getLocation(txIds.get(59)));
+    }
+
+    @Test
+    public void duplicateTransactions() throws Exception {
+        // Like the duplicated coinbases before BIP30, a transaction that is in two blocks stays indexed in the first
+        // one when the second is disconnected.
+        Sha256Hash block1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash block2 = Sha256Hash.of(new byte[] { 2 });
+        List<Sha256Hash> txIds = hashes(1);
+        index.connectBlock(block1, 1, txIds);
+        index.connectBlock(block2, 2, txIds);
+        index.commitBatchWrite();
+        assertEquals(new TransactionIndex.Location(block2, 2, 0), index.getLocation(txIds.get(0)));
+        index.disconnectBlock(block2, 2, txIds);
+        index.commitBatchWrite();
+        // Overwritten when the second block was connected.
+        assertNull(index.getLocation(txIds.get(0)));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        Sha256Hash block1 = Sha256Hash.of(new byte[] { 1 });
+        List<Sha256Hash> txIds = hashes(1000);
+        index.connectBlock(block1, 1, txIds);
+        index.commitBatchWrite();
+        index.close();
+        try {
+            index.getBestHeight();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        index = new MappedTransactionIndex(directory);
+        try {
+            new MappedTransactionIndex(directory);
+            fail();
+        } catch (ChainFileLockedException e) {
+            // Expected.
+        }
+        assertEquals(1, index.getBestHeight());
+        assertEquals(1000, index.size());
+        assertEquals(new TransactionIndex.Location(block1, 1, 999), index.getLocation(txIds.get(999)));
+    }
+
+    @Test
+    public void interruptedBatch() throws Exception {
+        index.close();
+        // Simulate a crash while a batch was applied by setting the flag in the header of the table.
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory,
+                MappedTransactionIndex.INDEX_FILE_NAME), "rw")) {
+            file.seek(16);
+            file.writeInt(1);
+        }
+        try {
+            new MappedTransactionIndex(directory);
+            fail();
+        } catch (BlockStoreException e) {
+            assertTrue(e.getMessage().contains("interrupted"));
+        }
+    }
+
+    @Test
+    public void followsChain() throws Exception {
+        FullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setTransactionIndex(index);
+        assertSame(index, chain.getTransactionIndex());
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block genesis = PARAMS.getGenesisBlock();
+        Block rollingBlock = genesis.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                outKey.getPubKey(), FIFTY_COINS, height++);
+        chain.add(rollingBlock);
+        Block first = rollingBlock;
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                    outKey.getPubKey(), FIFTY_COINS, height++);
+            chain.add(rollingBlock);
+        }
+        Block fork = rollingBlock;
+        int forkHeight = height - 1;
+
+        // Spend the first coinbase.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(new TransactionOutput(PARAMS, spend, Coin.COIN, new ECKey()));
+        spend.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getTxId()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), outKey);
+        rollingBlock.addTransaction(spend);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        int spendHeight = forkHeight + 1;
+
+        assertEquals(spendHeight, index.getBestHeight());
+        assertEquals(new TransactionIndex.Location(rollingBlock.getHash(), spendHeight, 1),
+                index.getLocation(spend.getTxId()));
+        // The coinbase is still found after its output was spent.
+        assertNull(store.getTransactionOutput(coinbase.getTxId(), 0));
+        assertEquals(new TransactionIndex.Location(first.getHash(), 1, 0), index.getLocation(coinbase.getTxId()));
+
+        // Reorganize onto a longer fork that doesn't have the spend.
+        ECKey otherKey = new ECKey();
+        Block fork1 = fork.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                otherKey.getPubKey(), FIFTY_COINS, forkHeight + 1);
+        Block fork2 = fork1.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                otherKey.getPubKey(), FIFTY_COINS, forkHeight + 2);
+        chain.add(fork1);
+        assertEquals(spendHeight, index.getBestHeight());
+        chain.add(fork2);
+        assertEquals(fork2.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(forkHeight + 2, index.getBestHeight());
+        assertEquals(fork2.getHash(), index.getBlockHash(forkHeight + 2));
+        assertNull(index.getLocation(spend.getTxId()));
+        assertEquals(new TransactionIndex.Location(fork1.getHash(), forkHeight + 1, 0),
+                index.getLocation(fork1.getTransactions().get(0).getTxId()));
+        assertEquals(new TransactionIndex.Location(first.getHash(), 1, 0), index.getLocation(coinbase.getTxId()));
+
+        // An index that is behind the chain is refused.
+        chain.setTransactionIndex(null);
+        File otherDirectory = Files.createTempDirectory("txindex").toFile();
+        MappedTransactionIndex other = new MappedTransactionIndex(otherDirectory);
+        try {
+            chain.setTransactionIndex(other);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        } finally {
+            other.close();
+            for (String name : Arrays.asList(".lock", MappedTransactionIndex.INDEX_FILE_NAME,
+                    MappedTransactionIndex.BLOCKS_FILE_NAME))
+                new File(otherDirectory, name).delete();
+            otherDirectory.delete();
+        }
+        store.close();
+    }
+}
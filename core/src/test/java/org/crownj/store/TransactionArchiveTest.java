@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransactionArchiveTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("txarchive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static byte[] payload(int i) {
+        byte[] bytes = new byte[50 + i % 100];
+        Arrays.fill(bytes, (byte) i);
+        return bytes;
+    }
+
+    private static Sha256Hash txId(int i) {
+        return Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+
+    @Test
+    public void basics() throws Exception {
+        TransactionArchive archive = new TransactionArchive(directory);
+        for (int i = 0; i < 3000; i++)
+            archive.put(txId(i), payload(i));
+        // Putting a transaction twice doesn't append it again.
+        archive.put(txId(0), payload(1));
+        assertEquals(3000, archive.size());
+        assertArrayEquals(payload(0), archive.get(txId(0)));
+        archive.close();
+
+        // Check we can get them back out again if we reopen the archive, after the index has grown a few times.
+        archive = new TransactionArchive(directory);
+        assertEquals(3000, archive.size());
+        for (int i = 0; i < 3000; i++)
+            assertArrayEquals(payload(i), archive.get(txId(i)));
+        assertTrue(archive.contains(txId(5)));
+        assertFalse(archive.contains(Sha256Hash.ZERO_HASH));
+        assertNull(archive.get(Sha256Hash.ZERO_HASH));
+        // Grows the data file beyond the mapping made for the reads above.
+        archive.put(txId(3000), payload(3000));
+        assertArrayEquals(payload(3000), archive.get(txId(3000)));
+        archive.close();
+    }
+
+    @Test
+    public void unindexedDataIsTruncated() throws Exception {
+        TransactionArchive archive = new TransactionArchive(directory);
+        archive.put(txId(1), payload(1));
+        archive.close();
+        File dataFile = new File(directory, TransactionArchive.DATA_FILE_NAME);
+        long length = dataFile.length();
+        // A crash after appending a transaction but before indexing it.
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.seek(length);
+            file.write(payload(2));
+        }
+        archive = new TransactionArchive(directory);
+        assertEquals(length, dataFile.length());
+        archive.put(txId(2), payload(2));
+        assertArrayEquals(payload(1), archive.get(txId(1)));
+        assertArrayEquals(payload(2), archive.get(txId(2)));
+        archive.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void corruption() throws Exception {
+        TransactionArchive archive = new TransactionArchive(directory);
+        archive.put(txId(1), payload(1));
+        archive.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, TransactionArchive.DATA_FILE_NAME),
+                "rw")) {
+            file.seek(10);
+            file.write(42);
+        }
+        archive = new TransactionArchive(directory);
+        try {
+            archive.get(txId(1));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void locked() throws Exception {
+        TransactionArchive archive = new TransactionArchive(directory);
+        try {
+            new TransactionArchive(directory);
+        } finally {
+            archive.close();
+        }
+    }
+}
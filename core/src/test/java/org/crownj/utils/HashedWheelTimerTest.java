@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        // A small wheel, so timeouts wrap around it.
+        timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void expiresAfterDelay() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.isPending());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(timeout.isPending());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void cancelAndReschedule() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        assertFalse(timeout.isPending());
+        timeout.reschedule(20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertEquals(0, timer.getPendingCount());
+
+        // Rescheduling a pending timeout replaces its delay, so it runs only once.
+        for (int i = 0; i < 100; i++)
+            timeout.reschedule(30, TimeUnit.MILLISECONDS);
+        assertEquals(1, timer.getPendingCount());
+        Thread.sleep(300);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void manyTimeouts() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1000);
+        HashedWheelTimer.Timeout[] cancelled = new HashedWheelTimer.Timeout[1000];
+        final AtomicInteger cancelledRuns = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+            cancelled[i] = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancelledRuns.incrementAndGet();
+                }
+            }, 1000 + i % 100, TimeUnit.MILLISECONDS);
+        }
+        for (HashedWheelTimer.Timeout timeout : cancelled)
+            assertTrue(timeout.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, cancelledRuns.get());
+        assertEquals(0, timer.getPendingCount());
+    }
+}
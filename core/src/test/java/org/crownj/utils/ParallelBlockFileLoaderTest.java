@@ -0,0 +1,185 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.utils;
+
+import org.crownj.core.Address;
+import org.crownj.core.Block;
+import org.crownj.core.Context;
+import org.crownj.core.ECKey;
+import org.crownj.core.LegacyAddress;
+import org.crownj.core.NetworkParameters;
+import org.crownj.core.StoredBlock;
+import org.crownj.core.Utils;
+import org.crownj.params.UnitTestParams;
+import org.crownj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelBlockFileLoaderTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private final List<File> files = new ArrayList<>();
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        // Each block is five seconds after the previous one, so they would be in the future otherwise.
+        Utils.setMockClock(UNITTEST.getGenesisBlock().getTimeSeconds() + 24 * 60 * 60);
+        Context.propagate(new Context(UNITTEST));
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        blocks = new ArrayList<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 1000; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+        for (File file : files)
+            file.delete();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, byte[] bytes) throws IOException {
+        Utils.uint32ToByteStreamBE(UNITTEST.getPacketMagic(), out);
+        Utils.uint32ToByteStreamLE(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private File writeFile(List<Block> blocks, byte[] trailer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Block block : blocks)
+            writeRecord(out, block.crownSerialize());
+        out.write(trailer);
+        File file = File.createTempFile("blk", ".dat");
+        files.add(file);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(out.toByteArray());
+        }
+        return file;
+    }
+
+    @Test
+    public void reordersAcrossFiles() throws Exception {
+        // The second half of the chain comes first, and the genesis block is stored as well, as the reference client
+        // does.
+        File first = writeFile(blocks.subList(500, 1000), new byte[4096]);
+        List<Block> secondHalf = new ArrayList<>();
+        secondHalf.add(UNITTEST.getGenesisBlock());
+        secondHalf.addAll(blocks.subList(0, 500));
+        File second = writeFile(secondHalf, new byte[0]);
+
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(UNITTEST, Arrays.asList(first, second), 4);
+        List<Block> loaded = new ArrayList<>();
+        for (Block block : loader)
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+        assertTrue(loader.getErrors().isEmpty());
+        ParallelBlockFileLoader.Progress progress = loader.getProgress();
+        assertEquals(2, progress.filesRead);
+        assertEquals(first.length() + second.length(), progress.bytesRead);
+        assertEquals(1.0, progress.getFraction(), 0);
+        assertEquals(1001, progress.blocksRead);
+        assertEquals(1000, progress.blocksReturned);
+        assertEquals(0, progress.blocksWaiting);
+    }
+
+    @Test
+    public void reportsErrors() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeRecord(out, blocks.get(0).crownSerialize());
+        // Garbage, then a record that can't be parsed.
+        out.write(new byte[] { 1, 2, 3 });
+        writeRecord(out, new byte[] { 1, 2, 3, 4 });
+        writeRecord(out, blocks.get(1).crownSerialize());
+        // Skip the third block, so the fourth never connects.
+        writeRecord(out, blocks.get(3).crownSerialize());
+        // A truncated record at the end.
+        byte[] fifth = blocks.get(4).crownSerialize();
+        writeRecord(out, fifth);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+        File file = File.createTempFile("blk", ".dat");
+        files.add(file);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(bytes);
+        }
+        File missing = new File(file.getPath() + ".missing");
+
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(UNITTEST, Arrays.asList(file, missing), 2);
+        List<Block> loaded = new ArrayList<>();
+        for (Block block : loader)
+            loaded.add(block);
+        assertEquals(blocks.subList(0, 2), loaded);
+        List<ParallelBlockFileLoader.LoadError> errors = loader.getErrors();
+        // The garbage, the unparseable record, the truncated record and the missing file.
+        assertEquals(errors.toString(), 4, errors.size());
+        boolean missingReported = false;
+        for (ParallelBlockFileLoader.LoadError error : errors)
+            if (error.file.equals(missing) && error.offset == -1)
+                missingReported = true;
+        assertTrue(missingReported);
+        assertEquals(1, loader.getProgress().blocksWaiting);
+    }
+
+    @Test
+    public void resumesImport() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(UNITTEST);
+        StoredBlock head = store.getChainHead();
+        for (Block block : blocks.subList(0, 300)) {
+            head = head.build(block);
+            store.put(head);
+        }
+        store.setChainHead(head);
+        // The blocks that are in the chain already come after the new ones, so they would wait for their parent.
+        File first = writeFile(blocks.subList(300, 1000), new byte[0]);
+        File second = writeFile(blocks.subList(0, 300), new byte[0]);
+
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(UNITTEST, Arrays.asList(first, second), 4, store);
+        List<Block> loaded = new ArrayList<>();
+        for (Block block : loader)
+            loaded.add(block);
+        assertEquals(blocks.subList(300, 1000), loaded);
+        assertEquals(0, loader.getProgress().blocksWaiting);
+    }
+
+    @Test
+    public void close() throws Exception {
+        File file = writeFile(blocks, new byte[0]);
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(UNITTEST, Arrays.asList(file), 1);
+        assertEquals(blocks.get(0), loader.next());
+        loader.close();
+        // Blocks that were ready already may still be handed out, but the loader stops eventually.
+        int count = 0;
+        while (loader.hasNext()) {
+            loader.next();
+            count++;
+        }
+        assertTrue(count < blocks.size() - 1);
+    }
+}
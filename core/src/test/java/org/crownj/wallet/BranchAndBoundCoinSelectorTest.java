@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.*;
+import org.crownj.testing.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.crownj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    private Map<Coin, TransactionOutput> outputs;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock(); // Use mock clock
+        outputs = new HashMap<>();
+        for (Coin value : Arrays.asList(COIN, valueOf(2, 0), valueOf(3, 0), valueOf(5, 0))) {
+            Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, value);
+            outputs.put(value, tx.getOutput(0));
+        }
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    // The cost of change the selector uses by default.
+    private Coin minNonDustChange() {
+        return new TransactionOutput(UNITTEST, null, Coin.ZERO, OTHER_ADDRESS).getMinNonDustValue();
+    }
+
+    private Set<TransactionOutput> outputsOf(Coin... values) {
+        Set<TransactionOutput> result = new HashSet<>();
+        for (Coin value : values)
+            result.add(outputs.get(value));
+        return result;
+    }
+
+    @Test
+    public void selectsWithoutChange() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(wallet);
+        CoinSelection selection = selector.select(valueOf(4, 0), wallet.calculateAllSpendCandidates());
+        assertEquals(valueOf(4, 0), selection.valueGathered);
+        assertEquals(outputsOf(valueOf(3, 0), COIN), new HashSet<>(selection.gathered));
+
+        // Exceeding the target by less than the cost of change is fine.
+        selection = selector.select(valueOf(4, 0).subtract(minNonDustChange().divide(2)),
+                wallet.calculateAllSpendCandidates());
+        assertEquals(valueOf(4, 0), selection.valueGathered);
+    }
+
+    @Test
+    public void fallsBackToKnapsack() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(wallet);
+        // Nothing adds up to it, so the smallest output that covers it is used.
+        CoinSelection selection = selector.select(valueOf(4, 50), wallet.calculateAllSpendCandidates());
+        assertEquals(outputsOf(valueOf(5, 0)), new HashSet<>(selection.gathered));
+        // Running out of search steps does the same.
+        selector = new BranchAndBoundCoinSelector(wallet, minNonDustChange(), 1);
+        selection = selector.select(valueOf(4, 0), wallet.calculateAllSpendCandidates());
+        assertTrue(selection.valueGathered.compareTo(valueOf(4, 0)) >= 0);
+        // Not enough money.
+        selection = selector.select(valueOf(20, 0), wallet.calculateAllSpendCandidates());
+        assertEquals(valueOf(11, 0), selection.valueGathered);
+        // Everything.
+        selection = selector.select(NetworkParameters.MAX_MONEY, wallet.calculateAllSpendCandidates());
+        assertEquals(4, selection.gathered.size());
+    }
+
+    @Test
+    public void sendWithoutChange() throws Exception {
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, valueOf(4, 0));
+        req.coinSelector = new BranchAndBoundCoinSelector(wallet);
+        req.feePerKb = Coin.ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getOutputs().size());
+        assertEquals(2, req.tx.getInputs().size());
+        wallet.commitTx(req.tx);
+
+        // The index follows the outputs the wallet can spend, and gives the candidates their order.
+        assertEquals(Arrays.asList(outputs.get(valueOf(5, 0)), outputs.get(valueOf(2, 0))),
+                wallet.calculateAllSpendCandidates());
+        CoinSelection selection = req.coinSelector.select(valueOf(2, 0), wallet.calculateAllSpendCandidates());
+        assertEquals(outputsOf(valueOf(2, 0)), new HashSet<>(selection.gathered));
+    }
+}
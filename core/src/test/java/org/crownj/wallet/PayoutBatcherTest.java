@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.*;
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+import org.crownj.testing.*;
+import org.crownj.wallet.PayoutBatcher.Payout;
+import org.crownj.wallet.WalletTransaction.Pool;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.crownj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class PayoutBatcherTest extends TestWithWallet {
+    private MockTransactionBroadcaster broadcaster;
+    private PayoutBatcher batcher;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock(); // Use mock clock
+        for (int i = 0; i < 4; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        broadcaster = new MockTransactionBroadcaster(wallet);
+        batcher = new PayoutBatcher(wallet, broadcaster);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static List<Payout> payouts(int count, Coin value) {
+        List<Payout> payouts = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            payouts.add(new Payout(LegacyAddress.fromKey(UNITTEST, new ECKey()), value));
+        return payouts;
+    }
+
+    private static boolean pays(Transaction tx, Payout payout) {
+        for (TransactionOutput output : tx.getOutputs())
+            if (output.getValue().equals(payout.value)
+                    && output.getScriptPubKey().getToAddress(UNITTEST).equals(payout.address))
+                return true;
+        return false;
+    }
+
+    @Test
+    public void sendsPayoutsInBatches() throws Exception {
+        // Room for 50 outputs per transaction.
+        batcher.setMaxOutputsSize(50 * 34);
+        List<Payout> payouts = payouts(120, MILLICOIN);
+        List<ListenableFuture<Transaction>> futures = batcher.send(payouts);
+        assertEquals(0, batcher.getQueueSize());
+        assertEquals(3, broadcaster.size());
+        assertEquals(3, wallet.getPoolSize(Pool.PENDING));
+
+        // Each transaction has its own inputs.
+        Set<TransactionOutPoint> spent = new HashSet<>();
+        Map<Sha256Hash, Transaction> sent = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            Transaction tx = broadcaster.waitForTransactionAndSucceed();
+            sent.put(tx.getTxId(), tx);
+            for (TransactionInput input : tx.getInputs())
+                assertTrue(spent.add(input.getOutpoint()));
+            assertFalse(tx.getInput(0).isOptInFullRBF());
+        }
+        for (int i = 0; i < payouts.size(); i++) {
+            Transaction tx = futures.get(i).get();
+            assertTrue(sent.containsKey(tx.getTxId()));
+            assertTrue(pays(tx, payouts.get(i)));
+        }
+        assertEquals(50 + 1, futures.get(0).get().getOutputs().size());
+    }
+
+    @Test
+    public void insufficientMoney() throws Exception {
+        List<Payout> payouts = payouts(3, valueOf(2, 0));
+        List<ListenableFuture<Transaction>> futures = batcher.send(payouts);
+        assertEquals(0, broadcaster.size());
+        for (ListenableFuture<Transaction> future : futures) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InsufficientMoneyException);
+            }
+        }
+        // Nothing was left reserved.
+        batcher.send(payouts(1, valueOf(2, 0)));
+        broadcaster.waitForTransactionAndSucceed();
+    }
+
+    @Test
+    public void replacesUnconfirmedBatch() throws Exception {
+        batcher.setReplaceByFee(true);
+        List<Payout> first = payouts(2, MILLICOIN);
+        batcher.send(first);
+        Transaction replaced = broadcaster.waitForTransactionAndSucceed();
+        assertTrue(replaced.getInput(0).isOptInFullRBF());
+
+        List<Payout> second = payouts(2, MILLICOIN);
+        List<ListenableFuture<Transaction>> futures = batcher.send(second);
+        Transaction replacement = broadcaster.waitForTransactionAndSucceed();
+        assertEquals(replacement, futures.get(0).get());
+        assertEquals(replaced, first.get(0).getFuture().get());
+        for (Payout payout : first)
+            assertTrue(pays(replacement, payout));
+        for (Payout payout : second)
+            assertTrue(pays(replacement, payout));
+        assertEquals(replaced.getInput(0).getOutpoint(), replacement.getInput(0).getOutpoint());
+        assertTrue(replacement.getFee().isGreaterThan(replaced.getFee()));
+
+        assertEquals(ConfidenceType.DEAD, replaced.getConfidence().getConfidenceType());
+        assertEquals(replacement, replaced.getConfidence().getOverridingTransaction());
+        assertEquals(ConfidenceType.PENDING, replacement.getConfidence().getConfidenceType());
+        assertEquals(1, wallet.getPoolSize(Pool.PENDING));
+        assertEquals(1, wallet.getPoolSize(Pool.DEAD));
+
+        // Once it confirmed, a new transaction is sent.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, replacement);
+        batcher.send(payouts(1, MILLICOIN));
+        Transaction next = broadcaster.waitForTransactionAndSucceed();
+        assertNotEquals(replacement.getInput(0).getOutpoint(), next.getInput(0).getOutpoint());
+        assertEquals(1, wallet.getPoolSize(Pool.PENDING));
+    }
+}
@@ -22,7 +22,9 @@ import org.crownj.core.AbstractBlockChain;
 import org.crownj.core.Address;
 import org.crownj.core.Block;
 import org.crownj.core.BlockChain;
+import org.crownj.core.BlockFilter;
 import org.crownj.core.Coin;
+import org.crownj.core.Context;
 import org.crownj.core.ECKey;
 import org.crownj.core.InsufficientMoneyException;
 import org.crownj.core.LegacyAddress;
@@ -47,6 +49,7 @@ import org.crownj.script.ScriptPattern;
 import org.crownj.signers.TransactionSigner;
 import org.crownj.store.BlockStoreException;
 import org.crownj.store.MemoryBlockStore;
+import org.crownj.store.TransactionArchive;
 import org.crownj.testing.*;
 import org.crownj.utils.ExchangeRate;
 import org.crownj.utils.Fiat;
@@ -62,6 +65,7 @@ import org.easymock.EasyMock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 
 import org.crownj.wallet.KeyChain.KeyPurpose;
 import org.crownj.wallet.Protos.Wallet.EncryptionType;
@@ -73,6 +77,7 @@ import org.slf4j.LoggerFactory;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -648,7 +653,8 @@ public class WalletTest extends TestWithWallet {
         Threading.waitForUserCode();
         assertEquals(Coin.valueOf(0, 90), wallet.getBalance());
         assertEquals(null, txn[0]);
-        assertEquals(2, confTxns.size());
+        // The new depth of tx1 isn't reported, as nothing is waiting for it.
+        assertEquals(1, confTxns.size());
         assertEquals(txn[1].getTxId(), send1.getTxId());
         assertEquals(Coin.COIN, bigints[2]);
         assertEquals(Coin.valueOf(0, 90), bigints[3]);
@@ -659,11 +665,15 @@ public class WalletTest extends TestWithWallet {
         sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send2);
         assertEquals(Coin.valueOf(0, 80), wallet.getBalance());
         Threading.waitForUserCode();
+        // Only the transactions that reach a depth somebody is waiting for are reported.
+        int depth = tx1.getConfidence().getDepthInBlocks();
+        tx1.getConfidence().addDepthThreshold(depth + 1);
         FakeTxBuilder.BlockPair b4 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
         confTxns.clear();
         wallet.notifyNewBestBlock(b4.storedBlock);
         Threading.waitForUserCode();
-        assertEquals(3, confTxns.size());
+        assertEquals(depth + 1, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(Collections.singletonList(tx1), confTxns);
     }
 
     @Test
@@ -700,6 +710,37 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void consistencyCheckPolicies() throws Exception {
+        wallet.setConsistencyCheckPolicy(ConsistencyCheckPolicy.sampled(2));
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        ConsistencyCheckPolicy.Stats stats = wallet.getConsistencyCheckStats();
+        assertEquals(2, stats.mutations);
+        assertEquals(1, stats.fullChecks);
+        assertEquals(1, stats.getSkipped());
+
+        // Put a transaction into a second pool. The incremental check finds it, as the transaction was touched.
+        wallet.setConsistencyCheckPolicy(ConsistencyCheckPolicy.incremental());
+        wallet.addWalletTransaction(new WalletTransaction(Pool.PENDING, tx));
+        try {
+            sendMoneyToWallet(null, CENT);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        stats = wallet.getConsistencyCheckStats();
+        assertEquals(1, stats.incrementalChecks);
+        assertEquals(0, stats.fullChecks);
+        assertEquals(1, stats.failures);
+        assertTrue(stats.transactionsChecked >= 2);
+
+        wallet.setConsistencyCheckPolicy(ConsistencyCheckPolicy.off());
+        sendMoneyToWallet(null, CENT.add(SATOSHI));
+        assertEquals(1, wallet.getConsistencyCheckStats().getSkipped());
+        assertFalse(wallet.isConsistent());
+    }
+
     @Test
     public void isConsistent_pools() throws Exception {
         // This test ensures that isConsistent catches transactions that are in incompatible pools.
@@ -1489,6 +1530,83 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionHistoryPages() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            received.add(0, sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, i + 1)));
+            Utils.rollMockClock(60);
+        }
+        // Page through the history two at a time.
+        List<Transaction> page = wallet.getRecentTransactions(null, 2, false);
+        assertEquals(received.subList(0, 2), page);
+        page = wallet.getRecentTransactions(wallet.getHistoryCursor(page.get(1).getTxId()), 2, false);
+        assertEquals(received.subList(2, 4), page);
+        HistoryCursor cursor = wallet.getHistoryCursor(page.get(1).getTxId());
+        // A new transaction doesn't disturb the pages that follow.
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 1));
+        wallet.commitTx(send);
+        assertEquals(received.subList(4, 5), wallet.getRecentTransactions(cursor, 2, false));
+        assertEquals(send, wallet.getRecentTransactions(1, false).get(0));
+        assertNull(wallet.getHistoryCursor(Sha256Hash.ZERO_HASH));
+
+        // The confirmed transactions by the height they appeared at.
+        int height1 = received.get(4).getConfidence().getAppearedAtChainHeight();
+        int height5 = received.get(0).getConfidence().getAppearedAtChainHeight();
+        assertEquals(Lists.reverse(received), wallet.getTransactionsByHeight(height1, height5));
+        assertEquals(received.subList(0, 1), wallet.getTransactionsByHeight(height5, Integer.MAX_VALUE));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        assertEquals(Arrays.asList(send), wallet.getTransactionsByHeight(height5 + 1, height5 + 1));
+        assertTrue(wallet.getTransactionsByHeight(height5, height1).isEmpty());
+    }
+
+    @Test
+    public void balancesFollowKeysAndConfirmations() throws Exception {
+        ECKey watchedKey = new ECKey();
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, watchedKey));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, LegacyAddress.fromKey(UNITTEST, watchedKey));
+        Transaction pending = sendMoneyToWallet(null, CENT);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        // Pending money from others isn't available yet.
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        // The watched output becomes spendable once we have its key.
+        wallet.importKey(watchedKey);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, pending);
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        wallet.commitTx(wallet.createSend(OTHER_ADDRESS, COIN));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(wallet.getBalance(BalanceType.ESTIMATED), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+    }
+
+    @Test
+    public void balancesFollowSwappedKeys() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, key1));
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, key2));
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN,
+                LegacyAddress.fromKey(UNITTEST, key1));
+        Transaction t2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT,
+                LegacyAddress.fromKey(UNITTEST, key2));
+        wallet.importKey(key1);
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(Collections.singletonList(t1.getOutput(0)), wallet.getSnapshot().getSpendCandidates());
+
+        // Removing one key and importing another leaves the number of keys as it was.
+        wallet.removeKey(key1);
+        wallet.importKey(key2);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(Collections.singletonList(t2.getOutput(0)), wallet.getSnapshot().getSpendCandidates());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -1767,6 +1885,27 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(0.001).contains(outPoint.unsafecrownSerialize()));
     }
 
+    @Test
+    public void marriedKeychainCompactFilterElements() throws Exception {
+        createMarriedWallet(2, 2);
+        Address address = wallet.currentReceiveAddress();
+        Set<ByteString> elements = new HashSet<>();
+        for (byte[] element : wallet.getCompactFilterElements())
+            elements.add(ByteString.copyFrom(element));
+        assertTrue(elements.contains(ByteString.copyFrom(ScriptBuilder.createOutputScript(address).getProgram())));
+        // The lookahead zone is covered too.
+        Address future = null;
+        for (int i = 0; i < 3; i++)
+            future = wallet.freshReceiveAddress();
+        assertTrue(elements.contains(ByteString.copyFrom(ScriptBuilder.createOutputScript(future).getProgram())));
+
+        // And a block paying it is matched by its filter.
+        Transaction t1 = createFakeTx(UNITTEST, CENT, future);
+        Block block = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, t1).block;
+        BlockFilter filter = BlockFilter.buildBasic(block, Collections.<byte[]>emptyList());
+        assertTrue(filter.matchesAny(wallet.getCompactFilterElements()));
+    }
+
     @Test
     public void autosaveImmediate() throws Exception {
         // Test that the wallet will save itself automatically when it changes.
@@ -1852,6 +1991,239 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void autosaveJournal() throws Exception {
+        File f = File.createTempFile("crownj-unit-test", null);
+        File journalFile = WalletJournal.journalFileFor(f);
+        journalFile.deleteOnExit();
+        // Delayed saves never happen during the test, so the journal only changes when saved explicitly.
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.enableJournal(1000000);
+        Sha256Hash hash1 = Sha256Hash.of(f);
+        assertEquals(0, files.getJournalSize());
+
+        // Changes go into the journal, the wallet file stays as it is.
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = sendMoneyToWallet(null, valueOf(5, 0), key);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t1);
+        files.saveNow();
+        assertEquals(hash1, Sha256Hash.of(f));
+        assertTrue(files.getJournalSize() > 0);
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(valueOf(5, 0), loaded.getBalance());
+        assertEquals(ConfidenceType.BUILDING, loaded.getTransaction(t1.getTxId()).getConfidence().getConfidenceType());
+        assertNotNull(loaded.findKeyFromPubKey(key.getPubKey()));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+
+        // A record torn by a crash is ignored.
+        long journalSize = files.getJournalSize();
+        sendMoneyToWallet(null, valueOf(1, 0), key);
+        files.saveNow();
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(journalSize + 30);
+        }
+        loaded = Wallet.loadFromFile(f);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertEquals(valueOf(5, 0), loaded.getBalance(BalanceType.ESTIMATED));
+
+        // Removing transactions rewrites the wallet file and empties the journal.
+        wallet.reset();
+        files.saveNow();
+        assertEquals(0, files.getJournalSize());
+        assertFalse(hash1.equals(Sha256Hash.of(f)));
+        loaded = Wallet.loadFromFile(f);
+        assertTrue(loaded.getTransactions(true).isEmpty());
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void journalWritesKeysOnlyWhenChanged() throws Exception {
+        File f = File.createTempFile("crownj-unit-test", null);
+        WalletJournal.journalFileFor(f).deleteOnExit();
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.enableJournal(1000000);
+        int keysSize = 0;
+        for (Protos.Key key : wallet.serializeKeyChainGroupToProtobuf())
+            keysSize += key.getSerializedSize();
+
+        // Without key changes, records don't contain the keys.
+        files.saveNow();
+        long size = files.getJournalSize();
+        assertTrue(size < keysSize);
+        // Issuing a key saves right away, with the keys.
+        ECKey key = wallet.freshReceiveKey();
+        assertTrue(files.getJournalSize() - size > keysSize);
+        size = files.getJournalSize();
+        files.saveNow();
+        assertTrue(files.getJournalSize() - size < keysSize);
+
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(wallet.getActiveKeyChain().getIssuedExternalKeys(),
+                loaded.getActiveKeyChain().getIssuedExternalKeys());
+        assertNotNull(loaded.findKeyFromPubKey(key.getPubKey()));
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void fullSaveSupersedesJournal() throws Exception {
+        File f = File.createTempFile("crownj-unit-test", null);
+        WalletJournal.journalFileFor(f).deleteOnExit();
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.enableJournal(1000000);
+        Transaction t1 = sendMoneyToWallet(null, valueOf(5, 0), myKey);
+        files.saveNow();
+        assertTrue(files.getJournalSize() > 0);
+
+        // A full save, like when an app shuts down, contains the newer state. The old record isn't applied over it.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t1);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        wallet.saveToFile(f);
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(ConfidenceType.BUILDING, loaded.getTransaction(t1.getTxId()).getConfidence().getConfidenceType());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+
+        // Later records still are.
+        Transaction t2 = sendMoneyToWallet(null, valueOf(1, 0), myKey);
+        files.saveNow();
+        loaded = Wallet.loadFromFile(f);
+        assertEquals(ConfidenceType.BUILDING, loaded.getTransaction(t1.getTxId()).getConfidence().getConfidenceType());
+        assertEquals(ConfidenceType.PENDING, loaded.getTransaction(t2.getTxId()).getConfidence().getConfidenceType());
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void archiveDeepSpentTransactions() throws Exception {
+        File directory = java.nio.file.Files.createTempDirectory("crownj-unit-test").toFile();
+        TransactionArchive archive = new TransactionArchive(directory);
+        try {
+            wallet.setTransactionArchive(archive, 10);
+            fail("Depth below the event horizon");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        wallet.setTransactionArchive(archive, 100);
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction t2 = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(t2);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t2);
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+        Coin balance = wallet.getBalance();
+
+        // Not deep enough yet.
+        for (int i = 0; i < 99; i++)
+            wallet.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        assertEquals(100, t2.getConfidence().getDepthInBlocks());
+        assertEquals(0, archive.size());
+        assertEquals(2, wallet.getTransactions(true).size());
+
+        // The spent transaction leaves the wallet once the one spending it is buried too, the change stays.
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        assertEquals(1, archive.size());
+        assertEquals(Collections.singleton(t2), wallet.getTransactions(true));
+        assertEquals(0, wallet.getPoolSize(Pool.SPENT));
+        assertTrue(wallet.isConsistent());
+        assertEquals(balance, wallet.getBalance());
+        assertNull(t2.getInput(0).getConnectedOutput());
+
+        // But it is still found.
+        Transaction archived = wallet.getTransaction(t1.getTxId());
+        assertNotSame(t1, archived);
+        assertEquals(t1, archived);
+        assertEquals(ConfidenceType.BUILDING, archived.getConfidence().getConfidenceType());
+        // With its own confidence, not the one shared through the context.
+        assertNotSame(t1.getConfidence(), archived.getConfidence());
+        assertSame(t1.getConfidence(), Context.get().getConfidenceTable().get(t1.getTxId()));
+        assertEquals(archived, wallet.getSpentTransaction(t1.getTxId()));
+        assertFalse(wallet.getTransactionPool(Pool.SPENT).containsKey(t1.getTxId()));
+        assertEquals(COIN, t2.getValueSentFromMe(wallet));
+        assertEquals(COIN.subtract(t2.getValueSentToMe(wallet)), t2.getValue(wallet).negate());
+
+        // And isn't saved in the wallet file anymore.
+        Wallet loaded = roundTrip(wallet);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertEquals(balance, loaded.getBalance());
+        wallet.setTransactionArchive(null, 0);
+        assertNull(wallet.getTransaction(t1.getTxId()));
+        archive.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void snapshots() throws Exception {
+        WalletSnapshot s0 = wallet.getSnapshot();
+        assertSame(s0, wallet.getSnapshot());
+        assertEquals(Coin.ZERO, s0.getBalance());
+        assertTrue(s0.getTransactions(true).isEmpty());
+
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        WalletSnapshot s1 = wallet.getSnapshot();
+        assertTrue(s1.getVersion() > s0.getVersion());
+        assertEquals(Coin.ZERO, s0.getBalance());
+        assertEquals(COIN, s1.getBalance());
+        assertEquals(COIN, s1.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(Collections.singleton(t1), s1.getTransactions(false));
+        assertSame(t1, s1.getTransaction(t1.getTxId()));
+        assertEquals(1, s1.getPoolSize(Pool.UNSPENT));
+        assertEquals(wallet.calculateAllSpendCandidates(true, true), s1.getSpendCandidates());
+        assertEquals(wallet.getLastBlockSeenHash(), s1.getLastBlockSeenHash());
+
+        // A block that doesn't touch the wallet shares the transactions with the version before.
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+        WalletSnapshot s2 = wallet.getSnapshot();
+        assertTrue(s2.getVersion() > s1.getVersion());
+        assertSame(s1.getTransactionPool(Pool.UNSPENT), s2.getTransactionPool(Pool.UNSPENT));
+        assertSame(s1.getSpendCandidates(), s2.getSpendCandidates());
+        assertEquals(wallet.getLastBlockSeenHeight(), s2.getLastBlockSeenHeight());
+
+        // Spending and watching are published too.
+        Transaction t2 = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(t2);
+        WalletSnapshot s3 = wallet.getSnapshot();
+        assertEquals(wallet.getBalance(BalanceType.ESTIMATED), s3.getBalance(BalanceType.ESTIMATED));
+        assertEquals(1, s3.getPoolSize(Pool.PENDING));
+        assertEquals(2, s3.getTransactions(true).size());
+        wallet.addWatchedAddress(OTHER_ADDRESS);
+        assertEquals(wallet.getWatchedScripts(), wallet.getSnapshot().getWatchedScripts());
+
+        // Reading doesn't wait for the wallet lock.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        assertEquals(s3.getBalance(), wallet.getSnapshot().getBalance());
+        release.countDown();
+        writer.join();
+
+        // Versions that nobody reads pile up their changes, until they are merged.
+        for (int i = 0; i < 40; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT.multiply(i + 1));
+        WalletSnapshot s4 = wallet.getSnapshot();
+        for (Pool pool : Pool.values())
+            assertEquals(wallet.getTransactionPool(pool), s4.getTransactionPool(pool));
+        assertEquals(wallet.getTransactions(true), s4.getTransactions(true));
+        assertEquals(wallet.calculateAllSpendCandidates(true, true), s4.getSpendCandidates());
+        for (BalanceType balanceType : BalanceType.values())
+            assertEquals(wallet.getBalance(balanceType), s4.getBalance(balanceType));
+        assertEquals(2, s3.getTransactions(true).size());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -21,11 +21,12 @@ import org.crownj.params.MainNetParams;
 import org.crownj.params.TestNet3Params;
 import org.crownj.store.*;
 import org.crownj.utils.BlockFileLoader;
+import org.crownj.utils.ParallelBlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
 
-/** Very thin wrapper around {@link BlockFileLoader} */
+/** Very thin wrapper around {@link ParallelBlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
@@ -65,9 +66,13 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        ParallelBlockFileLoader loader = new ParallelBlockFileLoader(params,
+                BlockFileLoader.getReferenceClientBlockFileList(), Runtime.getRuntime().availableProcessors(), store);
         
         for (Block block : loader)
             chain.add(block);
+        System.out.println(loader.getProgress());
+        for (ParallelBlockFileLoader.LoadError error : loader.getErrors())
+            System.err.println(error);
     }
 }